@@ -0,0 +1,83 @@
+package com.picostuff.lockstep;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The node operations under {@link InMemorySharedMemory}, without its
+ * locking, so the cost of passing hash changes up the tree shows on its
+ * own
+ * 
+ * @author chenglim
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryNodeBenchmark {
+	@Param({ "1", "16", "64" })
+	public int depth;
+	
+	@Param({ "10", "1000" })
+	public int fanOut;
+	
+	private MemoryNode dir;
+	private MemoryNode[] files;
+	private int next;
+	private long versionCount;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = new MemoryNode("", SharedMemory.DIR_NODE_VERSION, "/");
+		for (int i = 0; i < depth; i++) {
+			dir = dir.addChild("d" + i, SharedMemory.DIR_NODE_VERSION);
+		}
+		files = new MemoryNode[fanOut];
+		for (int i = 0; i < fanOut; i++) {
+			files[i] = dir.addChild("f" + i, "0");
+		}
+	}
+	
+	/**
+	 * A new version, passed up every dir above
+	 */
+	@Benchmark
+	public void setVersion() {
+		MemoryNode file = files[next];
+		next = (next + 1) % files.length;
+		file.setVersion(String.valueOf(++versionCount));
+	}
+	
+	@Benchmark
+	public void addAndRemoveChild() throws Exception {
+		dir.addChild("added", "1");
+		dir.removeChild("added");
+	}
+	
+	@Benchmark
+	public MemoryNode getChild() throws Exception {
+		MemoryNode file = dir.getChild("f" + next);
+		next = (next + 1) % files.length;
+		return file;
+	}
+	
+	@Benchmark
+	public MemoryNode makeCopy() {
+		return dir.makeCopy();
+	}
+}
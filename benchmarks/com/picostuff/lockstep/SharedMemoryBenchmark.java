@@ -0,0 +1,135 @@
+package com.picostuff.lockstep;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-threaded cost of the shared memory calls a worker makes most,
+ * against a dir of files at the bottom of a chain of dirs, for both
+ * stores, several depths and several dir sizes
+ * 
+ * @author chenglim
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedMemoryBenchmark {
+	@Param({ "memory", "jdbc" })
+	public String store;
+	
+	@Param({ "1", "4", "16" })
+	public int depth;
+	
+	@Param({ "10", "1000", "100000" })
+	public int fanOut;
+	
+	private SharedMemory memory;
+	private String dirPath;
+	private String[] filePaths;
+	private MemoryNode[] files; // what we last wrote to each file
+	private int next;
+	private long versionCount;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		memory = createMemory(store);
+		dirPath = buildTree(memory, depth, fanOut);
+		filePaths = new String[fanOut];
+		files = new MemoryNode[fanOut];
+		for (int i = 0; i < fanOut; i++) {
+			filePaths[i] = MemoryPaths.childPath(dirPath, "f" + i);
+			files[i] = memory.copyNode(filePaths[i]);
+		}
+	}
+	
+	static SharedMemory createMemory(String store) {
+		if (store.equals("jdbc"))
+			return new JdbcSharedMemory("jdbc:h2:mem:benchmark" + System.nanoTime() + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000");
+		return new InMemorySharedMemory();
+	}
+	
+	/**
+	 * @return the path of the dir at the given depth, holding files "f0" on
+	 */
+	static String buildTree(SharedMemory memory, int depth, int fanOut) throws Exception {
+		String path = "/";
+		for (int i = 0; i < depth; i++) {
+			memory.addDirNode(path, "d" + i);
+			path = MemoryPaths.childPath(path, "d" + i);
+		}
+		for (int i = 0; i < fanOut; i++) {
+			memory.addNode(path, "f" + i, "0");
+		}
+		return path;
+	}
+	
+	private int nextFile() {
+		int file = next;
+		next = (file + 1) % filePaths.length;
+		return file;
+	}
+	
+	/**
+	 * The path lookup behind every read and write, plus the copy handed back
+	 */
+	@Benchmark
+	public MemoryNode copyNode() throws Exception {
+		return memory.copyNode(filePaths[nextFile()]);
+	}
+	
+	@Benchmark
+	public Set<String> getChildrenNames() throws Exception {
+		return memory.getChildrenNames(dirPath);
+	}
+	
+	/**
+	 * A page of the dir, as a scan reads it
+	 */
+	@Benchmark
+	public SubtreePage copySubtreePage() throws Exception {
+		return memory.copySubtree(dirPath, 1, null, 1000);
+	}
+	
+	/**
+	 * An add and the remove that puts the tree back, so every add is into
+	 * the same tree
+	 */
+	@Benchmark
+	public void addNode() throws Exception {
+		memory.addNode(dirPath, "added", "1");
+		memory.removeNode(MemoryPaths.childPath(dirPath, "added"), new MemoryNode("added", "1"));
+	}
+	
+	@Benchmark
+	public void changeNode() throws Exception {
+		int file = nextFile();
+		MemoryNode newNode = files[file].makeCopy();
+		newNode.setVersion(String.valueOf(++versionCount));
+		memory.changeNode(filePaths[file], files[file], newNode);
+		files[file] = newNode;
+	}
+	
+	@Benchmark
+	public Snapshot snapshot() throws Exception {
+		Snapshot snapshot = memory.snapshot();
+		snapshot.release();
+		return snapshot;
+	}
+}
@@ -0,0 +1,131 @@
+package com.picostuff.lockstep;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.picostuff.lockstep.exception.SaveConflictException;
+
+/**
+ * Throughput of many workers writing to one shared memory at once: each
+ * on its own file in a shared dir, all on the same file, and reads going
+ * on alongside writes
+ * 
+ * @author chenglim
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class SharedMemoryContentionBenchmark {
+	static private final int FILES = 64; // at least one for each thread
+	
+	@Param({ "memory", "jdbc" })
+	public String store;
+	
+	@Param({ "1", "8" })
+	public int depth;
+	
+	private SharedMemory memory;
+	private String dirPath;
+	private final AtomicInteger threadCount = new AtomicInteger();
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		memory = SharedMemoryBenchmark.createMemory(store);
+		dirPath = SharedMemoryBenchmark.buildTree(memory, depth, FILES);
+	}
+	
+	/**
+	 * What one thread writes to
+	 */
+	@State(Scope.Thread)
+	public static class Writer {
+		private String ownPath;
+		private String addedName;
+		private long versionCount;
+		
+		@Setup(Level.Trial)
+		public void setup(SharedMemoryContentionBenchmark benchmark) {
+			int thread = benchmark.threadCount.getAndIncrement();
+			ownPath = MemoryPaths.childPath(benchmark.dirPath, "f" + (thread % FILES));
+			addedName = "added" + thread;
+		}
+		
+		String nextVersion() {
+			return Thread.currentThread().getName() + "-" + (++versionCount);
+		}
+	}
+	
+	/**
+	 * Disjoint nodes, which only meet on the dirs above them
+	 */
+	@Benchmark
+	public void changeOwnNode(Writer writer) throws Exception {
+		change(writer.ownPath, writer);
+	}
+	
+	/**
+	 * Every thread on one node, so most writes lose and read again
+	 */
+	@Benchmark
+	public void changeSameNode(Writer writer) throws Exception {
+		change(MemoryPaths.childPath(dirPath, "f0"), writer);
+	}
+	
+	/**
+	 * Adds and removes in the same dir, which all change the dir's hash
+	 */
+	@Benchmark
+	public void addToSameDir(Writer writer) throws Exception {
+		memory.addNode(dirPath, writer.addedName, "1");
+		memory.removeNode(MemoryPaths.childPath(dirPath, writer.addedName), new MemoryNode(writer.addedName, "1"));
+	}
+	
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(6)
+	public MemoryNode reader(Writer writer) throws Exception {
+		return memory.copyNode(writer.ownPath);
+	}
+	
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(2)
+	public void writer(Writer writer) throws Exception {
+		change(writer.ownPath, writer);
+	}
+	
+	private void change(String path, Writer writer) throws Exception {
+		while (true) {
+			MemoryNode oldNode = memory.copyNode(path);
+			MemoryNode newNode = oldNode.makeCopy();
+			newNode.setVersion(writer.nextVersion());
+			try {
+				memory.changeNode(path, oldNode, newNode);
+				return;
+			} catch (SaveConflictException e) {
+				// someone else got there first, so read it again
+			}
+		}
+	}
+}
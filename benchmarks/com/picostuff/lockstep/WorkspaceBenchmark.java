@@ -0,0 +1,178 @@
+package com.picostuff.lockstep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.picostuff.lockstep.exception.SaveConflictException;
+
+/**
+ * {@link Workspace#processItem} and {@link Workspace#processItems} for
+ * each pair of remote and local states they handle, and
+ * {@link Workspace#getFileSet} over large workspaces
+ * 
+ * @author chenglim
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkspaceBenchmark {
+	static private final int BATCH = 1000;
+	static private final String BASE_VERSION = "1";
+	
+	/**
+	 * A batch of items all in the same pair of states, set up again before
+	 * each call since processing them moves them on
+	 */
+	@State(Scope.Thread)
+	public static class Items {
+		@Param({ "REMOTE_CHANGED:LOCAL_UNCHANGED", "REMOTE_CHANGED:LOCAL_CHANGED", "REMOTE_CHANGED:LOCAL_DELETED", "REMOTE_CHANGED:LOCAL_PLACEHOLDER",
+				"REMOTE_NEW:LOCAL_NOTHING", "REMOTE_NEW:LOCAL_NEW", "REMOTE_NEW:LOCAL_PLACEHOLDER",
+				"REMOTE_NOTHING:LOCAL_NEW", "REMOTE_NOTHING:LOCAL_NOTHING", "REMOTE_NOTHING:LOCAL_PLACEHOLDER",
+				"REMOTE_UNCHANGED:LOCAL_UNCHANGED", "REMOTE_UNCHANGED:LOCAL_CHANGED", "REMOTE_UNCHANGED:LOCAL_DELETED", "REMOTE_UNCHANGED:LOCAL_PLACEHOLDER",
+				"REMOTE_DELETED:LOCAL_UNCHANGED", "REMOTE_DELETED:LOCAL_CHANGED", "REMOTE_DELETED:LOCAL_DELETED", "REMOTE_DELETED:LOCAL_PLACEHOLDER" })
+		public String states;
+		
+		private RemoteItemState remoteState;
+		private LocalItemState localState;
+		private final String[] keys = new String[BATCH];
+		private final RemoteItemInfo[] remoteInfos = new RemoteItemInfo[BATCH];
+		private final Map<String,LocalItemInfo> pushes = new HashMap<String,LocalItemInfo>();
+		private final List<String> conflicts = new ArrayList<String>();
+		private Map<String,String> files;
+		private MapFileSystem fileSystem;
+		private LocalStateStorage lastUpdatedItems;
+		private Workspace workspace;
+		
+		@Setup(Level.Trial)
+		public void setupStates() {
+			String[] pair = states.split(":");
+			remoteState = RemoteItemState.valueOf(pair[0]);
+			localState = LocalItemState.valueOf(pair[1]);
+			for (int i = 0; i < BATCH; i++) {
+				keys[i] = "/dir/f" + i;
+				remoteInfos[i] = remoteInfo(keys[i]);
+			}
+		}
+		
+		@Setup(Level.Invocation)
+		public void setupItems() {
+			files = Collections.synchronizedMap(new HashMap<String,String>());
+			fileSystem = new MapFileSystem(files);
+			lastUpdatedItems = new InMemoryLocalStateStorage();
+			workspace = new Workspace(fileSystem, lastUpdatedItems);
+			boolean hasBase = remoteState != RemoteItemState.REMOTE_NEW && remoteState != RemoteItemState.REMOTE_NOTHING;
+			for (String key:keys) {
+				if (hasBase)
+					lastUpdatedItems.put(key, new BaseItemInfo(MemoryPaths.nameOf(key), BASE_VERSION));
+				switch (localState) {
+				case LOCAL_UNCHANGED:
+					fileSystem.put(key, BASE_VERSION);
+					break;
+				case LOCAL_CHANGED:
+				case LOCAL_NEW:
+					fileSystem.put(key, "2");
+					break;
+				case LOCAL_PLACEHOLDER:
+					fileSystem.putPlaceholder(key, BASE_VERSION, 100);
+					break;
+				default:
+					break; // nothing here
+				}
+			}
+		}
+		
+		private RemoteItemInfo remoteInfo(String key) {
+			switch (remoteState) {
+			case REMOTE_CHANGED:
+			case REMOTE_NEW:
+				return new RemoteItemInfo(MemoryPaths.nameOf(key), "3", 100, 0);
+			case REMOTE_UNCHANGED:
+				return new RemoteItemInfo(MemoryPaths.nameOf(key), BASE_VERSION, 100, 0);
+			default:
+				return null;
+			}
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int processItem(Items items) throws Exception {
+		int conflicts = 0;
+		for (int i = 0; i < BATCH; i++) {
+			try {
+				items.workspace.processItem(items.keys[i], items.remoteInfos[i]);
+			} catch (SaveConflictException e) {
+				conflicts++; // part of what is measured, as in a real sync
+			}
+		}
+		return conflicts;
+	}
+	
+	/**
+	 * The same batch in one call, as a scan hands over a dir's worth
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int processItems(Items items) throws Exception {
+		items.pushes.clear();
+		items.conflicts.clear();
+		items.workspace.processItems(Arrays.asList(items.keys), Arrays.asList(items.remoteInfos), items.pushes, items.conflicts);
+		return items.conflicts.size();
+	}
+	
+	/**
+	 * A workspace of many files, spread over dirs of a hundred each
+	 */
+	@State(Scope.Benchmark)
+	public static class LargeWorkspace {
+		@Param({ "1000", "100000" })
+		public int fileCount;
+		
+		private Workspace workspace;
+		
+		@Setup(Level.Trial)
+		public void setup() {
+			Map<String,String> files = Collections.synchronizedMap(new HashMap<String,String>());
+			for (int i = 0; i < fileCount; i++) {
+				files.put("/d" + (i / 100) + "/f" + i, "1");
+			}
+			workspace = new Workspace(files);
+		}
+	}
+	
+	@Benchmark
+	public Set<String> getFileSet(LargeWorkspace large) {
+		return large.workspace.getFileSet();
+	}
+	
+	/**
+	 * One dir of a hundred files out of the whole workspace
+	 */
+	@Benchmark
+	public Set<String> getFileSetOfDir(LargeWorkspace large) {
+		return large.workspace.getFileSet("/d0");
+	}
+}
@@ -0,0 +1,40 @@
+package com.picostuff.lockstep;
+
+import com.picostuff.lockstep.exception.AddDuplicateException;
+import com.picostuff.lockstep.exception.BadPathException;
+import com.picostuff.lockstep.exception.MissingNodeException;
+
+/**
+ * The parts of a shared memory that don't depend on where the nodes are
+ * kept: the convenience adds and the bookkeeping for watches.
+ * 
+ * @author chenglim
+ *
+ */
+public abstract class AbstractSharedMemory implements SharedMemory {
+	private final WatchManager watchManager = new WatchManager();
+
+	public void addRootDirNode(String name) throws BadPathException, MissingNodeException, AddDuplicateException {
+		addDirNode("/",name);
+	}
+
+	public void addDirNode(String path, String name) throws BadPathException, MissingNodeException, AddDuplicateException {
+		addNode(path, name, DIR_NODE_VERSION);
+	}
+
+	public void addRootNode(String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException {
+		addNode("/",name,version);
+	}
+	
+	public Watch watchNode(String path, boolean persistent, NodeWatcher watcher) throws BadPathException {
+		return watchManager.add(MemoryPaths.makeCanonical(path), false, persistent, watcher);
+	}
+	
+	public Watch watchSubtree(String path, boolean persistent, NodeWatcher watcher) throws BadPathException {
+		return watchManager.add(MemoryPaths.makeCanonical(path), true, persistent, watcher);
+	}
+	
+	WatchManager getWatchManager() {
+		return watchManager;
+	}
+}
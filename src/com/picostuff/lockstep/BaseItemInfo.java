@@ -15,6 +15,10 @@ public class BaseItemInfo {
 		this.version = version;
 	}
 	
+	public String getName() {
+		return this.name;
+	}
+	
 	public String getVersion() {
 		return this.version;
 	}
@@ -0,0 +1,175 @@
+package com.picostuff.lockstep;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a receiver tells a sender about the copy it already has: a weak
+ * rolling checksum and a strong digest for each whole block, so the sender
+ * can describe new content as blocks the receiver has plus literal bytes.
+ * 
+ * @author chenglim
+ *
+ */
+public class BlockSignatures {
+	static private final int MAX_LITERAL = 256 * 1024;
+	
+	private final int blockSize;
+	private final int[] weak;
+	private final List<String> strong;
+	private boolean[] tags;
+	private Map<Integer, List<Integer>> blocks;
+	
+	public BlockSignatures(int blockSize, int[] weak, List<String> strong) {
+		if (weak.length != strong.size())
+			throw new IllegalArgumentException(weak.length + " weak checksums for " + strong.size() + " digests");
+		this.blockSize = blockSize;
+		this.weak = weak;
+		this.strong = strong;
+	}
+	
+	/**
+	 * Work out the signatures of every whole block in the content.  A short
+	 * block at the end is left out, since it can't match a full window.
+	 */
+	static public BlockSignatures of(InputStream in, int blockSize) throws IOException {
+		byte[] block = new byte[blockSize];
+		List<Integer> weakList = new ArrayList<Integer>();
+		List<String> strongList = new ArrayList<String>();
+		while (readFully(in, block) == blockSize) {
+			weakList.add(RollingChecksum.of(block, 0, blockSize));
+			strongList.add(ChunkManifest.digest(ByteBuffer.wrap(block)));
+		}
+		int[] weak = new int[weakList.size()];
+		for (int i = 0; i < weak.length; i++) {
+			weak[i] = weakList.get(i);
+		}
+		return new BlockSignatures(blockSize, weak, strongList);
+	}
+	
+	static int readFully(InputStream in, byte[] bytes) throws IOException {
+		int count = 0;
+		while (count < bytes.length) {
+			int read = in.read(bytes, count, bytes.length - count);
+			if (read < 0)
+				break;
+			count += read;
+		}
+		return count;
+	}
+	
+	/**
+	 * Describe the content to the sink as the blocks these signatures list
+	 * plus literal bytes, trying for a match at every offset so content
+	 * that has moved along, such as after an insert, is still found.
+	 */
+	public void delta(InputStream in, DeltaSource.Sink sink) throws IOException {
+		index();
+		// room for the longest literal we hold back, and a window after it
+		byte[] buffer = new byte[MAX_LITERAL + 2 * blockSize];
+		RollingChecksum checksum = new RollingChecksum(blockSize);
+		boolean valid = false;
+		boolean eof = false;
+		int start = 0; // where the literal not yet sent starts
+		int position = 0; // where the window starts
+		int end = 0;
+		while (true) {
+			if (end - position <= blockSize && !eof) {
+				if (start > 0) {
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					position -= start;
+					end -= start;
+					start = 0;
+				}
+				int read = in.read(buffer, end, buffer.length - end);
+				if (read < 0) {
+					eof = true;
+				} else {
+					end += read;
+				}
+				continue;
+			}
+			if (end - position < blockSize)
+				break;
+			if (!valid) {
+				checksum.reset(buffer, position);
+				valid = true;
+			}
+			int block = find(checksum.getValue(), buffer, position);
+			if (block >= 0) {
+				if (position > start)
+					sink.literal(buffer, start, position - start);
+				sink.copy(block);
+				position += blockSize;
+				start = position;
+				valid = false;
+				continue;
+			}
+			if (position + blockSize == end)
+				break; // nothing left to roll in
+			checksum.roll(buffer[position], buffer[position + blockSize]);
+			position++;
+			if (position - start >= MAX_LITERAL) {
+				sink.literal(buffer, start, position - start);
+				start = position;
+			}
+		}
+		if (end > start)
+			sink.literal(buffer, start, end - start);
+	}
+	
+	private int find(int checksum, byte[] buffer, int position) {
+		if (!tags[tag(checksum)])
+			return -1; // the usual case, settled without boxing anything
+		List<Integer> candidates = blocks.get(checksum);
+		if (candidates == null)
+			return -1;
+		String digest = ChunkManifest.digest(ByteBuffer.wrap(buffer, position, blockSize));
+		for (int block:candidates) {
+			if (strong.get(block).equals(digest))
+				return block;
+		}
+		return -1;
+	}
+	
+	private synchronized void index() {
+		if (blocks != null)
+			return;
+		tags = new boolean[1 << 16];
+		blocks = new HashMap<Integer, List<Integer>>();
+		for (int block = 0; block < weak.length; block++) {
+			tags[tag(weak[block])] = true;
+			List<Integer> candidates = blocks.get(weak[block]);
+			if (candidates == null) {
+				candidates = new ArrayList<Integer>(1);
+				blocks.put(weak[block], candidates);
+			}
+			candidates.add(block);
+		}
+	}
+	
+	static private int tag(int checksum) {
+		return (checksum ^ (checksum >>> 16)) & 0xffff;
+	}
+	
+	public int getBlockSize() {
+		return blockSize;
+	}
+	
+	public int getBlockCount() {
+		return weak.length;
+	}
+	
+	public int getWeak(int block) {
+		return weak[block];
+	}
+	
+	public String getStrong(int block) {
+		return strong.get(block);
+	}
+}
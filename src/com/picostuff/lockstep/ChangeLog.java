@@ -0,0 +1,70 @@
+package com.picostuff.lockstep;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.picostuff.lockstep.exception.ResyncRequiredException;
+
+/**
+ * A bounded ring of the most recent writes to a shared memory, numbered by
+ * a sequence that only goes up.  Old entries are simply overwritten, so the
+ * log never grows, and a reader whose cursor has fallen out of the window
+ * is told to resync from the tree instead.
+ * 
+ * Writers number and store an entry while they hold the lock on the node
+ * they changed, so entries for a path are in the order they were applied.
+ * A reader stops at the first number that has been handed out but not yet
+ * stored, and picks it up on its next call.
+ * 
+ * @author chenglim
+ *
+ */
+class ChangeLog {
+	private final AtomicReferenceArray<NodeEvent> entries;
+	private final int mask;
+	private final AtomicLong lastSeq;
+	
+	public ChangeLog(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		entries = new AtomicReferenceArray<NodeEvent>(size);
+		mask = size - 1;
+		lastSeq = new AtomicLong();
+	}
+	
+	public NodeEvent append(NodeEvent.Type type, String path, String version) {
+		long seq = lastSeq.incrementAndGet();
+		NodeEvent event = new NodeEvent(seq, type, path, version);
+		entries.set((int)(seq & mask), event);
+		return event;
+	}
+	
+	public long getLastSeq() {
+		return lastSeq.get();
+	}
+	
+	public ChangeSet changesSince(long seq, int max) throws ResyncRequiredException {
+		long last = lastSeq.get();
+		if (seq > last || last - seq > entries.length())
+			throw new ResyncRequiredException(seq);
+		// keep just the latest change for each path
+		Map<String,NodeEvent> changes = new LinkedHashMap<String, NodeEvent>();
+		long cursor = seq;
+		while (cursor < last && cursor - seq < max) {
+			long next = cursor + 1;
+			NodeEvent event = entries.get((int)(next & mask));
+			if (event == null || event.getSeq() < next)
+				break; // numbered but not stored yet
+			if (event.getSeq() > next)
+				throw new ResyncRequiredException(seq); // overwritten while we were reading
+			changes.remove(event.getPath());
+			changes.put(event.getPath(), event);
+			cursor = next;
+		}
+		return new ChangeSet(new ArrayList<NodeEvent>(changes.values()), cursor, cursor < last);
+	}
+}
@@ -0,0 +1,44 @@
+package com.picostuff.lockstep;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes read from a shared memory since a cursor, with at most one
+ * change per path, and the cursor to read from next time.
+ * 
+ * @author chenglim
+ *
+ */
+public class ChangeSet {
+	private List<NodeEvent> changes;
+	private long nextSeq;
+	private boolean more;
+	
+	public ChangeSet(List<NodeEvent> changes, long nextSeq, boolean more) {
+		this.changes = Collections.unmodifiableList(changes);
+		this.nextSeq = nextSeq;
+		this.more = more;
+	}
+	
+	/**
+	 * @return the latest change to each path, ordered by when it happened
+	 */
+	public List<NodeEvent> getChanges() {
+		return changes;
+	}
+	
+	/**
+	 * @return the cursor to hand to the next call
+	 */
+	public long getNextSeq() {
+		return nextSeq;
+	}
+	
+	/**
+	 * @return true if there were more changes than we were allowed to return
+	 */
+	public boolean hasMore() {
+		return more;
+	}
+}
@@ -0,0 +1,103 @@
+package com.picostuff.lockstep;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * The size of some content, and a digest of each chunk of it.  Chunks are
+ * the same size apart from the last, unless their positions are given, as
+ * they are for chunks cut by a {@link ContentChunker}.
+ * 
+ * @author chenglim
+ *
+ */
+public class ChunkManifest {
+	static public final String ALGORITHM = "SHA-256";
+	
+	static private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e); // every JVM has to have it
+			}
+		}
+	};
+	
+	private final long size;
+	private final int chunkSize;
+	private final long[] positions; // null when every chunk is chunkSize long
+	private final List<String> digestList;
+	
+	public ChunkManifest(long size, int chunkSize, List<String> digests) {
+		if (digests.size() != chunkCount(size, chunkSize))
+			throw new IllegalArgumentException(digests.size() + " digests for " + chunkCount(size, chunkSize) + " chunks");
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.positions = null;
+		this.digestList = digests;
+	}
+	
+	/**
+	 * @param chunkSize the longest any chunk is
+	 * @param positions where each chunk starts
+	 */
+	public ChunkManifest(long size, int chunkSize, long[] positions, List<String> digests) {
+		if (digests.size() != positions.length)
+			throw new IllegalArgumentException(digests.size() + " digests for " + positions.length + " chunks");
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.positions = positions;
+		this.digestList = digests;
+	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	public int getChunkCount() {
+		return digestList.size();
+	}
+	
+	public String getDigest(int chunk) {
+		return digestList.get(chunk);
+	}
+	
+	public long getPosition(int chunk) {
+		if (positions != null)
+			return positions[chunk];
+		return (long)chunk * chunkSize;
+	}
+	
+	public int getLength(int chunk) {
+		long end = positions != null && chunk + 1 < positions.length ? positions[chunk + 1] : size;
+		return (int)Math.min(chunkSize, end - getPosition(chunk));
+	}
+	
+	static public int chunkCount(long size, int chunkSize) {
+		return (int)((size + chunkSize - 1) / chunkSize);
+	}
+	
+	/**
+	 * @return the digest of what is left in the buffer, as hex, leaving the buffer's position alone
+	 */
+	static public String digest(ByteBuffer buffer) {
+		MessageDigest digest = digests.get();
+		digest.reset();
+		digest.update(buffer.duplicate());
+		byte[] bytes = digest.digest();
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+			hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,25 @@
+package com.picostuff.lockstep;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where a {@link ChunkedTransport} gets content from, a chunk at a time.
+ * The source lists a digest for every chunk, so each one can be checked
+ * on its own as it arrives.
+ * 
+ * @author chenglim
+ *
+ */
+public interface ChunkSource {
+	/**
+	 * @throws IOException if the item is no longer at the version
+	 */
+	public ChunkManifest getManifest(String key, String version, int chunkSize) throws IOException;
+	
+	/**
+	 * Fill the buffer with the content starting at the position, or up to
+	 * the end of the content, whichever comes first
+	 */
+	public void readChunk(String key, String version, long position, ByteBuffer buffer) throws IOException;
+}
@@ -0,0 +1,318 @@
+package com.picostuff.lockstep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.picostuff.lockstep.exception.StorageException;
+
+/**
+ * Chunks of content kept by their digest, so a chunk we already have,
+ * from any file in the workspace or from a version since replaced, is
+ * read from here rather than fetched again (see {@link ChunkedTransport}).
+ *
+ * Each item holds on to the chunks of the content it was last given, and
+ * a chunk is deleted once no item holds on to it, such as when the item is
+ * removed from the workspace or changed to content without that chunk.
+ * Which chunks each item holds is kept in a file per item, and the counts
+ * are worked out from those when we start, which is also when chunks left
+ * behind by a crash are deleted.
+ *
+ * @author chenglim
+ *
+ */
+public class ChunkStore {
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Path chunkDir;
+	private final Path itemDir;
+	private final ContentChunker chunker;
+	private final TreeMap<String, List<String>> items; // guarded by this
+	private final Map<String, Integer> references; // guarded by this
+
+	public ChunkStore(File dir) {
+		this(dir, new ContentChunker());
+	}
+
+	/**
+	 * @param chunker how to cut up the files given to {@link #add}, which should
+	 * cut the same way as whoever we fetch from
+	 */
+	public ChunkStore(File dir, ContentChunker chunker) {
+		Path root = dir.toPath().toAbsolutePath();
+		chunkDir = root.resolve("chunks");
+		itemDir = root.resolve("items");
+		this.chunker = chunker;
+		items = new TreeMap<String, List<String>>();
+		references = new HashMap<String, Integer>();
+		try {
+			Files.createDirectories(chunkDir);
+			Files.createDirectories(itemDir);
+			load();
+		} catch (IOException e) {
+			throw new StorageException("Can't open chunk store in " + dir, e);
+		}
+	}
+
+	/**
+	 * Fill the buffer with the chunk, if we have it.  The caller checks it
+	 * against the digest, since a file on disk can go bad.
+	 *
+	 * @return false if we don't have the chunk
+	 */
+	public boolean read(String digest, ByteBuffer buffer) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(chunkFile(digest), StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		try {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					return false;
+			}
+			return true;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Keep a chunk, which nothing holds on to until {@link #retain} is called
+	 * for an item with it.  A chunk we already have may be let go of before
+	 * then, which retain puts right.
+	 */
+	public void put(String digest, ByteBuffer buffer) throws IOException {
+		Path file = chunkFile(digest);
+		if (Files.exists(file))
+			return;
+		Files.createDirectories(file.getParent());
+		Path temp = file.resolveSibling(digest + ".tmp." + Thread.currentThread().getId());
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer chunk = buffer.duplicate();
+			while (chunk.hasRemaining()) {
+				channel.write(chunk);
+			}
+		} finally {
+			channel.close();
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Cut up a file already in the workspace and keep its chunks, such as one
+	 * changed locally, so content shared with it isn't fetched again
+	 */
+	public void add(String key, Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			ChunkManifest manifest = chunker.manifest(channel);
+			ByteBuffer buffer = ByteBuffer.allocate(manifest.getChunkSize());
+			for (int chunk = 0; chunk < manifest.getChunkCount(); chunk++) {
+				if (Files.exists(chunkFile(manifest.getDigest(chunk))))
+					continue;
+				buffer.clear();
+				buffer.limit(manifest.getLength(chunk));
+				long position = manifest.getPosition(chunk);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0)
+						throw new IOException(file + " got shorter while we read it");
+				}
+				buffer.flip();
+				put(manifest.getDigest(chunk), buffer);
+			}
+			retain(key, manifest, file);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * The item now has the content the manifest lists, so hold on to its
+	 * chunks rather than the ones it had before.  A chunk nobody held may
+	 * have been deleted since it was put, in which case it is cut from the
+	 * item's file again.
+	 * 
+	 * @param file where the item's content is
+	 */
+	public synchronized void retain(String key, ChunkManifest manifest, Path file) throws IOException {
+		List<String> digests = new ArrayList<String>(manifest.getChunkCount());
+		FileChannel channel = null;
+		try {
+			for (int chunk = 0; chunk < manifest.getChunkCount(); chunk++) {
+				String digest = manifest.getDigest(chunk);
+				if (!references.containsKey(digest) && !Files.exists(chunkFile(digest))) {
+					if (channel == null)
+						channel = FileChannel.open(file, StandardOpenOption.READ);
+					if (!restore(channel, manifest, chunk))
+						continue; // the file has changed since, so the item can't hold it
+				}
+				digests.add(digest);
+			}
+		} finally {
+			if (channel != null)
+				channel.close();
+		}
+		writeItem(key, digests);
+		for (String digest:digests) {
+			Integer count = references.get(digest);
+			references.put(digest, count == null ? 1 : count + 1);
+		}
+		List<String> old = items.put(key, digests);
+		if (old != null)
+			dereference(old);
+	}
+
+	/**
+	 * The item, and anything below it, is gone from the workspace
+	 */
+	public synchronized void release(String key) {
+		try {
+			Iterator<Map.Entry<String, List<String>>> entries = items.tailMap(key, true).entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, List<String>> entry = entries.next();
+				if (!entry.getKey().startsWith(key))
+					break;
+				if (!MemoryPaths.isSameOrBelow(entry.getKey(), key))
+					continue; // such as "/a b" between "/a" and "/a/b"
+
+				Files.deleteIfExists(itemFile(entry.getKey()));
+				entries.remove();
+				dereference(entry.getValue());
+			}
+		} catch (IOException e) {
+			throw new StorageException("Can't release chunks of " + key, e);
+		}
+	}
+
+	/**
+	 * @return how many chunks are held on to
+	 */
+	public synchronized int size() {
+		return references.size();
+	}
+
+	public synchronized boolean contains(String digest) {
+		return references.containsKey(digest);
+	}
+
+	private void dereference(List<String> digests) throws IOException {
+		for (String digest:digests) {
+			Integer count = references.get(digest);
+			if (count == null)
+				continue;
+			if (count > 1) {
+				references.put(digest, count - 1);
+			} else {
+				references.remove(digest);
+				Files.deleteIfExists(chunkFile(digest));
+			}
+		}
+	}
+
+	/**
+	 * Put a chunk back from the file it was cut from
+	 * 
+	 * @return false if the file no longer has it
+	 */
+	private boolean restore(FileChannel channel, ChunkManifest manifest, int chunk) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(manifest.getLength(chunk));
+		long position = manifest.getPosition(chunk);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				return false;
+		}
+		buffer.flip();
+		if (!ChunkManifest.digest(buffer).equals(manifest.getDigest(chunk)))
+			return false;
+		put(manifest.getDigest(chunk), buffer);
+		return true;
+	}
+
+	private void load() throws IOException {
+		File[] itemFiles = itemDir.toFile().listFiles();
+		for (File file:itemFiles) {
+			if (file.getName().endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				String key = in.readUTF();
+				int count = in.readInt();
+				List<String> digests = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					digests.add(in.readUTF());
+				}
+				items.put(key, digests);
+				for (String digest:digests) {
+					Integer references = this.references.get(digest);
+					this.references.put(digest, references == null ? 1 : references + 1);
+				}
+			} catch (EOFException e) {
+				file.delete(); // torn, so the item just holds nothing
+			} finally {
+				in.close();
+			}
+		}
+		// anything no item holds is from a fetch that didn't finish
+		File[] prefixDirs = chunkDir.toFile().listFiles();
+		for (File prefixDir:prefixDirs) {
+			File[] chunkFiles = prefixDir.listFiles();
+			if (chunkFiles == null)
+				continue;
+			for (File chunkFile:chunkFiles) {
+				if (!references.containsKey(chunkFile.getName()))
+					chunkFile.delete();
+			}
+		}
+	}
+
+	private void writeItem(String key, List<String> digests) throws IOException {
+		Path file = itemFile(key);
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile())));
+		try {
+			out.writeUTF(key);
+			out.writeInt(digests.size());
+			for (String digest:digests) {
+				out.writeUTF(digest);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Path chunkFile(String digest) {
+		return chunkDir.resolve(digest.substring(0, 2)).resolve(digest);
+	}
+
+	private Path itemFile(String key) {
+		// keys can be longer than a file name, and have slashes in them
+		return itemDir.resolve(ChunkManifest.digest(ByteBuffer.wrap(key.getBytes(UTF8))));
+	}
+}
@@ -0,0 +1,282 @@
+package com.picostuff.lockstep;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches content in fixed-size chunks, several at once, for large files.
+ *
+ * Each chunk is checked against the digest the source lists for it, and
+ * fetched again if it doesn't match, then written straight to its place
+ * in the target with a positional write.  Which chunks are done is kept
+ * in a progress file next to the target, so a fetch that is interrupted
+ * picks up where it left off the next time the same version is asked for.
+ * The chunks a progress file says are done are checked again before we
+ * trust them, so a crash between writing a chunk and the disk getting it
+ * costs a refetch rather than a bad file.
+ *
+ * Given a {@link ChunkStore}, a chunk the store already has is read from
+ * it rather than fetched, and every chunk fetched goes into the store.
+ * This is worth most with a source that cuts chunks by content (see
+ * {@link ContentChunker}), so content shared between files lines up.
+ *
+ * The caller renames the target into place once it is whole (see
+ * {@link DirectoryFileSystem}).
+ *
+ * @author chenglim
+ *
+ */
+public class ChunkedTransport implements Transport {
+	static public final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+	static public final int DEFAULT_PARALLELISM = 4;
+	static private final int MAX_ATTEMPTS = 3;
+	static private final int PROGRESS_MAGIC = 0x4c4b5031; // "LKP1"
+
+	private final ChunkSource source;
+	private final int chunkSize;
+	private final ChunkStore store; // null if we keep no chunks
+	private final ExecutorService pool;
+	private final ThreadLocal<ByteBuffer> buffers;
+
+	public ChunkedTransport(ChunkSource source) {
+		this(source, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * @param parallelism how many chunks are fetched at once, shared by every fetch
+	 */
+	public ChunkedTransport(ChunkSource source, final int chunkSize, int parallelism) {
+		this(source, chunkSize, parallelism, null);
+	}
+
+	/**
+	 * @param store where to look for chunks before fetching them, and to keep
+	 * the chunks we fetch
+	 */
+	public ChunkedTransport(ChunkSource source, final int chunkSize, int parallelism, ChunkStore store) {
+		this.source = source;
+		this.chunkSize = chunkSize;
+		this.store = store;
+		final AtomicInteger threadCount = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "lockstep-chunk-" + threadCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		buffers = new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocateDirect(chunkSize);
+			}
+		};
+	}
+
+	public void fetch(String key, String version, File target) throws IOException {
+		ChunkManifest manifest = source.getManifest(key, version, chunkSize);
+		File progressFile = new File(target.getPath() + ".progress");
+		Progress progress = new Progress(progressFile, version, manifest);
+		RandomAccessFile file = new RandomAccessFile(target, "rw");
+		try {
+			if (!progress.isResumed())
+				file.setLength(0); // whatever is there is from some other version
+			file.setLength(manifest.getSize());
+			FileChannel channel = file.getChannel();
+			List<Future<Void>> chunks = new ArrayList<Future<Void>>(manifest.getChunkCount());
+			for (int chunk = 0; chunk < manifest.getChunkCount(); chunk++) {
+				chunks.add(pool.submit(new ChunkTask(key, version, manifest, chunk, channel, progress)));
+			}
+			IOException failure = null;
+			for (Future<Void> future:chunks) {
+				try {
+					future.get();
+				} catch (CancellationException e) {
+					// we gave up on it after another chunk failed
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+						// let the chunks already going finish, so they are kept for next time
+						cancelAll(chunks);
+					}
+				} catch (InterruptedException e) {
+					cancelAll(chunks);
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Fetch of " + key + " interrupted");
+				}
+			}
+			if (failure != null)
+				throw failure;
+			channel.force(false);
+		} finally {
+			file.close();
+			progress.close();
+		}
+		progressFile.delete();
+		if (store != null)
+			store.retain(key, manifest, target.toPath());
+	}
+
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	static private void cancelAll(List<Future<Void>> chunks) {
+		for (Future<Void> future:chunks) {
+			future.cancel(false);
+		}
+	}
+
+	private class ChunkTask implements Callable<Void> {
+		private final String key;
+		private final String version;
+		private final ChunkManifest manifest;
+		private final int chunk;
+		private final FileChannel channel;
+		private final Progress progress;
+
+		ChunkTask(String key, String version, ChunkManifest manifest, int chunk, FileChannel channel, Progress progress) {
+			this.key = key;
+			this.version = version;
+			this.manifest = manifest;
+			this.chunk = chunk;
+			this.channel = channel;
+			this.progress = progress;
+		}
+
+		public Void call() throws IOException {
+			ByteBuffer buffer = buffer();
+			long position = manifest.getPosition(chunk);
+			String digest = manifest.getDigest(chunk);
+			if (progress.isDone(chunk)) {
+				prepare(buffer);
+				while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0);
+				buffer.flip();
+				if (ChunkManifest.digest(buffer).equals(digest))
+					return null;
+			}
+			if (store != null) {
+				prepare(buffer);
+				if (store.read(digest, buffer)) {
+					buffer.flip();
+					if (ChunkManifest.digest(buffer).equals(digest)) {
+						write(buffer, position);
+						return null;
+					}
+				}
+			}
+			for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+				prepare(buffer);
+				source.readChunk(key, version, position, buffer);
+				buffer.flip();
+				if (buffer.remaining() == manifest.getLength(chunk) && ChunkManifest.digest(buffer).equals(digest)) {
+					if (store != null)
+						store.put(digest, buffer);
+					write(buffer, position);
+					return null;
+				}
+			}
+			throw new IOException("Chunk " + chunk + " of " + key + " failed its digest " + MAX_ATTEMPTS + " times");
+		}
+
+		private void write(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+			progress.markDone(chunk);
+		}
+
+		private void prepare(ByteBuffer buffer) {
+			buffer.clear();
+			buffer.limit(manifest.getLength(chunk));
+		}
+
+		/**
+		 * @return this thread's buffer, made bigger if the source cuts longer
+		 * chunks than we asked for
+		 */
+		private ByteBuffer buffer() {
+			ByteBuffer buffer = buffers.get();
+			if (buffer.capacity() < manifest.getChunkSize()) {
+				buffer = ByteBuffer.allocateDirect(manifest.getChunkSize());
+				buffers.set(buffer);
+			}
+			return buffer;
+		}
+	}
+
+	/**
+	 * Which chunks of a fetch are done, a byte per chunk after a header
+	 * naming the version and how it was cut up
+	 */
+	static private class Progress {
+		private final RandomAccessFile file;
+		private final boolean resumed;
+		private final long doneOffset;
+		private final boolean[] done;
+
+		Progress(File progressFile, String version, ChunkManifest manifest) throws IOException {
+			file = new RandomAccessFile(progressFile, "rw");
+			int count = manifest.getChunkCount();
+			done = new boolean[count];
+			boolean matches = false;
+			try {
+				matches = file.length() > 0 && file.readInt() == PROGRESS_MAGIC && file.readUTF().equals(version)
+						&& file.readInt() == manifest.getChunkSize() && file.readLong() == manifest.getSize()
+						&& file.readInt() == count && file.length() == file.getFilePointer() + count;
+			} catch (EOFException e) {
+				matches = false;
+			}
+			if (matches) {
+				long offset = file.getFilePointer();
+				for (int chunk = 0; chunk < count; chunk++) {
+					done[chunk] = file.readByte() != 0;
+				}
+				doneOffset = offset;
+			} else {
+				file.setLength(0);
+				file.writeInt(PROGRESS_MAGIC);
+				file.writeUTF(version);
+				file.writeInt(manifest.getChunkSize());
+				file.writeLong(manifest.getSize());
+				file.writeInt(count);
+				doneOffset = file.getFilePointer();
+				file.setLength(doneOffset + count);
+			}
+			resumed = matches;
+		}
+
+		boolean isResumed() {
+			return resumed;
+		}
+
+		synchronized boolean isDone(int chunk) {
+			return done[chunk];
+		}
+
+		synchronized void markDone(int chunk) throws IOException {
+			done[chunk] = true;
+			file.seek(doneOffset + chunk);
+			file.writeByte(1);
+		}
+
+		synchronized void close() throws IOException {
+			file.close();
+		}
+	}
+}
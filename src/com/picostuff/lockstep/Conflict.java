@@ -0,0 +1,65 @@
+package com.picostuff.lockstep;
+
+/**
+ * A conflict a {@link Workspace} settled by its {@link ConflictPolicy},
+ * and how
+ * 
+ * @author chenglim
+ *
+ */
+public class Conflict {
+	/**
+	 * Which side the item was left with
+	 */
+	public enum Outcome {
+		REMOTE_KEPT, LOCAL_KEPT, BOTH_KEPT;
+	}
+	
+	private final String key;
+	private final String localVersion;
+	private final String remoteVersion;
+	private final Outcome outcome;
+	private final String copyKey;
+	
+	public Conflict(String key, String localVersion, String remoteVersion, Outcome outcome, String copyKey) {
+		this.key = key;
+		this.localVersion = localVersion;
+		this.remoteVersion = remoteVersion;
+		this.outcome = outcome;
+		this.copyKey = copyKey;
+	}
+	
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * @return the local version at the time, or null if deleted here
+	 */
+	public String getLocalVersion() {
+		return localVersion;
+	}
+	
+	/**
+	 * @return the remote version at the time, or null if deleted there
+	 */
+	public String getRemoteVersion() {
+		return remoteVersion;
+	}
+	
+	public Outcome getOutcome() {
+		return outcome;
+	}
+	
+	/**
+	 * @return where the local file was moved to when both were kept, or null
+	 */
+	public String getCopyKey() {
+		return copyKey;
+	}
+	
+	@Override
+	public String toString() {
+		return key + " " + outcome + (copyKey != null ? " " + copyKey : "");
+	}
+}
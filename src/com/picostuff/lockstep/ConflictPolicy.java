@@ -0,0 +1,40 @@
+package com.picostuff.lockstep;
+
+/**
+ * What a {@link Workspace} does when an item has changed on both sides
+ * since they last agreed, or changed on one and been deleted on the other
+ * (see {@link Workspace#setConflictPolicy}).
+ * 
+ * @author chenglim
+ *
+ */
+public enum ConflictPolicy {
+	/**
+	 * Leave it as a conflict, for someone to settle, which is a
+	 * SaveConflictException from {@link Workspace#processItem}
+	 */
+	REPORT,
+	/**
+	 * Keep the side changed last, by modified time.  A side whose time
+	 * isn't known, such as a delete, loses to one whose time is, and the
+	 * remote side wins a tie.
+	 */
+	LAST_WRITER_WINS,
+	/**
+	 * Move the local file aside to a conflict copy next to it, which is
+	 * then pushed like any new file, and take the remote one.  An edit is
+	 * kept over a delete on either side.
+	 */
+	KEEP_BOTH,
+	/**
+	 * Always take the remote side.  A remote edit is fetched over a local
+	 * delete, and a remote delete removes the local edit.
+	 */
+	PREFER_REMOTE,
+	/**
+	 * Always keep the local side, and push it over the remote one.  A local
+	 * edit is pushed back over a remote delete, and a local delete removes
+	 * the remote edit.
+	 */
+	PREFER_LOCAL;
+}
@@ -0,0 +1,103 @@
+package com.picostuff.lockstep;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cuts content into chunks where the content itself says to, rather than
+ * every so many bytes, so an insert early in a file only changes the
+ * chunks around it, and the same run of bytes in two files comes out as
+ * the same chunks.
+ *
+ * A gear hash is rolled over the content, and a chunk ends where the top
+ * bits of the hash are all zero, which they are every average size bytes
+ * or so.  The top bits depend on the last 64 bytes.  Chunks are kept
+ * between a quarter of and four times the average size.
+ *
+ * @author chenglim
+ *
+ */
+public class ContentChunker {
+	static public final int DEFAULT_AVERAGE_SIZE = 64 * 1024;
+	static private final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x4c4b4744); // fixed, so every machine cuts the same way
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+	
+	private final int minSize;
+	private final int maxSize;
+	private final long mask;
+	
+	public ContentChunker() {
+		this(DEFAULT_AVERAGE_SIZE);
+	}
+	
+	/**
+	 * @param averageSize a power of two
+	 */
+	public ContentChunker(int averageSize) {
+		if (Integer.bitCount(averageSize) != 1 || averageSize < 64)
+			throw new IllegalArgumentException("Average chunk size " + averageSize + " isn't a power of two of at least 64");
+		minSize = averageSize / 4;
+		maxSize = averageSize * 4;
+		mask = -1L << (64 - Integer.numberOfTrailingZeros(averageSize));
+	}
+	
+	/**
+	 * @return the longest chunk we cut
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * @return the chunks of the content, with {@link ChunkManifest#getChunkSize}
+	 * being the longest a chunk can be
+	 */
+	public ChunkManifest manifest(FileChannel channel) throws IOException {
+		long size = channel.size();
+		List<Long> positions = new ArrayList<Long>();
+		List<String> digests = new ArrayList<String>();
+		ByteBuffer buffer = ByteBuffer.allocate(maxSize);
+		long position = 0;
+		while (position < size) {
+			buffer.clear();
+			buffer.limit((int)Math.min(maxSize, size - position));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new IOException("Content got shorter while we cut it up");
+			}
+			int length = cut(buffer.array(), buffer.position());
+			positions.add(position);
+			digests.add(ChunkManifest.digest(ByteBuffer.wrap(buffer.array(), 0, length)));
+			position += length;
+		}
+		long[] starts = new long[positions.size()];
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = positions.get(i);
+		}
+		return new ChunkManifest(size, maxSize, starts, digests);
+	}
+	
+	/**
+	 * @return how long the chunk at the start of the bytes is
+	 */
+	int cut(byte[] bytes, int length) {
+		if (length <= minSize)
+			return length;
+		long hash = 0;
+		for (int i = minSize; i < length; i++) {
+			hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+			if ((hash & mask) == 0)
+				return i + 1;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,149 @@
+package com.picostuff.lockstep;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Works out a version for a file from a digest of its content, so two
+ * machines holding the same bytes agree on the version without asking
+ * each other, and a file copied into place already has the version it
+ * was copied for.
+ *
+ * Files are read through a direct buffer that each thread keeps, straight
+ * into the digest.  Digests are remembered against the file's identity
+ * (its inode where the file system has one), size and mtime, so a scan
+ * over unchanged files costs a stat each.  A file whose mtime is too close
+ * to when we read it could still change within the same mtime tick, so
+ * its digest isn't remembered until it settles.
+ *
+ * @author chenglim
+ *
+ */
+public class ContentHasher {
+	static public final String DEFAULT_ALGORITHM = "SHA-256";
+	static private final int BUFFER_SIZE = 256 * 1024;
+	static private final long SETTLE_MILLIS = 2000; // coarser than the mtime tick of any file system we expect
+
+	private final String algorithm;
+	private final ThreadLocal<MessageDigest> digests;
+	private final ThreadLocal<ByteBuffer> buffers;
+	private final ConcurrentMap<Object, Entry> cache;
+
+	public ContentHasher() {
+		this(DEFAULT_ALGORITHM);
+	}
+
+	/**
+	 * @param algorithm any MessageDigest algorithm, such as "SHA-256", or "MD5"
+	 * where speed matters more than resisting someone crafting collisions
+	 */
+	public ContentHasher(final String algorithm) {
+		this.algorithm = algorithm;
+		try {
+			MessageDigest.getInstance(algorithm); // fail now rather than on the first file
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(algorithm, e);
+		}
+		digests = new ThreadLocal<MessageDigest>() {
+			@Override
+			protected MessageDigest initialValue() {
+				try {
+					return MessageDigest.getInstance(algorithm);
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e); // checked in the constructor
+				}
+			}
+		};
+		buffers = new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocateDirect(BUFFER_SIZE);
+			}
+		};
+		cache = new ConcurrentHashMap<Object, Entry>();
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @param attrs what the caller just read for the file, which is how we
+	 * tell whether a remembered digest still holds
+	 * @return the digest of the file's content, as hex
+	 */
+	public String getVersion(Path path, BasicFileAttributes attrs) throws IOException {
+		Object key = attrs.fileKey() != null ? attrs.fileKey() : path.toAbsolutePath();
+		long size = attrs.size();
+		long modified = attrs.lastModifiedTime().toMillis();
+		Entry entry = cache.get(key);
+		if (entry != null && entry.size == size && entry.modified == modified)
+			return entry.version;
+		long started = System.currentTimeMillis();
+		String version = digest(path);
+		if (started - modified >= SETTLE_MILLIS) {
+			cache.put(key, new Entry(size, modified, version));
+		} else {
+			cache.remove(key);
+		}
+		return version;
+	}
+
+	/**
+	 * @return the digest of the file's content, as hex, without looking in
+	 * or adding to what we remember
+	 */
+	public String digest(Path path) throws IOException {
+		MessageDigest digest = digests.get();
+		ByteBuffer buffer = buffers.get();
+		digest.reset();
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			buffer.clear();
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Forget what we remember about a file, such as when it is removed
+	 */
+	public void forget(Path path, BasicFileAttributes attrs) {
+		cache.remove(attrs.fileKey() != null ? attrs.fileKey() : path.toAbsolutePath());
+	}
+
+	static private String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+			hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+
+	static private class Entry {
+		private final long size;
+		private final long modified;
+		private final String version;
+
+		Entry(long size, long modified, String version) {
+			this.size = size;
+			this.modified = modified;
+			this.version = version;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.picostuff.lockstep;
+
+import java.io.IOException;
+
+/**
+ * Where a {@link DeltaTransport} gets content from, as the blocks of the
+ * receiver's own copy that can be used again plus the bytes that are new.
+ * 
+ * @author chenglim
+ *
+ */
+public interface DeltaSource {
+	/**
+	 * Describe the content of the item at the version to the sink, in
+	 * terms of the blocks the receiver already has
+	 * 
+	 * @throws IOException if the item is no longer at the version
+	 */
+	public void writeDelta(String key, String version, BlockSignatures signatures, Sink sink) throws IOException;
+	
+	/**
+	 * Takes the delta in order, from the start of the content to the end
+	 */
+	static public interface Sink {
+		/**
+		 * The next bytes are the same as the given block of the receiver's copy
+		 */
+		public void copy(int block) throws IOException;
+		
+		/**
+		 * The next bytes are new
+		 */
+		public void literal(byte[] bytes, int offset, int length) throws IOException;
+	}
+}
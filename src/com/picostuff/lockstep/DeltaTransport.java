@@ -0,0 +1,145 @@
+package com.picostuff.lockstep;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches a changed file as a delta against the copy we already have, the
+ * way rsync does: we send the signatures of the blocks of our copy, the
+ * source answers with which of them it can use plus the bytes that are
+ * new, and we put the new content together from the two.  For a file that
+ * has only been added to, such as a log, that is the new bytes and little
+ * else.
+ *
+ * Our copy is the file at the key under the root, which is still the base
+ * version while the new one is fetched next to it.  Where there is no copy,
+ * or it is too small to be worth it, the fallback transport fetches the
+ * whole file.  Our copy changing under us gives the wrong content, which
+ * is why the content should be checked against the version once it is
+ * whole (see {@link DirectoryFileSystem} with a {@link ContentHasher}).
+ *
+ * @author chenglim
+ *
+ */
+public class DeltaTransport implements Transport {
+	static public final int MIN_BLOCK_SIZE = 2 * 1024;
+	static public final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	private final Path root;
+	private final DeltaSource source;
+	private final Transport fallback;
+	private final int blockSize;
+	private final AtomicLong copiedBytes = new AtomicLong();
+	private final AtomicLong literalBytes = new AtomicLong();
+
+	/**
+	 * Blocks are sized for each file, around the square root of its size
+	 */
+	public DeltaTransport(File root, DeltaSource source, Transport fallback) {
+		this(root, source, fallback, 0);
+	}
+
+	public DeltaTransport(File root, DeltaSource source, Transport fallback, int blockSize) {
+		this.root = root.toPath().toAbsolutePath();
+		this.source = source;
+		this.fallback = fallback;
+		this.blockSize = blockSize;
+	}
+
+	public void fetch(String key, String version, File target) throws IOException {
+		Path base = root.resolve(key.substring(1));
+		long baseSize = Files.isRegularFile(base) ? Files.size(base) : 0;
+		int size = blockSize > 0 ? blockSize : blockSizeFor(baseSize);
+		if (baseSize < 2 * size) {
+			fallback.fetch(key, version, target);
+			return;
+		}
+		BlockSignatures signatures;
+		InputStream in = new BufferedInputStream(Files.newInputStream(base), size);
+		try {
+			signatures = BlockSignatures.of(in, size);
+		} finally {
+			in.close();
+		}
+		FileChannel from = FileChannel.open(base, StandardOpenOption.READ);
+		try {
+			FileChannel to = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				source.writeDelta(key, version, signatures, new Rebuild(from, to, size));
+				to.force(false);
+			} finally {
+				to.close();
+			}
+		} finally {
+			from.close();
+		}
+	}
+
+	/**
+	 * @return the bytes taken from our own copies so far, rather than sent
+	 */
+	public long getCopiedBytes() {
+		return copiedBytes.get();
+	}
+
+	/**
+	 * @return the bytes sent so far as part of a delta
+	 */
+	public long getLiteralBytes() {
+		return literalBytes.get();
+	}
+
+	static int blockSizeFor(long size) {
+		long root = (long)Math.sqrt(size);
+		root = (root + 1023) & ~1023L; // a whole number of KB
+		return (int)Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+	}
+
+	/**
+	 * Writes the new content as the delta arrives
+	 */
+	private class Rebuild implements DeltaSource.Sink {
+		private final FileChannel from;
+		private final FileChannel to;
+		private final int blockSize;
+		private final ByteBuffer buffer;
+
+		Rebuild(FileChannel from, FileChannel to, int blockSize) {
+			this.from = from;
+			this.to = to;
+			this.blockSize = blockSize;
+			buffer = ByteBuffer.allocateDirect(blockSize);
+		}
+
+		public void copy(int block) throws IOException {
+			long position = (long)block * blockSize;
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (from.read(buffer, position + buffer.position()) < 0)
+					throw new IOException("Our copy got shorter while " + blockSize + " byte block " + block + " was wanted from it");
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				to.write(buffer);
+			}
+			copiedBytes.addAndGet(blockSize);
+		}
+
+		public void literal(byte[] bytes, int offset, int length) throws IOException {
+			ByteBuffer literal = ByteBuffer.wrap(bytes, offset, length);
+			while (literal.hasRemaining()) {
+				to.write(literal);
+			}
+			literalBytes.addAndGet(length);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serves chunks of the files in a directory, such as another workspace on
+ * the same machine, or the far end of a connection.
+ * 
+ * @author chenglim
+ *
+ */
+public class DirectoryChunkSource implements ChunkSource {
+	private final Path root;
+	private final ContentHasher hasher;
+	private final ContentChunker chunker;
+	
+	/**
+	 * @param hasher to check a file is still at the version asked for, or
+	 * null where versions don't come from content
+	 */
+	public DirectoryChunkSource(File root, ContentHasher hasher) {
+		this(root, hasher, null);
+	}
+	
+	/**
+	 * @param chunker to cut files where their content says to, for a receiver
+	 * with a {@link ChunkStore}, in which case the chunk size asked for is
+	 * ignored
+	 */
+	public DirectoryChunkSource(File root, ContentHasher hasher, ContentChunker chunker) {
+		this.root = root.toPath().toAbsolutePath();
+		this.hasher = hasher;
+		this.chunker = chunker;
+	}
+	
+	public ChunkManifest getManifest(String key, String version, int chunkSize) throws IOException {
+		Path path = resolve(key);
+		if (hasher != null && !hasher.digest(path).equals(version))
+			throw new IOException(key + " is no longer at version " + version);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			if (chunker != null)
+				return chunker.manifest(channel);
+			long size = channel.size();
+			List<String> digests = new ArrayList<String>(ChunkManifest.chunkCount(size, chunkSize));
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int)Math.min(chunkSize, Math.max(size, 1)));
+			for (long position = 0; position < size; position += chunkSize) {
+				buffer.clear();
+				buffer.limit((int)Math.min(chunkSize, size - position));
+				read(channel, position, buffer);
+				buffer.flip();
+				digests.add(ChunkManifest.digest(buffer));
+			}
+			return new ChunkManifest(size, chunkSize, digests);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	public void readChunk(String key, String version, long position, ByteBuffer buffer) throws IOException {
+		FileChannel channel = FileChannel.open(resolve(key), StandardOpenOption.READ);
+		try {
+			read(channel, position, buffer);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	static private void read(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				break;
+			position += read;
+		}
+	}
+	
+	private Path resolve(String key) {
+		return root.resolve(key.substring(1));
+	}
+}
@@ -0,0 +1,40 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Works out deltas against the files in a directory, such as another
+ * workspace on the same machine, or the far end of a connection.
+ * 
+ * @author chenglim
+ *
+ */
+public class DirectoryDeltaSource implements DeltaSource {
+	private final Path root;
+	private final ContentHasher hasher;
+	
+	/**
+	 * @param hasher to check a file is still at the version asked for, or
+	 * null where versions don't come from content
+	 */
+	public DirectoryDeltaSource(File root, ContentHasher hasher) {
+		this.root = root.toPath().toAbsolutePath();
+		this.hasher = hasher;
+	}
+	
+	public void writeDelta(String key, String version, BlockSignatures signatures, Sink sink) throws IOException {
+		Path path = root.resolve(key.substring(1));
+		if (hasher != null && !hasher.digest(path).equals(version))
+			throw new IOException(key + " is no longer at version " + version);
+		InputStream in = new FileInputStream(path.toFile());
+		try {
+			signatures.delta(in, sink);
+		} finally {
+			in.close();
+		}
+	}
+}
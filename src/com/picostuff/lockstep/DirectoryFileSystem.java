@@ -0,0 +1,601 @@
+package com.picostuff.lockstep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.picostuff.lockstep.exception.StorageException;
+
+/**
+ * A workspace kept in a real directory.
+ *
+ * Changes are found with a WatchService.  Every dir is registered when we
+ * start, and each new dir as it turns up, along with whatever was created
+ * in it before we got there.  When the service drops events for a dir, we
+ * ask for just that dir's subtree to be looked at again.  Where the
+ * service isn't available, or can't keep up with registering, we fall back
+ * to comparing the mtime and size of everything on each poll.
+ *
+ * Given a {@link ContentHasher}, a file's version is a digest of its
+ * content, and what we fetch is checked against the version we asked for
+ * before it goes into place.  Otherwise a file's version comes from its
+ * mtime and size.  When we write a file for some version, we remember the
+ * stat we left it with, and report that version for as long as the stat
+ * holds.  This is only kept in memory, so after a restart the files we
+ * wrote look changed until they are pushed back.
+ *
+ * A placeholder is an empty file where the content would be, so it shows
+ * up in listings, with its version and size kept on the side, in the
+ * ".lockstep-placeholders" dir.  Once anything changes the empty file, it
+ * is the user's content and no longer a placeholder.
+ *
+ * Our temporary files and dirs start with ".lockstep-" and are never
+ * reported.
+ *
+ * @author chenglim
+ *
+ */
+public class DirectoryFileSystem implements LocalFileSystem {
+	static private final String TEMP_PREFIX = ".lockstep-";
+	static private final String PLACEHOLDER_DIR = TEMP_PREFIX + "placeholders";
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Path root;
+	private final Transport transport;
+	private final ContentHasher hasher; // null to version files by mtime and size
+	private final Map<WatchKey, Path> watchedDirs;
+	private final ConcurrentMap<String, Written> written;
+	private final ConcurrentMap<String, Placeholder> placeholders;
+	private WatchService watchService; // guarded by this, null once we fall back to scanning
+	private Map<String, Stat> lastScan; // guarded by this, only when scanning
+	private boolean polled; // guarded by this
+
+	public DirectoryFileSystem(File root, Transport transport) {
+		this(root, transport, true);
+	}
+
+	/**
+	 * @param watch false to find changes by comparing mtime and size, for file
+	 * systems a WatchService can't see into, such as some network mounts
+	 */
+	public DirectoryFileSystem(File root, Transport transport, boolean watch) {
+		this(root, transport, watch, null);
+	}
+
+	/**
+	 * @param hasher to version files by their content, or null to use mtime and size
+	 */
+	public DirectoryFileSystem(File root, Transport transport, boolean watch, ContentHasher hasher) {
+		this.root = root.toPath().toAbsolutePath();
+		this.transport = transport;
+		this.hasher = hasher;
+		watchedDirs = new ConcurrentHashMap<WatchKey, Path>();
+		written = new ConcurrentHashMap<String, Written>();
+		placeholders = new ConcurrentHashMap<String, Placeholder>();
+		try {
+			Files.createDirectories(this.root);
+			loadPlaceholders();
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+		if (watch) {
+			try {
+				watchService = this.root.getFileSystem().newWatchService();
+				registerAll(this.root);
+			} catch (IOException e) {
+				stopWatching();
+			} catch (UnsupportedOperationException e) {
+				stopWatching();
+			}
+		}
+	}
+
+	public Set<String> getKeys(String path) {
+		final Set<String> set = new TreeSet<String>();
+		Path start = resolve(path);
+		if (!Files.exists(start, LinkOption.NOFOLLOW_LINKS))
+			return set;
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					if (dir.equals(root))
+						return FileVisitResult.CONTINUE;
+					if (isTemp(dir))
+						return FileVisitResult.SKIP_SUBTREE;
+					set.add(toKey(dir));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (!isTemp(file))
+						set.add(toKey(file));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE; // gone while we walked
+				}
+			});
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+		return set;
+	}
+
+	public boolean exists(String key) {
+		return Files.exists(resolve(key), LinkOption.NOFOLLOW_LINKS);
+	}
+
+	public String getVersion(String key) {
+		Path path = resolve(key);
+		BasicFileAttributes attrs = readAttributes(path);
+		if (attrs == null || attrs.isDirectory())
+			return null;
+		Placeholder placeholder = findPlaceholder(key, attrs);
+		if (placeholder != null)
+			return placeholder.version;
+		if (hasher != null) {
+			try {
+				return hasher.getVersion(path, attrs);
+			} catch (NoSuchFileException e) {
+				return null;
+			} catch (IOException e) {
+				throw new StorageException("Can't read " + path, e);
+			}
+		}
+		Written writtenVersion = written.get(key);
+		if (writtenVersion != null && writtenVersion.stat.equals(new Stat(attrs)))
+			return writtenVersion.version;
+		return Long.toHexString(attrs.lastModifiedTime().toMillis()) + "-" + Long.toHexString(attrs.size());
+	}
+
+	public long getSize(String key) {
+		BasicFileAttributes attrs = readAttributes(resolve(key));
+		if (attrs == null || attrs.isDirectory())
+			return -1;
+		Placeholder placeholder = findPlaceholder(key, attrs);
+		return placeholder != null ? placeholder.size : attrs.size();
+	}
+
+	public long getModified(String key) {
+		BasicFileAttributes attrs = readAttributes(resolve(key));
+		return attrs == null ? -1 : attrs.lastModifiedTime().toMillis();
+	}
+
+	public void put(String key, String version) {
+		Path path = resolve(key);
+		try {
+			if (version == null) {
+				Files.createDirectories(path);
+				return;
+			}
+			Files.createDirectories(path.getParent());
+			Path temp = path.resolveSibling(TEMP_PREFIX + path.getFileName() + ".tmp");
+			// a fetch that fails part way leaves the temp file, for a transport that can pick up where it left off
+			transport.fetch(key, version, temp.toFile());
+			if (hasher != null && !hasher.digest(temp).equals(version)) {
+				Files.deleteIfExists(temp);
+				throw new StorageException("Fetched content of " + key + " isn't version " + version, null);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dropPlaceholder(key);
+			BasicFileAttributes attrs = readAttributes(path);
+			if (attrs != null && hasher == null)
+				written.put(key, new Written(version, new Stat(attrs)));
+		} catch (IOException e) {
+			throw new StorageException("Can't write " + path, e);
+		}
+	}
+
+	public void putPlaceholder(String key, String version, long size) {
+		Path path = resolve(key);
+		try {
+			Files.createDirectories(path.getParent());
+			Path temp = path.resolveSibling(TEMP_PREFIX + path.getFileName() + ".tmp");
+			Files.deleteIfExists(temp);
+			Files.createFile(temp);
+			BasicFileAttributes oldAttrs = readAttributes(path);
+			if (oldAttrs != null)
+				forget(path, oldAttrs);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			written.remove(key);
+			BasicFileAttributes attrs = readAttributes(path);
+			Placeholder placeholder = new Placeholder(key, version, size, new Stat(attrs));
+			writePlaceholder(placeholder);
+			placeholders.put(key, placeholder);
+		} catch (IOException e) {
+			throw new StorageException("Can't write placeholder " + path, e);
+		}
+	}
+
+	public boolean isPlaceholder(String key) {
+		BasicFileAttributes attrs = readAttributes(resolve(key));
+		return attrs != null && !attrs.isDirectory() && findPlaceholder(key, attrs) != null;
+	}
+
+	public void remove(String key) {
+		Path path = resolve(key);
+		try {
+			if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						forget(file, attrs);
+						Files.deleteIfExists(file);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+						try {
+							Files.deleteIfExists(dir);
+						} catch (DirectoryNotEmptyException notEmpty) {
+							// something was added while we deleted, which the next pass picks up
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} else {
+				BasicFileAttributes attrs = readAttributes(path);
+				if (attrs != null)
+					forget(path, attrs);
+				Files.deleteIfExists(path);
+			}
+		} catch (IOException e) {
+			throw new StorageException("Can't remove " + path, e);
+		}
+		for (Iterator<String> keys = written.keySet().iterator(); keys.hasNext();) {
+			if (MemoryPaths.isSameOrBelow(keys.next(), key))
+				keys.remove();
+		}
+		for (String placeholderKey:placeholders.keySet()) {
+			if (MemoryPaths.isSameOrBelow(placeholderKey, key))
+				dropPlaceholder(placeholderKey);
+		}
+	}
+
+	public void move(String key, String newKey) {
+		Path from = resolve(key);
+		Path to = resolve(newKey);
+		try {
+			BasicFileAttributes attrs = readAttributes(from);
+			if (attrs != null)
+				forget(from, attrs);
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new StorageException("Can't move " + from + " to " + to, e);
+		}
+		Written writtenVersion = written.remove(key);
+		if (writtenVersion != null)
+			written.put(newKey, writtenVersion); // the same content, and a move keeps the mtime and size
+		Placeholder placeholder = placeholders.get(key);
+		if (placeholder != null) {
+			dropPlaceholder(key);
+			putPlaceholder(newKey, placeholder.version, placeholder.size);
+		}
+	}
+
+	public File getFile(String key) {
+		return resolve(key).toFile();
+	}
+
+	public synchronized LocalChanges pollChanges() {
+		if (!polled) {
+			// everything is new to whoever is asking, so what happened before now doesn't matter
+			polled = true;
+			if (watchService != null) {
+				drainEvents(new HashSet<String>(), new HashSet<String>());
+			} else {
+				lastScan = scan();
+			}
+			return LocalChanges.everything();
+		}
+		if (watchService != null) {
+			Set<String> paths = new HashSet<String>();
+			Set<String> subtrees = new HashSet<String>();
+			if (drainEvents(paths, subtrees))
+				return new LocalChanges(paths, subtrees);
+			// couldn't register a new dir, so watching can no longer be trusted
+			stopWatching();
+			lastScan = scan();
+			return LocalChanges.everything();
+		}
+		Map<String, Stat> scan = scan();
+		Set<String> paths = new HashSet<String>();
+		for (Map.Entry<String, Stat> entry:scan.entrySet()) {
+			if (!entry.getValue().equals(lastScan.get(entry.getKey())))
+				paths.add(entry.getKey());
+		}
+		for (String key:lastScan.keySet()) {
+			if (!scan.containsKey(key))
+				paths.add(key);
+		}
+		lastScan = scan;
+		return new LocalChanges(paths, new HashSet<String>());
+	}
+
+	public synchronized void close() {
+		stopWatching();
+	}
+
+	/**
+	 * @return false if a new dir couldn't be registered
+	 */
+	private boolean drainEvents(Set<String> paths, Set<String> subtrees) {
+		WatchKey watchKey;
+		while ((watchKey = watchService.poll()) != null) {
+			Path dir = watchedDirs.get(watchKey);
+			if (dir == null) {
+				watchKey.cancel();
+				continue;
+			}
+			for (WatchEvent<?> event:watchKey.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					// we missed some of what happened in here
+					subtrees.add(toKey(dir));
+					continue;
+				}
+				Path child = dir.resolve((Path)event.context());
+				if (isTemp(child))
+					continue;
+				paths.add(toKey(child));
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+					try {
+						registerAll(child);
+					} catch (NoSuchFileException e) {
+						// already gone again
+					} catch (IOException e) {
+						return false;
+					}
+					// and whatever got in there before we were watching
+					subtrees.add(toKey(child));
+				}
+			}
+			if (!watchKey.reset())
+				watchedDirs.remove(watchKey); // the dir is gone
+		}
+		return true;
+	}
+
+	private void registerAll(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (isTemp(dir))
+					return FileVisitResult.SKIP_SUBTREE;
+				WatchKey watchKey = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				watchedDirs.put(watchKey, dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void stopWatching() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				// we are done with it either way
+			}
+		}
+		watchService = null;
+		watchedDirs.clear();
+	}
+
+	private Map<String, Stat> scan() {
+		final Map<String, Stat> scan = new HashMap<String, Stat>();
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					if (dir.equals(root))
+						return FileVisitResult.CONTINUE;
+					if (isTemp(dir))
+						return FileVisitResult.SKIP_SUBTREE;
+					scan.put(toKey(dir), new Stat(attrs));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (!isTemp(file))
+						scan.put(toKey(file), new Stat(attrs));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+		return scan;
+	}
+
+	/**
+	 * @return the placeholder at the key, or null if there isn't one, or the
+	 * file has changed since we left it, in which case it no longer is one
+	 */
+	private Placeholder findPlaceholder(String key, BasicFileAttributes attrs) {
+		Placeholder placeholder = placeholders.get(key);
+		if (placeholder == null)
+			return null;
+		if (placeholder.stat.equals(new Stat(attrs)))
+			return placeholder;
+		dropPlaceholder(key);
+		return null;
+	}
+
+	private void dropPlaceholder(String key) {
+		if (placeholders.remove(key) != null) {
+			try {
+				Files.deleteIfExists(placeholderFile(key));
+			} catch (IOException e) {
+				throw new StorageException("Can't drop placeholder for " + key, e);
+			}
+		}
+	}
+
+	private void writePlaceholder(Placeholder placeholder) throws IOException {
+		Path file = placeholderFile(placeholder.key);
+		Files.createDirectories(file.getParent());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+		try {
+			out.writeUTF(placeholder.key);
+			out.writeUTF(placeholder.version);
+			out.writeLong(placeholder.size);
+			out.writeLong(placeholder.stat.modified);
+		} finally {
+			out.close();
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void loadPlaceholders() throws IOException {
+		File[] files = root.resolve(PLACEHOLDER_DIR).toFile().listFiles();
+		if (files == null)
+			return;
+		for (File file:files) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())));
+			Placeholder placeholder = null;
+			try {
+				String key = in.readUTF();
+				String version = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				placeholder = new Placeholder(key, version, size, new Stat(modified, 0, false));
+			} catch (EOFException e) {
+				// torn, or a temp file, so whatever it was for is the user's file now
+			} finally {
+				in.close();
+			}
+			if (placeholder != null) {
+				placeholders.put(placeholder.key, placeholder);
+			} else {
+				file.delete();
+			}
+		}
+	}
+
+	private Path placeholderFile(String key) {
+		// keys can be longer than a file name, and have slashes in them
+		return root.resolve(PLACEHOLDER_DIR).resolve(ChunkManifest.digest(ByteBuffer.wrap(key.getBytes(UTF8))));
+	}
+
+	private void forget(Path path, BasicFileAttributes attrs) {
+		if (hasher != null)
+			hasher.forget(path, attrs);
+	}
+
+	private BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new StorageException("Can't read " + path, e);
+		}
+	}
+
+	private Path resolve(String key) {
+		if (key.equals("/"))
+			return root;
+		return root.resolve(key.substring(1));
+	}
+
+	private String toKey(Path path) {
+		String relative = root.relativize(path).toString();
+		return "/" + relative.replace(File.separatorChar, '/');
+	}
+
+	static private boolean isTemp(Path path) {
+		return path.getFileName().toString().startsWith(TEMP_PREFIX);
+	}
+
+	static private class Stat {
+		private final long modified;
+		private final long size;
+		private final boolean dir;
+
+		Stat(BasicFileAttributes attrs) {
+			this(attrs.lastModifiedTime().toMillis(), attrs.isDirectory() ? 0 : attrs.size(), attrs.isDirectory());
+		}
+
+		Stat(long modified, long size, boolean dir) {
+			this.modified = modified;
+			this.size = size;
+			this.dir = dir;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Stat))
+				return false;
+			Stat other = (Stat)o;
+			return modified == other.modified && size == other.size && dir == other.dir;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(modified ^ (modified >>> 32) ^ size);
+		}
+	}
+
+	static private class Written {
+		private final String version;
+		private final Stat stat;
+
+		Written(String version, Stat stat) {
+			this.version = version;
+			this.stat = stat;
+		}
+	}
+
+	static private class Placeholder {
+		private final String key;
+		private final String version;
+		private final long size; // of the content, not the empty file standing in for it
+		private final Stat stat;
+
+		Placeholder(String key, String version, long size, Stat stat) {
+			this.key = key;
+			this.version = version;
+			this.size = size;
+			this.stat = stat;
+		}
+	}
+}
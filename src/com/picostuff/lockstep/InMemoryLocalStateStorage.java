@@ -0,0 +1,39 @@
+package com.picostuff.lockstep;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local state that only lives as long as the process, which is fine for
+ * tests and for a workspace that is happy to resync from scratch.
+ * 
+ * @author chenglim
+ *
+ */
+public class InMemoryLocalStateStorage implements LocalStateStorage {
+	private ConcurrentMap<String, BaseItemInfo> items = new ConcurrentHashMap<String, BaseItemInfo>();
+	
+	public BaseItemInfo get(String key) {
+		return items.get(key);
+	}
+	
+	public boolean hasVersion(String key, String version) {
+		BaseItemInfo baseInfo = items.get(key);
+		return baseInfo != null && version.equals(baseInfo.getVersion());
+	}
+	
+	public void put(String key, BaseItemInfo baseInfo) {
+		items.put(key, baseInfo);
+	}
+	
+	public void remove(String key) {
+		items.remove(key);
+	}
+	
+	public int size() {
+		return items.size();
+	}
+	
+	public void close() {
+	}
+}
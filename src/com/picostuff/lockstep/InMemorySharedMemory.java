@@ -0,0 +1,619 @@
+package com.picostuff.lockstep;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.picostuff.lockstep.exception.AddDuplicateException;
+import com.picostuff.lockstep.exception.BadPathException;
+import com.picostuff.lockstep.exception.MissingNodeException;
+import com.picostuff.lockstep.exception.ResyncRequiredException;
+import com.picostuff.lockstep.exception.SaveConflictException;
+
+/**
+ * A shared memory kept in this process, which is handy for tests and
+ * for running many workers against one tree in the same JVM.
+ * 
+ * Any number of threads can share one instance.  Reads walk the
+ * concurrent node maps without locking, while each write locks the
+ * stripes of just the nodes it touches (see {@link LockStripes}), so
+ * writers only wait on each other when they hit the same nodes.  The
+ * only way contention shows up to a caller is a SaveConflictException.
+ * 
+ * Alongside the tree we keep a flat index from canonical path to node,
+ * so a lookup is a single hash probe instead of a split and a walk.
+ * 
+ * Workers can watch a node or a whole subtree instead of polling the tree
+ * for changes.  Events go out as each write is applied (see {@link NodeWatcher}).
+ * Every write is also numbered and kept in a bounded {@link ChangeLog}, so
+ * a worker that was away can catch up with {@link #changesSince(long, int)}
+ * in time proportional to what changed rather than to the size of the tree.
+ * 
+ * Snapshots are read from the tree itself.  Every write, a whole batch
+ * included, is numbered by a {@link RevisionClock} once it holds its
+ * stripes, and the nodes it touches keep what they were before it for as
+ * long as a snapshot may need that (see {@link MemoryNode}).  Taking a
+ * snapshot reads the number every write up to which has finished, and
+ * reading one skips whatever was written after it, without any locks.
+ * Paged reads go through a snapshot too, so each page is of one moment.
+ * 
+ * @author chenglim
+ *
+ */
+public class InMemorySharedMemory extends AbstractSharedMemory {
+	static private final int MIN_CONCURRENCY_LEVEL = 16;
+	static private final int DEFAULT_CHANGE_LOG_SIZE = 65536;
+	
+	private MemoryNode rootNode;
+	private final ConcurrentMap<String,MemoryNode> pathIndex; // canonical path to node, kept in step with the tree
+	private final RevisionClock clock;
+	private final LockStripes stripes;
+	private final ChangeLog changeLog;
+	
+	public InMemorySharedMemory() {
+		this(Math.max(MIN_CONCURRENCY_LEVEL, Runtime.getRuntime().availableProcessors() * 4));
+	}
+	
+	/**
+	 * @param concurrencyLevel the number of writers we expect to run at once, rounded up to a power of two
+	 */
+	public InMemorySharedMemory(int concurrencyLevel) {
+		this(concurrencyLevel, DEFAULT_CHANGE_LOG_SIZE);
+	}
+	
+	/**
+	 * @param concurrencyLevel the number of writers we expect to run at once, rounded up to a power of two
+	 * @param changeLogSize the number of recent writes to keep for {@link #changesSince(long, int)}, rounded up to a power of two
+	 */
+	public InMemorySharedMemory(int concurrencyLevel, int changeLogSize) {
+		rootNode = new MemoryNode("", DIR_NODE_VERSION, "/");
+		pathIndex = new ConcurrentHashMap<String, MemoryNode>();
+		pathIndex.put(rootNode.getPath(), rootNode);
+		clock = new RevisionClock();
+		stripes = new LockStripes(concurrencyLevel);
+		changeLog = new ChangeLog(changeLogSize);
+	}
+
+	public void addNode(String path, String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException {
+		MemoryNode parentNode = findNode(path);
+		int stripe = stripes.indexFor(parentNode);
+		stripes.lock(stripe);
+		try {
+			checkNotRemoved(parentNode);
+			MemoryNode node;
+			RevisionClock.Write write = clock.begin();
+			try {
+				node = applyAdd(parentNode, name, version, -1, -1, write);
+			} finally {
+				clock.end(write);
+			}
+			publishAdd(node);
+		} finally {
+			stripes.unlock(stripe);
+		}
+	}
+	
+	public Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException {
+		return findNode(path).getChildrenNames();
+	}
+	
+	public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
+		MemoryNode currentNode = findNode(path);
+		return currentNode.makeCopy(); // return copy to shield internal storage from change (this simulates a client/server boundary)
+	}
+	
+	/**
+	 * Read through a snapshot, so each page is as of a single moment
+	 * without holding up writers.  Nodes come in the order a walk of the
+	 * tree meets them.
+	 */
+	public SubtreePage copySubtree(String path, int depth, String pageToken, int pageSize) throws BadPathException, MissingNodeException {
+		Snapshot snapshot = snapshot();
+		try {
+			return snapshot.copySubtree(path, depth, pageToken, pageSize);
+		} finally {
+			snapshot.release();
+		}
+	}
+	
+	/**
+	 * Nodes keep what a snapshot needs until it is released, or collected
+	 * if it never is.
+	 */
+	public Snapshot snapshot() {
+		return new TreeSnapshot(rootNode, clock);
+	}
+	
+	public void changeNode(String path, MemoryNode oldNode, MemoryNode newNode) throws BadPathException, MissingNodeException, SaveConflictException {
+		MemoryNode currentNode = findNode(path);
+		int stripe = stripes.indexFor(currentNode);
+		stripes.lock(stripe);
+		try {
+			checkNotRemoved(currentNode);
+			// check that the version hasn't changed since the caller read it
+			if (!currentNode.getName().equals(oldNode.getName())
+					|| !oldNode.getName().equals(newNode.getName())) {
+				throw new SaveConflictException();
+			}
+			boolean changed;
+			RevisionClock.Write write = clock.begin();
+			try {
+				changed = applyChange(currentNode, oldNode, newNode, write);
+			} finally {
+				clock.end(write);
+			}
+			if (!changed)
+				throw new SaveConflictException();
+			publishChange(currentNode);
+		} finally {
+			stripes.unlock(stripe);
+		}
+	}
+	
+	public void removeNode(String path, MemoryNode oldNode) throws BadPathException, MissingNodeException, SaveConflictException {
+		MemoryNode currentNode = findNode(path);
+		MemoryNode parentNode = currentNode.getParent();
+		if (parentNode == null)
+			throw new BadPathException(path); // can't remove the root
+		// lock the parent as well so nobody can add under a node on its way out
+		int stripe = stripes.indexFor(currentNode);
+		int parentStripe = stripes.indexFor(parentNode);
+		boolean leaf;
+		stripes.lock(stripe, parentStripe);
+		try {
+			checkNotRemoved(currentNode);
+			checkRemovable(currentNode, oldNode);
+			// nothing can be added under the node while we hold its stripe, so a leaf can go right away
+			leaf = currentNode.getChildrenNames().isEmpty();
+			if (leaf)
+				removeSubtree(currentNode);
+		} finally {
+			stripes.unlock(stripe, parentStripe);
+		}
+		if (!leaf) {
+			// descendants are guarded by their own stripes, so taking out a whole subtree needs all of them
+			stripes.lockAll();
+			try {
+				checkNotRemoved(currentNode);
+				checkRemovable(currentNode, oldNode);
+				removeSubtree(currentNode);
+			} finally {
+				stripes.unlockAll();
+			}
+		}
+	}
+	
+	public long getLastSeq() {
+		return changeLog.getLastSeq();
+	}
+	
+	public ChangeSet changesSince(long seq, int max) throws ResyncRequiredException {
+		return changeLog.changesSince(seq, max);
+	}
+	
+	/**
+	 * The batch runs under one critical section holding the stripes of every
+	 * node it touches (or all stripes when it removes a subtree), which is
+	 * the in-memory stand-in for a single round trip to the real store.
+	 * Nodes the batch adds have stripes nobody holds, so they are kept out
+	 * of the index until the whole batch is in, and no other writer can get
+	 * under them part way through.
+	 */
+	public void multi(List<Op> ops) throws BadPathException, MissingNodeException, AddDuplicateException, SaveConflictException {
+		List<String> targetPaths = new ArrayList<String>(ops.size());
+		List<String> parentPaths = new ArrayList<String>(ops.size());
+		for (Op op:ops) {
+			String path = MemoryPaths.makeCanonical(op.getPath());
+			if (op.getType() == Op.Type.ADD) {
+				parentPaths.add(path);
+				targetPaths.add(MemoryPaths.childPath(path, op.getName()));
+			} else {
+				parentPaths.add(MemoryPaths.parentOf(path));
+				targetPaths.add(path);
+			}
+		}
+		boolean allStripes = false;
+		while (true) {
+			boolean[] held = null;
+			if (allStripes) {
+				stripes.lockAll();
+			} else {
+				held = lockStripesFor(targetPaths, parentPaths);
+			}
+			try {
+				Batch batch = new Batch(held);
+				batch.check(ops, targetPaths, parentPaths);
+				if (batch.retry) {
+					// a node changed hands before we got our locks, or we found a subtree to remove
+					allStripes = allStripes || batch.needAllStripes;
+					continue;
+				}
+				batch.throwIfFailed();
+				batch.apply(ops, targetPaths, parentPaths);
+				break;
+			} finally {
+				if (held == null) {
+					stripes.unlockAll();
+				} else {
+					unlockStripes(held);
+				}
+			}
+		}
+	}
+	
+	private boolean[] lockStripesFor(List<String> targetPaths, List<String> parentPaths) {
+		boolean[] held = new boolean[stripes.size()];
+		for (int i = 0; i < targetPaths.size(); i++) {
+			markStripe(held, targetPaths.get(i));
+			markStripe(held, parentPaths.get(i));
+		}
+		for (int i = 0; i < held.length; i++) {
+			if (held[i])
+				stripes.lock(i);
+		}
+		return held;
+	}
+	
+	private void markStripe(boolean[] held, String path) {
+		if (path != null) {
+			MemoryNode node = pathIndex.get(path);
+			if (node != null)
+				held[stripes.indexFor(node)] = true;
+		}
+	}
+	
+	private void unlockStripes(boolean[] held) {
+		for (int i = held.length - 1; i >= 0; i--) {
+			if (held[i])
+				stripes.unlock(i);
+		}
+	}
+	
+	/**
+	 * Checks a batch against the tree as it would look after each earlier op,
+	 * without touching the tree, and then applies it once everything passes.
+	 */
+	private class Batch {
+		private final boolean[] held; // null when we hold every stripe
+		private final Map<String,String> pendingVersions = new HashMap<String, String>(); // null version means removed
+		private final Set<String> removedPaths = new HashSet<String>();
+		private final List<String> conflictPaths = new ArrayList<String>();
+		private Exception error;
+		private boolean retry;
+		private boolean needAllStripes;
+		
+		public Batch(boolean[] held) {
+			this.held = held;
+		}
+		
+		public void check(List<Op> ops, List<String> targetPaths, List<String> parentPaths) {
+			for (int i = 0; i < ops.size() && error == null; i++) {
+				Op op = ops.get(i);
+				String path = targetPaths.get(i);
+				if (op.getType() == Op.Type.ADD) {
+					if (findVersion(parentPaths.get(i)) == null) {
+						error = new MissingNodeException();
+					} else if (findVersion(path) != null) {
+						error = new AddDuplicateException();
+					} else {
+						pendingVersions.put(path, op.getVersion());
+					}
+					continue;
+				}
+				String version = findVersion(path);
+				if (version == null) {
+					error = new MissingNodeException();
+					continue;
+				}
+				MemoryNode oldNode = op.getOldNode();
+				boolean matches = version.equals(oldNode.getVersion()) && MemoryPaths.nameOf(path).equals(oldNode.getName());
+				switch (op.getType()) {
+				case CHANGE:
+					MemoryNode newNode = op.getNewNode();
+					if (matches && oldNode.getName().equals(newNode.getName())) {
+						pendingVersions.put(path, newNode.getVersion());
+					} else {
+						conflictPaths.add(path);
+					}
+					break;
+				case REMOVE:
+					if (parentPaths.get(i) == null) {
+						error = new BadPathException(path); // can't remove the root
+					} else if (matches) {
+						if (held != null && hasDescendants(path)) {
+							needAllStripes = true;
+							retry = true;
+						}
+						removePending(path);
+					} else {
+						conflictPaths.add(path);
+					}
+					break;
+				default:
+					if (!matches) {
+						conflictPaths.add(path);
+					} else if (op.isSubtreeCheck()) {
+						checkSubtree(path, oldNode);
+					}
+				}
+			}
+		}
+		
+		private void checkSubtree(String path, MemoryNode oldNode) {
+			long subtreeHash = pathIndex.get(path).getSubtreeHash();
+			if (held != null && subtreeHash != 0) {
+				// adding a child needs the node's stripe, which we hold, but writes further down don't
+				needAllStripes = true;
+				retry = true;
+			} else if (subtreeHash != oldNode.getSubtreeHash()) {
+				conflictPaths.add(path);
+			}
+		}
+		
+		public void throwIfFailed() throws BadPathException, MissingNodeException, AddDuplicateException, SaveConflictException {
+			if (error instanceof BadPathException)
+				throw (BadPathException)error;
+			if (error instanceof MissingNodeException)
+				throw (MissingNodeException)error;
+			if (error instanceof AddDuplicateException)
+				throw (AddDuplicateException)error;
+			if (!conflictPaths.isEmpty())
+				throw new SaveConflictException(conflictPaths);
+		}
+		
+		public void apply(List<Op> ops, List<String> targetPaths, List<String> parentPaths) throws AddDuplicateException {
+			Map<String,MemoryNode> added = new HashMap<String, MemoryNode>(); // not in the index until the end
+			MemoryNode[] applied = new MemoryNode[ops.size()];
+			// one number for the lot, so no snapshot sees part of the batch
+			RevisionClock.Write write = clock.begin();
+			try {
+				for (int i = 0; i < ops.size(); i++) {
+					Op op = ops.get(i);
+					switch (op.getType()) {
+					case ADD:
+						applied[i] = applyAdd(nodeAt(parentPaths.get(i), added), op.getName(), op.getVersion(), op.getSize(), op.getModified(), write);
+						added.put(targetPaths.get(i), applied[i]);
+						break;
+					case CHANGE:
+						applied[i] = nodeAt(targetPaths.get(i), added);
+						applyChange(applied[i], op.getOldNode(), op.getNewNode(), write);
+						break;
+					case REMOVE:
+						applied[i] = nodeAt(targetPaths.get(i), added);
+						applied[i].removeFromParent(write);
+						break;
+					default:
+						// nothing to do for a check
+					}
+				}
+			} finally {
+				clock.end(write);
+			}
+			// in order, so the index and the events end up as if the ops ran one at a time
+			for (int i = 0; i < ops.size(); i++) {
+				switch (ops.get(i).getType()) {
+				case ADD:
+					publishAdd(applied[i]);
+					break;
+				case CHANGE:
+					publishChange(applied[i]);
+					break;
+				case REMOVE:
+					unindex(applied[i]);
+					break;
+				default:
+					break;
+				}
+			}
+		}
+		
+		private MemoryNode nodeAt(String path, Map<String,MemoryNode> added) {
+			MemoryNode node = added.get(path);
+			if (node != null && !node.isRemoved())
+				return node;
+			return pathIndex.get(path);
+		}
+		
+		private String findVersion(String path) {
+			if (pendingVersions.containsKey(path))
+				return pendingVersions.get(path);
+			for (String removedPath:removedPaths) {
+				if (MemoryPaths.isSameOrBelow(path, removedPath))
+					return null;
+			}
+			MemoryNode node = pathIndex.get(path);
+			if (node == null)
+				return null;
+			if (held != null && !held[stripes.indexFor(node)])
+				retry = true; // the node was replaced after we picked our stripes
+			return node.getVersion();
+		}
+		
+		private boolean hasDescendants(String path) {
+			MemoryNode node = pathIndex.get(path);
+			if (node != null && !node.getChildrenNames().isEmpty())
+				return true;
+			for (Map.Entry<String,String> entry:pendingVersions.entrySet()) {
+				if (entry.getValue() != null && MemoryPaths.isSameOrBelow(entry.getKey(), path) && !entry.getKey().equals(path))
+					return true;
+			}
+			return false;
+		}
+		
+		private void removePending(String path) {
+			List<String> below = new ArrayList<String>();
+			for (String pendingPath:pendingVersions.keySet()) {
+				if (MemoryPaths.isSameOrBelow(pendingPath, path))
+					below.add(pendingPath);
+			}
+			for (String pendingPath:below) {
+				pendingVersions.remove(pendingPath);
+			}
+			pendingVersions.put(path, null);
+			removedPaths.add(path);
+		}
+	}
+	
+	/**
+	 * Add to the tree, where only a walk can find it until {@link #publishAdd}
+	 */
+	private MemoryNode applyAdd(MemoryNode parentNode, String name, String version, long size, long modified, RevisionClock.Write write) throws AddDuplicateException {
+		return parentNode.addChild(name, version, size, modified, write);
+	}
+	
+	private boolean applyChange(MemoryNode currentNode, MemoryNode oldNode, MemoryNode newNode, RevisionClock.Write write) {
+		return currentNode.compareAndSetContent(oldNode.getVersion(), newNode, write); // this simulates a client/server boundary
+	}
+	
+	private void publishAdd(MemoryNode node) {
+		pathIndex.put(node.getPath(), node);
+		getWatchManager().fire(changeLog.append(NodeEvent.Type.ADDED, node.getPath(), node.getVersion()));
+	}
+	
+	private void publishChange(MemoryNode node) {
+		getWatchManager().fire(changeLog.append(NodeEvent.Type.CHANGED, node.getPath(), node.getVersion()));
+	}
+	
+	private void checkRemovable(MemoryNode currentNode, MemoryNode oldNode) throws SaveConflictException {
+		// check that the version hasn't changed since the caller read it
+		if (!currentNode.getVersion().equals(oldNode.getVersion()) 
+				|| !currentNode.getName().equals(oldNode.getName())) {
+			throw new SaveConflictException();
+		}
+	}
+	
+	private void removeSubtree(MemoryNode node) {
+		RevisionClock.Write write = clock.begin();
+		try {
+			node.removeFromParent(write);
+		} finally {
+			clock.end(write);
+		}
+		unindex(node);
+	}
+	
+	/**
+	 * A snapshot reads each node as of the number it took, walking down from
+	 * the root, since what is at a path now may not be what was there then
+	 */
+	static private class TreeSnapshot extends Snapshot {
+		private final MemoryNode root;
+		private final RevisionClock clock;
+		private final RevisionClock.Pin pin;
+		private final long seq;
+		
+		TreeSnapshot(MemoryNode root, RevisionClock clock) {
+			this.root = root;
+			this.clock = clock;
+			pin = clock.pin(this);
+			seq = pin.getSeq();
+		}
+		
+		public Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException {
+			return find(path).getChildrenAt(seq).keySet();
+		}
+		
+		public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
+			return find(path).copyAt(seq);
+		}
+		
+		public SubtreePage copySubtree(String path, int depth, String pageToken, int pageSize) throws BadPathException, MissingNodeException {
+			String canonicalPath = MemoryPaths.makeCanonical(path);
+			MemoryNode node = find(canonicalPath);
+			Map<String,MemoryNode> nodes = new LinkedHashMap<String, MemoryNode>();
+			String nextToken = null;
+			if (!collect(node, canonicalPath, depth, pageToken, pageSize, nodes)) {
+				for (String nodePath:nodes.keySet()) {
+					nextToken = nodePath; // the last one
+				}
+			}
+			return new SubtreePage(nodes, nextToken);
+		}
+		
+		void free() {
+			clock.unpin(pin);
+		}
+		
+		private MemoryNode find(String path) throws BadPathException, MissingNodeException {
+			checkNotReleased();
+			String canonicalPath = MemoryPaths.makeCanonical(path);
+			MemoryNode node = root;
+			for (int start = 1; start < canonicalPath.length();) {
+				int slash = canonicalPath.indexOf('/', start);
+				int end = slash < 0 ? canonicalPath.length() : slash;
+				node = node.getChildrenAt(seq).get(canonicalPath.substring(start, end));
+				if (node == null)
+					throw new MissingNodeException();
+				start = end + 1;
+			}
+			return node;
+		}
+		
+		/**
+		 * Copy the nodes after the token into the page, in tree order.
+		 * 
+		 * @return false if the page filled up before we ran out of nodes
+		 */
+		private boolean collect(MemoryNode node, String path, int depth, String pageToken, int pageSize, Map<String,MemoryNode> nodes) {
+			if (pageToken == null || MemoryPaths.compareInTreeOrder(path, pageToken) > 0) {
+				if (nodes.size() == pageSize)
+					return false;
+				nodes.put(path, node.copyAt(seq));
+			}
+			if (depth == 0)
+				return true;
+			// skip the children the earlier pages already covered
+			String from = null;
+			if (pageToken != null && !pageToken.equals(path) && MemoryPaths.isSameOrBelow(pageToken, path)) {
+				String rest = pageToken.substring(path.equals("/") ? 1 : path.length() + 1);
+				int slash = rest.indexOf('/');
+				from = slash < 0 ? rest : rest.substring(0, slash);
+			} else if (pageToken != null && MemoryPaths.compareInTreeOrder(path, pageToken) < 0) {
+				return true; // all of it went out earlier
+			}
+			for (Iterator<Map.Entry<String,MemoryNode>> iterator = node.getChildrenAt(seq).iteratorFrom(from); iterator.hasNext();) {
+				Map.Entry<String,MemoryNode> entry = iterator.next();
+				if (!collect(entry.getValue(), MemoryPaths.childPath(path, entry.getKey()), depth < 0 ? depth : depth - 1, pageToken, pageSize, nodes))
+					return false;
+			}
+			return true;
+		}
+	}
+	
+	private void unindex(MemoryNode node) {
+		pathIndex.remove(node.getPath(), node);
+		node.markRemoved(); // so writers that looked up a descendant before we got here will miss
+		for (Map.Entry<String,MemoryNode> child:node.getChildren()) {
+			unindex(child.getValue());
+		}
+		getWatchManager().fire(changeLog.append(NodeEvent.Type.REMOVED, node.getPath(), node.getVersion()));
+	}
+	
+	private void checkNotRemoved(MemoryNode node) throws MissingNodeException {
+		// another writer may have removed the node between our lookup and taking the lock
+		if (node.isRemoved())
+			throw new MissingNodeException();
+	}
+	
+	private MemoryNode findNode(String path) throws BadPathException, MissingNodeException {
+		MemoryNode node = pathIndex.get(path);
+		if (node != null)
+			return node;
+		// not a path we know as given, so check it and try again in canonical form
+		String canonicalPath = MemoryPaths.makeCanonical(path);
+		if (!canonicalPath.equals(path)) {
+			node = pathIndex.get(canonicalPath);
+			if (node != null)
+				return node;
+		}
+		throw new MissingNodeException();
+	}
+
+}
@@ -0,0 +1,846 @@
+package com.picostuff.lockstep;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.sql.DataSource;
+
+import com.picostuff.lockstep.exception.AddDuplicateException;
+import com.picostuff.lockstep.exception.BadPathException;
+import com.picostuff.lockstep.exception.MissingNodeException;
+import com.picostuff.lockstep.exception.ResyncRequiredException;
+import com.picostuff.lockstep.exception.SaveConflictException;
+import com.picostuff.lockstep.exception.StorageException;
+
+/**
+ * A shared memory kept in a plain old database, for deployments that want
+ * the shared state to be durable but don't want to run ZooKeeper.
+ *
+ * Nodes are rows keyed by canonical path, with a unique index on
+ * (parent_path, name) so listing a dir is one indexed query.  Each row
+ * also has a tree key, which is its path with '/' made the lowest char,
+ * so sorting by it gives the order a walk of the tree meets the nodes in,
+ * and a subtree is a range of it.  With each node's depth next to it in
+ * the index, a page of a subtree is one bounded range scan.  Changes
+ * and removes are optimistic: the UPDATE or DELETE carries the version
+ * the caller read in its WHERE clause, and touching no rows means someone
+ * else got there first.  Every write also bumps a single sequence row and
+ * appends to a change table, which is trimmed to a fixed number of entries.
+ * Since the sequence row is locked until commit, sequence numbers are
+ * handed out in commit order.
+ *
+ * Watches only see writes once this process reads them from the change
+ * table.  That happens after each write made through this instance, and
+ * whenever {@link #pollWatches()} is called.
+ *
+ * Each row also carries its node's subtree hash (see {@link MemoryNode}).
+ * A transaction gathers the changes to them as it goes and brings every
+ * row up to the root up to date just before it commits, deepest rows first,
+ * so transactions lock those rows in the same order and a batch of writes
+ * under one dir updates each row above it once.
+ *
+ * The SQL sticks to what H2, Derby and most server databases agree on.
+ *
+ * @author chenglim
+ *
+ */
+public class JdbcSharedMemory extends AbstractSharedMemory {
+	static private final int DEFAULT_CHANGE_LOG_SIZE = 65536;
+	static private final int WATCH_BATCH_SIZE = 1000;
+	static private final char TREE_SEPARATOR = '\u0001'; // stands in for '/' in tree keys, and sorts before any char in a name
+
+	static private final String[] SCHEMA = {
+		"CREATE TABLE lockstep_node (path VARCHAR(4096) NOT NULL, parent_path VARCHAR(4096), name VARCHAR(1024) NOT NULL, version VARCHAR(1024) NOT NULL, "
+				+ "content_size BIGINT DEFAULT -1 NOT NULL, modified BIGINT DEFAULT -1 NOT NULL, subtree_hash BIGINT DEFAULT 0 NOT NULL, "
+				+ "tree_key VARCHAR(4096) NOT NULL, node_depth INT NOT NULL, PRIMARY KEY (path))",
+		"CREATE UNIQUE INDEX lockstep_node_parent ON lockstep_node (parent_path, name)",
+		"CREATE INDEX lockstep_node_tree ON lockstep_node (tree_key, node_depth)",
+		"CREATE TABLE lockstep_change (seq BIGINT NOT NULL, change_type VARCHAR(16) NOT NULL, path VARCHAR(4096) NOT NULL, version VARCHAR(1024) NOT NULL, PRIMARY KEY (seq))",
+		"CREATE TABLE lockstep_seq (id INT NOT NULL, last_seq BIGINT NOT NULL, PRIMARY KEY (id))",
+		"INSERT INTO lockstep_seq (id, last_seq) VALUES (1, 0)",
+		"INSERT INTO lockstep_node (path, parent_path, name, version, tree_key, node_depth) VALUES ('/', NULL, '', '" + DIR_NODE_VERSION + "', '"
+				+ treeKeyOf("/") + "', 0)",
+	};
+
+	/**
+	 * Orders paths deepest first, which is the order we lock rows in to
+	 * update their hashes
+	 */
+	static private final Comparator<String> DEEPEST_FIRST = new Comparator<String>() {
+		public int compare(String a, String b) {
+			int depthA = depthOf(a);
+			int depthB = depthOf(b);
+			if (depthA != depthB)
+				return depthA > depthB ? -1 : 1;
+			return a.compareTo(b);
+		}
+	};
+
+	private final DataSource dataSource; // null when we go through the driver manager
+	private final String url;
+	private final int changeLogSize;
+	private final Object watchLock = new Object();
+	private long watchSeq; // guarded by watchLock
+
+	public JdbcSharedMemory(DataSource dataSource) {
+		this(dataSource, DEFAULT_CHANGE_LOG_SIZE);
+	}
+
+	/**
+	 * @param changeLogSize the number of recent writes to keep for {@link #changesSince(long, int)}
+	 */
+	public JdbcSharedMemory(DataSource dataSource, int changeLogSize) {
+		this.dataSource = dataSource;
+		this.url = null;
+		this.changeLogSize = changeLogSize;
+		createSchema();
+	}
+
+	public JdbcSharedMemory(String url) {
+		this(url, DEFAULT_CHANGE_LOG_SIZE);
+	}
+
+	/**
+	 * @param changeLogSize the number of recent writes to keep for {@link #changesSince(long, int)}
+	 */
+	public JdbcSharedMemory(String url, int changeLogSize) {
+		this.dataSource = null;
+		this.url = url;
+		this.changeLogSize = changeLogSize;
+		createSchema();
+	}
+
+	public void addNode(String path, String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException {
+		String parentPath = MemoryPaths.makeCanonical(path);
+		Connection connection = open();
+		try {
+			List<NodeEvent> changes = new ArrayList<NodeEvent>();
+			TreeMap<String,Long> hashChanges = new TreeMap<String, Long>(DEEPEST_FIRST);
+			applyAdd(connection, parentPath, name, version, -1, -1, changes, hashChanges);
+			commit(connection, changes, hashChanges);
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+		deliverWatches();
+	}
+
+	public Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException {
+		Connection connection = open();
+		try {
+			return readChildrenNames(connection, path);
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
+		Connection connection = open();
+		try {
+			return readNode(connection, path);
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Each page is a single query, in tree order, so it is as consistent
+	 * as the database makes one statement.  The node's own row comes back
+	 * with every page, which is how we tell it is still there.
+	 */
+	public SubtreePage copySubtree(String path, int depth, String pageToken, int pageSize) throws BadPathException, MissingNodeException {
+		Connection connection = open();
+		try {
+			return readSubtree(connection, path, depth, pageToken, pageSize);
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * A snapshot is a read-only transaction at repeatable read, which the
+	 * databases we expect serve from their multi-version storage without
+	 * locking.  It keeps its connection until it is released.
+	 */
+	public Snapshot snapshot() {
+		Connection connection = open();
+		try {
+			connection.setReadOnly(true);
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			readSubtreeHash(connection, "/"); // the first read of the nodes is the moment the snapshot is of
+			return new JdbcSnapshot(connection);
+		} catch (SQLException e) {
+			close(connection);
+			throw new StorageException(e);
+		}
+	}
+
+	public void changeNode(String path, MemoryNode oldNode, MemoryNode newNode) throws BadPathException, MissingNodeException, SaveConflictException {
+		String canonicalPath = MemoryPaths.makeCanonical(path);
+		Connection connection = open();
+		try {
+			List<NodeEvent> changes = new ArrayList<NodeEvent>();
+			TreeMap<String,Long> hashChanges = new TreeMap<String, Long>(DEEPEST_FIRST);
+			if (!applyChange(connection, canonicalPath, oldNode, newNode, changes, hashChanges))
+				throw new SaveConflictException();
+			commit(connection, changes, hashChanges);
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+		deliverWatches();
+	}
+
+	public void removeNode(String path, MemoryNode oldNode) throws BadPathException, MissingNodeException, SaveConflictException {
+		String canonicalPath = MemoryPaths.makeCanonical(path);
+		Connection connection = open();
+		try {
+			List<NodeEvent> changes = new ArrayList<NodeEvent>();
+			TreeMap<String,Long> hashChanges = new TreeMap<String, Long>(DEEPEST_FIRST);
+			if (!applyRemove(connection, canonicalPath, oldNode, changes, hashChanges))
+				throw new SaveConflictException();
+			commit(connection, changes, hashChanges);
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+		deliverWatches();
+	}
+
+	/**
+	 * The whole batch runs in one transaction.  Ops that fail their version
+	 * check are skipped so we can name every conflict, and then the
+	 * transaction is rolled back.
+	 */
+	public void multi(List<Op> ops) throws BadPathException, MissingNodeException, AddDuplicateException, SaveConflictException {
+		Connection connection = open();
+		try {
+			List<NodeEvent> changes = new ArrayList<NodeEvent>();
+			TreeMap<String,Long> hashChanges = new TreeMap<String, Long>(DEEPEST_FIRST);
+			List<String> conflictPaths = new ArrayList<String>();
+			for (Op op:ops) {
+				String path = MemoryPaths.makeCanonical(op.getPath());
+				boolean applied;
+				switch (op.getType()) {
+				case ADD:
+					applyAdd(connection, path, op.getName(), op.getVersion(), op.getSize(), op.getModified(), changes, hashChanges);
+					applied = true;
+					break;
+				case CHANGE:
+					applied = applyChange(connection, path, op.getOldNode(), op.getNewNode(), changes, hashChanges);
+					break;
+				case REMOVE:
+					applied = applyRemove(connection, path, op.getOldNode(), changes, hashChanges);
+					break;
+				default:
+					String version = readVersion(connection, path, true);
+					if (version == null)
+						throw new MissingNodeException();
+					applied = version.equals(op.getOldNode().getVersion()) && MemoryPaths.nameOf(path).equals(op.getOldNode().getName());
+					if (applied && op.isSubtreeCheck()) {
+						// the row is locked, and a write below brings it up to date before its commit, so this is the hash as of now
+						applied = readSubtreeHash(connection, path) == op.getOldNode().getSubtreeHash();
+					}
+				}
+				if (!applied)
+					conflictPaths.add(path);
+			}
+			if (!conflictPaths.isEmpty())
+				throw new SaveConflictException(conflictPaths);
+			commit(connection, changes, hashChanges);
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+		deliverWatches();
+	}
+
+	public long getLastSeq() {
+		Connection connection = open();
+		try {
+			return readLastSeq(connection, false);
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	public ChangeSet changesSince(long seq, int max) throws ResyncRequiredException {
+		Connection connection = open();
+		try {
+			long last = readLastSeq(connection, false);
+			if (seq > last || seq < last - changeLogSize)
+				throw new ResyncRequiredException(seq);
+			// keep just the latest change for each path
+			Map<String,NodeEvent> changes = new LinkedHashMap<String, NodeEvent>();
+			long cursor = seq;
+			PreparedStatement statement = connection.prepareStatement(
+					"SELECT seq, change_type, path, version FROM lockstep_change WHERE seq > ? AND seq <= ? ORDER BY seq");
+			try {
+				statement.setLong(1, seq);
+				statement.setLong(2, last);
+				statement.setMaxRows(max);
+				ResultSet resultSet = statement.executeQuery();
+				while (resultSet.next()) {
+					long changeSeq = resultSet.getLong(1);
+					if (changeSeq != cursor + 1)
+						throw new ResyncRequiredException(seq); // trimmed while we were reading
+					NodeEvent event = new NodeEvent(changeSeq, NodeEvent.Type.valueOf(resultSet.getString(2)), resultSet.getString(3), resultSet.getString(4));
+					changes.remove(event.getPath());
+					changes.put(event.getPath(), event);
+					cursor = changeSeq;
+				}
+			} finally {
+				statement.close();
+			}
+			if (cursor == seq && seq < last)
+				throw new ResyncRequiredException(seq); // everything after the cursor has been trimmed
+			return new ChangeSet(new ArrayList<NodeEvent>(changes.values()), cursor, cursor < last);
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	public Watch watchNode(String path, boolean persistent, NodeWatcher watcher) throws BadPathException {
+		startWatching();
+		return super.watchNode(path, persistent, watcher);
+	}
+
+	public Watch watchSubtree(String path, boolean persistent, NodeWatcher watcher) throws BadPathException {
+		startWatching();
+		return super.watchSubtree(path, persistent, watcher);
+	}
+
+	/**
+	 * Deliver the writes made since we last looked, including those made
+	 * by other processes, to the watches on this instance.
+	 */
+	public void pollWatches() {
+		synchronized (watchLock) {
+			while (getWatchManager().hasWatches()) {
+				ChangeSet changes;
+				try {
+					changes = changesSince(watchSeq, WATCH_BATCH_SIZE);
+				} catch (ResyncRequiredException e) {
+					// we fell too far behind to say what changed, so start again from now
+					watchSeq = getLastSeq();
+					return;
+				}
+				for (NodeEvent event:changes.getChanges()) {
+					getWatchManager().fire(event);
+				}
+				watchSeq = changes.getNextSeq();
+				if (!changes.hasMore())
+					return;
+			}
+		}
+	}
+
+	private void startWatching() {
+		synchronized (watchLock) {
+			// don't replay writes from before anyone was watching
+			if (!getWatchManager().hasWatches())
+				watchSeq = getLastSeq();
+		}
+	}
+
+	private void deliverWatches() {
+		if (getWatchManager().hasWatches())
+			pollWatches();
+	}
+
+	private Set<String> readChildrenNames(Connection connection, String path) throws SQLException, BadPathException, MissingNodeException {
+		String canonicalPath = MemoryPaths.makeCanonical(path);
+		// one round trip: the outer join gives a single null row for an existing empty dir
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT c.name FROM lockstep_node p LEFT JOIN lockstep_node c ON c.parent_path = p.path WHERE p.path = ?");
+		try {
+			statement.setString(1, canonicalPath);
+			ResultSet resultSet = statement.executeQuery();
+			boolean found = false;
+			Set<String> names = new HashSet<String>();
+			while (resultSet.next()) {
+				found = true;
+				String name = resultSet.getString(1);
+				if (name != null)
+					names.add(name);
+			}
+			if (!found)
+				throw new MissingNodeException();
+			return Collections.unmodifiableSet(names);
+		} finally {
+			statement.close();
+		}
+	}
+
+	private MemoryNode readNode(Connection connection, String path) throws SQLException, BadPathException, MissingNodeException {
+		String canonicalPath = MemoryPaths.makeCanonical(path);
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT version, content_size, modified, subtree_hash FROM lockstep_node WHERE path = ?");
+		try {
+			statement.setString(1, canonicalPath);
+			ResultSet resultSet = statement.executeQuery();
+			if (!resultSet.next())
+				throw new MissingNodeException();
+			MemoryNode node = new MemoryNode(MemoryPaths.nameOf(canonicalPath), resultSet.getString(1));
+			node.setSize(resultSet.getLong(2));
+			node.setModified(resultSet.getLong(3));
+			node.setSubtreeHash(resultSet.getLong(4));
+			return node;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private SubtreePage readSubtree(Connection connection, String path, int depth, String pageToken, int pageSize) throws SQLException, BadPathException, MissingNodeException {
+		String canonicalPath = MemoryPaths.makeCanonical(path);
+		boolean root = canonicalPath.equals("/");
+		String below;
+		if (depth == 0) {
+			below = "1 = 0";
+		} else if (depth == 1) {
+			below = "parent_path = ?"; // the index covers this one
+		} else {
+			// the range of tree keys under the node, cut off at the depth
+			below = "tree_key > ?" + (root ? "" : " AND tree_key < ?") + (depth > 0 ? " AND node_depth <= ?" : "");
+		}
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT path, version, content_size, modified, subtree_hash FROM lockstep_node WHERE path = ? OR (" + below
+				+ (pageToken != null ? " AND tree_key > ?" : "") + ") ORDER BY tree_key");
+		try {
+			int parameter = 1;
+			statement.setString(parameter++, canonicalPath);
+			if (depth == 1) {
+				statement.setString(parameter++, canonicalPath);
+			} else if (depth != 0) {
+				String treeKey = treeKeyOf(canonicalPath);
+				statement.setString(parameter++, root ? treeKey : treeKey + TREE_SEPARATOR);
+				if (!root)
+					statement.setString(parameter++, treeKey + (char)(TREE_SEPARATOR + 1));
+				if (depth > 0)
+					statement.setInt(parameter++, depthOf(canonicalPath) + depth);
+			}
+			if (pageToken != null)
+				statement.setString(parameter++, treeKeyOf(pageToken));
+			statement.setFetchSize(pageSize + 1);
+			ResultSet resultSet = statement.executeQuery();
+			Map<String,MemoryNode> nodes = new LinkedHashMap<String, MemoryNode>();
+			boolean found = false;
+			String nextToken = null;
+			while (resultSet.next()) {
+				String nodePath = resultSet.getString(1);
+				if (nodePath.equals(canonicalPath)) {
+					found = true;
+					if (pageToken != null)
+						continue; // it went out with the first page
+				}
+				if (nodes.size() == pageSize) {
+					nextToken = lastKey(nodes);
+					break;
+				}
+				MemoryNode node = new MemoryNode(MemoryPaths.nameOf(nodePath), resultSet.getString(2));
+				node.setSize(resultSet.getLong(3));
+				node.setModified(resultSet.getLong(4));
+				node.setSubtreeHash(resultSet.getLong(5));
+				nodes.put(nodePath, node);
+			}
+			if (!found)
+				throw new MissingNodeException();
+			return new SubtreePage(nodes, nextToken);
+		} finally {
+			statement.close();
+		}
+	}
+
+	private void applyAdd(Connection connection, String parentPath, String name, String version, long size, long modified,
+			List<NodeEvent> changes, TreeMap<String,Long> hashChanges) throws SQLException, MissingNodeException, AddDuplicateException {
+		// lock the parent row so a concurrent remove can't leave us an orphan
+		if (readVersion(connection, parentPath, true) == null)
+			throw new MissingNodeException();
+		String path = MemoryPaths.childPath(parentPath, name);
+		if (readVersion(connection, path, false) != null)
+			throw new AddDuplicateException();
+		PreparedStatement statement = connection.prepareStatement(
+				"INSERT INTO lockstep_node (path, parent_path, name, version, content_size, modified, tree_key, node_depth) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+		try {
+			statement.setString(1, path);
+			statement.setString(2, parentPath);
+			statement.setString(3, name);
+			statement.setString(4, version);
+			statement.setLong(5, size);
+			statement.setLong(6, modified);
+			statement.setString(7, treeKeyOf(path));
+			statement.setInt(8, depthOf(path));
+			statement.executeUpdate();
+		} catch (SQLException e) {
+			if (isConstraintViolation(e))
+				throw new AddDuplicateException(); // lost a race with another add
+			throw e;
+		} finally {
+			statement.close();
+		}
+		changeHash(hashChanges, parentPath, MemoryNode.entryHash(name, version, 0));
+		changes.add(new NodeEvent(0, NodeEvent.Type.ADDED, path, version));
+	}
+
+	private boolean applyChange(Connection connection, String path, MemoryNode oldNode, MemoryNode newNode, List<NodeEvent> changes,
+			TreeMap<String,Long> hashChanges) throws SQLException, MissingNodeException {
+		if (!MemoryPaths.nameOf(path).equals(oldNode.getName()) || !oldNode.getName().equals(newNode.getName()))
+			return false;
+		PreparedStatement statement = connection.prepareStatement(
+				"UPDATE lockstep_node SET version = ?, content_size = ?, modified = ? WHERE path = ? AND version = ?");
+		try {
+			statement.setString(1, newNode.getVersion());
+			statement.setLong(2, newNode.getSize());
+			statement.setLong(3, newNode.getModified());
+			statement.setString(4, path);
+			statement.setString(5, oldNode.getVersion());
+			if (statement.executeUpdate() == 0) {
+				if (readVersion(connection, path, false) == null)
+					throw new MissingNodeException();
+				return false;
+			}
+		} finally {
+			statement.close();
+		}
+		// the version and the subtree hash go into an entry apart, so the subtree hash drops out here
+		changeHash(hashChanges, MemoryPaths.parentOf(path), MemoryNode.entryHash(oldNode.getName(), oldNode.getVersion(), 0)
+				^ MemoryNode.entryHash(newNode.getName(), newNode.getVersion(), 0));
+		changes.add(new NodeEvent(0, NodeEvent.Type.CHANGED, path, newNode.getVersion()));
+		return true;
+	}
+
+	private boolean applyRemove(Connection connection, String path, MemoryNode oldNode, List<NodeEvent> changes,
+			TreeMap<String,Long> hashChanges) throws SQLException, BadPathException, MissingNodeException {
+		if (path.equals("/"))
+			throw new BadPathException(path); // can't remove the root
+		if (!MemoryPaths.nameOf(path).equals(oldNode.getName()))
+			return false;
+		String version = readVersion(connection, path, true);
+		if (version == null)
+			throw new MissingNodeException();
+		if (!version.equals(oldNode.getVersion()))
+			return false;
+		applyHashChanges(connection, hashChanges); // so the hash we take out includes what this batch put in
+		long subtreeHash = readSubtreeHash(connection, path);
+		PreparedStatement statement = connection.prepareStatement(
+				"DELETE FROM lockstep_node WHERE path = ? AND version = ?");
+		try {
+			statement.setString(1, path);
+			statement.setString(2, oldNode.getVersion());
+			if (statement.executeUpdate() == 0) {
+				if (readVersion(connection, path, false) == null)
+					throw new MissingNodeException();
+				return false;
+			}
+		} finally {
+			statement.close();
+		}
+		String below = escapeLike(path) + "/%";
+		statement = connection.prepareStatement(
+				"SELECT path, version FROM lockstep_node WHERE path LIKE ? ESCAPE '!' ORDER BY path DESC");
+		try {
+			statement.setString(1, below);
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next()) {
+				changes.add(new NodeEvent(0, NodeEvent.Type.REMOVED, resultSet.getString(1), resultSet.getString(2)));
+			}
+		} finally {
+			statement.close();
+		}
+		statement = connection.prepareStatement(
+				"DELETE FROM lockstep_node WHERE path LIKE ? ESCAPE '!'");
+		try {
+			statement.setString(1, below);
+			statement.executeUpdate();
+		} finally {
+			statement.close();
+		}
+		changeHash(hashChanges, MemoryPaths.parentOf(path), MemoryNode.entryHash(oldNode.getName(), oldNode.getVersion(), subtreeHash));
+		changes.add(new NodeEvent(0, NodeEvent.Type.REMOVED, path, oldNode.getVersion()));
+		return true;
+	}
+
+	static private void changeHash(Map<String,Long> hashChanges, String path, long delta) {
+		Long pending = hashChanges.get(path);
+		hashChanges.put(path, pending == null ? delta : pending ^ delta);
+	}
+
+	/**
+	 * Fold the gathered changes into the subtree hashes, deepest first, each
+	 * carrying the change in its node's own entry up to its parent
+	 */
+	private void applyHashChanges(Connection connection, TreeMap<String,Long> hashChanges) throws SQLException {
+		PreparedStatement select = connection.prepareStatement(
+				"SELECT version, subtree_hash FROM lockstep_node WHERE path = ? FOR UPDATE");
+		PreparedStatement update = connection.prepareStatement(
+				"UPDATE lockstep_node SET subtree_hash = ? WHERE path = ?");
+		try {
+			while (!hashChanges.isEmpty()) {
+				Map.Entry<String,Long> change = hashChanges.pollFirstEntry();
+				String path = change.getKey();
+				long delta = change.getValue();
+				if (delta == 0)
+					continue;
+				select.setString(1, path);
+				ResultSet resultSet = select.executeQuery();
+				if (!resultSet.next())
+					continue; // removed later in the batch, which took its hash out whole
+				String version = resultSet.getString(1);
+				long oldHash = resultSet.getLong(2);
+				long newHash = oldHash ^ delta;
+				resultSet.close();
+				update.setLong(1, newHash);
+				update.setString(2, path);
+				update.executeUpdate();
+				String parentPath = MemoryPaths.parentOf(path);
+				if (parentPath != null) {
+					String name = MemoryPaths.nameOf(path);
+					changeHash(hashChanges, parentPath, MemoryNode.entryHash(name, version, oldHash) ^ MemoryNode.entryHash(name, version, newHash));
+				}
+			}
+		} finally {
+			select.close();
+			update.close();
+		}
+	}
+
+	private long readSubtreeHash(Connection connection, String path) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT subtree_hash FROM lockstep_node WHERE path = ?");
+		try {
+			statement.setString(1, path);
+			ResultSet resultSet = statement.executeQuery();
+			return resultSet.next() ? resultSet.getLong(1) : 0;
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * @return the key that sorts the path in tree order (see
+	 * {@link MemoryPaths#compareInTreeOrder})
+	 */
+	static private String treeKeyOf(String path) {
+		return path.replace('/', TREE_SEPARATOR);
+	}
+
+	static private int depthOf(String path) {
+		int depth = 0;
+		for (int i = 0; i < path.length(); i++) {
+			if (path.charAt(i) == '/')
+				depth++;
+		}
+		return path.equals("/") ? 0 : depth;
+	}
+
+	/**
+	 * @return the version of the node, or null if there is no such node
+	 */
+	private String readVersion(Connection connection, String path, boolean forUpdate) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT version FROM lockstep_node WHERE path = ?" + (forUpdate ? " FOR UPDATE" : ""));
+		try {
+			statement.setString(1, path);
+			ResultSet resultSet = statement.executeQuery();
+			return resultSet.next() ? resultSet.getString(1) : null;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private long readLastSeq(Connection connection, boolean forUpdate) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT last_seq FROM lockstep_seq WHERE id = 1" + (forUpdate ? " FOR UPDATE" : ""));
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			resultSet.next();
+			return resultSet.getLong(1);
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Number the changes, log them, trim the log and commit.  The sequence row
+	 * stays locked from here to the commit, so numbers go out in commit order.
+	 */
+	private void commit(Connection connection, List<NodeEvent> changes, TreeMap<String,Long> hashChanges) throws SQLException {
+		applyHashChanges(connection, hashChanges);
+		if (!changes.isEmpty()) {
+			PreparedStatement statement = connection.prepareStatement(
+					"UPDATE lockstep_seq SET last_seq = last_seq + ? WHERE id = 1");
+			try {
+				statement.setInt(1, changes.size());
+				statement.executeUpdate();
+			} finally {
+				statement.close();
+			}
+			long last = readLastSeq(connection, false);
+			long seq = last - changes.size();
+			statement = connection.prepareStatement(
+					"INSERT INTO lockstep_change (seq, change_type, path, version) VALUES (?, ?, ?, ?)");
+			try {
+				for (NodeEvent change:changes) {
+					statement.setLong(1, ++seq);
+					statement.setString(2, change.getType().name());
+					statement.setString(3, change.getPath());
+					statement.setString(4, change.getVersion());
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			} finally {
+				statement.close();
+			}
+			statement = connection.prepareStatement(
+					"DELETE FROM lockstep_change WHERE seq <= ?");
+			try {
+				statement.setLong(1, last - changeLogSize);
+				statement.executeUpdate();
+			} finally {
+				statement.close();
+			}
+		}
+		connection.commit();
+	}
+
+	private void createSchema() {
+		Connection connection = open();
+		try {
+			if (hasTable(connection.getMetaData(), "lockstep_node"))
+				return;
+			Statement statement = connection.createStatement();
+			try {
+				for (String sql:SCHEMA) {
+					statement.executeUpdate(sql);
+				}
+			} finally {
+				statement.close();
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	private boolean hasTable(DatabaseMetaData metaData, String table) throws SQLException {
+		// databases differ on which case they keep unquoted names in
+		String[] names = { table, table.toUpperCase() };
+		for (String name:names) {
+			ResultSet resultSet = metaData.getTables(null, null, name, null);
+			try {
+				if (resultSet.next())
+					return true;
+			} finally {
+				resultSet.close();
+			}
+		}
+		return false;
+	}
+
+	private Connection open() {
+		try {
+			Connection connection = (dataSource != null) ? dataSource.getConnection() : DriverManager.getConnection(url);
+			connection.setAutoCommit(false);
+			return connection;
+		} catch (SQLException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	private void close(Connection connection) {
+		try {
+			connection.rollback(); // nothing left to undo if we got as far as committing
+			connection.close();
+		} catch (SQLException e) {
+			// we are already done with the connection, and any earlier failure is the one worth reporting
+		}
+	}
+
+	static private String lastKey(Map<String,MemoryNode> nodes) {
+		String last = null;
+		for (String key:nodes.keySet()) {
+			last = key;
+		}
+		return last;
+	}
+
+	static private String escapeLike(String value) {
+		return value.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+	}
+
+	static private boolean isConstraintViolation(SQLException e) {
+		return e.getSQLState() != null && e.getSQLState().startsWith("23");
+	}
+
+	/**
+	 * A snapshot that reads through its own transaction, one read at a time
+	 */
+	private class JdbcSnapshot extends Snapshot {
+		private final Connection connection;
+
+		JdbcSnapshot(Connection connection) {
+			this.connection = connection;
+		}
+
+		public synchronized Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException {
+			checkNotReleased();
+			try {
+				return readChildrenNames(connection, path);
+			} catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		public synchronized MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
+			checkNotReleased();
+			try {
+				return readNode(connection, path);
+			} catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		public synchronized SubtreePage copySubtree(String path, int depth, String pageToken, int pageSize) throws BadPathException, MissingNodeException {
+			checkNotReleased();
+			try {
+				return readSubtree(connection, path, depth, pageToken, pageSize);
+			} catch (SQLException e) {
+				throw new StorageException(e);
+			}
+		}
+
+		synchronized void free() {
+			close(connection);
+		}
+	}
+}
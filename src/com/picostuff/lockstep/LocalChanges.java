@@ -0,0 +1,45 @@
+package com.picostuff.lockstep;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * What may have changed in a {@link LocalFileSystem} since it was last
+ * asked: single paths, and subtrees where we lost track of the details
+ * and everything at or below the path has to be looked at again.
+ * 
+ * @author chenglim
+ *
+ */
+public class LocalChanges {
+	private final Set<String> paths;
+	private final Set<String> subtrees;
+	
+	public LocalChanges(Set<String> paths, Set<String> subtrees) {
+		this.paths = Collections.unmodifiableSet(paths);
+		this.subtrees = Collections.unmodifiableSet(subtrees);
+	}
+	
+	/**
+	 * @return changes that say to look at the whole tree
+	 */
+	static public LocalChanges everything() {
+		return new LocalChanges(Collections.<String>emptySet(), Collections.singleton("/"));
+	}
+	
+	public Set<String> getPaths() {
+		return paths;
+	}
+	
+	public Set<String> getSubtrees() {
+		return subtrees;
+	}
+	
+	public boolean isEverything() {
+		return subtrees.contains("/");
+	}
+	
+	public boolean isEmpty() {
+		return paths.isEmpty() && subtrees.isEmpty();
+	}
+}
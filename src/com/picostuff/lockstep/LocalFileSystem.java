@@ -0,0 +1,83 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * The local side of a workspace: a tree of files and dirs named by paths
+ * such as "/a/b", the same way nodes in a shared memory are named.  See
+ * {@link MapFileSystem} for one held in a map, and {@link DirectoryFileSystem}
+ * for a real directory.
+ * 
+ * Implementations are used from the worker's threads at once, so they must
+ * be thread-safe.
+ * 
+ * @author chenglim
+ *
+ */
+public interface LocalFileSystem {
+	/**
+	 * @return every path at or below the given one, dirs included
+	 */
+	public Set<String> getKeys(String path);
+	
+	public boolean exists(String key);
+	
+	/**
+	 * @return the version of the file, or null for a dir or a missing item
+	 */
+	public String getVersion(String key);
+	
+	/**
+	 * @return the size of the file, or -1 if not known
+	 */
+	public long getSize(String key);
+	
+	/**
+	 * @return when the file was last modified, or -1 if not known
+	 */
+	public long getModified(String key);
+	
+	/**
+	 * Make the item a file with the content of the given version, or a dir
+	 * when the version is null
+	 */
+	public void put(String key, String version);
+	
+	/**
+	 * Make the item a placeholder for the content of the given version,
+	 * which takes no space until {@link #put} brings the content.  The
+	 * version and size are reported for the placeholder meanwhile.
+	 */
+	public void putPlaceholder(String key, String version, long size);
+	
+	/**
+	 * @return true if the item is a placeholder, which it stops being once
+	 * anything is written to it
+	 */
+	public boolean isPlaceholder(String key);
+	
+	/**
+	 * Remove the item, and everything under it for a dir
+	 */
+	public void remove(String key);
+	
+	/**
+	 * Move a file to a new key, in the same dir, which must be free
+	 */
+	public void move(String key, String newKey);
+	
+	/**
+	 * @return the file holding the item's content, or null if the content
+	 * isn't kept in a file of its own here
+	 */
+	public File getFile(String key);
+	
+	/**
+	 * @return what may have changed since the last call, which is everything
+	 * the first time
+	 */
+	public LocalChanges pollChanges();
+	
+	public void close();
+}
@@ -3,6 +3,9 @@ package com.picostuff.lockstep;
 public class LocalItemInfo {
 	private String name;
 	private String version;
+	private long size = -1;
+	private long modified = -1;
+	private boolean placeholder;
 	
 	public LocalItemInfo(String name, String version) {
 		this.name = name;
@@ -11,6 +14,20 @@ public class LocalItemInfo {
 		this.version = version;
 	}
 	
+	public LocalItemInfo(String name, String version, long size, long modified) {
+		this(name, version);
+		this.size = size;
+		this.modified = modified;
+	}
+	
+	/**
+	 * @param placeholder true if only the item's metadata is here, not its content
+	 */
+	public LocalItemInfo(String name, String version, boolean placeholder) {
+		this(name, version);
+		this.placeholder = placeholder;
+	}
+	
 	public LocalItemInfo(String name) {
 		// a dir
 		this(name,null);
@@ -22,4 +39,22 @@ public class LocalItemInfo {
 	public String getVersion() {
 		return version;
 	}
+	
+	public boolean isPlaceholder() {
+		return placeholder;
+	}
+	
+	/**
+	 * @return the size of the content, or -1 if not known
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return when the content was last modified, or -1 if not known
+	 */
+	public long getModified() {
+		return modified;
+	}
 }
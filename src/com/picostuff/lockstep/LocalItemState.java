@@ -6,10 +6,29 @@ package com.picostuff.lockstep;
  *
  */
 public enum LocalItemState {
-	LOCAL_CHANGED, LOCAL_NEW, LOCAL_DELETED, LOCAL_UNCHANGED, LOCAL_NOTHING;
+	LOCAL_CHANGED, LOCAL_NEW, LOCAL_DELETED, LOCAL_UNCHANGED, LOCAL_NOTHING,
+	/**
+	 * Only the metadata of a remote item is here, which is never something
+	 * to push, whatever the base says
+	 */
+	LOCAL_PLACEHOLDER;
 	
 	public static LocalItemState findState(LocalItemInfo localInfo, BaseItemInfo baseInfo) {
-		if (localInfo == null) {
+		if (localInfo == null)
+			return findState(null, false, baseInfo);
+		return findState(localInfo.getVersion(), localInfo.isPlaceholder(), baseInfo);
+	}
+	
+	/**
+	 * As for {@link #findState(LocalItemInfo, BaseItemInfo)}, for a caller
+	 * that has the parts of the local item but hasn't made one
+	 * 
+	 * @param localVersion null if nothing is here
+	 */
+	public static LocalItemState findState(String localVersion, boolean placeholder, BaseItemInfo baseInfo) {
+		if (localVersion != null && placeholder) {
+			return LOCAL_PLACEHOLDER;
+		} else if (localVersion == null) {
 			if (baseInfo == null) {
 				return LOCAL_NOTHING;
 			} else {
@@ -18,7 +37,7 @@ public enum LocalItemState {
 		} else {
 			if (baseInfo == null) {
 				return LOCAL_NEW;
-			} else if (!localInfo.getVersion().equals(baseInfo.getVersion())) {
+			} else if (!localVersion.equals(baseInfo.getVersion())) {
 				return LOCAL_CHANGED;
 			} else {
 				return LOCAL_UNCHANGED;
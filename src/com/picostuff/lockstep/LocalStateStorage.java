@@ -1,5 +1,35 @@
 package com.picostuff.lockstep;
 
-public class LocalStateStorage {
-
+/**
+ * Where a workspace keeps what it last knew about each item in the shared
+ * memory, which is the base we compare both sides against.  Keeping this
+ * across process restarts is what lets us come back up without wiping out
+ * local changes (see {@link Worker}).
+ * 
+ * @author chenglim
+ *
+ */
+public interface LocalStateStorage {
+	/**
+	 * What comes back is the caller's to keep, and may be changed and
+	 * handed back to {@link #put}.
+	 * 
+	 * @return the base info for the item, or null if we have none
+	 */
+	public BaseItemInfo get(String key);
+	
+	/**
+	 * @return true if we have a base for the item and it is at the given
+	 * version, which is most of what reconciling asks, and which some
+	 * storage can answer without allocating
+	 */
+	public boolean hasVersion(String key, String version);
+	
+	public void put(String key, BaseItemInfo baseInfo);
+	
+	public void remove(String key);
+	
+	public int size();
+	
+	public void close();
 }
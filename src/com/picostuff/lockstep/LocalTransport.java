@@ -0,0 +1,110 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copies content from another workspace on the same machine, such as a
+ * mirror on a second disk, without the bytes passing through our heap.
+ *
+ * In order, we try a hard link if asked to, a copy-on-write clone where
+ * the file system can make one (through cp --reflink, since Java has no
+ * call for it), and then a copy with {@link FileChannel#transferTo}, which
+ * the kernel can do without handing the bytes to us.  Hard links are off
+ * unless asked for, because the two workspaces then share the one file,
+ * and a change made in place in either shows up in both without a sync.
+ * Once a clone fails we stop trying them, as the file systems involved
+ * don't change while we run.
+ *
+ * @author chenglim
+ *
+ */
+public class LocalTransport implements Transport {
+	static private final long MIN_CLONE_SIZE = 1024 * 1024; // below this, starting cp costs more than it saves
+	
+	private final Path root;
+	private final boolean link;
+	private volatile boolean clone;
+	
+	public LocalTransport(File root) {
+		this(root, false);
+	}
+	
+	/**
+	 * @param link whether to hard link to the files under the root where
+	 * we can, rather than copying them
+	 */
+	public LocalTransport(File root, boolean link) {
+		this.root = root.toPath().toAbsolutePath();
+		this.link = link;
+		clone = System.getProperty("os.name").startsWith("Linux");
+	}
+	
+	public void fetch(String key, String version, File target) throws IOException {
+		Path source = root.resolve(key.substring(1));
+		Path to = target.toPath();
+		if (link && link(source, to))
+			return;
+		if (clone && Files.size(source) >= MIN_CLONE_SIZE && clone(source, to))
+			return;
+		copy(source, to);
+	}
+	
+	private boolean link(Path source, Path to) throws IOException {
+		Files.deleteIfExists(to);
+		try {
+			Files.createLink(to, source);
+			return true;
+		} catch (IOException e) {
+			return false; // another file system, or one without links
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+	
+	private boolean clone(Path source, Path to) throws IOException {
+		Process process = new ProcessBuilder("cp", "--reflink=always", source.toString(), to.toString())
+				.redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.appendTo(nullFile())).start();
+		try {
+			if (process.waitFor() == 0)
+				return true;
+		} catch (InterruptedException e) {
+			process.destroy();
+			Thread.currentThread().interrupt();
+			throw new IOException("Clone of " + source + " interrupted", e);
+		}
+		clone = false;
+		return false;
+	}
+	
+	static private File nullFile() {
+		return new File(File.separatorChar == '/' ? "/dev/null" : "NUL");
+	}
+	
+	static void copy(Path source, Path to) throws IOException {
+		FileChannel from = FileChannel.open(source, StandardOpenOption.READ);
+		try {
+			FileChannel into = FileChannel.open(to, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				long size = from.size();
+				long position = 0;
+				while (position < size) {
+					long sent = from.transferTo(position, size - position, into);
+					if (sent <= 0 && from.size() <= position)
+						break; // got shorter while we copied, which the version check after us finds
+					position += sent;
+				}
+				into.force(false);
+			} finally {
+				into.close();
+			}
+		} finally {
+			from.close();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.picostuff.lockstep;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed pool of locks shared out among memory nodes by identity hash.
+ * Operations on different nodes rarely wait on each other, and we don't
+ * pay for a lock per node or a single lock for the whole tree.
+ * 
+ * When more than one stripe is needed, they are always taken in index
+ * order so that two operations can never deadlock each other.
+ * 
+ * @author chenglim
+ *
+ */
+class LockStripes {
+	private final ReentrantLock[] locks;
+	private final int mask;
+	
+	public LockStripes(int concurrencyLevel) {
+		int size = 1;
+		while (size < concurrencyLevel)
+			size <<= 1;
+		locks = new ReentrantLock[size];
+		for (int i = 0; i < size; i++) {
+			locks[i] = new ReentrantLock();
+		}
+		mask = size - 1;
+	}
+	
+	public int size() {
+		return locks.length;
+	}
+	
+	public int indexFor(Object item) {
+		int h = System.identityHashCode(item);
+		h ^= (h >>> 16);
+		return h & mask;
+	}
+	
+	public void lock(int index) {
+		locks[index].lock();
+	}
+	
+	public void unlock(int index) {
+		locks[index].unlock();
+	}
+	
+	public void lock(int first, int second) {
+		if (first == second) {
+			locks[first].lock();
+		} else if (first < second) {
+			locks[first].lock();
+			locks[second].lock();
+		} else {
+			locks[second].lock();
+			locks[first].lock();
+		}
+	}
+	
+	public void unlock(int first, int second) {
+		locks[first].unlock();
+		if (first != second)
+			locks[second].unlock();
+	}
+	
+	public void lockAll() {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i].lock();
+		}
+	}
+	
+	public void unlockAll() {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+	}
+}
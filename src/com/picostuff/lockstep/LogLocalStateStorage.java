@@ -0,0 +1,347 @@
+package com.picostuff.lockstep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import com.picostuff.lockstep.exception.StorageException;
+
+/**
+ * Local state kept in a directory as a snapshot plus an append-only log of
+ * the puts and removes made since that snapshot.  Every log record carries
+ * a CRC32, so a record torn by a crash is spotted on the next start, and
+ * the log is cut back to the last good record.
+ *
+ * Once the log holds more records than there are items, we write a fresh
+ * snapshot and start a new log.  Snapshots and logs are numbered rather
+ * than renamed into place.  A new log is only started after its snapshot
+ * is fully on disk, so on start we take the newest snapshot whose checksum
+ * holds and replay the log with the same number.  Start-up time is
+ * proportional to the snapshot, and the remote tree doesn't have to be
+ * rescanned.
+ *
+ * All items are also kept in memory, so reads never touch the disk.
+ *
+ * @author chenglim
+ *
+ */
+public class LogLocalStateStorage implements LocalStateStorage {
+	static private final int SNAPSHOT_MAGIC = 0x4c4b5331; // "LKS1"
+	static private final byte PUT = 1;
+	static private final byte REMOVE = 2;
+	static private final int MIN_COMPACT_RECORDS = 1024;
+
+	private final File dir;
+	private final boolean syncWrites;
+	private final ConcurrentMap<String, BaseItemInfo> items;
+	private final ByteArrayOutputStream recordBuffer; // guarded by this
+	private long generation; // guarded by this
+	private FileOutputStream log; // guarded by this
+	private int logRecords; // guarded by this
+
+	public LogLocalStateStorage(File dir) {
+		this(dir, false);
+	}
+
+	/**
+	 * @param syncWrites true to force each record to disk, which survives a power cut
+	 * rather than just a process crash, at the cost of a disk flush per write
+	 */
+	public LogLocalStateStorage(File dir, boolean syncWrites) {
+		this.dir = dir;
+		this.syncWrites = syncWrites;
+		items = new ConcurrentHashMap<String, BaseItemInfo>();
+		recordBuffer = new ByteArrayOutputStream();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new StorageException("Can't create " + dir, null);
+		try {
+			load();
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public BaseItemInfo get(String key) {
+		return items.get(key);
+	}
+	
+	public boolean hasVersion(String key, String version) {
+		BaseItemInfo baseInfo = items.get(key);
+		return baseInfo != null && version.equals(baseInfo.getVersion());
+	}
+
+	public synchronized void put(String key, BaseItemInfo baseInfo) {
+		// store a copy, since callers are free to keep changing the one they hand us
+		BaseItemInfo copy = new BaseItemInfo(baseInfo.getName(), baseInfo.getVersion());
+		items.put(key, copy);
+		append(PUT, key, copy);
+	}
+
+	public synchronized void remove(String key) {
+		if (items.remove(key) != null)
+			append(REMOVE, key, null);
+	}
+
+	public int size() {
+		return items.size();
+	}
+
+	/**
+	 * Write a fresh snapshot and start a new, empty log
+	 */
+	public synchronized void compact() {
+		try {
+			long nextGeneration = generation + 1;
+			writeSnapshot(snapshotFile(nextGeneration));
+			FileOutputStream nextLog = new FileOutputStream(logFile(nextGeneration));
+			closeLog();
+			log = nextLog;
+			logRecords = 0;
+			long oldGeneration = generation;
+			generation = nextGeneration;
+			snapshotFile(oldGeneration).delete();
+			logFile(oldGeneration).delete();
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			closeLog();
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	private void append(byte type, String key, BaseItemInfo baseInfo) {
+		try {
+			recordBuffer.reset();
+			DataOutputStream out = new DataOutputStream(recordBuffer);
+			out.writeInt(0); // length, filled in below
+			out.writeByte(type);
+			out.writeUTF(key);
+			if (type == PUT)
+				writeBaseInfo(out, baseInfo);
+			out.writeInt(0); // checksum, filled in below
+			out.flush();
+			byte[] record = recordBuffer.toByteArray();
+			int length = record.length - 8;
+			CRC32 crc = new CRC32();
+			crc.update(record, 4, length);
+			putInt(record, 0, length);
+			putInt(record, record.length - 4, (int)crc.getValue());
+			// a single write per record, so a crash tears at most the last one
+			log.write(record);
+			if (syncWrites)
+				log.getFD().sync();
+			logRecords++;
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+		if (logRecords > Math.max(MIN_COMPACT_RECORDS, items.size()))
+			compact();
+	}
+
+	static private void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte)(value >>> 24);
+		bytes[offset + 1] = (byte)(value >>> 16);
+		bytes[offset + 2] = (byte)(value >>> 8);
+		bytes[offset + 3] = (byte)value;
+	}
+
+	private void load() throws IOException {
+		// take the newest snapshot that reads back whole
+		long[] generations = findGenerations();
+		generation = 0;
+		for (int i = generations.length - 1; i >= 0; i--) {
+			items.clear();
+			if (readSnapshot(snapshotFile(generations[i]))) {
+				generation = generations[i];
+				break;
+			}
+		}
+		if (generation == 0) {
+			items.clear();
+			generation = 1;
+			writeSnapshot(snapshotFile(generation));
+		}
+		File logFile = logFile(generation);
+		long goodLength = replayLog(logFile);
+		if (logFile.exists() && logFile.length() > goodLength) {
+			// drop a record torn by a crash
+			RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+			try {
+				file.setLength(goodLength);
+			} finally {
+				file.close();
+			}
+		}
+		log = new FileOutputStream(logFile, true);
+		// anything older is left over from a crash part way through compacting
+		for (long oldGeneration:generations) {
+			if (oldGeneration != generation) {
+				snapshotFile(oldGeneration).delete();
+				logFile(oldGeneration).delete();
+			}
+		}
+	}
+
+	private long replayLog(File logFile) throws IOException {
+		if (!logFile.exists())
+			return 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+		long goodLength = 0;
+		logRecords = 0;
+		try {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (length <= 0 || length > logFile.length())
+					break;
+				byte[] record = new byte[length];
+				int crcValue;
+				try {
+					in.readFully(record);
+					crcValue = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				if ((int)crc.getValue() != crcValue)
+					break;
+				DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+				byte type = recordIn.readByte();
+				String key = recordIn.readUTF();
+				if (type == PUT) {
+					items.put(key, readBaseInfo(recordIn));
+				} else {
+					items.remove(key);
+				}
+				goodLength += 4 + length + 4;
+				logRecords++;
+			}
+		} finally {
+			in.close();
+		}
+		return goodLength;
+	}
+
+	private void writeSnapshot(File file) throws IOException {
+		FileOutputStream fileOut = new FileOutputStream(file);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			CRC32 crc = new CRC32();
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(items.size());
+			for (Map.Entry<String, BaseItemInfo> entry:items.entrySet()) {
+				recordBuffer.reset();
+				DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+				recordOut.writeUTF(entry.getKey());
+				writeBaseInfo(recordOut, entry.getValue());
+				recordOut.flush();
+				byte[] record = recordBuffer.toByteArray();
+				crc.update(record);
+				out.write(record);
+			}
+			out.writeInt((int)crc.getValue());
+			out.flush();
+			fileOut.getFD().sync(); // the snapshot must be whole before a log starts to depend on it
+		} finally {
+			fileOut.close();
+		}
+	}
+
+	private boolean readSnapshot(File file) throws IOException {
+		if (!file.exists())
+			return false;
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				return false;
+			int count = in.readInt();
+			DataInputStream recordIn = new DataInputStream(new CheckedInputStream(in, crc));
+			for (int i = 0; i < count; i++) {
+				String key = recordIn.readUTF();
+				items.put(key, readBaseInfo(recordIn));
+			}
+			return (int)crc.getValue() == in.readInt();
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeBaseInfo(DataOutputStream out, BaseItemInfo baseInfo) throws IOException {
+		out.writeBoolean(baseInfo.getName() != null);
+		if (baseInfo.getName() != null)
+			out.writeUTF(baseInfo.getName());
+		out.writeUTF(baseInfo.getVersion());
+	}
+
+	private BaseItemInfo readBaseInfo(DataInputStream in) throws IOException {
+		String name = in.readBoolean() ? in.readUTF() : null;
+		return new BaseItemInfo(name, in.readUTF());
+	}
+
+	private long[] findGenerations() {
+		String[] names = dir.list();
+		int count = 0;
+		long[] generations = new long[names == null ? 0 : names.length];
+		if (names != null) {
+			for (String name:names) {
+				if (name.startsWith("snapshot.")) {
+					long generation;
+					try {
+						generation = Long.parseLong(name.substring("snapshot.".length()));
+					} catch (NumberFormatException e) {
+						continue; // not one of ours
+					}
+					generations[count++] = generation;
+				}
+			}
+		}
+		long[] found = new long[count];
+		System.arraycopy(generations, 0, found, 0, count);
+		Arrays.sort(found);
+		return found;
+	}
+
+	private File snapshotFile(long generation) {
+		return new File(dir, "snapshot." + generation);
+	}
+
+	private File logFile(long generation) {
+		return new File(dir, "log." + generation);
+	}
+
+	private void closeLog() throws IOException {
+		if (log != null) {
+			log.getFD().sync();
+			log.close();
+			log = null;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A file system simulated by a map from path to content, where the content
+ * is the version and a dir is a null.  Tests change the map directly, so
+ * we can't tell what changed and always ask for everything to be looked at.
+ * Placeholders are held in the map by their version like any other file,
+ * and remembered on the side.
+ * 
+ * Wrap the map with Collections.synchronizedMap when a {@link Worker}
+ * uses it from several threads.
+ * 
+ * @author chenglim
+ *
+ */
+public class MapFileSystem implements LocalFileSystem {
+	private final Map<String,String> fileSystem;
+	private final Map<String,Long> placeholders; // placeholder to the size of its content
+	
+	public MapFileSystem(Map<String,String> fileSystem) {
+		this.fileSystem = fileSystem;
+		placeholders = new ConcurrentHashMap<String, Long>();
+	}
+	
+	public Set<String> getKeys(String path) {
+		Set<String> set = new TreeSet<String>();
+		synchronized (fileSystem) { // how a synchronized map wants to be walked, and harmless otherwise
+			set.addAll(fileSystem.keySet());
+		}
+		if (!path.equals("/")) {
+			for (Iterator<String> keys = set.iterator(); keys.hasNext();) {
+				if (!MemoryPaths.isSameOrBelow(keys.next(), path))
+					keys.remove();
+			}
+		}
+		return set;
+	}
+	
+	public boolean exists(String key) {
+		return fileSystem.containsKey(key);
+	}
+	
+	public String getVersion(String key) {
+		return fileSystem.get(key); // content is version for now
+	}
+	
+	public long getSize(String key) {
+		Long size = placeholders.get(key);
+		return size != null ? size : -1; // we only have versions
+	}
+	
+	public long getModified(String key) {
+		return -1;
+	}
+	
+	public void put(String key, String version) {
+		fileSystem.put(key, version); // In the real situation, we might have a link to the data and transfer it to the file system
+		placeholders.remove(key);
+	}
+	
+	public void putPlaceholder(String key, String version, long size) {
+		fileSystem.put(key, version);
+		placeholders.put(key, size);
+	}
+	
+	public boolean isPlaceholder(String key) {
+		return placeholders.containsKey(key) && fileSystem.containsKey(key);
+	}
+	
+	public void remove(String key) {
+		fileSystem.remove(key);
+		placeholders.remove(key);
+	}
+	
+	public void move(String key, String newKey) {
+		synchronized (fileSystem) { // so a walk never sees it in both places
+			fileSystem.put(newKey, fileSystem.remove(key));
+		}
+		Long size = placeholders.remove(key);
+		if (size != null)
+			placeholders.put(newKey, size);
+	}
+	
+	public File getFile(String key) {
+		return null; // only versions live here
+	}
+	
+	public LocalChanges pollChanges() {
+		return LocalChanges.everything();
+	}
+	
+	public void close() {
+	}
+}
@@ -0,0 +1,523 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.picostuff.lockstep.exception.StorageException;
+
+/**
+ * Local state kept off the heap in two memory-mapped files, for workspaces
+ * with millions of items where a map of strings would cost gigabytes and
+ * long GC pauses.
+ *
+ * The index file is an open-addressing hash table of fixed-size slots, one
+ * per item, holding a 64-bit hash of the path and where to find the path
+ * and the version record.  Both live in an append-only arena file, strings
+ * one byte per char when they are plain ASCII and two otherwise, and a
+ * version record being a digest of the version followed by its string.
+ * Since the OS page cache holds both files, a warm restart costs little
+ * more than opening them.
+ *
+ * {@link #get} hands back a copy like any other storage.  The hot path
+ * uses {@link #hasVersion} instead, which checks the digest and then the
+ * arena without allocating.
+ *
+ * Writes land in the mapped pages, which survive a process crash.  Nothing
+ * points at a string until it is appended, a new slot is only marked in
+ * use once it is filled in, and a new version is a new record that the
+ * slot is switched to with a single write, so a crash never leaves a slot
+ * pointing at garbage.  Growing the table and dropping dead strings both
+ * build new files and rename the index into place; the index names the
+ * arena generation it goes with.  Dead strings are dropped as soon as they
+ * take up half the arena, so only live items count towards its 2 GB.  A
+ * power cut may lose recent writes, which just means those items get
+ * compared against an older base.
+ *
+ * @author chenglim
+ *
+ */
+public class MappedLocalStateStorage implements LocalStateStorage {
+	static private final int MAGIC = 0x4c4b4d32; // "LKM2"
+	static private final int MIN_CAPACITY = 1024;
+	static private final int MIN_ARENA_SIZE = 64 * 1024;
+
+	// the index header
+	static private final int HEADER_SIZE = 64;
+	static private final int H_MAGIC = 0;
+	static private final int H_CAPACITY = 4;
+	static private final int H_SIZE = 8;
+	static private final int H_TOMBSTONES = 12;
+	static private final int H_ARENA_GENERATION = 16;
+	static private final int H_ARENA_USED = 24;
+	static private final int H_ARENA_GARBAGE = 32;
+
+	// each slot
+	static private final int SLOT_SIZE = 24;
+	static private final int S_HASH = 0;
+	static private final int S_PATH_OFFSET = 8;
+	static private final int S_PATH_LENGTH = 12;
+	static private final int S_VERSION = 16; // where the version record starts
+	static private final int S_FLAGS = 20;
+
+	// each version record in the arena, followed by the string
+	static private final int V_DIGEST = 0;
+	static private final int V_LENGTH = 8;
+	static private final int V_STRING = 12;
+
+	static private final int IN_USE = 1;
+	static private final int REMOVED = 2;
+	static private final int WIDE = 0x80000000; // on a string length, stored as two bytes per char
+
+	private final File dir;
+	private final ReadWriteLock lock;
+	private RandomAccessFile indexFile; // guarded by lock
+	private RandomAccessFile arenaFile; // guarded by lock
+	private MappedByteBuffer index; // guarded by lock
+	private MappedByteBuffer arena; // guarded by lock
+	private int mask; // guarded by lock
+	private int size; // guarded by lock
+	private int tombstones; // guarded by lock
+	private long arenaGeneration; // guarded by lock
+	private int arenaUsed; // guarded by lock
+	private int arenaGarbage; // guarded by lock
+
+	public MappedLocalStateStorage(File dir) {
+		this.dir = dir;
+		lock = new ReentrantReadWriteLock();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new StorageException("Can't create " + dir, null);
+		try {
+			open();
+			compactIfWasteful();
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	public BaseItemInfo get(String key) {
+		long hash = hash(key);
+		lock.readLock().lock();
+		try {
+			int slot = find(key, hash);
+			if (slot < 0)
+				return null;
+			String path = readString(index.getInt(slot + S_PATH_OFFSET), index.getInt(slot + S_PATH_LENGTH));
+			int record = index.getInt(slot + S_VERSION);
+			String version = readString(record + V_STRING, arena.getInt(record + V_LENGTH));
+			return new BaseItemInfo(path.substring(path.lastIndexOf('/') + 1), version);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks the digest and then the arena, without building any strings
+	 */
+	public boolean hasVersion(String key, String version) {
+		long hash = hash(key);
+		long digest = hash(version);
+		lock.readLock().lock();
+		try {
+			int slot = find(key, hash);
+			return slot >= 0 && versionEquals(index.getInt(slot + S_VERSION), digest, version);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void put(String key, BaseItemInfo baseInfo) {
+		String version = baseInfo.getVersion();
+		long hash = hash(key);
+		long digest = hash(version);
+		lock.writeLock().lock();
+		try {
+			int slot = find(key, hash);
+			if (slot >= 0) {
+				int oldRecord = index.getInt(slot + S_VERSION);
+				if (versionEquals(oldRecord, digest, version))
+					return;
+				int record = appendVersion(version, digest);
+				index.putInt(slot + S_VERSION, record); // the one write that moves the item on
+				addGarbage(recordLength(arena.getInt(oldRecord + V_LENGTH)));
+				compactIfWasteful();
+				return;
+			}
+			if ((size + tombstones + 1) * 4L > (mask + 1) * 3L) {
+				rebuild(capacityFor(size + 1), arenaGeneration);
+			}
+			int pathOffset = appendString(key);
+			int record = appendVersion(version, digest);
+			slot = freeSlot(hash);
+			boolean reused = index.getInt(slot + S_FLAGS) == REMOVED;
+			index.putLong(slot + S_HASH, hash);
+			index.putInt(slot + S_PATH_OFFSET, pathOffset);
+			index.putInt(slot + S_PATH_LENGTH, encodedLength(key));
+			index.putInt(slot + S_VERSION, record);
+			index.putInt(slot + S_FLAGS, IN_USE); // last, so a crash never leaves a half-filled slot in use
+			size++;
+			index.putInt(H_SIZE, size);
+			if (reused) {
+				tombstones--;
+				index.putInt(H_TOMBSTONES, tombstones);
+			}
+		} catch (IOException e) {
+			throw new StorageException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove(String key) {
+		long hash = hash(key);
+		lock.writeLock().lock();
+		try {
+			int slot = find(key, hash);
+			if (slot < 0)
+				return;
+			index.putInt(slot + S_FLAGS, REMOVED);
+			size--;
+			tombstones++;
+			index.putInt(H_SIZE, size);
+			index.putInt(H_TOMBSTONES, tombstones);
+			addGarbage(byteLength(index.getInt(slot + S_PATH_LENGTH)) + recordLength(arena.getInt(index.getInt(slot + S_VERSION) + V_LENGTH)));
+			compactIfWasteful();
+		} catch (IOException e) {
+			throw new StorageException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			if (indexFile == null)
+				return;
+			index.force();
+			arena.force();
+			indexFile.close();
+			arenaFile.close();
+			indexFile = null;
+			arenaFile = null;
+		} catch (IOException e) {
+			throw new StorageException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void open() throws IOException {
+		File file = indexFile();
+		if (!file.exists() || !isIndex(file)) {
+			// a fresh start, or one we can't trust
+			createIndex(file, MIN_CAPACITY, 1);
+		}
+		indexFile = new RandomAccessFile(file, "rw");
+		index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFile.length());
+		mask = index.getInt(H_CAPACITY) - 1;
+		size = index.getInt(H_SIZE);
+		tombstones = index.getInt(H_TOMBSTONES);
+		arenaGeneration = index.getLong(H_ARENA_GENERATION);
+		arenaUsed = (int)index.getLong(H_ARENA_USED);
+		arenaGarbage = (int)index.getLong(H_ARENA_GARBAGE);
+		arenaFile = new RandomAccessFile(arenaFile(arenaGeneration), "rw");
+		mapArena(Math.max(MIN_ARENA_SIZE, arenaFile.length()));
+		deleteStale();
+	}
+
+	private boolean isIndex(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			if (in.length() < HEADER_SIZE || in.readInt() != MAGIC)
+				return false;
+			int capacity = in.readInt();
+			return in.length() == HEADER_SIZE + (long)capacity * SLOT_SIZE;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void createIndex(File file, int capacity, long generation) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(0);
+			out.setLength(HEADER_SIZE + (long)capacity * SLOT_SIZE);
+			out.writeInt(MAGIC);
+			out.writeInt(capacity);
+			out.seek(H_ARENA_GENERATION);
+			out.writeLong(generation);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		new RandomAccessFile(arenaFile(generation), "rw").close();
+	}
+
+	/**
+	 * Copy every live item into a new index of the given capacity, and into
+	 * a new arena if the generation moves on, then rename the index into place.
+	 */
+	private void rebuild(int capacity, long generation) throws IOException {
+		File newFile = new File(dir, "index.new");
+		RandomAccessFile newIndexFile = new RandomAccessFile(newFile, "rw");
+		newIndexFile.setLength(0);
+		newIndexFile.setLength(HEADER_SIZE + (long)capacity * SLOT_SIZE);
+		MappedByteBuffer newIndex = newIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newIndexFile.length());
+		RandomAccessFile newArenaFile = arenaFile;
+		MappedByteBuffer newArena = arena;
+		int newArenaUsed = arenaUsed;
+		if (generation != arenaGeneration) {
+			newArenaFile = new RandomAccessFile(arenaFile(generation), "rw");
+			newArenaFile.setLength(0);
+			newArenaFile.setLength(Math.max(MIN_ARENA_SIZE, arenaUsed - arenaGarbage));
+			newArena = newArenaFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newArenaFile.length());
+			newArenaUsed = 0;
+		}
+		int newMask = capacity - 1;
+		for (int slot = HEADER_SIZE; slot < HEADER_SIZE + (mask + 1) * SLOT_SIZE; slot += SLOT_SIZE) {
+			if (index.getInt(slot + S_FLAGS) != IN_USE)
+				continue;
+			long hash = index.getLong(slot + S_HASH);
+			int to = HEADER_SIZE + (int)(hash & newMask) * SLOT_SIZE;
+			while (newIndex.getInt(to + S_FLAGS) != 0)
+				to = next(to, newMask);
+			for (int field = 0; field < SLOT_SIZE; field += 4)
+				newIndex.putInt(to + field, index.getInt(slot + field));
+			if (newArena != arena) {
+				newIndex.putInt(to + S_PATH_OFFSET, newArenaUsed);
+				newArenaUsed = copyBytes(index.getInt(slot + S_PATH_OFFSET), byteLength(index.getInt(slot + S_PATH_LENGTH)), newArena, newArenaUsed);
+				int record = index.getInt(slot + S_VERSION);
+				newIndex.putInt(to + S_VERSION, newArenaUsed);
+				newArenaUsed = copyBytes(record, recordLength(arena.getInt(record + V_LENGTH)), newArena, newArenaUsed);
+			}
+		}
+		newIndex.putInt(H_MAGIC, MAGIC);
+		newIndex.putInt(H_CAPACITY, capacity);
+		newIndex.putInt(H_SIZE, size);
+		newIndex.putInt(H_TOMBSTONES, 0);
+		newIndex.putLong(H_ARENA_GENERATION, generation);
+		newIndex.putLong(H_ARENA_USED, newArenaUsed);
+		newIndex.putLong(H_ARENA_GARBAGE, newArena == arena ? arenaGarbage : 0);
+		if (newArena != arena)
+			newArena.force();
+		arena.force();
+		newIndex.force();
+		// the rename is the commit point, for both the table and the arena
+		if (!newFile.renameTo(indexFile()))
+			throw new StorageException("Can't rename " + newFile, null);
+		indexFile.close();
+		indexFile = newIndexFile;
+		index = newIndex;
+		mask = newMask;
+		tombstones = 0;
+		if (newArena != arena) {
+			arenaFile.close();
+			arenaFile = newArenaFile;
+			arena = newArena;
+			arenaGeneration = generation;
+			arenaUsed = newArenaUsed;
+			arenaGarbage = 0;
+			deleteStale();
+		}
+	}
+
+	private void deleteStale() {
+		String[] names = dir.list();
+		if (names == null)
+			return;
+		String current = arenaFile(arenaGeneration).getName();
+		for (String name:names) {
+			if ((name.startsWith("arena.") && !name.equals(current)) || name.equals("index.new"))
+				new File(dir, name).delete();
+		}
+	}
+
+	private int find(String key, long hash) {
+		int slot = HEADER_SIZE + (int)(hash & mask) * SLOT_SIZE;
+		while (true) {
+			int flags = index.getInt(slot + S_FLAGS);
+			if (flags == 0)
+				return -1;
+			if (flags == IN_USE && index.getLong(slot + S_HASH) == hash
+					&& stringEquals(index.getInt(slot + S_PATH_OFFSET), index.getInt(slot + S_PATH_LENGTH), key))
+				return slot;
+			slot = next(slot, mask);
+		}
+	}
+
+	/**
+	 * @return the first removed or never used slot for the hash
+	 */
+	private int freeSlot(long hash) {
+		int slot = HEADER_SIZE + (int)(hash & mask) * SLOT_SIZE;
+		while (index.getInt(slot + S_FLAGS) == IN_USE)
+			slot = next(slot, mask);
+		return slot;
+	}
+
+	static private int next(int slot, int mask) {
+		slot += SLOT_SIZE;
+		return slot == HEADER_SIZE + (mask + 1) * SLOT_SIZE ? HEADER_SIZE : slot;
+	}
+
+	static private int capacityFor(int size) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < size * 2L)
+			capacity <<= 1;
+		if (capacity > (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE)
+			throw new StorageException("Too many items for one index: " + size, null);
+		return capacity;
+	}
+
+	private void addGarbage(int bytes) {
+		arenaGarbage += bytes;
+		index.putLong(H_ARENA_GARBAGE, arenaGarbage);
+	}
+
+	/**
+	 * Move the live strings to a new arena once the dead ones take up half
+	 * of this one
+	 */
+	private void compactIfWasteful() throws IOException {
+		if (arenaGarbage > MIN_ARENA_SIZE && arenaGarbage > arenaUsed / 2)
+			rebuild(capacityFor(size), arenaGeneration + 1);
+	}
+
+	private int appendString(String s) throws IOException {
+		int length = encodedLength(s);
+		int offset = reserve(byteLength(length));
+		putString(offset, length, s);
+		return offset;
+	}
+
+	private int appendVersion(String version, long digest) throws IOException {
+		int length = encodedLength(version);
+		int record = reserve(recordLength(length));
+		putString(record + V_STRING, length, version);
+		arena.putLong(record + V_DIGEST, digest);
+		arena.putInt(record + V_LENGTH, length);
+		return record;
+	}
+
+	/**
+	 * @return where the bytes go, at the end of the arena
+	 */
+	private int reserve(int bytes) throws IOException {
+		if ((long)arenaUsed + bytes > Integer.MAX_VALUE)
+			throw new StorageException("Arena is full in " + dir, null);
+		if (arenaUsed + bytes > arena.capacity())
+			mapArena(Math.min(Integer.MAX_VALUE, Math.max((long)arena.capacity() * 2, (long)arenaUsed + bytes)));
+		int offset = arenaUsed;
+		arenaUsed += bytes;
+		index.putLong(H_ARENA_USED, arenaUsed);
+		return offset;
+	}
+
+	private void putString(int offset, int length, String s) {
+		if ((length & WIDE) == 0) {
+			for (int i = 0; i < s.length(); i++)
+				arena.put(offset + i, (byte)s.charAt(i));
+		} else {
+			for (int i = 0; i < s.length(); i++)
+				arena.putChar(offset + i * 2, s.charAt(i));
+		}
+	}
+
+	private int copyBytes(int offset, int bytes, MappedByteBuffer to, int toOffset) {
+		for (int i = 0; i < bytes; i++)
+			to.put(toOffset + i, arena.get(offset + i));
+		return toOffset + bytes;
+	}
+
+	private void mapArena(long length) throws IOException {
+		if (arenaFile.length() < length)
+			arenaFile.setLength(length);
+		arena = arenaFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+	}
+
+	private boolean versionEquals(int record, long digest, String version) {
+		return arena.getLong(record + V_DIGEST) == digest && stringEquals(record + V_STRING, arena.getInt(record + V_LENGTH), version);
+	}
+
+	private boolean stringEquals(int offset, int length, String s) {
+		MappedByteBuffer from = arena;
+		int chars = length & ~WIDE;
+		if (chars != s.length())
+			return false;
+		if ((length & WIDE) == 0) {
+			for (int i = 0; i < chars; i++) {
+				if ((char)(from.get(offset + i) & 0xff) != s.charAt(i))
+					return false;
+			}
+		} else {
+			for (int i = 0; i < chars; i++) {
+				if (from.getChar(offset + i * 2) != s.charAt(i))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private String readString(int offset, int length) {
+		MappedByteBuffer from = arena;
+		int chars = length & ~WIDE;
+		char[] value = new char[chars];
+		for (int i = 0; i < chars; i++)
+			value[i] = (length & WIDE) == 0 ? (char)(from.get(offset + i) & 0xff) : from.getChar(offset + i * 2);
+		return new String(value);
+	}
+
+	static private int encodedLength(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) >= 0x80)
+				return s.length() | WIDE;
+		}
+		return s.length();
+	}
+
+	static private int byteLength(int length) {
+		return (length & WIDE) == 0 ? length : (length & ~WIDE) * 2;
+	}
+
+	static private int recordLength(int length) {
+		return V_STRING + byteLength(length);
+	}
+
+	/**
+	 * 64-bit FNV-1a over the chars, finished with a mix so the low bits we
+	 * index the table by depend on all of them
+	 */
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private File indexFile() {
+		return new File(dir, "index");
+	}
+
+	private File arenaFile(long generation) {
+		return new File(dir, "arena." + generation);
+	}
+}
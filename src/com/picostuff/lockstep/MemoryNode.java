@@ -1,9 +1,8 @@
 package com.picostuff.lockstep;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import com.picostuff.lockstep.exception.AddDuplicateException;
 import com.picostuff.lockstep.exception.MissingNodeException;
@@ -11,80 +10,468 @@ import com.picostuff.lockstep.exception.MissingNodeException;
 /**
  * A node in memory that has properties and can contain other nodes
  * 
+ * Nodes are safe to share between threads.  Everything about a node that
+ * can change is kept in an immutable revision, children in a
+ * {@link PersistentMap}, and a write swaps in a new revision with a
+ * compare-and-set, so reads never lock and a stale writer always loses.
+ * 
+ * Besides the version, a node carries the size and modified time of its
+ * content, where the writer knows them (-1 where it doesn't), so a reader
+ * can decide what to fetch first without fetching anything.
+ * 
+ * Each node also keeps a hash of everything below it: the XOR of an entry
+ * hash per child, made from the child's name, version and own subtree hash.
+ * A write changes the hash of every node up to the root, one XOR each, so
+ * two trees (or one tree at two times) can be compared a subtree at a time
+ * and the subtrees whose hashes match skipped.  The hash is exact while
+ * nobody writes under a node that is being removed, which the shared
+ * memories make sure of; otherwise it is only a hint.
+ * 
+ * In an {@link InMemorySharedMemory} every write is numbered (see
+ * {@link RevisionClock}), and while there are snapshots a node keeps the
+ * revisions, and the changes to its hash, that one taken before a write
+ * may still read, so a snapshot is just a number.  What the oldest
+ * snapshot no longer needs is let go of as the node is next written.  With
+ * no snapshots, and outside a shared memory, a node keeps no history.
+ * 
  * @author chenglim
  *
  */
 public class MemoryNode {
-	private MemoryNode parent;
-	private String name;
-	private String version;
-	private Map<String,MemoryNode> children;
+	static private final long KEEP = Long.MIN_VALUE; // for a property a write leaves as it is
+	// for swapping the fields they name in place, rather than holding atomics, saving an object and a hop each
+	static private final AtomicReferenceFieldUpdater<MemoryNode,Revision> REVISION
+			= AtomicReferenceFieldUpdater.newUpdater(MemoryNode.class, Revision.class, "revision");
+	static private final AtomicLongFieldUpdater<MemoryNode> SUBTREE_HASH
+			= AtomicLongFieldUpdater.newUpdater(MemoryNode.class, "subtreeHash");
+	static private final AtomicReferenceFieldUpdater<MemoryNode,HashChange> HASH_CHANGES
+			= AtomicReferenceFieldUpdater.newUpdater(MemoryNode.class, HashChange.class, "hashChanges");
+	
+	private volatile MemoryNode parent;
+	private volatile boolean removed;
+	private final String name;
+	private final String path; // null for copies, which are not part of any tree
+	private final long nameHash;
+	private volatile Revision revision; // the newest, which links back to older ones
+	private volatile long subtreeHash; // 0 for no children
+	private volatile HashChange hashChanges; // those a snapshot may need to take back out, newest first
+	// the horizon each chain was last trimmed to, which only saves trimming twice, so need not be exact
+	private long revisionsTrimmed = -1;
+	private long hashChangesTrimmed = -1;
 	
 	public MemoryNode(String name, String version) {
-		this.name = name;
-		this.version = version;
-		children = new HashMap<String, MemoryNode>();
+		this(name, version, null);
 	}
 	
-	protected void addedToParent(MemoryNode parent) {
-		this.parent = parent;
+	MemoryNode(String name, String version, String path) {
+		this(new Revision(0, version, -1, -1, PersistentMap.<MemoryNode>empty(), null), name, path);
+	}
+	
+	private MemoryNode(Revision revision, String name, String path) {
+		this.name = name;
+		this.path = path;
+		nameHash = hashOf(name);
+		this.revision = revision;
 	}
 	
 	public String getName() {
 		return name;
 	}
 	
+	/**
+	 * @return the canonical path of this node in its tree, or null for a copy
+	 */
+	String getPath() {
+		return path;
+	}
+	
 	public String getVersion() {
-		return version;
+		return revision.version;
 	}
 	
 	public void setVersion(String version) {
-		this.version = version;
+		swap(null, version, KEEP, KEEP, RevisionClock.Write.UNTRACKED);
+	}
+	
+	/**
+	 * @return the size of the content in bytes, or -1 if not known
+	 */
+	public long getSize() {
+		return revision.size;
+	}
+	
+	public void setSize(long size) {
+		swap(null, null, size, KEEP, RevisionClock.Write.UNTRACKED);
+	}
+	
+	/**
+	 * @return when the content was last modified, in milliseconds since the
+	 * epoch, or -1 if not known
+	 */
+	public long getModified() {
+		return revision.modified;
+	}
+	
+	public void setModified(long modified) {
+		swap(null, null, KEEP, modified, RevisionClock.Write.UNTRACKED);
+	}
+	
+	/**
+	 * Set the version only if it still matches what the caller last saw.
+	 * 
+	 * @return false if someone else changed the version first
+	 */
+	public boolean compareAndSetVersion(String expectedVersion, String newVersion) {
+		return swap(expectedVersion, newVersion, KEEP, KEEP, RevisionClock.Write.UNTRACKED);
+	}
+	
+	/**
+	 * As for {@link #compareAndSetVersion}, taking the size and modified
+	 * time from the new node as well, in the same revision
+	 */
+	boolean compareAndSetContent(String expectedVersion, MemoryNode newNode, RevisionClock.Write write) {
+		Revision content = newNode.revision;
+		return swap(expectedVersion, content.version, content.size, content.modified, write);
+	}
+	
+	/**
+	 * @return a hash of the names and versions of everything below this
+	 * node, which is 0 when it has no children
+	 */
+	public long getSubtreeHash() {
+		return subtreeHash;
+	}
+	
+	/**
+	 * For copies, which take the hash of the node they copy
+	 */
+	void setSubtreeHash(long hash) {
+		subtreeHash = hash;
 	}
 	
 	public boolean hasChild(String name) {
-		return children.containsKey(name);
+		return revision.children.get(name) != null;
 	}
 	
 	public MemoryNode addChild(String name, String version) throws AddDuplicateException {
-		if (hasChild(name)) {
-			throw new AddDuplicateException();
+		return addChild(name, version, -1, -1, RevisionClock.Write.UNTRACKED);
+	}
+	
+	MemoryNode addChild(String name, String version, long size, long modified, RevisionClock.Write write) throws AddDuplicateException {
+		MemoryNode node = new MemoryNode(new Revision(write.seq, version, size, modified, PersistentMap.<MemoryNode>empty(), null), name, MemoryPaths.childPath(path, name));
+		// linked up before anyone can see it, so whatever is added under it reaches us
+		node.parent = this;
+		while (true) {
+			Revision current = revision;
+			PersistentMap<MemoryNode> children = current.children.withNew(name, node);
+			if (children == null)
+				throw new AddDuplicateException();
+			if (swap(current, current.withChildren(children, write), write))
+				break;
 		}
-		MemoryNode node = new MemoryNode(name, version);
-		children.put(name, node);
-		node.addedToParent(this);
+		// the entry as it was made; anything since has already been passed up as a change from it
+		childrenChanged(entryHash(node.nameHash, version, 0), write);
 		return node;
 	}
 	
 	public void removeChild(String name) {
-		children.remove(name);
+		removeChild(name, null, RevisionClock.Write.UNTRACKED);
+	}
+	
+	/**
+	 * @param expected the node to take out, or null for whichever is there
+	 * @return false if the node wasn't there
+	 */
+	private boolean removeChild(String name, MemoryNode expected, RevisionClock.Write write) {
+		MemoryNode node;
+		while (true) {
+			Revision current = revision;
+			node = current.children.get(name);
+			if (node == null || (expected != null && node != expected))
+				return false;
+			if (swap(current, current.withChildren(current.children.without(name), write), write))
+				break;
+		}
+		node.removed = true;
+		childrenChanged(node.entryHash(), write);
+		return true;
 	}
 	
 	public MemoryNode getChild(String name) throws MissingNodeException {
-		MemoryNode node = children.get(name);
+		MemoryNode node = revision.children.get(name);
 		if (node == null)
 			throw new MissingNodeException();
 		return node;
 	}
 	
 	public Set<String> getChildrenNames() {
-		return children.keySet();
+		return revision.children.keySet();
+	}
+	
+	PersistentMap<MemoryNode> getChildren() {
+		return revision.children;
+	}
+	
+	public MemoryNode getParent() {
+		return parent;
+	}
+	
+	/**
+	 * @return true once this node has been taken out of its parent
+	 */
+	public boolean isRemoved() {
+		return removed;
+	}
+	
+	void markRemoved() {
+		removed = true;
 	}
 	
 	public MemoryNode makeCopy() {
-		MemoryNode copy = new MemoryNode(name, version);
-		// TODO: update other properties later
+		return copyOf(revision, getSubtreeHash());
+	}
+	
+	/**
+	 * @return a copy of this node as a snapshot taken at the given number sees it
+	 */
+	MemoryNode copyAt(long seq) {
+		return copyOf(revisionAt(seq), subtreeHashAt(seq));
+	}
+	
+	/**
+	 * @return the children as a snapshot taken at the given number sees them
+	 */
+	PersistentMap<MemoryNode> getChildrenAt(long seq) {
+		return revisionAt(seq).children;
+	}
+	
+	private MemoryNode copyOf(Revision content, long subtreeHash) {
+		MemoryNode copy = new MemoryNode(new Revision(0, content.version, content.size, content.modified, PersistentMap.<MemoryNode>empty(), null), name, null);
+		copy.setSubtreeHash(subtreeHash);
 		return copy;
 	}
 	
 	public void updateWithCopy(MemoryNode copy) {
-		setVersion(copy.getVersion());
-		// TODO: update with other properties later
+		Revision content = copy.revision;
+		swap(null, content.version, content.size, content.modified, RevisionClock.Write.UNTRACKED);
 	}
 
 	public void removeFromParent() {
-		if (parent != null) {
-			parent.removeChild(name);
+		removeFromParent(RevisionClock.Write.UNTRACKED);
+	}
+	
+	void removeFromParent(RevisionClock.Write write) {
+		MemoryNode currentParent = parent;
+		if (currentParent != null) {
+			removed = true;
+			currentParent.removeChild(name, this, write);
+		}
+	}
+	
+	private long entryHash() {
+		return entryHash(nameHash, getVersion(), getSubtreeHash());
+	}
+	
+	/**
+	 * Swap in a revision with the given properties, where given, as long as
+	 * the version is still the expected one, if given
+	 * 
+	 * @return false if the version wasn't the expected one
+	 */
+	private boolean swap(String expectedVersion, String version, long size, long modified, RevisionClock.Write write) {
+		Revision current;
+		Revision next;
+		do {
+			current = revision;
+			if (expectedVersion != null && !current.version.equals(expectedVersion))
+				return false;
+			next = new Revision(write.seq, version != null ? version : current.version, size != KEEP ? size : current.size,
+					modified != KEEP ? modified : current.modified, current.children, write.history(current));
+		} while (!swap(current, next, write));
+		if (parent != null && !removed && !current.version.equals(next.version))
+			parent.childrenChanged(versionHash(nameHash, current.version) ^ versionHash(nameHash, next.version), write);
+		return true;
+	}
+	
+	private boolean swap(Revision current, Revision next, RevisionClock.Write write) {
+		if (!REVISION.compareAndSet(this, current, next))
+			return false;
+		if (next.older != null && revisionsTrimmed != write.horizon) {
+			// the newest at or below the horizon is the oldest any snapshot can read
+			Revision kept = next;
+			while (kept != null && kept.seq > write.horizon)
+				kept = kept.older;
+			if (kept != null && kept.older != null)
+				kept.older = null;
+			revisionsTrimmed = write.horizon;
+		}
+		return true;
+	}
+	
+	private Revision revisionAt(long seq) {
+		Revision found = revision;
+		while (found.seq > seq)
+			found = found.older;
+		return found;
+	}
+	
+	/**
+	 * The hash as of a number is the hash now without the changes numbered
+	 * after it.  Those are kept in the order they were made, which isn't
+	 * the order of their numbers when writes below us race, and a change's
+	 * ceiling says when there can be no more of them.  A change is kept
+	 * before it is made, so one caught half way is waited for, and the hash
+	 * read again if another came in meanwhile.
+	 */
+	private long subtreeHashAt(long seq) {
+		while (true) {
+			HashChange newest = hashChanges;
+			long later = 0;
+			for (HashChange change = newest; change != null; change = change.older) {
+				if (change.seq > seq) {
+					while (!change.made) {
+						Thread.yield();
+					}
+					later ^= change.delta;
+				}
+				if (change.ceiling <= seq)
+					break;
+			}
+			long hash = subtreeHash;
+			if (hashChanges == newest)
+				return hash ^ later;
+		}
+	}
+	
+	/**
+	 * Fold a change in one child's entry into our hash, and pass the change
+	 * in our own entry up to our parent, and so on to the root.  Each part
+	 * of an entry is changed on its own, so changes racing up the same
+	 * chain add up to the same hash whatever order they land in.
+	 */
+	private void childrenChanged(long delta, RevisionClock.Write write) {
+		MemoryNode node = this;
+		while (node != null && delta != 0) {
+			HashChange change = null;
+			if (write.recording) {
+				HashChange older;
+				do {
+					older = node.hashChanges;
+					// the ceiling read after the chain, so it covers everything in it
+					change = new HashChange(write.seq, write.ceiling(), delta, older);
+				} while (!HASH_CHANGES.compareAndSet(node, older, change));
+			}
+			long oldHash;
+			long newHash;
+			do {
+				oldHash = node.subtreeHash;
+				newHash = oldHash ^ delta;
+			} while (!SUBTREE_HASH.compareAndSet(node, oldHash, newHash));
+			if (change != null)
+				change.made = true;
+			HashChange newest = node.hashChanges;
+			if (newest != null && write.isTracked() && node.hashChangesTrimmed != write.horizon) {
+				// a snapshot at or past the horizon stops at the first change made by then
+				HashChange kept = newest;
+				while (kept != null && kept.ceiling > write.horizon)
+					kept = kept.older;
+				if (kept == newest)
+					HASH_CHANGES.compareAndSet(node, newest, null); // nor does it take that one out
+				else if (kept != null && kept.older != null)
+					kept.older = null;
+				node.hashChangesTrimmed = write.horizon;
+			}
+			delta = childrenHash(node.nameHash, oldHash) ^ childrenHash(node.nameHash, newHash);
+			node = node.removed ? null : node.parent;
+		}
+	}
+	
+	/**
+	 * @return what a child with the given name, version and subtree hash adds
+	 * to its parent's subtree hash
+	 */
+	static long entryHash(String name, String version, long subtreeHash) {
+		return entryHash(hashOf(name), version, subtreeHash);
+	}
+	
+	static private long entryHash(long nameHash, String version, long subtreeHash) {
+		return versionHash(nameHash, version) ^ childrenHash(nameHash, subtreeHash);
+	}
+	
+	static private long versionHash(long nameHash, String version) {
+		return mix(nameHash ^ Long.rotateLeft(hashOf(version), 29));
+	}
+	
+	static private long childrenHash(long nameHash, long subtreeHash) {
+		if (subtreeHash == 0)
+			return 0;
+		return mix(nameHash + mix(subtreeHash));
+	}
+	
+	/**
+	 * 64 bit FNV-1a over the chars of the string
+	 */
+	static private long hashOf(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+	
+	/**
+	 * The finishing step of MurmurHash3, so every bit in affects every bit out
+	 */
+	static private long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+	
+	/**
+	 * What a node was as of one write
+	 */
+	static private final class Revision {
+		private final long seq;
+		private final String version;
+		private final long size;
+		private final long modified;
+		private final PersistentMap<MemoryNode> children;
+		private Revision older; // only ever cut where no snapshot can reach, so a stale read is harmless
+		
+		Revision(long seq, String version, long size, long modified, PersistentMap<MemoryNode> children, Revision older) {
+			this.seq = seq;
+			this.version = version;
+			this.size = size;
+			this.modified = modified;
+			this.children = children;
+			this.older = older;
+		}
+		
+		Revision withChildren(PersistentMap<MemoryNode> children, RevisionClock.Write write) {
+			return new Revision(write.seq, version, size, modified, children, write.history(this));
+		}
+	}
+	
+	/**
+	 * One write's change to a node's subtree hash
+	 */
+	static private final class HashChange {
+		private final long seq;
+		private final long ceiling; // no older change has a higher number
+		private final long delta;
+		private volatile boolean made; // once it is in the hash
+		private HashChange older; // as for Revision
+		
+		HashChange(long seq, long ceiling, long delta, HashChange older) {
+			this.seq = seq;
+			this.ceiling = ceiling;
+			this.delta = delta;
+			this.older = older;
 		}
 	}
 }
@@ -0,0 +1,80 @@
+package com.picostuff.lockstep;
+
+import com.picostuff.lockstep.exception.BadPathException;
+
+/**
+ * Helpers for the paths that name nodes in a shared memory.  A canonical
+ * path is "/" for the root, or the node names each prefixed with "/".
+ * 
+ * @author chenglim
+ *
+ */
+final class MemoryPaths {
+	
+	private MemoryPaths() {
+	}
+	
+	static String makeCanonical(String path) throws BadPathException {
+		String[] parts = path.split("/",-1);
+		if ((parts.length < 2) || !parts[0].equals(""))
+			throw new BadPathException(path);
+		StringBuilder canonicalPath = new StringBuilder();
+		for (String part:parts) {
+			if (!part.equals("")) {
+				canonicalPath.append("/").append(part);
+			}
+		}
+		if (canonicalPath.length() == 0)
+			return "/";
+		return canonicalPath.toString();
+	}
+	
+	static String childPath(String parentPath, String name) {
+		if (parentPath == null)
+			return null;
+		if (parentPath.equals("/"))
+			return "/" + name;
+		return parentPath + "/" + name;
+	}
+	
+	/**
+	 * @return the parent of a canonical path, or null for the root
+	 */
+	static String parentOf(String canonicalPath) {
+		if (canonicalPath.equals("/"))
+			return null;
+		int slash = canonicalPath.lastIndexOf('/');
+		if (slash == 0)
+			return "/";
+		return canonicalPath.substring(0, slash);
+	}
+	
+	static String nameOf(String canonicalPath) {
+		return canonicalPath.substring(canonicalPath.lastIndexOf('/') + 1);
+	}
+	
+	static boolean isSameOrBelow(String path, String ancestorPath) {
+		if (!path.startsWith(ancestorPath))
+			return false;
+		return path.length() == ancestorPath.length() || ancestorPath.equals("/") || path.charAt(ancestorPath.length()) == '/';
+	}
+	
+	/**
+	 * Orders paths the way a walk of the tree meets them, with each node
+	 * before what is below it, and siblings by name.  That is plain string
+	 * order with '/' going before every other char.
+	 */
+	static int compareInTreeOrder(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		for (int i = 0; i < length; i++) {
+			char charA = a.charAt(i);
+			char charB = b.charAt(i);
+			if (charA != charB) {
+				if (charA == '/' || charB == '/')
+					return charA == '/' ? -1 : 1;
+				return charA < charB ? -1 : 1;
+			}
+		}
+		return a.length() - b.length();
+	}
+}
@@ -0,0 +1,223 @@
+package com.picostuff.lockstep;
+
+import java.util.List;
+import java.util.Set;
+
+import com.picostuff.lockstep.exception.AddDuplicateException;
+import com.picostuff.lockstep.exception.BadPathException;
+import com.picostuff.lockstep.exception.MissingNodeException;
+import com.picostuff.lockstep.exception.ResyncRequiredException;
+import com.picostuff.lockstep.exception.SaveConflictException;
+import com.picostuff.lockstep.metrics.Counter;
+import com.picostuff.lockstep.metrics.Histogram;
+import com.picostuff.lockstep.metrics.Metrics;
+
+/**
+ * Wraps another shared memory to time each call, into a histogram per
+ * call named "memory." and the call, such as "memory.changeNode", and
+ * count the writes that lose a version check in "memory.conflicts".
+ * Reads from its snapshots are timed the same way, under "snapshot.".
+ * 
+ * The convenience adds are timed as the {@link #addNode} they come down
+ * to, and watches are passed straight through.
+ * 
+ * @author chenglim
+ *
+ */
+public class MeteredSharedMemory implements SharedMemory {
+	private final SharedMemory memory;
+	private final Histogram addNodeTime;
+	private final Histogram getChildrenNamesTime;
+	private final Histogram copyNodeTime;
+	private final Histogram copySubtreeTime;
+	private final Histogram snapshotTime;
+	private final Histogram changeNodeTime;
+	private final Histogram removeNodeTime;
+	private final Histogram multiTime;
+	private final Histogram changesSinceTime;
+	private final Histogram snapshotChildrenNamesTime;
+	private final Histogram snapshotCopyNodeTime;
+	private final Histogram snapshotCopySubtreeTime;
+	private final Counter conflicts;
+	
+	public MeteredSharedMemory(SharedMemory memory, Metrics metrics) {
+		this.memory = memory;
+		addNodeTime = metrics.histogram("memory.addNode");
+		getChildrenNamesTime = metrics.histogram("memory.getChildrenNames");
+		copyNodeTime = metrics.histogram("memory.copyNode");
+		copySubtreeTime = metrics.histogram("memory.copySubtree");
+		snapshotTime = metrics.histogram("memory.snapshot");
+		changeNodeTime = metrics.histogram("memory.changeNode");
+		removeNodeTime = metrics.histogram("memory.removeNode");
+		multiTime = metrics.histogram("memory.multi");
+		changesSinceTime = metrics.histogram("memory.changesSince");
+		snapshotChildrenNamesTime = metrics.histogram("snapshot.getChildrenNames");
+		snapshotCopyNodeTime = metrics.histogram("snapshot.copyNode");
+		snapshotCopySubtreeTime = metrics.histogram("snapshot.copySubtree");
+		conflicts = metrics.counter("memory.conflicts");
+	}
+	
+	public void addRootDirNode(String name) throws BadPathException, MissingNodeException, AddDuplicateException {
+		addNode("/", name, DIR_NODE_VERSION);
+	}
+	
+	public void addDirNode(String path, String name) throws BadPathException, MissingNodeException, AddDuplicateException {
+		addNode(path, name, DIR_NODE_VERSION);
+	}
+	
+	public void addRootNode(String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException {
+		addNode("/", name, version);
+	}
+	
+	public void addNode(String path, String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException {
+		long start = addNodeTime.start();
+		try {
+			memory.addNode(path, name, version);
+		} finally {
+			addNodeTime.recordSince(start);
+		}
+	}
+	
+	public Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException {
+		long start = getChildrenNamesTime.start();
+		try {
+			return memory.getChildrenNames(path);
+		} finally {
+			getChildrenNamesTime.recordSince(start);
+		}
+	}
+	
+	public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
+		long start = copyNodeTime.start();
+		try {
+			return memory.copyNode(path);
+		} finally {
+			copyNodeTime.recordSince(start);
+		}
+	}
+	
+	public SubtreePage copySubtree(String path, int depth, String pageToken, int pageSize) throws BadPathException, MissingNodeException {
+		long start = copySubtreeTime.start();
+		try {
+			return memory.copySubtree(path, depth, pageToken, pageSize);
+		} finally {
+			copySubtreeTime.recordSince(start);
+		}
+	}
+	
+	public Snapshot snapshot() {
+		long start = snapshotTime.start();
+		try {
+			return new MeteredSnapshot(memory.snapshot());
+		} finally {
+			snapshotTime.recordSince(start);
+		}
+	}
+	
+	public void changeNode(String path, MemoryNode oldNode, MemoryNode newNode) throws BadPathException, MissingNodeException, SaveConflictException {
+		long start = changeNodeTime.start();
+		try {
+			memory.changeNode(path, oldNode, newNode);
+		} catch (SaveConflictException e) {
+			conflicts.increment();
+			throw e;
+		} finally {
+			changeNodeTime.recordSince(start);
+		}
+	}
+	
+	public void removeNode(String path, MemoryNode oldNode) throws BadPathException, MissingNodeException, SaveConflictException {
+		long start = removeNodeTime.start();
+		try {
+			memory.removeNode(path, oldNode);
+		} catch (SaveConflictException e) {
+			conflicts.increment();
+			throw e;
+		} finally {
+			removeNodeTime.recordSince(start);
+		}
+	}
+	
+	public void multi(List<Op> ops) throws BadPathException, MissingNodeException, AddDuplicateException, SaveConflictException {
+		long start = multiTime.start();
+		try {
+			memory.multi(ops);
+		} catch (SaveConflictException e) {
+			conflicts.increment();
+			throw e;
+		} finally {
+			multiTime.recordSince(start);
+		}
+	}
+	
+	public Watch watchNode(String path, boolean persistent, NodeWatcher watcher) throws BadPathException {
+		return memory.watchNode(path, persistent, watcher);
+	}
+	
+	public Watch watchSubtree(String path, boolean persistent, NodeWatcher watcher) throws BadPathException {
+		return memory.watchSubtree(path, persistent, watcher);
+	}
+	
+	public long getLastSeq() {
+		return memory.getLastSeq();
+	}
+	
+	public ChangeSet changesSince(long seq, int max) throws ResyncRequiredException {
+		long start = changesSinceTime.start();
+		try {
+			return memory.changesSince(seq, max);
+		} finally {
+			changesSinceTime.recordSince(start);
+		}
+	}
+	
+	/**
+	 * Times the reads of a snapshot of the wrapped memory, and lets go of it
+	 * once nobody holds this one
+	 */
+	private class MeteredSnapshot extends Snapshot {
+		private final Snapshot snapshot;
+		
+		MeteredSnapshot(Snapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+		
+		@Override
+		public Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException {
+			checkNotReleased();
+			long start = snapshotChildrenNamesTime.start();
+			try {
+				return snapshot.getChildrenNames(path);
+			} finally {
+				snapshotChildrenNamesTime.recordSince(start);
+			}
+		}
+		
+		@Override
+		public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
+			checkNotReleased();
+			long start = snapshotCopyNodeTime.start();
+			try {
+				return snapshot.copyNode(path);
+			} finally {
+				snapshotCopyNodeTime.recordSince(start);
+			}
+		}
+		
+		@Override
+		public SubtreePage copySubtree(String path, int depth, String pageToken, int pageSize) throws BadPathException, MissingNodeException {
+			checkNotReleased();
+			long start = snapshotCopySubtreeTime.start();
+			try {
+				return snapshot.copySubtree(path, depth, pageToken, pageSize);
+			} finally {
+				snapshotCopySubtreeTime.recordSince(start);
+			}
+		}
+		
+		@Override
+		void free() {
+			snapshot.release();
+		}
+	}
+}
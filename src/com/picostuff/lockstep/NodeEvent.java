@@ -0,0 +1,52 @@
+package com.picostuff.lockstep;
+
+/**
+ * Tells a {@link NodeWatcher} that a node in the shared memory was added,
+ * changed or removed.  Each event carries the sequence number the shared
+ * memory gave the write, which only ever goes up, so events can also be
+ * read back in order through {@link SharedMemory#changesSince(long, int)}.
+ * 
+ * @author chenglim
+ *
+ */
+public class NodeEvent {
+	public enum Type {
+		ADDED, CHANGED, REMOVED;
+	}
+	
+	private long seq;
+	private Type type;
+	private String path;
+	private String version;
+	
+	public NodeEvent(long seq, Type type, String path, String version) {
+		this.seq = seq;
+		this.type = type;
+		this.path = path;
+		this.version = version;
+	}
+	
+	public long getSeq() {
+		return seq;
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * @return the version the node was left at, or the last version it had when removed
+	 */
+	public String getVersion() {
+		return version;
+	}
+	
+	@Override
+	public String toString() {
+		return seq + " " + type + " " + path + " " + version;
+	}
+}
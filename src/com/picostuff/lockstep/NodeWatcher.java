@@ -0,0 +1,16 @@
+package com.picostuff.lockstep;
+
+/**
+ * Receives events for a watched node or subtree.
+ * 
+ * Events are delivered on the writer's thread while the changed node is
+ * still locked, which is what keeps the events for a path in order.  So
+ * a watcher must be quick and must not write to the shared memory itself.
+ * Use a {@link WatchQueue} to hand events off to another thread.
+ * 
+ * @author chenglim
+ *
+ */
+public interface NodeWatcher {
+	public void process(NodeEvent event);
+}
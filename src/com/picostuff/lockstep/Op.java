@@ -0,0 +1,136 @@
+package com.picostuff.lockstep;
+
+/**
+ * One step of a batch handed to {@link SharedMemory#multi(java.util.List)}.
+ * The steps mirror the single node calls on SharedMemory, plus a check
+ * that only asserts a node is still at the version the caller read, and
+ * optionally that nothing under it changed either.
+ * 
+ * @author chenglim
+ *
+ */
+public class Op {
+	public enum Type {
+		ADD, CHANGE, REMOVE, CHECK;
+	}
+	
+	private Type type;
+	private String path;
+	private String name;
+	private String version;
+	private long size = -1;
+	private long modified = -1;
+	private MemoryNode oldNode;
+	private MemoryNode newNode;
+	private boolean subtree; // a check that takes in the subtree hash
+	
+	private Op(Type type, String path) {
+		this.type = type;
+		this.path = path;
+	}
+	
+	public static Op add(String path, String name, String version) {
+		Op op = new Op(Type.ADD, path);
+		op.name = name;
+		op.version = version;
+		return op;
+	}
+	
+	/**
+	 * Add a node with the name, version and other properties of the given one
+	 */
+	public static Op add(String path, MemoryNode node) {
+		Op op = add(path, node.getName(), node.getVersion());
+		op.size = node.getSize();
+		op.modified = node.getModified();
+		return op;
+	}
+	
+	public static Op addDir(String path, String name) {
+		return add(path, name, SharedMemory.DIR_NODE_VERSION);
+	}
+	
+	public static Op change(String path, MemoryNode oldNode, MemoryNode newNode) {
+		Op op = new Op(Type.CHANGE, path);
+		op.oldNode = oldNode;
+		op.newNode = newNode;
+		return op;
+	}
+	
+	public static Op remove(String path, MemoryNode oldNode) {
+		Op op = new Op(Type.REMOVE, path);
+		op.oldNode = oldNode;
+		return op;
+	}
+	
+	public static Op check(String path, MemoryNode oldNode) {
+		Op op = new Op(Type.CHECK, path);
+		op.oldNode = oldNode;
+		return op;
+	}
+	
+	/**
+	 * A check that the subtree hash (see {@link MemoryNode}) is also still
+	 * the one the caller read, so nothing was added, changed or removed
+	 * under the node, as of before the batch
+	 */
+	public static Op checkSubtree(String path, MemoryNode oldNode) {
+		Op op = check(path, oldNode);
+		op.subtree = true;
+		return op;
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	/**
+	 * @return the node the op works on, or the parent for an add
+	 */
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * @return the name of the node to add
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return the version of the node to add
+	 */
+	public String getVersion() {
+		return version;
+	}
+	
+	/**
+	 * @return the size of the node to add, or -1 if not known
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return the modified time of the node to add, or -1 if not known
+	 */
+	public long getModified() {
+		return modified;
+	}
+	
+	public MemoryNode getOldNode() {
+		return oldNode;
+	}
+	
+	public MemoryNode getNewNode() {
+		return newNode;
+	}
+	
+	/**
+	 * @return true for a check that takes in the subtree hash
+	 */
+	public boolean isSubtreeCheck() {
+		return subtree;
+	}
+}
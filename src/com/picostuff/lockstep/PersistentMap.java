@@ -0,0 +1,258 @@
+package com.picostuff.lockstep;
+
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map from names to values, kept sorted by name.  Adding or
+ * removing a name makes a new map that shares all but O(log n) of its
+ * entries with the old one, so old maps stay valid at little cost.
+ *
+ * It is an AVL tree, copied along the path to the change.
+ *
+ * @author chenglim
+ *
+ */
+final class PersistentMap<V> implements Iterable<Map.Entry<String,V>> {
+	@SuppressWarnings("rawtypes")
+	static private final PersistentMap EMPTY = new PersistentMap<Object>(null, 0);
+
+	private final Node<V> root;
+	private final int size;
+
+	private PersistentMap(Node<V> root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> PersistentMap<V> empty() {
+		return EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public V get(String key) {
+		Node<V> node = root;
+		while (node != null) {
+			int compare = key.compareTo(node.key);
+			if (compare == 0)
+				return node.value;
+			node = compare < 0 ? node.left : node.right;
+		}
+		return null;
+	}
+
+	/**
+	 * @return a map with the key set to the value
+	 */
+	public PersistentMap<V> with(String key, V value) {
+		return new PersistentMap<V>(insert(root, key, value, true), get(key) == null ? size + 1 : size);
+	}
+
+	/**
+	 * @return a map with the key added, or null if it is already there
+	 */
+	public PersistentMap<V> withNew(String key, V value) {
+		Node<V> newRoot = insert(root, key, value, false);
+		return newRoot == null ? null : new PersistentMap<V>(newRoot, size + 1);
+	}
+
+	/**
+	 * @return a map without the key
+	 */
+	public PersistentMap<V> without(String key) {
+		Node<V> newRoot = delete(root, key);
+		if (newRoot == root)
+			return this;
+		return new PersistentMap<V>(newRoot, size - 1);
+	}
+
+	/**
+	 * @return the names, as a read-only view that costs nothing to make
+	 */
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public boolean contains(Object key) {
+				return key instanceof String && get((String)key) != null;
+			}
+
+			@Override
+			public Iterator<String> iterator() {
+				final Iterator<Map.Entry<String,V>> entries = PersistentMap.this.iterator();
+				return new Iterator<String>() {
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					public String next() {
+						return entries.next().getKey();
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	public Iterator<Map.Entry<String,V>> iterator() {
+		return iteratorFrom(null);
+	}
+
+	/**
+	 * @param key where to start, or null for the first entry
+	 * @return the entries from the key on, in order
+	 */
+	public Iterator<Map.Entry<String,V>> iteratorFrom(String key) {
+		if (root == null)
+			return Collections.<Map.Entry<String,V>>emptyIterator();
+		final Deque<Node<V>> stack = new ArrayDeque<Node<V>>();
+		// the path to the first entry at or after the key, keeping the nodes still to come
+		for (Node<V> node = root; node != null;) {
+			if (key == null || key.compareTo(node.key) <= 0) {
+				stack.push(node);
+				node = node.left;
+			} else {
+				node = node.right;
+			}
+		}
+		return new Iterator<Map.Entry<String,V>>() {
+			public boolean hasNext() {
+				return !stack.isEmpty();
+			}
+
+			public Map.Entry<String,V> next() {
+				if (stack.isEmpty())
+					throw new NoSuchElementException();
+				Node<V> next = stack.pop();
+				for (Node<V> node = next.right; node != null; node = node.left) {
+					stack.push(node);
+				}
+				return next;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return null if the key is there and we aren't to replace it
+	 */
+	static private <V> Node<V> insert(Node<V> node, String key, V value, boolean replace) {
+		if (node == null)
+			return new Node<V>(key, value, null, null);
+		int compare = key.compareTo(node.key);
+		if (compare < 0) {
+			Node<V> left = insert(node.left, key, value, replace);
+			return left == null ? null : balance(node.key, node.value, left, node.right);
+		}
+		if (compare > 0) {
+			Node<V> right = insert(node.right, key, value, replace);
+			return right == null ? null : balance(node.key, node.value, node.left, right);
+		}
+		return replace ? new Node<V>(key, value, node.left, node.right) : null;
+	}
+
+	/**
+	 * @return the node itself if the key isn't below it
+	 */
+	static private <V> Node<V> delete(Node<V> node, String key) {
+		if (node == null)
+			return null;
+		int compare = key.compareTo(node.key);
+		if (compare < 0) {
+			Node<V> left = delete(node.left, key);
+			return left == node.left ? node : balance(node.key, node.value, left, node.right);
+		}
+		if (compare > 0) {
+			Node<V> right = delete(node.right, key);
+			return right == node.right ? node : balance(node.key, node.value, node.left, right);
+		}
+		if (node.left == null)
+			return node.right;
+		if (node.right == null)
+			return node.left;
+		Node<V> first = node.right;
+		while (first.left != null)
+			first = first.left;
+		return balance(first.key, first.value, node.left, deleteFirst(node.right));
+	}
+
+	static private <V> Node<V> deleteFirst(Node<V> node) {
+		if (node.left == null)
+			return node.right;
+		return balance(node.key, node.value, deleteFirst(node.left), node.right);
+	}
+
+	/**
+	 * @return a node for the entry over the two subtrees, rotated if their
+	 * heights are more than one apart
+	 */
+	static private <V> Node<V> balance(String key, V value, Node<V> left, Node<V> right) {
+		int leftHeight = heightOf(left);
+		int rightHeight = heightOf(right);
+		if (leftHeight > rightHeight + 1) {
+			if (heightOf(left.left) >= heightOf(left.right))
+				return new Node<V>(left.key, left.value, left.left, new Node<V>(key, value, left.right, right));
+			return new Node<V>(left.right.key, left.right.value, new Node<V>(left.key, left.value, left.left, left.right.left),
+					new Node<V>(key, value, left.right.right, right));
+		}
+		if (rightHeight > leftHeight + 1) {
+			if (heightOf(right.right) >= heightOf(right.left))
+				return new Node<V>(right.key, right.value, new Node<V>(key, value, left, right.left), right.right);
+			return new Node<V>(right.left.key, right.left.value, new Node<V>(key, value, left, right.left.left),
+					new Node<V>(right.key, right.value, right.left.right, right.right));
+		}
+		return new Node<V>(key, value, left, right);
+	}
+
+	static private int heightOf(Node<?> node) {
+		return node == null ? 0 : node.height;
+	}
+
+	static private final class Node<V> implements Map.Entry<String,V> {
+		private final String key;
+		private final V value;
+		private final Node<V> left;
+		private final Node<V> right;
+		private final int height;
+
+		Node(String key, V value, Node<V> left, Node<V> right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			height = Math.max(heightOf(left), heightOf(right)) + 1;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
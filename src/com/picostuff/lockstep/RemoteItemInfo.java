@@ -3,17 +3,39 @@ package com.picostuff.lockstep;
 public class RemoteItemInfo {
 	private String name;
 	private String version;
+	private long size = -1;
+	private long modified = -1;
 	
 	public RemoteItemInfo(String name, String version) {
 		this.name = name;
 		this.version = version;
 	}
+	
+	public RemoteItemInfo(String name, String version, long size, long modified) {
+		this(name, version);
+		this.size = size;
+		this.modified = modified;
+	}
 
 	public String getName() {
-		return version;
+		return name;
 	}
 
 	public String getVersion() {
 		return version;
 	}
+
+	/**
+	 * @return the size of the content, or -1 if not known
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return when the content was last modified, or -1 if not known
+	 */
+	public long getModified() {
+		return modified;
+	}
 }
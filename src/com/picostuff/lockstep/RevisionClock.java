@@ -0,0 +1,190 @@
+package com.picostuff.lockstep;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Numbers the writes to a tree of {@link MemoryNode}s, so each node can keep
+ * the revisions of itself that a snapshot still needs.
+ *
+ * A write takes the next number once it holds its locks, and tags every
+ * revision it makes with it.  A snapshot takes the last number handed out,
+ * waits for the writes up to it to finish, and sees the revisions numbered
+ * at or below it.  Writes can finish out of order, so the clock keeps a
+ * stable mark, the number up to which every write has finished, for
+ * snapshots to wait on.  Only snapshots, and a write that finds too many
+ * before it unfinished, move the mark, so ending a write is a plain store.
+ *
+ * A snapshot pins its number until it is released, or collected if it
+ * never is.  A write looks for pins only once it has its number, so a
+ * write that finds none is at or below the number of any snapshot taken
+ * after, and needs to keep nothing of what it replaces.  A write that
+ * finds some works out from them how far back nodes need to keep their
+ * revisions.
+ *
+ * @author chenglim
+ *
+ */
+class RevisionClock {
+	static private final int WINDOW = 4096; // writes that can be in flight past the oldest unfinished one
+
+	private final AtomicLong last; // the last number handed out
+	private final AtomicLong stable; // every write up to here has finished
+	private final AtomicLongArray finished; // by number, in a ring
+	private final ConcurrentSkipListMap<Pin,Boolean> pins;
+	private final ReferenceQueue<Object> collected;
+	private final AtomicLong pinIds;
+
+	public RevisionClock() {
+		last = new AtomicLong();
+		stable = new AtomicLong();
+		finished = new AtomicLongArray(WINDOW);
+		pins = new ConcurrentSkipListMap<Pin, Boolean>();
+		collected = new ReferenceQueue<Object>();
+		pinIds = new AtomicLong();
+	}
+
+	/**
+	 * Start a write, which must be ended however it goes
+	 */
+	public Write begin() {
+		long seq = last.incrementAndGet();
+		// the ring slot is free once the write it last held is below the stable mark
+		while (seq - stable.get() > WINDOW && seq - advanceStable() > WINDOW) {
+			Thread.yield();
+		}
+		expungeCollected();
+		// after the number, so a pin we miss reads a number at least as new (see pin)
+		Map.Entry<Pin,Boolean> oldest = pins.firstEntry();
+		if (oldest == null)
+			return new Write(this, seq, seq, false);
+		return new Write(this, seq, Math.min(seq - 1, oldest.getKey().floor), true);
+	}
+
+	public void end(Write write) {
+		// ordered after the write, which is all whoever moves the mark over it needs
+		finished.lazySet((int)(write.seq % WINDOW), write.seq);
+	}
+
+	/**
+	 * @return the number a snapshot reads at, held until the pin is
+	 * released or the holder is collected, once every write up to it has
+	 * finished
+	 */
+	public Pin pin(Object holder) {
+		expungeCollected();
+		Pin pin = new Pin(holder, collected, last.get(), pinIds.incrementAndGet());
+		pins.put(pin, Boolean.TRUE);
+		// read once pinned, so every write numbered after it sees the pin
+		long seq = last.get();
+		while (advanceStable() < seq) {
+			Thread.yield();
+		}
+		pin.seq = seq;
+		return pin;
+	}
+
+	public void unpin(Pin pin) {
+		pins.remove(pin);
+		pin.clear();
+	}
+
+	/**
+	 * @return the last number handed out so far
+	 */
+	long last() {
+		return last.get();
+	}
+
+	/**
+	 * Move the mark over every write that has finished in order
+	 *
+	 * @return the mark
+	 */
+	private long advanceStable() {
+		while (true) {
+			long mark = stable.get();
+			long next = mark;
+			while (finished.get((int)((next + 1) % WINDOW)) == next + 1) {
+				next++;
+			}
+			if (next == mark || stable.compareAndSet(mark, next))
+				return next;
+		}
+	}
+
+	private void expungeCollected() {
+		for (Reference<?> pin = collected.poll(); pin != null; pin = collected.poll()) {
+			pins.remove(pin);
+		}
+	}
+
+	/**
+	 * One write, which tags what it changes with its number.  Nodes written
+	 * outside a shared memory use {@link #UNTRACKED}, and keep no history.
+	 */
+	static final class Write {
+		static final Write UNTRACKED = new Write(null, 0, Long.MAX_VALUE, false);
+
+		final long seq;
+		final long horizon; // revisions older than the newest at or below this can go
+		final boolean recording; // whether a snapshot may need what this write replaces
+		private final RevisionClock clock;
+
+		private Write(RevisionClock clock, long seq, long horizon, boolean recording) {
+			this.clock = clock;
+			this.seq = seq;
+			this.horizon = horizon;
+			this.recording = recording;
+		}
+
+		boolean isTracked() {
+			return clock != null;
+		}
+
+		/**
+		 * @return the highest number any write so far could have tagged
+		 * something with, which bounds whatever is already in a chain
+		 */
+		long ceiling() {
+			return clock.last();
+		}
+
+		/**
+		 * @return what a new revision should keep as the one before it
+		 */
+		<T> T history(T current) {
+			return recording ? current : null;
+		}
+	}
+
+	/**
+	 * A snapshot's hold on the revisions it reads, ordered oldest first
+	 */
+	static final class Pin extends WeakReference<Object> implements Comparable<Pin> {
+		private final long floor; // at or below what the snapshot reads at
+		private final long id;
+		private volatile long seq;
+
+		private Pin(Object holder, ReferenceQueue<Object> collected, long floor, long id) {
+			super(holder, collected);
+			this.floor = floor;
+			this.id = id;
+		}
+
+		long getSeq() {
+			return seq;
+		}
+
+		public int compareTo(Pin other) {
+			if (floor != other.floor)
+				return floor < other.floor ? -1 : 1;
+			return id < other.id ? -1 : id == other.id ? 0 : 1;
+		}
+	}
+}
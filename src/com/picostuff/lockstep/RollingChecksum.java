@@ -0,0 +1,50 @@
+package com.picostuff.lockstep;
+
+/**
+ * The weak checksum rsync uses to find matching blocks at any offset: it
+ * can be moved along by a byte at a time without going over the whole
+ * window again.
+ * 
+ * @author chenglim
+ *
+ */
+final class RollingChecksum {
+	private final int length;
+	private int a;
+	private int b;
+	
+	RollingChecksum(int length) {
+		this.length = length;
+	}
+	
+	void reset(byte[] bytes, int offset) {
+		a = 0;
+		b = 0;
+		for (int i = 0; i < length; i++) {
+			int x = bytes[offset + i] & 0xff;
+			a += x;
+			b += (length - i) * x;
+		}
+		a &= 0xffff;
+		b &= 0xffff;
+	}
+	
+	/**
+	 * Move the window along by a byte
+	 */
+	void roll(byte out, byte in) {
+		int x = out & 0xff;
+		a = (a - x + (in & 0xff)) & 0xffff;
+		b = (b - length * x + a) & 0xffff;
+	}
+	
+	int getValue() {
+		return a | (b << 16);
+	}
+	
+	static int of(byte[] bytes, int offset, int length) {
+		RollingChecksum checksum = new RollingChecksum(length);
+		checksum.reset(bytes, offset);
+		return checksum.getValue();
+	}
+}
@@ -1,90 +1,107 @@
 package com.picostuff.lockstep;
 
+import java.util.List;
 import java.util.Set;
 
 import com.picostuff.lockstep.exception.AddDuplicateException;
 import com.picostuff.lockstep.exception.BadPathException;
 import com.picostuff.lockstep.exception.MissingNodeException;
+import com.picostuff.lockstep.exception.ResyncRequiredException;
 import com.picostuff.lockstep.exception.SaveConflictException;
 
 /**
- * Eventually, this will be an interface fronting different
- * implementations of a shared memory in a distributed system,
- * such as ZooKeeper, FireBase, or even a plain old database.
- * This class will help to flush out the requirements of
- * a shared memory.
+ * The interface fronting different implementations of a shared memory
+ * in a distributed system, such as ZooKeeper, FireBase, or even a plain
+ * old database (see {@link InMemorySharedMemory} and {@link JdbcSharedMemory}).
+ * 
+ * Nodes are named by paths such as "/a/b".  Every change and remove is
+ * checked against the version the caller last read, so a stale writer
+ * gets a SaveConflictException instead of overwriting someone else.
  * 
  * @author chenglim
  *
  */
-public class SharedMemory {
+public interface SharedMemory {
 	static public final String DIR_NODE_VERSION = "dir";
 	
-	private MemoryNode rootNode;
+	public void addRootDirNode(String name) throws BadPathException, MissingNodeException, AddDuplicateException;
 	
-	public SharedMemory() {
-		rootNode = new MemoryNode("", DIR_NODE_VERSION);
-	}
-
-	public void addRootDirNode(String name) throws BadPathException, MissingNodeException, AddDuplicateException {
-		addDirNode("/",name);
-	}
-
-	public void addDirNode(String path, String name) throws BadPathException, MissingNodeException, AddDuplicateException {
-		addNode(path, name, DIR_NODE_VERSION);
-	}
-
-	public void addRootNode(String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException {
-		addNode("/",name,version);
-	}
+	public void addDirNode(String path, String name) throws BadPathException, MissingNodeException, AddDuplicateException;
 	
-	public void addNode(String path, String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException {
-		findNode(path).addChild(name, version);
-	}
+	public void addRootNode(String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException;
 	
-	public Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException {
-		return findNode(path).getChildrenNames();
-	}
+	public void addNode(String path, String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException;
 	
-	public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
-		MemoryNode currentNode = findNode(path);
-		return currentNode.makeCopy(); // return copy to shield internal storage from change (this simulates a client/server boundary)
-	}
+	public Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException;
 	
-	public void changeNode(String path, MemoryNode oldNode, MemoryNode newNode) throws BadPathException, MissingNodeException, SaveConflictException {
-		MemoryNode currentNode = findNode(path);
-		// check that the version hasn't changed (this will come into play when we go multi-thread/process
-		if (currentNode.getVersion().equals(oldNode.getVersion()) 
-				&& currentNode.getName().equals(oldNode.getName())
-				&& oldNode.getName().equals(newNode.getName())) {
-			currentNode.updateWithCopy(newNode); // this simulates a client/server boundary
-		} else {
-			throw new SaveConflictException();
-		}
-	}
+	/**
+	 * @return a copy of the node, which is safe to change and hand back to {@link #changeNode}
+	 */
+	public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException;
 	
-	public void removeNode(String path, MemoryNode oldNode) throws BadPathException, MissingNodeException, SaveConflictException {
-		MemoryNode currentNode = findNode(path);
-		// check that the version hasn't changed (this will come into play when we go multi-thread/process
-		if (currentNode.getVersion().equals(oldNode.getVersion()) 
-				&& currentNode.getName().equals(oldNode.getName())) {
-			currentNode.removeFromParent();
-		} else {
-			throw new SaveConflictException();
-		}
-	}
+	/**
+	 * Copy a node and what is below it, down to the given depth, a page at a
+	 * time.  Each page is read as of a single moment.  The node itself comes
+	 * first on the first page, and its subtree hash tells whether anything
+	 * below it changed between pages.
+	 * 
+	 * @param depth how many levels below the node to go: 0 for just the
+	 * node, 1 for it and its children, or -1 for no limit
+	 * @param pageToken null for the first page, or the token from the last page
+	 * @param pageSize the most nodes to return in one page
+	 */
+	public SubtreePage copySubtree(String path, int depth, String pageToken, int pageSize) throws BadPathException, MissingNodeException;
 	
-	private MemoryNode findNode(String path) throws BadPathException, MissingNodeException {
-		MemoryNode currentNode = rootNode;
-		String[] parts = path.split("/",-1);
-		if ((parts.length < 2) || !parts[0].equals(""))
-			throw new BadPathException(path);
-		for (String part:parts) {
-			if (!part.equals("")) {
-				currentNode = currentNode.getChild(part);
-			}
-		}
-		return currentNode;
-	}
-
+	/**
+	 * Take a read-only view of the whole tree as it is now, which writers
+	 * carry on around.  Release it once done with it.
+	 */
+	public Snapshot snapshot();
+	
+	public void changeNode(String path, MemoryNode oldNode, MemoryNode newNode) throws BadPathException, MissingNodeException, SaveConflictException;
+	
+	/**
+	 * Remove a node and everything under it
+	 */
+	public void removeNode(String path, MemoryNode oldNode) throws BadPathException, MissingNodeException, SaveConflictException;
+	
+	/**
+	 * Apply a batch of ops as a single unit, in the spirit of ZooKeeper's multi.
+	 * Every op is checked before any is applied, so either the whole batch
+	 * takes effect or none of it does.  Ops see the effect of earlier ops in
+	 * the same batch, so a batch can add a dir and then add nodes under it.
+	 * 
+	 * @throws SaveConflictException naming every path whose version check failed
+	 */
+	public void multi(List<Op> ops) throws BadPathException, MissingNodeException, AddDuplicateException, SaveConflictException;
+	
+	/**
+	 * Watch a single node, which doesn't have to exist yet.
+	 * 
+	 * @param persistent false to have the watch fire once and then go away
+	 */
+	public Watch watchNode(String path, boolean persistent, NodeWatcher watcher) throws BadPathException;
+	
+	/**
+	 * Watch a node and everything under it.
+	 * 
+	 * @param persistent false to have the watch fire once and then go away
+	 */
+	public Watch watchSubtree(String path, boolean persistent, NodeWatcher watcher) throws BadPathException;
+	
+	/**
+	 * @return the sequence number of the latest write, which is where to
+	 * start reading changes after a full scan that began after this call
+	 */
+	public long getLastSeq();
+	
+	/**
+	 * Read the writes made after the given sequence number, keeping only the
+	 * latest one for each path.
+	 * 
+	 * @param seq the cursor from the last call, or from {@link #getLastSeq()}
+	 * @param max the most writes to read in one call
+	 * @throws ResyncRequiredException if writes after the cursor are no longer kept
+	 */
+	public ChangeSet changesSince(long seq, int max) throws ResyncRequiredException;
 }
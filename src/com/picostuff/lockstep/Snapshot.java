@@ -0,0 +1,70 @@
+package com.picostuff.lockstep;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.picostuff.lockstep.exception.BadPathException;
+import com.picostuff.lockstep.exception.MissingNodeException;
+
+/**
+ * A read-only view of a shared memory as of the moment it was taken (see
+ * {@link SharedMemory#snapshot()}).  Writes made after that never show up
+ * in it, however long it is read for.
+ *
+ * A snapshot can hold on to something in the store, such as an open
+ * transaction, so it is counted: it starts with one reference, each
+ * {@link #retain()} adds one, and each {@link #release()} takes one away.
+ * Once the last is released it can no longer be read.
+ *
+ * @author chenglim
+ *
+ */
+public abstract class Snapshot {
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	public abstract Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException;
+
+	public abstract MemoryNode copyNode(String path) throws BadPathException, MissingNodeException;
+
+	/**
+	 * As for {@link SharedMemory#copySubtree}, with every page read as of
+	 * the snapshot
+	 */
+	public abstract SubtreePage copySubtree(String path, int depth, String pageToken, int pageSize) throws BadPathException, MissingNodeException;
+
+	/**
+	 * Take another reference, such as to hand the snapshot to another thread
+	 *
+	 * @return this snapshot
+	 */
+	public Snapshot retain() {
+		while (true) {
+			int count = references.get();
+			if (count <= 0)
+				throw new IllegalStateException("Snapshot already released");
+			if (references.compareAndSet(count, count + 1))
+				return this;
+		}
+	}
+
+	public void release() {
+		int count = references.decrementAndGet();
+		if (count == 0) {
+			free();
+		} else if (count < 0) {
+			references.incrementAndGet();
+			throw new IllegalStateException("Snapshot already released");
+		}
+	}
+
+	/**
+	 * Let go of whatever the snapshot holds in the store, once nobody
+	 * holds the snapshot
+	 */
+	abstract void free();
+
+	void checkNotReleased() {
+		if (references.get() <= 0)
+			throw new IllegalStateException("Snapshot already released");
+	}
+}
@@ -0,0 +1,41 @@
+package com.picostuff.lockstep;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A page of copies read from a subtree of a shared memory in one go, and
+ * the token to read the next page with.
+ *
+ * @author chenglim
+ *
+ */
+public class SubtreePage {
+	private Map<String,MemoryNode> nodes;
+	private String nextToken;
+
+	public SubtreePage(Map<String,MemoryNode> nodes, String nextToken) {
+		this.nodes = Collections.unmodifiableMap(nodes);
+		this.nextToken = nextToken;
+	}
+
+	/**
+	 * @return copies of the nodes, with their subtree hashes, by canonical
+	 * path in the order the shared memory pages them
+	 */
+	public Map<String,MemoryNode> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return the token to hand to the next call, or null if this is the
+	 * last page
+	 */
+	public String getNextToken() {
+		return nextToken;
+	}
+
+	public boolean hasMore() {
+		return nextToken != null;
+	}
+}
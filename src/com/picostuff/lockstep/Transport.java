@@ -0,0 +1,19 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Brings the content of an item at a given version to this machine, for a
+ * {@link DirectoryFileSystem} to put in place.
+ * 
+ * @author chenglim
+ *
+ */
+public interface Transport {
+	/**
+	 * Write the content of the item at the given version into the target
+	 * file, which the caller renames into place once it is whole.
+	 */
+	public void fetch(String key, String version, File target) throws IOException;
+}
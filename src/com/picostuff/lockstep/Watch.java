@@ -0,0 +1,66 @@
+package com.picostuff.lockstep;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A registered watch on a node or a subtree.  A one-shot watch fires once
+ * and is then gone, while a persistent one keeps firing until cancelled.
+ * 
+ * @author chenglim
+ *
+ */
+public class Watch {
+	private WatchManager manager;
+	private String path;
+	private boolean subtree;
+	private boolean persistent;
+	private NodeWatcher watcher;
+	private AtomicBoolean active;
+	
+	Watch(WatchManager manager, String path, boolean subtree, boolean persistent, NodeWatcher watcher) {
+		this.manager = manager;
+		this.path = path;
+		this.subtree = subtree;
+		this.persistent = persistent;
+		this.watcher = watcher;
+		this.active = new AtomicBoolean(true);
+	}
+	
+	public String getPath() {
+		return path;
+	}
+	
+	public boolean isSubtree() {
+		return subtree;
+	}
+	
+	public boolean isPersistent() {
+		return persistent;
+	}
+	
+	public boolean isActive() {
+		return active.get();
+	}
+	
+	public void cancel() {
+		if (active.getAndSet(false))
+			manager.remove(this);
+	}
+	
+	NodeWatcher getWatcher() {
+		return watcher;
+	}
+	
+	/**
+	 * @return true if the watch should fire, which a one-shot watch only does once
+	 */
+	boolean trigger() {
+		if (persistent)
+			return active.get();
+		if (active.compareAndSet(true, false)) {
+			manager.remove(this);
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,89 @@
+package com.picostuff.lockstep;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of the watches on a shared memory and delivers events to them.
+ * Watches are looked up by canonical path, so firing an event costs a probe
+ * for the path itself plus one per ancestor while any subtree watch exists,
+ * and nothing at all beyond a size check when nobody is watching.
+ * 
+ * @author chenglim
+ *
+ */
+class WatchManager {
+	private final ConcurrentMap<String,List<Watch>> nodeWatches;
+	private final ConcurrentMap<String,List<Watch>> subtreeWatches;
+	
+	public WatchManager() {
+		nodeWatches = new ConcurrentHashMap<String, List<Watch>>();
+		subtreeWatches = new ConcurrentHashMap<String, List<Watch>>();
+	}
+	
+	public Watch add(String path, boolean subtree, boolean persistent, NodeWatcher watcher) {
+		Watch watch = new Watch(this, path, subtree, persistent, watcher);
+		ConcurrentMap<String,List<Watch>> watches = subtree ? subtreeWatches : nodeWatches;
+		while (true) {
+			List<Watch> list = watches.get(path);
+			if (list == null) {
+				list = new CopyOnWriteArrayList<Watch>();
+				List<Watch> existing = watches.putIfAbsent(path, list);
+				if (existing != null)
+					list = existing;
+			}
+			list.add(watch);
+			if (watches.get(path) == list)
+				return watch;
+			// the list was dropped as empty while we were adding to it
+			list.remove(watch);
+		}
+	}
+	
+	public void remove(Watch watch) {
+		ConcurrentMap<String,List<Watch>> watches = watch.isSubtree() ? subtreeWatches : nodeWatches;
+		List<Watch> list = watches.get(watch.getPath());
+		if (list != null) {
+			list.remove(watch);
+			if (list.isEmpty())
+				watches.remove(watch.getPath(), list);
+		}
+	}
+	
+	public boolean hasWatches() {
+		return !nodeWatches.isEmpty() || !subtreeWatches.isEmpty();
+	}
+	
+	public void fire(NodeEvent event) {
+		if (!hasWatches())
+			return;
+		List<Watch> list = nodeWatches.get(event.getPath());
+		if (list != null)
+			fire(list, event);
+		if (!subtreeWatches.isEmpty()) {
+			String watchedPath = event.getPath();
+			while (watchedPath != null) {
+				list = subtreeWatches.get(watchedPath);
+				if (list != null)
+					fire(list, event);
+				watchedPath = MemoryPaths.parentOf(watchedPath);
+			}
+		}
+	}
+	
+	private void fire(List<Watch> list, NodeEvent event) {
+		for (Watch watch:list) {
+			if (watch.trigger()) {
+				try {
+					watch.getWatcher().process(event);
+				} catch (RuntimeException e) {
+					// the write already happened, so a failing watcher must not undo it; report it the way the thread would
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+				}
+			}
+		}
+	}
+}
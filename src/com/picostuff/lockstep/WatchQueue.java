@@ -0,0 +1,97 @@
+package com.picostuff.lockstep;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A watcher that queues events for another thread to pick up, keeping at
+ * most one pending event per path.  A burst of edits to one node turns into
+ * a single event carrying the latest version, so the consumer does work in
+ * proportion to the paths that changed rather than to the number of writes.
+ * 
+ * Paths come out in the order they first changed.
+ * 
+ * @author chenglim
+ *
+ */
+public class WatchQueue implements NodeWatcher {
+	private final Map<String,NodeEvent> pending = new LinkedHashMap<String, NodeEvent>();
+	
+	public synchronized void process(NodeEvent event) {
+		NodeEvent previous = pending.get(event.getPath());
+		NodeEvent merged = (previous == null) ? event : merge(previous, event);
+		if (merged == null) {
+			pending.remove(event.getPath());
+		} else {
+			pending.put(event.getPath(), merged);
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * @return the next pending event, or null if there is none
+	 */
+	public synchronized NodeEvent poll() {
+		Iterator<NodeEvent> iterator = pending.values().iterator();
+		if (!iterator.hasNext())
+			return null;
+		NodeEvent event = iterator.next();
+		iterator.remove();
+		return event;
+	}
+	
+	/**
+	 * @return the next pending event, or null if none came before the timeout
+	 */
+	public synchronized NodeEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (pending.isEmpty()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return null;
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return poll();
+	}
+	
+	public synchronized NodeEvent take() throws InterruptedException {
+		while (pending.isEmpty()) {
+			wait();
+		}
+		return poll();
+	}
+	
+	/**
+	 * Move every pending event into the given collection
+	 * 
+	 * @return the number of events moved
+	 */
+	public synchronized int drainTo(Collection<? super NodeEvent> events) {
+		int count = pending.size();
+		events.addAll(pending.values());
+		pending.clear();
+		return count;
+	}
+	
+	public synchronized int size() {
+		return pending.size();
+	}
+	
+	private NodeEvent merge(NodeEvent previous, NodeEvent event) {
+		switch (previous.getType()) {
+		case ADDED:
+			if (event.getType() == NodeEvent.Type.REMOVED)
+				return null; // came and went before anyone looked
+			return new NodeEvent(event.getSeq(), NodeEvent.Type.ADDED, event.getPath(), event.getVersion());
+		case REMOVED:
+			if (event.getType() == NodeEvent.Type.ADDED)
+				return new NodeEvent(event.getSeq(), NodeEvent.Type.CHANGED, event.getPath(), event.getVersion());
+			return event;
+		default:
+			return event;
+		}
+	}
+}
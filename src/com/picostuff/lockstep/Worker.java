@@ -1,14 +1,932 @@
 package com.picostuff.lockstep;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.picostuff.lockstep.exception.AddDuplicateException;
+import com.picostuff.lockstep.exception.BadPathException;
+import com.picostuff.lockstep.exception.MissingNodeException;
+import com.picostuff.lockstep.exception.ResyncRequiredException;
+import com.picostuff.lockstep.exception.SaveConflictException;
+import com.picostuff.lockstep.metrics.Counter;
+import com.picostuff.lockstep.metrics.Gauge;
+import com.picostuff.lockstep.metrics.Histogram;
+import com.picostuff.lockstep.metrics.Metrics;
+
 /**
- * There's one of these per thread. It manages the transfer of workspace items between workspaces to keep them in sync.
- * 
- * TODO: on startup, we are basically recovering to what we last know about server files, which means that we have
- * to persist that knowledge somewhere.  Basically, if we don't recover the state,
- * we are forced to wipe out all local changes.
+ * Keeps a workspace in sync with a shared memory by running items through
+ * three stages, with bounded queues in between:
+ *
+ * . scan - {@link #sync()} walks the local tree and a snapshot of the remote
+ * one on the calling thread, or {@link #syncChanges()} reads just what changed on each side
+ * . reconcile - a pool of threads runs {@link Workspace#processItem} on each
+ * item, with items split between the threads by a hash of their path, so
+ * one path is only ever handled by one thread
+ * . transfer - a separate pool moves content, in either direction
+ *
+ * A full reconcile queue holds up the scan, but the reconcile threads never
+ * wait on transfers.  When the transfer queue is full, the item is left for
+ * the next pass, so a slow large-file copy never holds up changes to other
+ * files.  An item whose transfer is still going is skipped the same way.
+ *
+ * The workspace is used from several threads at once, so its file system
+ * and local state storage must be thread-safe.
+ *
+ * On startup we recover what we last knew about the shared memory from the
+ * workspace's {@link LocalStateStorage}; if that isn't kept across
+ * restarts, the first pass treats everything as new on both sides.
+ *
+ * Started with {@link #startFast}, such as into an empty workspace, remote
+ * content isn't fetched as part of a pass.  A pass pushes local changes
+ * and makes dirs, and leaves the fetches to a background thread, so it
+ * is done in the time it takes to walk the trees.  Paths passed to
+ * {@link #touch} are fetched first, even while a pass is going, and the
+ * rest once the pass is done, in the order asked for.  Fast start ends
+ * once every fetch left by the passes so far is done.
+ *
+ * A full pass remembers the subtree hash (see {@link MemoryNode}) of each
+ * remote dir it left settled.  The next full pass skips a dir, on both
+ * sides, when its hash is still the same and the workspace reports no
+ * local change under it, so a mostly idle tree costs a few lookups rather
+ * than a walk.  A workspace that can't say what changed locally gets a
+ * full walk every time.
+ *
  * @author chenglim
  *
  */
 public class Worker {
+	/**
+	 * Which remote content to fetch first after a fast start
+	 */
+	public enum FetchOrder {
+		SMALLEST_FIRST, NEWEST_FIRST;
+	}
+
+	static private final int DEFAULT_TRANSFER_THREADS = 4;
+	static private final int DEFAULT_QUEUE_SIZE = 1024;
+	static private final int SCAN_PAGE_SIZE = 1000;
+
+	private final Workspace workspace;
+	private final SharedMemory memory;
+	private final List<BlockingQueue<String>> reconcileQueues;
+	private final List<Thread> reconcilers;
+	private final ThreadPoolExecutor transfers;
+	private final Set<String> inFlight; // paths being reconciled, or with a transfer queued or running
+	private final Set<String> conflicts;
+	private final Set<String> retries; // paths the last pass left for the next one
+	private final Set<String> failures; // paths that failed with an error since the last full pass
+	private final Map<String, Long> settledHashes; // used only by the scan, remote dirs to their hash when last settled
+	private final Object idleLock = new Object();
+	private int pending; // guarded by idleLock, items not yet through the pipeline
+	private volatile boolean stopped;
+	private volatile long remoteSeq = -1; // where the shared memory's change log was at the last pass
+	private final Semaphore fetchPermits; // lazy fetches in the transfer pool at once
+	private final Object fetchLock = new Object();
+	private final Map<String, LazyFetch> lazyFetches; // guarded by fetchLock, the same entries as fetchQueue
+	private final Map<String, Long> touched; // guarded by fetchLock, paths touched before their fetch was queued
+	private PriorityQueue<LazyFetch> fetchQueue; // guarded by fetchLock
+	private long touchCount; // guarded by fetchLock
+	private boolean passDone; // guarded by fetchLock, true once a pass ended in fast start
+	private int activeFetches; // guarded by fetchLock
+	private volatile boolean lazy; // true during a fast start
+	private Thread fetcher;
+	private Histogram passTime = Metrics.disabled().histogram("worker.pass"); // these are only set before start
+	private Histogram reconcileTime = Metrics.disabled().histogram("worker.reconcile");
+	private Histogram transferTime = Metrics.disabled().histogram("worker.transfer");
+	private Counter bytesDownloaded = Metrics.disabled().counter("worker.bytesDownloaded");
+	private Counter bytesUploaded = Metrics.disabled().counter("worker.bytesUploaded");
+
+	public Worker(Workspace workspace, SharedMemory memory) {
+		this(workspace, memory, Runtime.getRuntime().availableProcessors(), DEFAULT_TRANSFER_THREADS, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param queueSize how many items each queue between stages holds
+	 */
+	public Worker(Workspace workspace, SharedMemory memory, int reconcileThreads, int transferThreads, int queueSize) {
+		this.workspace = workspace;
+		this.memory = memory;
+		inFlight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		conflicts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		retries = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		failures = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		settledHashes = new HashMap<String, Long>();
+		reconcileQueues = new ArrayList<BlockingQueue<String>>(reconcileThreads);
+		reconcilers = new ArrayList<Thread>(reconcileThreads);
+		for (int i = 0; i < reconcileThreads; i++) {
+			final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(queueSize);
+			reconcileQueues.add(queue);
+			Thread thread = new Thread("lockstep-reconcile-" + i) {
+				@Override
+				public void run() {
+					reconcileLoop(queue);
+				}
+			};
+			thread.setDaemon(true);
+			reconcilers.add(thread);
+		}
+		final AtomicInteger transferCount = new AtomicInteger();
+		transfers = new ThreadPoolExecutor(transferThreads, transferThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "lockstep-transfer-" + transferCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		fetchPermits = new Semaphore(transferThreads);
+		lazyFetches = new HashMap<String, LazyFetch>();
+		touched = new HashMap<String, Long>();
+		fetchQueue = new PriorityQueue<LazyFetch>(16, comparatorFor(FetchOrder.SMALLEST_FIRST));
+	}
+
+	/**
+	 * Record how long each pass, reconcile and transfer takes, in histograms
+	 * named "worker.pass", "worker.reconcile" and "worker.transfer", the
+	 * bytes moved each way as far as the items' sizes are known, and how
+	 * many items wait in each queue.  Call this before starting the worker.
+	 */
+	public void setMetrics(Metrics metrics) {
+		passTime = metrics.histogram("worker.pass");
+		reconcileTime = metrics.histogram("worker.reconcile");
+		transferTime = metrics.histogram("worker.transfer");
+		bytesDownloaded = metrics.counter("worker.bytesDownloaded");
+		bytesUploaded = metrics.counter("worker.bytesUploaded");
+		metrics.gauge("worker.reconcileQueue", new Gauge() {
+			public long getValue() {
+				long size = 0;
+				for (BlockingQueue<String> queue:reconcileQueues) {
+					size += queue.size();
+				}
+				return size;
+			}
+		});
+		metrics.gauge("worker.transferQueue", new Gauge() {
+			public long getValue() {
+				return transfers.getQueue().size();
+			}
+		});
+		metrics.gauge("worker.inFlight", new Gauge() {
+			public long getValue() {
+				return inFlight.size();
+			}
+		});
+		metrics.gauge("worker.fetchQueue", new Gauge() {
+			public long getValue() {
+				synchronized (fetchLock) {
+					return lazyFetches.size();
+				}
+			}
+		});
+	}
+
+	public void start() {
+		for (Thread thread:reconcilers) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Start in fast start mode, where passes leave remote content to be
+	 * fetched in the background, in the given order
+	 */
+	public void startFast(FetchOrder order) {
+		synchronized (fetchLock) {
+			fetchQueue = new PriorityQueue<LazyFetch>(16, comparatorFor(order));
+		}
+		lazy = true;
+		fetcher = new Thread("lockstep-fetch") {
+			@Override
+			public void run() {
+				fetchLoop();
+			}
+		};
+		fetcher.setDaemon(true);
+		fetcher.start();
+		start();
+	}
+
+	public void stop() throws InterruptedException {
+		stopped = true;
+		for (Thread thread:reconcilers) {
+			thread.interrupt();
+		}
+		if (fetcher != null)
+			fetcher.interrupt();
+		transfers.shutdownNow();
+		for (Thread thread:reconcilers) {
+			thread.join();
+		}
+		if (fetcher != null)
+			fetcher.join();
+		transfers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Fetch the path, and anything under it, ahead of everything else left
+	 * to fetch after a fast start, such as when the user opens it
+	 */
+	public void touch(String path) {
+		if (!lazy)
+			return;
+		synchronized (fetchLock) {
+			long seq = ++touchCount;
+			touched.put(path, seq);
+			for (LazyFetch fetch:new ArrayList<LazyFetch>(lazyFetches.values())) {
+				if (fetch.touched == 0 && MemoryPaths.isSameOrBelow(fetch.key, path)) {
+					fetchQueue.remove(fetch);
+					LazyFetch first = new LazyFetch(fetch.key, fetch.size, fetch.modified, seq);
+					lazyFetches.put(fetch.key, first);
+					fetchQueue.add(first);
+				}
+			}
+			fetchLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return true until every fetch left by a fast start is done
+	 */
+	public boolean isFastStart() {
+		return lazy;
+	}
+
+	/**
+	 * Wait for every fetch left by a fast start to be done
+	 */
+	public void awaitFetches() throws InterruptedException {
+		synchronized (fetchLock) {
+			while (lazy)
+				fetchLock.wait();
+		}
+	}
+
+	/**
+	 * Make one pass over both trees, and wait for everything it found to
+	 * get through the pipeline.
+	 *
+	 * @return true if the pass settled everything it found, other than
+	 * conflicts; false if items were left for the next pass, such as a
+	 * child added here before its parent got pushed
+	 */
+	public boolean sync() throws InterruptedException {
+		return sync(null);
+	}
+
+	/**
+	 * @param localChanges what the workspace already told us changed, or
+	 * null to ask it
+	 */
+	private boolean sync(LocalChanges localChanges) throws InterruptedException {
+		long start = passTime.start();
+		// anything changed from here on is picked up by the next syncChanges
+		remoteSeq = memory.getLastSeq();
+		if (localChanges == null)
+			localChanges = workspace.pollChanges();
+		Pass pass = new Pass(localChanges);
+		retries.clear();
+		failures.clear();
+		scanSubtree("/", pass);
+		awaitIdle();
+		pass.settle();
+		endPass();
+		passTime.recordSince(start);
+		return retries.isEmpty();
+	}
+
+	/**
+	 * Make a pass over just what changed since the last pass: the local
+	 * changes the workspace tracked, the remote writes in the shared
+	 * memory's change log, and whatever the last pass left over.  Falls
+	 * back to {@link #sync()} the first time, and when either side has
+	 * lost track.
+	 *
+	 * @return as for {@link #sync()}
+	 */
+	public boolean syncChanges() throws InterruptedException {
+		if (remoteSeq < 0)
+			return sync();
+		Set<String> remotePaths = new HashSet<String>();
+		long seq = remoteSeq;
+		try {
+			ChangeSet changes;
+			do {
+				changes = memory.changesSince(seq, DEFAULT_QUEUE_SIZE);
+				for (NodeEvent event:changes.getChanges()) {
+					remotePaths.add(event.getPath());
+				}
+				seq = changes.getNextSeq();
+			} while (changes.hasMore());
+		} catch (ResyncRequiredException e) {
+			return sync();
+		}
+		LocalChanges localChanges = workspace.pollChanges();
+		if (localChanges.isEverything())
+			return sync(localChanges);
+		long start = passTime.start();
+		remoteSeq = seq;
+		Set<String> keys = new HashSet<String>(retries);
+		keys.addAll(remotePaths);
+		keys.addAll(localChanges.getPaths());
+		retries.clear();
+		for (String subtree:localChanges.getSubtrees()) {
+			scanSubtree(subtree, null);
+			for (Iterator<String> iterator = keys.iterator(); iterator.hasNext();) {
+				if (MemoryPaths.isSameOrBelow(iterator.next(), subtree))
+					iterator.remove(); // already done by the scan
+			}
+		}
+		for (String key:keys) {
+			enqueue(key);
+		}
+		awaitIdle();
+		endPass();
+		passTime.recordSince(start);
+		return retries.isEmpty();
+	}
+
+	/**
+	 * @return the paths whose last pass ended in a conflict
+	 */
+	public Set<String> getConflicts() {
+		return new TreeSet<String>(conflicts);
+	}
+
+	/**
+	 * @param pass the full pass this is part of, which can skip settled
+	 * subtrees, or null to look at everything
+	 */
+	private void scanSubtree(String path, Pass pass) throws InterruptedException {
+		Set<String> localKeys = workspace.getFileSet(path);
+		if (!path.equals("/") && !localKeys.contains(path))
+			enqueue(path);
+		// the remote walk reads one moment, so it can't miss a node moved from a part it hadn't reached to one it had
+		Snapshot snapshot = memory.snapshot();
+		try {
+			scanRemote(snapshot, path, localKeys, pass);
+		} finally {
+			snapshot.release();
+		}
+		for (String key:localKeys) {
+			if (pass == null || !pass.isSkipped(key))
+				enqueue(key);
+		}
+	}
+
+	/**
+	 * Walk the remote side a dir at a time, a page of children per call.  A
+	 * child with nothing below it, by its subtree hash, isn't looked into.
+	 */
+	private void scanRemote(Snapshot snapshot, String path, Set<String> localKeys, Pass pass) throws InterruptedException {
+		String pageToken = null;
+		do {
+			SubtreePage page;
+			try {
+				page = snapshot.copySubtree(path, 1, pageToken, SCAN_PAGE_SIZE);
+			} catch (MissingNodeException e) {
+				return; // removed while we were looking
+			} catch (BadPathException e) {
+				throw new IllegalStateException(e); // we only build paths from names we were given
+			}
+			for (Map.Entry<String, MemoryNode> entry:page.getNodes().entrySet()) {
+				String childPath = entry.getKey();
+				long subtreeHash = entry.getValue().getSubtreeHash();
+				if (childPath.equals(path)) {
+					if (pass != null && subtreeHash != 0 && pass.skip(path, subtreeHash))
+						return;
+					continue;
+				}
+				if (!localKeys.contains(childPath))
+					enqueue(childPath);
+				if (subtreeHash != 0)
+					scanRemote(snapshot, childPath, localKeys, pass);
+			}
+			pageToken = page.getNextToken();
+		} while (pageToken != null);
+	}
+
+	private void enqueue(String key) throws InterruptedException {
+		beginWork();
+		int partition = (key.hashCode() & Integer.MAX_VALUE) % reconcileQueues.size();
+		try {
+			reconcileQueues.get(partition).put(key);
+		} catch (InterruptedException e) {
+			endWork();
+			throw e;
+		}
+	}
+
+	private void reconcileLoop(BlockingQueue<String> queue) {
+		while (!stopped) {
+			String key;
+			try {
+				key = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			long start = reconcileTime.start();
+			try {
+				reconcile(key);
+			} catch (RuntimeException e) {
+				failures.add(key);
+				report(e);
+			} finally {
+				reconcileTime.recordSince(start);
+				endWork();
+			}
+		}
+	}
+
+	private void reconcile(String key) {
+		// claimed, so the fetcher can't start a transfer for the same path while we work on it
+		if (!inFlight.add(key)) {
+			retries.add(key);
+			return;
+		}
+		boolean handedOver = false;
+		try {
+			MemoryNode node = readRemote(key);
+			RemoteItemInfo remoteInfo = toRemoteInfo(node);
+			if (workspace.needsTransfer(key, remoteInfo)) {
+				if (lazy) {
+					defer(key, remoteInfo);
+				} else {
+					handedOver = true;
+					transfer(key, new Download(key, remoteInfo), null, true);
+				}
+			} else if (workspace.isLocalDelete(key, remoteInfo)) {
+				pushDelete(key, node);
+			} else {
+				LocalItemInfo localInfo = workspace.processItem(key, remoteInfo);
+				if (localInfo != null) {
+					handedOver = true;
+					transfer(key, new Upload(key, node, localInfo), null, true);
+				} else if (workspace.isLocalDelete(key, remoteInfo)) {
+					pushDelete(key, node); // a local delete the conflict policy kept over a remote change
+				} else {
+					conflicts.remove(key);
+				}
+			}
+		} catch (SaveConflictException e) {
+			conflicts.add(key);
+		} catch (BadPathException e) {
+			report(new IllegalStateException(e));
+		} finally {
+			if (!handedOver)
+				inFlight.remove(key);
+		}
+	}
+
+	static private RemoteItemInfo toRemoteInfo(MemoryNode node) {
+		if (node == null)
+			return null;
+		return new RemoteItemInfo(node.getName(), node.getVersion(), node.getSize(), node.getModified());
+	}
+
+	private MemoryNode readRemote(String key) throws BadPathException {
+		try {
+			return memory.copyNode(key);
+		} catch (MissingNodeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Push a local delete.  A dir only goes once it is empty remotely, so its
+	 * children go first, each as its own delete, and a child we never saw
+	 * makes the dir a remote change rather than part of the delete.
+	 */
+	private void pushDelete(String key, MemoryNode node) throws SaveConflictException, BadPathException {
+		try {
+			if (!SharedMemory.DIR_NODE_VERSION.equals(node.getVersion())) {
+				memory.removeNode(key, node);
+			} else if (node.getSubtreeHash() == 0) {
+				// and nothing was added to it since we looked
+				memory.multi(Arrays.asList(Op.checkSubtree(key, node), Op.remove(key, node)));
+			} else {
+				if (hasUnseenChild(key))
+					conflicts.add(key); // until fetching the child brings the dir back here
+				retries.add(key); // and otherwise once the children's deletes are in
+				return;
+			}
+		} catch (MissingNodeException e) {
+			// already gone along with a parent, which is what we wanted
+		} catch (AddDuplicateException e) {
+			throw new IllegalStateException(e); // the batch has no adds
+		} catch (SaveConflictException e) {
+			retries.add(key); // changed since we read it; the next pass sees the change
+			return;
+		}
+		workspace.processItem(key, null);
+		conflicts.remove(key);
+	}
+
+	private boolean hasUnseenChild(String key) throws BadPathException {
+		Set<String> names;
+		try {
+			names = memory.getChildrenNames(key);
+		} catch (MissingNodeException e) {
+			return false;
+		}
+		for (String name:names) {
+			String childKey = MemoryPaths.childPath(key, name);
+			// a child's delete goes out before we forget it, so one still there after we looked is new
+			if (!workspace.isKnown(childKey) && readRemote(childKey) != null)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Hand work to the transfer pool, or leave it for the next pass if the
+	 * pool is backed up.
+	 *
+	 * @param fetch the lazy fetch the work is for, if any, which is done
+	 * once the work is
+	 * @param claimed true if the caller already holds the key in inFlight,
+	 * which passes to the transfer
+	 */
+	private void transfer(final String key, final Transfer work, final LazyFetch fetch, boolean claimed) {
+		if (!claimed && !inFlight.add(key)) {
+			retries.add(key);
+			fetchDone(fetch);
+			return;
+		}
+		beginWork();
+		try {
+			transfers.execute(new Runnable() {
+				public void run() {
+					long start = transferTime.start();
+					try {
+						work.run();
+						conflicts.remove(key);
+					} catch (SaveConflictException e) {
+						conflicts.add(key);
+					} catch (Exception e) {
+						failures.add(key);
+						report(e);
+					} finally {
+						transferTime.recordSince(start);
+						inFlight.remove(key);
+						fetchDone(fetch);
+						endWork();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(key);
+			fetchDone(fetch);
+			endWork();
+			retries.add(key);
+		}
+	}
+
+	/**
+	 * Leave the fetch for the background, ahead of the rest if it was touched
+	 */
+	private void defer(String key, RemoteItemInfo remoteInfo) {
+		synchronized (fetchLock) {
+			if (lazyFetches.containsKey(key))
+				return;
+			long seq = 0;
+			for (String path = key; path != null; path = path.equals("/") ? null : MemoryPaths.parentOf(path)) {
+				Long touchSeq = touched.get(path);
+				if (touchSeq != null)
+					seq = seq == 0 ? touchSeq : Math.min(seq, touchSeq);
+			}
+			LazyFetch fetch = new LazyFetch(key, remoteInfo.getSize(), remoteInfo.getModified(), seq);
+			lazyFetches.put(key, fetch);
+			fetchQueue.add(fetch);
+			fetchLock.notifyAll();
+		}
+	}
+
+	private void endPass() {
+		if (!lazy)
+			return;
+		synchronized (fetchLock) {
+			passDone = true;
+			checkFetchesDone();
+			fetchLock.notifyAll();
+		}
+	}
+
+	private void fetchLoop() {
+		while (!stopped) {
+			LazyFetch fetch;
+			try {
+				fetchPermits.acquire();
+				synchronized (fetchLock) {
+					// only what was touched goes before the pass is done
+					while ((fetch = fetchQueue.peek()) == null || (!passDone && fetch.touched == 0)) {
+						fetchLock.wait();
+					}
+					fetchQueue.poll();
+					lazyFetches.remove(fetch.key);
+					activeFetches++;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				fetch(fetch);
+			} catch (InterruptedException e) {
+				return; // only once the fetch was done with
+			} catch (RuntimeException e) {
+				failures.add(fetch.key);
+				fetchDone(fetch);
+				report(e);
+			}
+		}
+	}
+
+	private void fetch(LazyFetch fetch) throws InterruptedException {
+		String key = fetch.key;
+		try {
+			// read it again, since it can have changed while it waited
+			RemoteItemInfo remoteInfo = toRemoteInfo(readRemote(key));
+			if (workspace.needsTransfer(key, remoteInfo)) {
+				transfer(key, new Download(key, remoteInfo), fetch, false);
+				return;
+			}
+		} catch (BadPathException e) {
+			report(new IllegalStateException(e));
+		}
+		fetchDone(fetch);
+		enqueue(key); // no longer a plain fetch, so reconcile it the usual way
+	}
+
+	private void fetchDone(LazyFetch fetch) {
+		if (fetch == null)
+			return;
+		fetchPermits.release();
+		synchronized (fetchLock) {
+			activeFetches--;
+			checkFetchesDone();
+		}
+	}
+
+	private void checkFetchesDone() {
+		if (passDone && lazyFetches.isEmpty() && activeFetches == 0 && lazy) {
+			lazy = false;
+			touched.clear();
+			fetchLock.notifyAll();
+		}
+	}
+
+	static private Comparator<LazyFetch> comparatorFor(final FetchOrder order) {
+		return new Comparator<LazyFetch>() {
+			public int compare(LazyFetch a, LazyFetch b) {
+				if (a.touched != b.touched) {
+					// touched first, and the first touched before the rest
+					if (a.touched == 0 || b.touched == 0)
+						return a.touched == 0 ? 1 : -1;
+					return a.touched < b.touched ? -1 : 1;
+				}
+				int result;
+				if (order == FetchOrder.SMALLEST_FIRST) {
+					result = compareKnown(a.size, b.size, false);
+				} else {
+					result = compareKnown(a.modified, b.modified, true);
+				}
+				return result != 0 ? result : a.key.compareTo(b.key);
+			}
+		};
+	}
+
+	/**
+	 * Compare two values where -1 means not known, which goes last either way
+	 */
+	static private int compareKnown(long a, long b, boolean descending) {
+		if (a == b)
+			return 0;
+		if (a < 0 || b < 0)
+			return a < 0 ? 1 : -1;
+		return (a < b) != descending ? -1 : 1;
+	}
+
+	private void beginWork() {
+		synchronized (idleLock) {
+			pending++;
+		}
+	}
+
+	private void endWork() {
+		synchronized (idleLock) {
+			pending--;
+			if (pending == 0)
+				idleLock.notifyAll();
+		}
+	}
+
+	private void awaitIdle() throws InterruptedException {
+		synchronized (idleLock) {
+			while (pending > 0)
+				idleLock.wait();
+		}
+	}
+
+	private void report(Exception e) {
+		// keep the pipeline going, and report it the way the thread would
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+	}
+
+	private interface Transfer {
+		public void run() throws SaveConflictException, BadPathException;
+	}
+
+	/**
+	 * Copy remote content into the workspace
+	 */
+	private class Download implements Transfer {
+		private final String key;
+		private final RemoteItemInfo remoteInfo;
+
+		Download(String key, RemoteItemInfo remoteInfo) {
+			this.key = key;
+			this.remoteInfo = remoteInfo;
+		}
+
+		public void run() throws SaveConflictException, BadPathException {
+			// the workspace checks the states again, in case the local item changed while we waited
+			workspace.processItem(key, remoteInfo);
+			bytesDownloaded.add(Math.max(remoteInfo.getSize(), 0));
+		}
+	}
+
+	/**
+	 * Push a new or changed local item to the shared memory, then record it as our base
+	 */
+	private class Upload implements Transfer {
+		private final String key;
+		private final MemoryNode oldNode;
+		private final LocalItemInfo localInfo;
+
+		Upload(String key, MemoryNode oldNode, LocalItemInfo localInfo) {
+			this.key = key;
+			this.oldNode = oldNode;
+			this.localInfo = localInfo;
+		}
+
+		public void run() throws SaveConflictException, BadPathException {
+			try {
+				if (oldNode == null) {
+					MemoryNode newNode = new MemoryNode(localInfo.getName(), localInfo.getVersion());
+					newNode.setSize(localInfo.getSize());
+					newNode.setModified(localInfo.getModified());
+					memory.multi(Collections.singletonList(Op.add(MemoryPaths.parentOf(key), newNode)));
+				} else {
+					MemoryNode newNode = oldNode.makeCopy();
+					newNode.setVersion(localInfo.getVersion());
+					newNode.setSize(localInfo.getSize());
+					newNode.setModified(localInfo.getModified());
+					memory.changeNode(key, oldNode, newNode);
+				}
+			} catch (MissingNodeException e) {
+				retries.add(key); // the parent isn't pushed yet
+				return;
+			} catch (AddDuplicateException e) {
+				retries.add(key); // added remotely meanwhile; the next pass compares them
+				return;
+			} catch (SaveConflictException e) {
+				retries.add(key); // changed remotely meanwhile; the next pass compares them
+				return;
+			}
+			workspace.processItem(key, new RemoteItemInfo(localInfo.getName(), localInfo.getVersion(), localInfo.getSize(), localInfo.getModified()));
+			bytesUploaded.add(Math.max(localInfo.getSize(), 0));
+		}
+	}
+
+	/**
+	 * A full pass, which skips the remote subtrees it can and then records
+	 * which ones it left settled
+	 */
+	private class Pass {
+		private final boolean skipping;
+		private final Set<String> unsettled; // paths changed or left over, and every dir above them
+		private final Set<String> changedSubtrees;
+		private final Set<String> skipped;
+		private final Map<String, Long> scanned;
+
+		Pass(LocalChanges localChanges) {
+			skipping = !localChanges.isEverything();
+			if (!skipping)
+				settledHashes.clear(); // the workspace lost track, so what we knew about it is no good
+			changedSubtrees = localChanges.getSubtrees();
+			unsettled = new HashSet<String>();
+			markUnsettled(localChanges.getPaths());
+			markUnsettled(changedSubtrees);
+			markUnsettled(leftOver());
+			skipped = new HashSet<String>();
+			scanned = new HashMap<String, Long>();
+		}
+
+		/**
+		 * @return true if the subtree at the path can be skipped, otherwise
+		 * take note of its hash
+		 */
+		boolean skip(String path, long hash) {
+			Long settled = settledHashes.get(path);
+			if (skipping && settled != null && settled == hash && !unsettled.contains(path) && !isBelowAny(path, changedSubtrees)) {
+				skipped.add(path);
+				return true;
+			}
+			scanned.put(path, hash);
+			return false;
+		}
+
+		/**
+		 * @return true if the path is below a skipped subtree
+		 */
+		boolean isSkipped(String key) {
+			if (skipped.isEmpty())
+				return false;
+			for (String path = MemoryPaths.parentOf(key); path != null; path = MemoryPaths.parentOf(path)) {
+				if (skipped.contains(path))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Once the pass is through the pipeline, remember the hashes of the
+		 * subtrees with nothing left over in them
+		 */
+		void settle() {
+			Set<String> leftOver = leftOver();
+			for (String key:leftOver) {
+				for (String path = key; path != null; path = MemoryPaths.parentOf(path)) {
+					scanned.remove(path);
+				}
+			}
+			for (Iterator<String> iterator = settledHashes.keySet().iterator(); iterator.hasNext();) {
+				String path = iterator.next();
+				if (!isSkipped(path) && !skipped.contains(path))
+					iterator.remove(); // looked at again, or gone
+			}
+			settledHashes.putAll(scanned);
+		}
+
+		private Set<String> leftOver() {
+			Set<String> paths = new HashSet<String>(retries);
+			paths.addAll(conflicts);
+			paths.addAll(failures);
+			paths.addAll(inFlight);
+			synchronized (fetchLock) {
+				paths.addAll(lazyFetches.keySet());
+			}
+			return paths;
+		}
+
+		private void markUnsettled(Set<String> keys) {
+			for (String key:keys) {
+				for (String path = key; path != null && unsettled.add(path); path = MemoryPaths.parentOf(path));
+			}
+		}
+
+		private boolean isBelowAny(String path, Set<String> subtrees) {
+			for (String subtree:subtrees) {
+				if (MemoryPaths.isSameOrBelow(path, subtree))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A fetch left for the background by a fast start
+	 */
+	static private class LazyFetch {
+		private final String key;
+		private final long size;
+		private final long modified;
+		private final long touched; // when it was touched, or 0
 
+		LazyFetch(String key, long size, long modified, long touched) {
+			this.key = key;
+			this.size = size;
+			this.modified = modified;
+			this.touched = touched;
+		}
+	}
 }
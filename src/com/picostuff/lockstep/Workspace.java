@@ -1,15 +1,24 @@
 package com.picostuff.lockstep;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import com.picostuff.lockstep.exception.BadPathException;
 import com.picostuff.lockstep.exception.SaveConflictException;
+import com.picostuff.lockstep.exception.StorageException;
+import com.picostuff.lockstep.metrics.Counter;
+import com.picostuff.lockstep.metrics.Metrics;
 
 /**
  * Eventually, this will be an interface fronting different
@@ -21,115 +30,495 @@ import com.picostuff.lockstep.exception.SaveConflictException;
  */
 public class Workspace {
 	
-	private Map<String,String> fileSystem; // simulate files in file system
-	private Map<String, BaseItemInfo> lastUpdatedItems; // TODO: this should be persisted across process restarts
+	private LocalFileSystem fileSystem;
+	private LocalStateStorage lastUpdatedItems; // persisted across process restarts when the storage supports it
+	private ChunkStore chunkStore; // null if the transport keeps no chunks
+	private volatile boolean placeholders; // true to make placeholders rather than fetch new remote files
+	private long maxHydratedBytes; // guarded by hydrated
+	private long hydratedBytes; // guarded by hydrated
+	private final LinkedHashMap<String, Long> hydrated = new LinkedHashMap<String, Long>(16, 0.75f, true); // placeholders since hydrated, least recently used first
+	private volatile Counter[][] outcomes = outcomeCounters(Metrics.disabled()); // by remote then local state ordinal
+	private volatile Counter conflicts = Metrics.disabled().counter("workspace.conflicts");
+	private volatile ConflictPolicy conflictPolicy = ConflictPolicy.REPORT;
+	private final Queue<Conflict> settled = new LinkedBlockingQueue<Conflict>(MAX_SETTLED); // conflicts the policy settled, oldest first
+	
+	static private final int MAX_SETTLED = 10000; // past this the oldest are dropped, for a caller that never polls
+	
+	/**
+	 * What {@link #processItem} does for a pair of states
+	 */
+	private enum ItemAction {
+		UPDATE_LOCAL, // take the remote item
+		UPDATE_BASE_IF_SAME, // both sides changed, which is only a conflict if they differ
+		PUSH, // hand the local item back to be pushed
+		REMOVE_LOCAL,
+		REMOVE_BASE, // gone on both sides, so forget it
+		NOTHING, // already in sync, or waiting on something else
+		CONFLICT, // settled by the conflict policy if it can be
+		UNEXPECTED; // a pair the states never come in
+	}
+	
+	static private final ItemAction[][] ACTIONS = actionTable(); // by remote then local state ordinal
+	
+	static private ItemAction[][] actionTable() {
+		ItemAction[][] actions = new ItemAction[RemoteItemState.values().length][LocalItemState.values().length];
+		for (ItemAction[] row:actions) {
+			Arrays.fill(row, ItemAction.UNEXPECTED);
+		}
+		set(actions, RemoteItemState.REMOTE_CHANGED, LocalItemState.LOCAL_UNCHANGED, ItemAction.UPDATE_LOCAL);
+		set(actions, RemoteItemState.REMOTE_CHANGED, LocalItemState.LOCAL_CHANGED, ItemAction.UPDATE_BASE_IF_SAME);
+		set(actions, RemoteItemState.REMOTE_CHANGED, LocalItemState.LOCAL_NOTHING, ItemAction.UPDATE_LOCAL);
+		set(actions, RemoteItemState.REMOTE_CHANGED, LocalItemState.LOCAL_DELETED, ItemAction.CONFLICT); // changed there and deleted here
+		set(actions, RemoteItemState.REMOTE_CHANGED, LocalItemState.LOCAL_PLACEHOLDER, ItemAction.UPDATE_LOCAL); // still just a placeholder
+		set(actions, RemoteItemState.REMOTE_NEW, LocalItemState.LOCAL_UNCHANGED, ItemAction.UPDATE_LOCAL);
+		set(actions, RemoteItemState.REMOTE_NEW, LocalItemState.LOCAL_NOTHING, ItemAction.UPDATE_LOCAL);
+		set(actions, RemoteItemState.REMOTE_NEW, LocalItemState.LOCAL_NEW, ItemAction.UPDATE_BASE_IF_SAME);
+		set(actions, RemoteItemState.REMOTE_NEW, LocalItemState.LOCAL_PLACEHOLDER, ItemAction.UPDATE_LOCAL);
+		set(actions, RemoteItemState.REMOTE_NOTHING, LocalItemState.LOCAL_NEW, ItemAction.PUSH);
+		set(actions, RemoteItemState.REMOTE_NOTHING, LocalItemState.LOCAL_NOTHING, ItemAction.REMOVE_BASE); // make sure our base info is up to date
+		set(actions, RemoteItemState.REMOTE_NOTHING, LocalItemState.LOCAL_PLACEHOLDER, ItemAction.REMOVE_LOCAL); // stands in for something that is gone
+		set(actions, RemoteItemState.REMOTE_UNCHANGED, LocalItemState.LOCAL_CHANGED, ItemAction.PUSH);
+		set(actions, RemoteItemState.REMOTE_UNCHANGED, LocalItemState.LOCAL_UNCHANGED, ItemAction.NOTHING); // already in sync
+		set(actions, RemoteItemState.REMOTE_UNCHANGED, LocalItemState.LOCAL_DELETED, ItemAction.NOTHING); // the delete has to be pushed first (see isLocalDelete)
+		set(actions, RemoteItemState.REMOTE_UNCHANGED, LocalItemState.LOCAL_PLACEHOLDER, ItemAction.NOTHING); // in sync, just not here yet
+		set(actions, RemoteItemState.REMOTE_DELETED, LocalItemState.LOCAL_UNCHANGED, ItemAction.REMOVE_LOCAL);
+		set(actions, RemoteItemState.REMOTE_DELETED, LocalItemState.LOCAL_CHANGED, ItemAction.CONFLICT);
+		set(actions, RemoteItemState.REMOTE_DELETED, LocalItemState.LOCAL_DELETED, ItemAction.REMOVE_BASE); // gone on both sides
+		set(actions, RemoteItemState.REMOTE_DELETED, LocalItemState.LOCAL_PLACEHOLDER, ItemAction.REMOVE_LOCAL);
+		return actions;
+	}
+	
+	static private void set(ItemAction[][] actions, RemoteItemState remoteState, LocalItemState localState, ItemAction action) {
+		actions[remoteState.ordinal()][localState.ordinal()] = action;
+	}
+	
+	/**
+	 * The local side of an item, read without making a LocalItemInfo, and
+	 * reused from item to item in a batch
+	 */
+	static private final class LocalView {
+		private String version; // null if nothing is here, and the dir version for a dir
+		private boolean placeholder;
+		private LocalItemState state;
+	}
 	
 	public Workspace(Map<String,String> fileSystem) {
+		this(fileSystem, new InMemoryLocalStateStorage());
+	}
+	
+	public Workspace(Map<String,String> fileSystem, LocalStateStorage lastUpdatedItems) {
+		this(new MapFileSystem(fileSystem), lastUpdatedItems); // simulate files in file system
+	}
+	
+	public Workspace(LocalFileSystem fileSystem, LocalStateStorage lastUpdatedItems) {
+		this(fileSystem, lastUpdatedItems, null);
+	}
+	
+	/**
+	 * @param chunkStore the store the file system's transport keeps chunks in,
+	 * which takes the chunks of the files we push and lets go of an item's
+	 * chunks when we remove it
+	 */
+	public Workspace(LocalFileSystem fileSystem, LocalStateStorage lastUpdatedItems, ChunkStore chunkStore) {
 		this.fileSystem = fileSystem;
-		lastUpdatedItems = new HashMap<String, BaseItemInfo>();
+		this.lastUpdatedItems = lastUpdatedItems;
+		this.chunkStore = chunkStore;
+	}
+	
+	/**
+	 * Make placeholders for remote files new to us, rather than fetching
+	 * them, and fetch their content when {@link #open} or {@link #hydrate}
+	 * asks for it.  Once the files hydrated that way hold more than the
+	 * given bytes, the least recently opened are made placeholders again,
+	 * as long as they haven't been changed here.
+	 * 
+	 * @param maxHydratedBytes Long.MAX_VALUE to never make placeholders of
+	 * hydrated files
+	 */
+	public void usePlaceholders(long maxHydratedBytes) {
+		synchronized (hydrated) {
+			this.maxHydratedBytes = maxHydratedBytes;
+		}
+		placeholders = true;
+	}
+	
+	/**
+	 * Count each item processed by its pair of states, such as
+	 * "workspace.REMOTE_CHANGED.LOCAL_UNCHANGED", and the conflicts found
+	 * in "workspace.conflicts"
+	 */
+	public void setMetrics(Metrics metrics) {
+		outcomes = outcomeCounters(metrics);
+		conflicts = metrics.counter("workspace.conflicts");
+	}
+	
+	static private Counter[][] outcomeCounters(Metrics metrics) {
+		RemoteItemState[] remoteStates = RemoteItemState.values();
+		LocalItemState[] localStates = LocalItemState.values();
+		Counter[][] counters = new Counter[remoteStates.length][localStates.length];
+		for (RemoteItemState remoteState:remoteStates) {
+			for (LocalItemState localState:localStates) {
+				counters[remoteState.ordinal()][localState.ordinal()] = metrics.counter("workspace." + remoteState + "." + localState);
+			}
+		}
+		return counters;
+	}
+	
+	/**
+	 * Settle conflicts by the given policy as they are found, rather than
+	 * leaving them, and note each one for {@link #pollConflicts}.  Only
+	 * files are settled this way; a dir on either side, or a file where a
+	 * dir needs to be, is always left as a conflict.
+	 */
+	public void setConflictPolicy(ConflictPolicy conflictPolicy) {
+		this.conflictPolicy = conflictPolicy;
+	}
+	
+	/**
+	 * @return the conflicts settled since the last call, oldest first
+	 */
+	public List<Conflict> pollConflicts() {
+		List<Conflict> polled = new ArrayList<Conflict>();
+		for (Conflict conflict = settled.poll(); conflict != null; conflict = settled.poll()) {
+			polled.add(conflict);
+		}
+		return polled;
 	}
 	
 	public Set<String> getFileSet() {
-		Set<String> set = new TreeSet<String>();
-		set.addAll(fileSystem.keySet());
-		return set;
+		return getFileSet("/");
+	}
+	
+	/**
+	 * @return the items at or below the given path
+	 */
+	public Set<String> getFileSet(String path) {
+		return fileSystem.getKeys(path);
+	}
+	
+	/**
+	 * @return what may have changed locally since the last call, so only
+	 * those items need to go through {@link #processItem}
+	 */
+	public LocalChanges pollChanges() {
+		return fileSystem.pollChanges();
 	}
 	
+	/**
+	 * @return a local item if it needs to be pushed as an add or a change
+	 * @throws SaveConflictException if the item conflicts and the conflict
+	 * policy leaves it
+	 */
 	public LocalItemInfo processItem(String key, RemoteItemInfo remoteInfo) throws SaveConflictException, BadPathException {
-		// return a local item if we it needs to be processed as an add
-		BaseItemInfo baseInfo = lastUpdatedItems.get(key);
-		LocalItemInfo localInfo = getLocalInfo(key);
-		RemoteItemState remoteItemState = RemoteItemState.findState(remoteInfo, baseInfo);
-		LocalItemState localItemState = LocalItemState.findState(localInfo, baseInfo);
-		switch (remoteItemState) {
-		case REMOTE_CHANGED:
-			switch (localItemState) {
-			case LOCAL_UNCHANGED:
-				updateLocalItem(key,remoteInfo, baseInfo);
-				break;
-			case LOCAL_CHANGED:
-				if (localInfo.getVersion().equals(remoteInfo.getVersion())) {
-					// local is the same as new, so we just need to update our base info
-					updateBaseInfo(key, remoteInfo, baseInfo);
-				} else {
-					throw new SaveConflictException();
-				}
+		LocalView local = new LocalView();
+		switch (reconcile(key, remoteInfo, local)) {
+		case PUSH:
+			return toPush(key, local.version);
+		case CONFLICT:
+			throw new SaveConflictException();
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Process a batch of items, such as a dir's worth from a scan, as
+	 * {@link #processItem} would one at a time, but without an exception for
+	 * each conflict and with the scratch it needs made once for the batch
+	 * 
+	 * @param remoteInfos the remote item for each key, or null where there
+	 * is none
+	 * @param pushes where to put the local items that need pushing, by key
+	 * @param conflicted where to put the keys that conflict, which don't
+	 * hold up the rest of the batch
+	 */
+	public void processItems(List<String> keys, List<RemoteItemInfo> remoteInfos, Map<String, LocalItemInfo> pushes, Collection<String> conflicted) throws BadPathException {
+		LocalView local = new LocalView();
+		for (int i = 0, size = keys.size(); i < size; i++) {
+			String key = keys.get(i);
+			switch (reconcile(key, remoteInfos.get(i), local)) {
+			case PUSH:
+				pushes.put(key, toPush(key, local.version));
 				break;
-			case LOCAL_NOTHING:
-				updateLocalItem(key,remoteInfo, baseInfo);
+			case CONFLICT:
+				conflicted.add(key);
 				break;
 			default:
-				throw new RuntimeException("Unexpected local state: " + localItemState);  // We should never get here, so that's why it's so drastic
-			}
-			break;
-		case REMOTE_NEW:
-			switch (localItemState) {
-			case LOCAL_UNCHANGED:
-				updateLocalItem(key,remoteInfo, baseInfo);
 				break;
-			case LOCAL_NOTHING:
-				updateLocalItem(key,remoteInfo, baseInfo);
-				break;
-			case LOCAL_NEW:
-				if (localInfo.getVersion().equals(remoteInfo.getVersion())) {
-					// local is the same as new, so we just need to update our base info
-					updateBaseInfo(key, remoteInfo, baseInfo);
-				} else {
-					throw new SaveConflictException();
-				}
-				break;
-			default:
-				throw new RuntimeException("Unexpected local state: " + localItemState);  // We should never get here, so that's why it's so drastic
 			}
-			break;
-		case REMOTE_NOTHING:
-			switch (localItemState) {
-			case LOCAL_NEW:
-				return localInfo;
-			case LOCAL_NOTHING:
-				// make sure our base info is up to date
-				removeBaseInfo(key);
-				break;
-			default:
-				throw new RuntimeException("Unexpected local state: " + localItemState);  // We should never get here, so that's why it's so drastic
+		}
+	}
+	
+	/**
+	 * Do what the table says for the item's pair of states
+	 * 
+	 * @param local scratch, left holding the local side of the item
+	 * @return PUSH if the local item needs pushing, CONFLICT if the sides
+	 * can't be reconciled here and the policy leaves them, or whatever else
+	 * was done
+	 */
+	private ItemAction reconcile(String key, RemoteItemInfo remoteInfo, LocalView local) throws BadPathException {
+		readLocalVersion(key, local);
+		if (remoteInfo != null && !local.placeholder && remoteInfo.getVersion().equals(local.version)
+				&& lastUpdatedItems.hasVersion(key, local.version)) {
+			// in sync, which is most items, so told without fetching the base
+			local.state = LocalItemState.LOCAL_UNCHANGED;
+			outcomes[RemoteItemState.REMOTE_UNCHANGED.ordinal()][LocalItemState.LOCAL_UNCHANGED.ordinal()].increment();
+			return ItemAction.NOTHING;
+		}
+		BaseItemInfo baseInfo = lastUpdatedItems.get(key);
+		local.state = LocalItemState.findState(local.version, local.placeholder, baseInfo);
+		RemoteItemState remoteItemState = RemoteItemState.findState(remoteInfo, baseInfo);
+		outcomes[remoteItemState.ordinal()][local.state.ordinal()].increment();
+		ItemAction action = ACTIONS[remoteItemState.ordinal()][local.state.ordinal()];
+		switch (action) {
+		case UPDATE_LOCAL:
+			if (!updateLocalItem(key, remoteInfo, baseInfo)) {
+				conflicts.increment();
+				return ItemAction.CONFLICT; // a file where we need a dir, which no policy can settle
 			}
 			break;
-		case REMOTE_UNCHANGED:
-			switch (localItemState) {
-			case LOCAL_CHANGED:
-				return localInfo;
-			default:
-				throw new RuntimeException("Unexpected local state: " + localItemState);  // We should never get here, so that's why it's so drastic
+		case UPDATE_BASE_IF_SAME:
+			if (local.version.equals(remoteInfo.getVersion())) {
+				// local is the same as new, so we just need to update our base info
+				updateBaseInfo(key, remoteInfo, baseInfo);
+				keepChunks(key, local.version);
+			} else {
+				action = ItemAction.CONFLICT;
 			}
-			//break;
-		case REMOTE_DELETED:
-			switch (localItemState) {
-			case LOCAL_UNCHANGED:
-				removeLocalItem(key);
-				break;
-			case LOCAL_CHANGED:
-				throw new SaveConflictException();
-			default:
-				throw new RuntimeException("Unexpected local state: " + localItemState);  // We should never get here, so that's why it's so drastic
+			break;
+		case REMOVE_LOCAL:
+			removeLocalItem(key);
+			break;
+		case REMOVE_BASE:
+			releaseChunks(key);
+			removeBaseInfo(key);
+			break;
+		case UNEXPECTED:
+			throw new RuntimeException("Unexpected states: " + remoteItemState + ", " + local.state);  // We should never get here, so that's why it's so drastic
+		default:
+			break; // PUSH, CONFLICT and NOTHING change nothing here
+		}
+		if (action == ItemAction.CONFLICT) {
+			conflicts.increment();
+			action = settle(key, remoteInfo, baseInfo, local);
+		}
+		return action;
+	}
+	
+	/**
+	 * Settle a conflict by the policy: both sides changed, or one changed
+	 * and the other deleted
+	 * 
+	 * @return what was done, as for {@link #reconcile}
+	 */
+	private ItemAction settle(String key, RemoteItemInfo remoteInfo, BaseItemInfo baseInfo, LocalView local) throws BadPathException {
+		ConflictPolicy policy = conflictPolicy;
+		if (policy == ConflictPolicy.REPORT || SharedMemory.DIR_NODE_VERSION.equals(local.version)
+				|| (remoteInfo != null && remoteInfo.getVersion().equals(SharedMemory.DIR_NODE_VERSION)))
+			return ItemAction.CONFLICT;
+		String copyKey = null;
+		boolean takeRemote;
+		switch (policy) {
+		case PREFER_REMOTE:
+			takeRemote = true;
+			break;
+		case LAST_WRITER_WINS:
+			long localModified = local.version != null ? fileSystem.getModified(key) : -1;
+			long remoteModified = remoteInfo != null ? remoteInfo.getModified() : -1;
+			takeRemote = localModified < 0 || remoteModified >= localModified;
+			break;
+		case KEEP_BOTH:
+			if (local.version == null || remoteInfo == null) {
+				takeRemote = remoteInfo != null; // only one side has anything to keep
+			} else {
+				copyKey = conflictCopyKey(key);
+				fileSystem.move(key, copyKey); // new here, so pushed like any other
+				takeRemote = true;
 			}
 			break;
 		default:
-			throw new RuntimeException("Unexpected remote state: " + remoteItemState);  // We should never get here, so that's why it's so drastic
+			takeRemote = false;
+			break;
+		}
+		ItemAction action;
+		if (takeRemote) {
+			if (remoteInfo == null) {
+				removeLocalItem(key);
+				action = ItemAction.REMOVE_LOCAL;
+			} else if (updateLocalItem(key, remoteInfo, baseInfo)) {
+				action = ItemAction.UPDATE_LOCAL;
+			} else {
+				return ItemAction.CONFLICT;
+			}
+		} else if (remoteInfo == null) {
+			removeBaseInfo(key); // so the local item is new, and pushed as an add
+			action = ItemAction.PUSH;
+		} else {
+			updateBaseInfo(key, remoteInfo, baseInfo); // as if we changed or deleted what is there now
+			action = local.version != null ? ItemAction.PUSH : ItemAction.NOTHING; // the delete is pushed after (see isLocalDelete)
+		}
+		Conflict.Outcome outcome = copyKey != null ? Conflict.Outcome.BOTH_KEPT : takeRemote ? Conflict.Outcome.REMOTE_KEPT : Conflict.Outcome.LOCAL_KEPT;
+		Conflict conflict = new Conflict(key, local.version, remoteInfo != null ? remoteInfo.getVersion() : null, outcome, copyKey);
+		while (!settled.offer(conflict)) {
+			settled.poll();
+		}
+		return action;
+	}
+	
+	/**
+	 * @return a free key next to the item for a copy of it, such as
+	 * "/dir/name (conflict 1).txt" for "/dir/name.txt"
+	 */
+	private String conflictCopyKey(String key) {
+		int nameStart = key.lastIndexOf('/') + 1;
+		int dot = key.lastIndexOf('.');
+		if (dot <= nameStart)
+			dot = key.length(); // no extension, or a name that starts with its only dot
+		String stem = key.substring(0, dot);
+		String extension = key.substring(dot);
+		for (int i = 1;; i++) {
+			String copyKey = stem + " (conflict " + i + ")" + extension;
+			if (!fileSystem.exists(copyKey) && lastUpdatedItems.get(copyKey) == null)
+				return copyKey;
+		}
+	}
+	
+	/**
+	 * @return true if processing the item would copy remote content into the
+	 * workspace, which is the slow part a caller may want to do elsewhere
+	 */
+	public boolean needsTransfer(String key, RemoteItemInfo remoteInfo) throws BadPathException {
+		if (remoteInfo == null || remoteInfo.getVersion().equals(SharedMemory.DIR_NODE_VERSION))
+			return false;
+		BaseItemInfo baseInfo = lastUpdatedItems.get(key);
+		RemoteItemState remoteItemState = RemoteItemState.findState(remoteInfo, baseInfo);
+		if (remoteItemState != RemoteItemState.REMOTE_CHANGED && remoteItemState != RemoteItemState.REMOTE_NEW)
+			return false;
+		LocalView local = new LocalView();
+		readLocal(key, baseInfo, local);
+		LocalItemState localItemState = local.state;
+		if (localItemState == LocalItemState.LOCAL_NOTHING)
+			return !placeholders; // a placeholder is quick to make
+		return localItemState == LocalItemState.LOCAL_UNCHANGED;
+	}
+	
+	/**
+	 * Bring the content of a placeholder here, for a caller about to read
+	 * it, and count it as the most recently used
+	 * 
+	 * @return true if the item was a placeholder
+	 */
+	public boolean open(String key) {
+		boolean wasPlaceholder = hydrate(key);
+		if (!wasPlaceholder) {
+			synchronized (hydrated) {
+				hydrated.get(key); // a read, which moves it to the back of the line
+			}
 		}
-		return null;
+		return wasPlaceholder;
 	}
 	
-	private LocalItemInfo getLocalInfo(String key) throws BadPathException {
-		if (fileSystem.containsKey(key)) {
-			String content = fileSystem.get(key); // content is version for now
-			String[] parts = makePathParts(key);
-			String name = parts[parts.length - 1];
-			return new LocalItemInfo(name,content); // null content is dir
+	/**
+	 * Bring the content of a placeholder here
+	 * 
+	 * @return true if the item was a placeholder
+	 */
+	public boolean hydrate(String key) {
+		if (!fileSystem.isPlaceholder(key))
+			return false;
+		String version = fileSystem.getVersion(key);
+		long size = fileSystem.getSize(key);
+		fileSystem.put(key, version);
+		List<String> cold = new ArrayList<String>();
+		synchronized (hydrated) {
+			Long oldSize = hydrated.put(key, Math.max(size, 0));
+			hydratedBytes += Math.max(size, 0) - (oldSize == null ? 0 : oldSize);
+			for (Iterator<Map.Entry<String, Long>> entries = hydrated.entrySet().iterator(); entries.hasNext() && hydratedBytes > maxHydratedBytes;) {
+				Map.Entry<String, Long> entry = entries.next();
+				if (entry.getKey().equals(key))
+					continue;
+				cold.add(entry.getKey());
+				hydratedBytes -= entry.getValue();
+				entries.remove();
+			}
+		}
+		for (String coldKey:cold) {
+			dehydrate(coldKey);
+		}
+		return true;
+	}
+	
+	/**
+	 * Make a file a placeholder again, to free the space its content takes,
+	 * unless it has been changed here
+	 * 
+	 * @return true if the file is now a placeholder
+	 */
+	public boolean dehydrate(String key) {
+		BaseItemInfo baseInfo = lastUpdatedItems.get(key);
+		LocalView local = new LocalView();
+		try {
+			readLocal(key, baseInfo, local);
+		} catch (BadPathException e) {
+			return false;
+		}
+		if (local.state != LocalItemState.LOCAL_UNCHANGED || local.version.equals(SharedMemory.DIR_NODE_VERSION))
+			return false;
+		fileSystem.putPlaceholder(key, local.version, fileSystem.getSize(key));
+		return true;
+	}
+	
+	/**
+	 * @return true if the item was deleted here and not changed remotely, so
+	 * the delete needs to be pushed before {@link #processItem} can forget it
+	 */
+	public boolean isLocalDelete(String key, RemoteItemInfo remoteInfo) throws BadPathException {
+		BaseItemInfo baseInfo = lastUpdatedItems.get(key);
+		if (RemoteItemState.findState(remoteInfo, baseInfo) != RemoteItemState.REMOTE_UNCHANGED)
+			return false;
+		LocalView local = new LocalView();
+		readLocal(key, baseInfo, local);
+		return local.state == LocalItemState.LOCAL_DELETED;
+	}
+	
+	/**
+	 * @return true if the item has been in sync here, so we know of it
+	 */
+	public boolean isKnown(String key) {
+		return lastUpdatedItems.get(key) != null;
+	}
+	
+	private void readLocal(String key, BaseItemInfo baseInfo, LocalView local) throws BadPathException {
+		readLocalVersion(key, local);
+		local.state = LocalItemState.findState(local.version, local.placeholder, baseInfo);
+	}
+	
+	private void readLocalVersion(String key, LocalView local) throws BadPathException {
+		local.placeholder = false;
+		if (fileSystem.exists(key)) {
+			checkPath(key);
+			local.version = fileSystem.getVersion(key);
+			if (local.version == null)
+				local.version = SharedMemory.DIR_NODE_VERSION; // null version is dir
+			else
+				local.placeholder = fileSystem.isPlaceholder(key);
 		} else {
-			return null;
+			local.version = null;
 		}
 	}
 	
+	/**
+	 * @return the item to push, with its size and modified time, which only
+	 * an item about to be pushed needs, so only it pays for them
+	 */
+	private LocalItemInfo toPush(String key, String version) {
+		String name = key.substring(key.lastIndexOf('/') + 1);
+		if (version.equals(SharedMemory.DIR_NODE_VERSION))
+			return new LocalItemInfo(name);
+		return new LocalItemInfo(name, version, fileSystem.getSize(key), fileSystem.getModified(key));
+	}
+	
 	private void updateBaseInfo(String key, RemoteItemInfo remoteInfo, BaseItemInfo baseInfo) {
 		if (baseInfo == null) {
 			baseInfo = new BaseItemInfo(remoteInfo.getName(),remoteInfo.getVersion());
@@ -138,11 +527,23 @@ public class Workspace {
 		}
 		lastUpdatedItems.put(key, baseInfo);
 	}
-	private void updateLocalItem(String key, RemoteItemInfo remoteInfo, BaseItemInfo baseInfo) throws BadPathException, SaveConflictException {
-		String[] parts = makePathParts(key);
-		addDirs(parts);
-		fileSystem.put(key, remoteInfo.getVersion()); // In the real situation, we might have a link to the data and transfer it to the file system
+	/**
+	 * @return false if a file is where one of the item's dirs needs to be
+	 */
+	private boolean updateLocalItem(String key, RemoteItemInfo remoteInfo, BaseItemInfo baseInfo) throws BadPathException {
+		checkPath(key);
+		if (!addDirs(key))
+			return false;
+		String version = remoteInfo.getVersion();
+		if (version.equals(SharedMemory.DIR_NODE_VERSION))
+			version = null; // null version is dir
+		if (version != null && ((placeholders && !fileSystem.exists(key)) || fileSystem.isPlaceholder(key))) {
+			fileSystem.putPlaceholder(key, version, remoteInfo.getSize()); // and a placeholder stays one until opened
+		} else {
+			fileSystem.put(key, version);
+		}
 		updateBaseInfo(key,remoteInfo,baseInfo);
+		return true;
 	}
 	
 	public void rejectLocalItem(String key) {
@@ -151,41 +552,76 @@ public class Workspace {
 		// TODO: consider the case where a parent dir is actually a file and so the file does not actually exist.  That parent file needs to be
 		// the one removed
 		fileSystem.remove(key); // in reality, we maybe rename to a rejected filename
+		releaseChunks(key);
+		forgetHydrated(key);
 		lastUpdatedItems.remove(key); // the file is considered last deleted (since we can't recover what it was before and so we can accept whatever it currently is remotely)
 	}
 	
 	public void removeLocalItem(String key) {
 		fileSystem.remove(key);
+		releaseChunks(key);
+		forgetHydrated(key);
 		removeBaseInfo(key);
 	}
 	
+	private void forgetHydrated(String key) {
+		synchronized (hydrated) {
+			Long size = hydrated.remove(key);
+			if (size != null)
+				hydratedBytes -= size;
+		}
+	}
+	
+	/**
+	 * Keep the chunks of a file we now agree on with the remote side, such
+	 * as one changed here and pushed, so content shared with it isn't
+	 * fetched again
+	 */
+	private void keepChunks(String key, String version) {
+		if (chunkStore == null || version.equals(SharedMemory.DIR_NODE_VERSION))
+			return;
+		File file = fileSystem.getFile(key);
+		if (file == null)
+			return;
+		try {
+			chunkStore.add(key, file.toPath());
+		} catch (NoSuchFileException e) {
+			// deleted since, which the next pass pushes
+		} catch (IOException e) {
+			throw new StorageException("Can't keep chunks of " + key, e);
+		}
+	}
+	
+	private void releaseChunks(String key) {
+		if (chunkStore != null)
+			chunkStore.release(key);
+	}
+	
 	private void removeBaseInfo(String key) {
 		lastUpdatedItems.remove(key);
 	}
 
-	private String[] makePathParts(String path) throws BadPathException {
-		String[] parts = path.split("/",-1);
-		if ((parts.length < 2) || !parts[0].equals("") || parts[1].equals(""))
+	static private void checkPath(String path) throws BadPathException {
+		if (path.length() < 2 || path.charAt(0) != '/' || path.charAt(1) == '/')
 			throw new BadPathException(path);
-		return parts;
 	}
 
-	private void addDirs(String[] parts) throws SaveConflictException {
+	/**
+	 * @return false if a file is where a dir needs to be
+	 */
+	private boolean addDirs(String key) {
 		// this adds to the file system to allow adding new files, but will be reconciled with the distributed system later
-		StringBuilder dirPath = new StringBuilder();
-		for (int i = 0; i < parts.length - 1; i++) {
-			if (!parts[i].equals("")) {
-				// add a dir
-				dirPath.append("/").append(parts[i]);
-				String key = dirPath.toString();
-				String content = fileSystem.get(key);
-				if (content == null) {
-					fileSystem.put(key, null);
-				} else {
-					throw new SaveConflictException();
-				}
+		for (int slash = key.indexOf('/', 1); slash > 0; slash = key.indexOf('/', slash + 1)) {
+			if (key.charAt(slash - 1) == '/')
+				continue; // an empty name
+			String dirPath = key.substring(0, slash);
+			if (fileSystem.getVersion(dirPath) != null) {
+				return false;
+			} else if (!fileSystem.exists(dirPath)) {
+				fileSystem.put(dirPath, null);
 			}
 		}
+		return true;
 	}
 		
 }
@@ -0,0 +1,18 @@
+package com.picostuff.lockstep.exception;
+
+/**
+ * The changes since a cursor are no longer kept, so the caller has to
+ * rescan the tree and start again from the current sequence number.
+ */
+public class ResyncRequiredException extends Exception {
+	private long seq;
+	
+	public ResyncRequiredException(long seq) {
+		super(String.valueOf(seq));
+		this.seq = seq;
+	}
+	
+	public long getSeq() {
+		return seq;
+	}
+}
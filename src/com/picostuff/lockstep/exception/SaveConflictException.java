@@ -1,5 +1,27 @@
 package com.picostuff.lockstep.exception;
 
-public class SaveConflictException extends Exception {
+import java.util.Collections;
+import java.util.List;
 
+public class SaveConflictException extends Exception {
+	private List<String> paths;
+	
+	public SaveConflictException() {
+		this.paths = Collections.emptyList();
+	}
+	
+	/**
+	 * @param paths the paths that failed their version check
+	 */
+	public SaveConflictException(List<String> paths) {
+		super(paths.toString());
+		this.paths = Collections.unmodifiableList(paths);
+	}
+	
+	/**
+	 * @return the paths that failed their version check, which may be empty if they weren't tracked
+	 */
+	public List<String> getPaths() {
+		return paths;
+	}
 }
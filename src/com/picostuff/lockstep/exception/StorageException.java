@@ -0,0 +1,15 @@
+package com.picostuff.lockstep.exception;
+
+/**
+ * The store behind a shared memory or workspace failed in a way the
+ * caller can't do anything about, such as a lost database connection.
+ */
+public class StorageException extends RuntimeException {
+	public StorageException(Throwable cause) {
+		super(cause);
+	}
+	
+	public StorageException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
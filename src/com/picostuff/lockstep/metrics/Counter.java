@@ -0,0 +1,39 @@
+package com.picostuff.lockstep.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up, safe to add to from any thread without
+ * allocating.  The counters of a disabled {@link Metrics} keep nothing,
+ * so adding to one costs a null check.
+ * 
+ * @author chenglim
+ *
+ */
+public final class Counter {
+	static final Counter DISABLED = new Counter(null);
+	
+	private final AtomicLong count;
+	
+	Counter() {
+		this(new AtomicLong());
+	}
+	
+	private Counter(AtomicLong count) {
+		this.count = count;
+	}
+	
+	public void increment() {
+		if (count != null)
+			count.incrementAndGet();
+	}
+	
+	public void add(long amount) {
+		if (count != null)
+			count.addAndGet(amount);
+	}
+	
+	public long getCount() {
+		return count != null ? count.get() : 0;
+	}
+}
@@ -0,0 +1,12 @@
+package com.picostuff.lockstep.metrics;
+
+/**
+ * A value read when the metrics are, such as how deep a queue is, so
+ * keeping it up to date costs nothing
+ * 
+ * @author chenglim
+ *
+ */
+public interface Gauge {
+	public long getValue();
+}
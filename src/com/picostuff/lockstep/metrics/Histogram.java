@@ -0,0 +1,124 @@
+package com.picostuff.lockstep.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of values, such as latencies in nanoseconds, in buckets that get
+ * wider as the values get bigger, as an HDR histogram keeps them: values
+ * below 32 each get a bucket, and above that each power of two is split
+ * into 32, so a percentile is within about 3% of the true value however
+ * big it is.  Recording is a few atomic adds and never allocates.
+ * 
+ * The histograms of a disabled {@link Metrics} keep nothing, and
+ * {@link #start()} doesn't even read the clock.
+ * 
+ * @author chenglim
+ *
+ */
+public final class Histogram {
+	static final Histogram DISABLED = new Histogram(false);
+	
+	static private final int SUB_BITS = 5;
+	static private final int SUB_COUNT = 1 << SUB_BITS;
+	static private final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+	
+	private final AtomicLongArray buckets; // null when disabled
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+	
+	Histogram() {
+		this(true);
+	}
+	
+	private Histogram(boolean enabled) {
+		buckets = enabled ? new AtomicLongArray(BUCKETS) : null;
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+	
+	/**
+	 * @return the time to hand to {@link #recordSince}
+	 */
+	public long start() {
+		return buckets != null ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * Record the nanoseconds since a {@link #start()}
+	 */
+	public void recordSince(long start) {
+		if (buckets != null)
+			record(System.nanoTime() - start);
+	}
+	
+	public void record(long value) {
+		if (buckets == null)
+			return;
+		if (value < 0)
+			value = 0;
+		buckets.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	public double getMean() {
+		long recorded = count.get();
+		return recorded == 0 ? 0 : (double)sum.get() / recorded;
+	}
+	
+	/**
+	 * @param percentile from 0 to 100
+	 * @return the highest value of the bucket the percentile falls in, or 0
+	 * if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (buckets == null)
+			return 0;
+		long total = 0;
+		long[] counts = new long[BUCKETS]; // read once, so the walk below sees one set of counts
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highestIn(i), max.get());
+		}
+		return max.get();
+	}
+	
+	static int indexOf(long value) {
+		if (value < SUB_COUNT)
+			return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+	}
+	
+	static long highestIn(int index) {
+		if (index < SUB_COUNT)
+			return index;
+		int exponent = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+		long sub = (index - SUB_COUNT) % SUB_COUNT;
+		long lowest = (1L << exponent) | (sub << (exponent - SUB_BITS));
+		return lowest + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,101 @@
+package com.picostuff.lockstep.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+/**
+ * The metrics as read-only MBean attributes: a counter or gauge under its
+ * own name, and a histogram as its name with ".count", ".mean", ".p50",
+ * ".p90", ".p99" and ".max" on the end.  Metrics made after registering
+ * show up the next time the attributes are listed.
+ * 
+ * @author chenglim
+ *
+ */
+final class JmxMetrics implements DynamicMBean {
+	static private final String[] HISTOGRAM_PARTS = { "count", "mean", "p50", "p90", "p99", "max" };
+	
+	private final Metrics metrics;
+	
+	JmxMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Counter counter = metrics.getCounters().get(attribute);
+		if (counter != null)
+			return counter.getCount();
+		Long gauge = metrics.getGauges().get(attribute);
+		if (gauge != null)
+			return gauge;
+		int dot = attribute.lastIndexOf('.');
+		Histogram histogram = dot < 0 ? null : metrics.getHistograms().get(attribute.substring(0, dot));
+		if (histogram != null) {
+			String part = attribute.substring(dot + 1);
+			if (part.equals("count"))
+				return histogram.getCount();
+			if (part.equals("mean"))
+				return histogram.getMean();
+			if (part.equals("max"))
+				return histogram.getMax();
+			if (part.equals("p50"))
+				return histogram.getPercentile(50);
+			if (part.equals("p90"))
+				return histogram.getPercentile(90);
+			if (part.equals("p99"))
+				return histogram.getPercentile(99);
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+	
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute:attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// left out, as the interface asks
+			}
+		}
+		return list;
+	}
+	
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+	
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList(); // none of them can be set
+	}
+	
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+	
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name:metrics.getCounters().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+		}
+		for (String name:metrics.getGauges().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", "gauge", true, false, false));
+		}
+		for (Map.Entry<String, Histogram> entry:metrics.getHistograms().entrySet()) {
+			for (String part:HISTOGRAM_PARTS) {
+				attributes.add(new MBeanAttributeInfo(entry.getKey() + "." + part, part.equals("mean") ? "double" : "long",
+						"histogram " + part, true, false, false));
+			}
+		}
+		return new MBeanInfo(getClass().getName(), "lockstep sync metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, null, null);
+	}
+}
@@ -0,0 +1,175 @@
+package com.picostuff.lockstep.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Named counters, histograms and gauges, for the parts of the sync to
+ * record into as they go.  Each part looks up what it records into once,
+ * when it is handed the metrics, so recording is just the update.
+ * 
+ * {@link #disabled()} hands out counters and histograms that keep
+ * nothing, and is what everything uses unless given metrics of its own,
+ * so the instrumentation costs nothing until it is turned on.
+ * 
+ * The metrics can be read directly, through JMX once
+ * {@link #registerMBean registered}, or handed to a
+ * {@link MetricsReporter} every so often.
+ * 
+ * @author chenglim
+ *
+ */
+public class Metrics {
+	static private final Metrics DISABLED = new Metrics(false);
+	
+	private final boolean enabled;
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private ScheduledExecutorService reporting; // guarded by this
+	
+	public Metrics() {
+		this(true);
+	}
+	
+	private Metrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * @return metrics that record nothing
+	 */
+	static public Metrics disabled() {
+		return DISABLED;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * @return the counter with the name, made the first time it is asked for
+	 */
+	public Counter counter(String name) {
+		if (!enabled)
+			return Counter.DISABLED;
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = new Counter();
+			Counter existing = counters.putIfAbsent(name, counter);
+			if (existing != null)
+				counter = existing;
+		}
+		return counter;
+	}
+	
+	/**
+	 * @return the histogram with the name, made the first time it is asked for
+	 */
+	public Histogram histogram(String name) {
+		if (!enabled)
+			return Histogram.DISABLED;
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram existing = histograms.putIfAbsent(name, histogram);
+			if (existing != null)
+				histogram = existing;
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Read the gauge under the name from now on, in place of any gauge it
+	 * had before
+	 */
+	public void gauge(String name, Gauge gauge) {
+		if (enabled)
+			gauges.put(name, gauge);
+	}
+	
+	/**
+	 * @return the counters, by name
+	 */
+	public SortedMap<String, Counter> getCounters() {
+		return new TreeMap<String, Counter>(counters);
+	}
+	
+	/**
+	 * @return the histograms, by name
+	 */
+	public SortedMap<String, Histogram> getHistograms() {
+		return new TreeMap<String, Histogram>(histograms);
+	}
+	
+	/**
+	 * @return the current value of each gauge, by name
+	 */
+	public SortedMap<String, Long> getGauges() {
+		SortedMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry:gauges.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getValue());
+		}
+		return values;
+	}
+	
+	/**
+	 * Make the metrics readable through the platform MBean server
+	 * 
+	 * @param name such as "com.picostuff.lockstep:type=Metrics"
+	 * @return the name it was registered under, to unregister with
+	 */
+	public ObjectName registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new JmxMetrics(this), objectName);
+		return objectName;
+	}
+	
+	public void unregisterMBean(ObjectName name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	}
+	
+	/**
+	 * Hand the metrics to the reporter every period, on a thread of its own,
+	 * until {@link #stopReporting()}
+	 */
+	public synchronized void startReporting(final MetricsReporter reporter, long period, TimeUnit unit) {
+		stopReporting();
+		reporting = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "lockstep-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reporting.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					reporter.report(Metrics.this);
+				} catch (RuntimeException e) {
+					// keep reporting, and report it the way the thread would
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+				}
+			}
+		}, period, period, unit);
+	}
+	
+	public synchronized void stopReporting() {
+		if (reporting != null) {
+			reporting.shutdownNow();
+			reporting = null;
+		}
+	}
+}
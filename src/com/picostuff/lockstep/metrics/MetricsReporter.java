@@ -0,0 +1,12 @@
+package com.picostuff.lockstep.metrics;
+
+/**
+ * Somewhere to send the metrics every so often (see
+ * {@link Metrics#startReporting}), such as a log or a monitoring system
+ * 
+ * @author chenglim
+ *
+ */
+public interface MetricsReporter {
+	public void report(Metrics metrics);
+}
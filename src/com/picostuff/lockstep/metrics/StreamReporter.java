@@ -0,0 +1,37 @@
+package com.picostuff.lockstep.metrics;
+
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * Writes the metrics to a stream as lines of text, one per metric, with
+ * histograms in microseconds
+ * 
+ * @author chenglim
+ *
+ */
+public class StreamReporter implements MetricsReporter {
+	private final PrintStream out;
+	
+	public StreamReporter(PrintStream out) {
+		this.out = out;
+	}
+	
+	public void report(Metrics metrics) {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Counter> entry:metrics.getCounters().entrySet()) {
+			builder.append(String.format("%s %d%n", entry.getKey(), entry.getValue().getCount()));
+		}
+		for (Map.Entry<String, Long> entry:metrics.getGauges().entrySet()) {
+			builder.append(String.format("%s %d%n", entry.getKey(), entry.getValue()));
+		}
+		for (Map.Entry<String, Histogram> entry:metrics.getHistograms().entrySet()) {
+			Histogram histogram = entry.getValue();
+			builder.append(String.format("%s n=%d mean=%.1fus p50=%dus p90=%dus p99=%dus max=%dus%n", entry.getKey(), histogram.getCount(),
+					histogram.getMean() / 1000, histogram.getPercentile(50) / 1000, histogram.getPercentile(90) / 1000,
+					histogram.getPercentile(99) / 1000, histogram.getMax() / 1000));
+		}
+		out.print(builder); // in one go, so reports from different threads don't mix
+		out.flush();
+	}
+}
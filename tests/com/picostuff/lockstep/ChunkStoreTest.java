@@ -0,0 +1,237 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test to drive reusing chunks we already have, rather than fetching them
+ * 
+ * @author chenglim
+ *
+ */
+public class ChunkStoreTest {
+	static private final int AVERAGE_SIZE = 8 * 1024;
+	
+	private File sourceDir;
+	private File targetDir;
+	private File storeDir;
+	private ContentHasher hasher;
+	private ContentChunker chunker;
+	private ChunkStore store;
+	private CountingSource source;
+	private ChunkedTransport transport;
+	private byte[] content;
+
+	@Before
+	public void setup() throws Exception {
+		sourceDir = makeDir("source");
+		targetDir = makeDir("target");
+		storeDir = makeDir("store");
+		hasher = new ContentHasher();
+		chunker = new ContentChunker(AVERAGE_SIZE);
+		store = new ChunkStore(storeDir, chunker);
+		source = new CountingSource(new DirectoryChunkSource(sourceDir, hasher, chunker));
+		transport = new ChunkedTransport(source, AVERAGE_SIZE, 2, store);
+		content = new byte[512 * 1024];
+		new Random(42).nextBytes(content);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		transport.close();
+		DirectoryFileSystemTest.deleteDir(sourceDir);
+		DirectoryFileSystemTest.deleteDir(targetDir);
+		DirectoryFileSystemTest.deleteDir(storeDir);
+	}
+	
+	static private File makeDir(String name) throws IOException {
+		File dir = File.createTempFile("lockstep", name);
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+	
+	static private class CountingSource implements ChunkSource {
+		private final ChunkSource source;
+		private final AtomicInteger reads = new AtomicInteger();
+		
+		CountingSource(ChunkSource source) {
+			this.source = source;
+		}
+		
+		public ChunkManifest getManifest(String key, String version, int chunkSize) throws IOException {
+			return source.getManifest(key, version, chunkSize);
+		}
+		
+		public void readChunk(String key, String version, long position, ByteBuffer buffer) throws IOException {
+			reads.incrementAndGet();
+			source.readChunk(key, version, position, buffer);
+		}
+	}
+	
+	private String write(String name, byte[] bytes) throws IOException {
+		File file = new File(sourceDir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		return hasher.digest(file.toPath());
+	}
+	
+	private byte[] fetch(String name, String version) throws IOException {
+		File target = new File(targetDir, name);
+		transport.fetch("/" + name, version, target);
+		return Files.readAllBytes(target.toPath());
+	}
+	
+	@Test
+	public void sharedContentNotFetchedAgain() throws Exception {
+		String version = write("a", content);
+		Assert.assertTrue(Arrays.equals(content, fetch("a", version)));
+		int chunks = source.reads.getAndSet(0);
+		Assert.assertTrue(chunks > 10);
+		
+		// the same content moved along by an insert at the front
+		byte[] shifted = new byte[content.length + 100];
+		System.arraycopy(content, 0, shifted, 100, content.length);
+		version = write("b", shifted);
+		Assert.assertTrue(Arrays.equals(shifted, fetch("b", version)));
+		Assert.assertTrue("fetched " + source.reads.get() + " of " + chunks, source.reads.get() <= 2);
+	}
+	
+	@Test
+	public void removeLetsGo() throws Exception {
+		String version = write("a", content);
+		fetch("a", version);
+		version = write("b", content);
+		fetch("b", version);
+		int chunks = store.size();
+		Assert.assertTrue(chunks > 0);
+		
+		Workspace workspace = new Workspace(new DirectoryFileSystem(targetDir, transport, false), new InMemoryLocalStateStorage(), store);
+		workspace.removeLocalItem("/a");
+		Assert.assertEquals(chunks, store.size()); // still held by /b
+		workspace.rejectLocalItem("/b");
+		Assert.assertEquals(0, store.size());
+		Assert.assertEquals(0, countFiles(new File(storeDir, "chunks")));
+	}
+	
+	@Test
+	public void changeLetsGoOfOldChunks() throws Exception {
+		String version = write("a", content);
+		fetch("a", version);
+		byte[] changed = new byte[content.length];
+		new Random(7).nextBytes(changed);
+		version = write("a", changed);
+		source.reads.set(0);
+		Assert.assertTrue(Arrays.equals(changed, fetch("a", version)));
+		Assert.assertTrue(source.reads.get() > 10);
+		Assert.assertEquals(countFiles(new File(storeDir, "chunks")), store.size());
+		Assert.assertEquals(source.reads.get(), store.size());
+	}
+	
+	@Test
+	public void reopen() throws Exception {
+		String version = write("a", content);
+		fetch("a", version);
+		store.put("0000000000000000000000000000000000000000000000000000000000000000", ByteBuffer.wrap(new byte[10]));
+		int chunks = store.size();
+		
+		ChunkStore reopened = new ChunkStore(storeDir, chunker);
+		Assert.assertEquals(chunks, reopened.size());
+		Assert.assertEquals(chunks, countFiles(new File(storeDir, "chunks"))); // the chunk nothing held is gone
+		reopened.release("/");
+		Assert.assertEquals(0, reopened.size());
+	}
+	
+	@Test
+	public void addLocalFile() throws Exception {
+		File local = new File(targetDir, "local");
+		FileOutputStream out = new FileOutputStream(local);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		store.add("/local", local.toPath());
+		String version = write("a", content);
+		Assert.assertTrue(Arrays.equals(content, fetch("a", version)));
+		Assert.assertEquals(0, source.reads.get());
+	}
+	
+	@Test
+	public void pushedLocalFileKept() throws Exception {
+		Files.write(new File(targetDir, "local").toPath(), content);
+		Workspace workspace = new Workspace(new DirectoryFileSystem(targetDir, transport, false), new InMemoryLocalStateStorage(), store);
+		LocalItemInfo pushed = workspace.processItem("/local", null);
+		Assert.assertEquals(0, store.size()); // not until the push is in
+		workspace.processItem("/local", new RemoteItemInfo(pushed.getName(), pushed.getVersion(), pushed.getSize(), pushed.getModified()));
+		Assert.assertTrue(store.size() > 0);
+		
+		String version = write("a", content);
+		Assert.assertTrue(Arrays.equals(content, fetch("a", version)));
+		Assert.assertEquals(0, source.reads.get());
+		
+		// and a pushed delete lets go of them
+		new File(targetDir, "local").delete();
+		new File(targetDir, "a").delete();
+		workspace.processItem("/local", null);
+		store.release("/a");
+		Assert.assertEquals(0, store.size());
+	}
+	
+	@Test
+	public void retainPutsBackChunksLetGoMeanwhile() throws Exception {
+		String version = write("a", content);
+		fetch("a", version);
+		int chunks = store.size();
+		File copy = new File(targetDir, "b");
+		Files.copy(new File(targetDir, "a").toPath(), copy.toPath());
+		FileChannel channel = FileChannel.open(copy.toPath(), StandardOpenOption.READ);
+		ChunkManifest manifest;
+		try {
+			manifest = chunker.manifest(channel);
+		} finally {
+			channel.close();
+		}
+		
+		// as if a fetch of /b found every chunk here, and /a went before it retained them
+		store.release("/a");
+		Assert.assertEquals(0, countFiles(new File(storeDir, "chunks")));
+		store.retain("/b", manifest, copy.toPath());
+		Assert.assertEquals(chunks, store.size());
+		Assert.assertEquals(chunks, countFiles(new File(storeDir, "chunks")));
+		
+		source.reads.set(0);
+		version = write("c", content);
+		Assert.assertTrue(Arrays.equals(content, fetch("c", version)));
+		Assert.assertEquals(0, source.reads.get());
+	}
+	
+	static private int countFiles(File dir) {
+		int count = 0;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file:files) {
+				count += file.isDirectory() ? countFiles(file) : 1;
+			}
+		}
+		return count;
+	}
+}
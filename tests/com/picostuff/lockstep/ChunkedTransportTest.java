@@ -0,0 +1,162 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test to drive chunked, parallel fetches
+ * 
+ * @author chenglim
+ *
+ */
+public class ChunkedTransportTest {
+	static private final int CHUNK_SIZE = 64 * 1024;
+	
+	private File sourceDir;
+	private File targetDir;
+	private ContentHasher hasher;
+	private byte[] content;
+	private String version;
+
+	@Before
+	public void setup() throws Exception {
+		sourceDir = File.createTempFile("lockstep", "source");
+		sourceDir.delete();
+		sourceDir.mkdirs();
+		targetDir = File.createTempFile("lockstep", "target");
+		targetDir.delete();
+		targetDir.mkdirs();
+		hasher = new ContentHasher();
+		content = new byte[CHUNK_SIZE * 10 + 123]; // a short last chunk
+		new Random(42).nextBytes(content);
+		File file = new File(sourceDir, "big");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		version = hasher.digest(file.toPath());
+	}
+
+	@After
+	public void teardown() throws Exception {
+		DirectoryFileSystemTest.deleteDir(sourceDir);
+		DirectoryFileSystemTest.deleteDir(targetDir);
+	}
+	
+	/**
+	 * Counts the chunks read, and can spoil or fail one of them
+	 */
+	static private class TestSource implements ChunkSource {
+		private final ChunkSource source;
+		private final AtomicInteger reads = new AtomicInteger();
+		private volatile long badPosition = -1;
+		private volatile int badTimes;
+		private volatile boolean fail;
+		
+		TestSource(ChunkSource source) {
+			this.source = source;
+		}
+		
+		public ChunkManifest getManifest(String key, String version, int chunkSize) throws IOException {
+			return source.getManifest(key, version, chunkSize);
+		}
+		
+		public void readChunk(String key, String version, long position, ByteBuffer buffer) throws IOException {
+			reads.incrementAndGet();
+			if (position == badPosition && badTimes > 0) {
+				badTimes--;
+				if (fail)
+					throw new IOException("connection dropped");
+				buffer.put((byte)0); // spoil the first byte
+			}
+			source.readChunk(key, version, position, buffer);
+		}
+	}
+	
+	@Test
+	public void fetchInChunks() throws Exception {
+		TestSource source = new TestSource(new DirectoryChunkSource(sourceDir, hasher));
+		ChunkedTransport transport = new ChunkedTransport(source, CHUNK_SIZE, 4);
+		try {
+			File target = new File(targetDir, "big");
+			transport.fetch("/big", version, target);
+			Assert.assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+			Assert.assertEquals(11, source.reads.get());
+			Assert.assertFalse("check progress cleaned up", new File(targetDir, "big.progress").exists());
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void badChunkFetchedAgain() throws Exception {
+		TestSource source = new TestSource(new DirectoryChunkSource(sourceDir, hasher));
+		source.badPosition = CHUNK_SIZE * 3;
+		source.badTimes = 1;
+		ChunkedTransport transport = new ChunkedTransport(source, CHUNK_SIZE, 4);
+		try {
+			File target = new File(targetDir, "big");
+			transport.fetch("/big", version, target);
+			Assert.assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+			Assert.assertEquals(12, source.reads.get());
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void interruptedFetchResumes() throws Exception {
+		TestSource source = new TestSource(new DirectoryChunkSource(sourceDir, hasher));
+		source.badPosition = CHUNK_SIZE * 5;
+		source.badTimes = 1;
+		source.fail = true;
+		ChunkedTransport transport = new ChunkedTransport(source, CHUNK_SIZE, 1); // one at a time, so we know what got done
+		File target = new File(targetDir, "big");
+		try {
+			try {
+				transport.fetch("/big", version, target);
+				Assert.fail("Expecting IOException");
+			} catch (IOException e) {
+				// expected
+			}
+			Assert.assertTrue(new File(targetDir, "big.progress").exists());
+			
+			source.reads.set(0);
+			transport.fetch("/big", version, target);
+			Assert.assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+			// the first five were done before the failure, and one more may have slipped in after it
+			Assert.assertTrue("check chunks already done aren't read again", source.reads.get() <= 6);
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void putThroughDirectory() throws Exception {
+		ChunkedTransport transport = new ChunkedTransport(new DirectoryChunkSource(sourceDir, hasher), CHUNK_SIZE, 4);
+		DirectoryFileSystem fileSystem = new DirectoryFileSystem(targetDir, transport, false, hasher);
+		try {
+			fileSystem.put("/big", version);
+			Assert.assertEquals(version, fileSystem.getVersion("/big"));
+			Assert.assertEquals("check temp and progress files gone", 1, targetDir.list().length);
+		} finally {
+			fileSystem.close();
+			transport.close();
+		}
+	}
+
+}
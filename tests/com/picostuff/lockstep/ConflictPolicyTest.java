@@ -0,0 +1,209 @@
+package com.picostuff.lockstep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.picostuff.lockstep.exception.SaveConflictException;
+
+/**
+ * Test to drive how a workspace settles conflicts by its policy
+ * 
+ * @author chenglim
+ *
+ */
+public class ConflictPolicyTest {
+	private Map<String,String> fileSystem;
+	private Map<String,Long> modified;
+	private Workspace workspace;
+
+	@Before
+	public void setup() throws Exception {
+		fileSystem = Collections.synchronizedMap(new HashMap<String, String>());
+		modified = new HashMap<String, Long>();
+		workspace = new Workspace(new MapFileSystem(fileSystem) {
+			@Override
+			public long getModified(String key) {
+				Long time = modified.get(key);
+				return time == null ? -1 : time;
+			}
+		}, new InMemoryLocalStateStorage());
+		// "/a" synced at version 1
+		workspace.processItem("/a", new RemoteItemInfo("a", "1"));
+	}
+	
+	private void editBoth(String localVersion, long localModified, String remoteVersion, long remoteModified) throws Exception {
+		fileSystem.put("/a", localVersion);
+		modified.put("/a", localModified);
+		workspace.processItem("/a", new RemoteItemInfo("a", remoteVersion, 1, remoteModified));
+	}
+	
+	private Conflict onlyConflict() {
+		List<Conflict> conflicts = workspace.pollConflicts();
+		Assert.assertEquals(1, conflicts.size());
+		Assert.assertTrue("check polled once", workspace.pollConflicts().isEmpty());
+		return conflicts.get(0);
+	}
+
+	@Test
+	public void reportByDefault() throws Exception {
+		try {
+			editBoth("2", 10, "3", 20);
+			Assert.fail("expected a conflict");
+		} catch (SaveConflictException e) {
+			// expected
+		}
+		Assert.assertEquals("2", fileSystem.get("/a"));
+		Assert.assertTrue(workspace.pollConflicts().isEmpty());
+	}
+
+	@Test
+	public void preferRemote() throws Exception {
+		workspace.setConflictPolicy(ConflictPolicy.PREFER_REMOTE);
+		editBoth("2", 20, "3", 10);
+		Assert.assertEquals("3", fileSystem.get("/a"));
+		Conflict conflict = onlyConflict();
+		Assert.assertEquals(Conflict.Outcome.REMOTE_KEPT, conflict.getOutcome());
+		Assert.assertEquals("2", conflict.getLocalVersion());
+		Assert.assertEquals("3", conflict.getRemoteVersion());
+		
+		// a remote delete takes the local edit with it
+		fileSystem.put("/a", "4");
+		Assert.assertNull(workspace.processItem("/a", null));
+		Assert.assertFalse(fileSystem.containsKey("/a"));
+	}
+
+	@Test
+	public void preferLocal() throws Exception {
+		workspace.setConflictPolicy(ConflictPolicy.PREFER_LOCAL);
+		fileSystem.put("/a", "2");
+		LocalItemInfo pushed = workspace.processItem("/a", new RemoteItemInfo("a", "3"));
+		Assert.assertEquals("check pushed over the remote change", "2", pushed.getVersion());
+		Assert.assertEquals(Conflict.Outcome.LOCAL_KEPT, onlyConflict().getOutcome());
+		workspace.processItem("/a", new RemoteItemInfo("a", "2"));
+		
+		// a local delete is kept by pushing it (see isLocalDelete)
+		fileSystem.remove("/a");
+		RemoteItemInfo remoteInfo = new RemoteItemInfo("a", "5");
+		Assert.assertNull(workspace.processItem("/a", remoteInfo));
+		Assert.assertFalse(fileSystem.containsKey("/a"));
+		Assert.assertTrue(workspace.isLocalDelete("/a", remoteInfo));
+		
+		// a local edit kept over a remote delete is pushed as an add
+		workspace.processItem("/b", new RemoteItemInfo("b", "1"));
+		fileSystem.put("/b", "2");
+		pushed = workspace.processItem("/b", null);
+		Assert.assertEquals("2", pushed.getVersion());
+		Assert.assertTrue(workspace.processItem("/b", null) != null);
+	}
+
+	@Test
+	public void lastWriterWins() throws Exception {
+		workspace.setConflictPolicy(ConflictPolicy.LAST_WRITER_WINS);
+		editBoth("2", 20, "3", 10);
+		Assert.assertEquals("2", fileSystem.get("/a"));
+		Assert.assertEquals(Conflict.Outcome.LOCAL_KEPT, onlyConflict().getOutcome());
+		workspace.processItem("/a", new RemoteItemInfo("a", "2"));
+		
+		editBoth("3", 10, "4", 20);
+		Assert.assertEquals("4", fileSystem.get("/a"));
+		Assert.assertEquals(Conflict.Outcome.REMOTE_KEPT, onlyConflict().getOutcome());
+		
+		editBoth("5", 20, "6", 20);
+		Assert.assertEquals("check remote wins a tie", "6", fileSystem.get("/a"));
+		onlyConflict();
+		
+		// a delete has no time, so loses to an edit
+		fileSystem.put("/a", "7");
+		modified.put("/a", 30L);
+		Assert.assertEquals("7", workspace.processItem("/a", null).getVersion());
+		Assert.assertEquals(Conflict.Outcome.LOCAL_KEPT, onlyConflict().getOutcome());
+	}
+
+	@Test
+	public void keepBoth() throws Exception {
+		workspace.setConflictPolicy(ConflictPolicy.KEEP_BOTH);
+		fileSystem.put("/a.txt", "1");
+		workspace.processItem("/a.txt", new RemoteItemInfo("a.txt", "1"));
+		fileSystem.put("/a (conflict 1).txt", "9"); // taken already
+		fileSystem.put("/a.txt", "2");
+		Assert.assertNull(workspace.processItem("/a.txt", new RemoteItemInfo("a.txt", "3")));
+		Assert.assertEquals("3", fileSystem.get("/a.txt"));
+		Assert.assertEquals("2", fileSystem.get("/a (conflict 2).txt"));
+		Conflict conflict = onlyConflict();
+		Assert.assertEquals(Conflict.Outcome.BOTH_KEPT, conflict.getOutcome());
+		Assert.assertEquals("/a (conflict 2).txt", conflict.getCopyKey());
+		
+		// the copy is new here, so it gets pushed
+		Assert.assertEquals("2", workspace.processItem("/a (conflict 2).txt", null).getVersion());
+		
+		// nothing to copy when one side is deleted, so the edit is kept
+		fileSystem.put("/a.txt", "4");
+		Assert.assertEquals("4", workspace.processItem("/a.txt", null).getVersion());
+	}
+
+	@Test
+	public void dirsAreLeft() throws Exception {
+		workspace.setConflictPolicy(ConflictPolicy.PREFER_REMOTE);
+		fileSystem.put("/d", null);
+		try {
+			workspace.processItem("/d", new RemoteItemInfo("d", "1"));
+			Assert.fail("expected a conflict");
+		} catch (SaveConflictException e) {
+			// expected
+		}
+		Assert.assertTrue(fileSystem.containsKey("/d"));
+		Assert.assertNull(fileSystem.get("/d"));
+	}
+
+	@Test
+	public void batchSettlesAroundWhatIsLeft() throws Exception {
+		workspace.setConflictPolicy(ConflictPolicy.PREFER_REMOTE);
+		fileSystem.put("/a", "2");
+		fileSystem.put("/d", null);
+		fileSystem.put("/e", "1");
+		Map<String, LocalItemInfo> pushes = new HashMap<String, LocalItemInfo>();
+		List<String> conflicted = new ArrayList<String>();
+		workspace.processItems(Arrays.asList("/a", "/d", "/e"),
+				Arrays.asList(new RemoteItemInfo("a", "3"), new RemoteItemInfo("d", "1"), null), pushes, conflicted);
+		Assert.assertEquals("3", fileSystem.get("/a"));
+		Assert.assertEquals(Arrays.asList("/d"), conflicted);
+		Assert.assertEquals("1", pushes.get("/e").getVersion());
+		Assert.assertEquals(1, workspace.pollConflicts().size());
+	}
+
+	@Test
+	public void workerPushesKeptDelete() throws Exception {
+		SharedMemory memory = new InMemorySharedMemory();
+		Map<String,String> files = Collections.synchronizedMap(new HashMap<String, String>());
+		Workspace local = new Workspace(files);
+		local.setConflictPolicy(ConflictPolicy.PREFER_LOCAL);
+		Worker worker = new Worker(local, memory, 2, 1, 16);
+		worker.start();
+		try {
+			files.put("/a", "1");
+			Assert.assertTrue(worker.sync());
+			MemoryNode oldNode = memory.copyNode("/a");
+			MemoryNode newNode = oldNode.makeCopy();
+			newNode.setVersion("2");
+			memory.changeNode("/a", oldNode, newNode);
+			files.remove("/a");
+			for (int i = 0; i < 10 && !worker.sync(); i++) {
+				// until settled
+			}
+			Assert.assertTrue(memory.getChildrenNames("/").isEmpty());
+			Assert.assertFalse(files.containsKey("/a"));
+			Assert.assertTrue(worker.getConflicts().isEmpty());
+		} finally {
+			worker.stop();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.picostuff.lockstep.exception.StorageException;
+
+/**
+ * Test to drive content digests as versions
+ * 
+ * @author chenglim
+ *
+ */
+public class ContentHasherTest {
+	static private final String HELLO_SHA256 = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+	
+	private File dir;
+	private ContentHasher hasher;
+
+	@Before
+	public void setup() throws Exception {
+		dir = File.createTempFile("lockstep", "dir");
+		dir.delete();
+		dir.mkdirs();
+		hasher = new ContentHasher();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		DirectoryFileSystemTest.deleteDir(dir);
+	}
+	
+	private Path write(String name, String content) throws IOException {
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file.toPath();
+	}
+	
+	private String versionOf(Path path) throws IOException {
+		return hasher.getVersion(path, Files.readAttributes(path, BasicFileAttributes.class));
+	}
+	
+	@Test
+	public void sameContentSameVersion() throws Exception {
+		Assert.assertEquals(HELLO_SHA256, versionOf(write("a", "hello")));
+		Assert.assertEquals(HELLO_SHA256, versionOf(write("b", "hello")));
+		Assert.assertFalse(HELLO_SHA256.equals(versionOf(write("c", "hellO"))));
+		
+		// bigger than the buffer
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			big.append(i);
+		}
+		Path bigPath = write("big", big.toString());
+		Assert.assertEquals(hasher.digest(bigPath), versionOf(bigPath));
+	}
+
+	@Test
+	public void unchangedFileNotReread() throws Exception {
+		Path path = write("a", "hello");
+		long modified = System.currentTimeMillis() - 60000; // long settled
+		path.toFile().setLastModified(modified);
+		Assert.assertEquals(HELLO_SHA256, versionOf(path));
+		
+		// same size and mtime, so we trust what we remembered
+		write("a", "jello");
+		path.toFile().setLastModified(modified);
+		Assert.assertEquals(HELLO_SHA256, versionOf(path));
+		
+		// and any change to the stat means reading it again
+		path.toFile().setLastModified(modified + 1000);
+		Assert.assertFalse(HELLO_SHA256.equals(versionOf(path)));
+	}
+
+	@Test
+	public void freshFileNotRemembered() throws Exception {
+		Path path = write("a", "hello");
+		long modified = path.toFile().lastModified(); // just now, so it could change again within the tick
+		Assert.assertEquals(HELLO_SHA256, versionOf(path));
+		write("a", "jello");
+		path.toFile().setLastModified(modified);
+		Assert.assertFalse(HELLO_SHA256.equals(versionOf(path)));
+	}
+
+	@Test
+	public void directoryChecksFetchedContent() throws Exception {
+		Transport transport = new Transport() {
+			public void fetch(String key, String version, File target) throws IOException {
+				FileOutputStream out = new FileOutputStream(target);
+				try {
+					out.write("hello".getBytes("UTF-8"));
+				} finally {
+					out.close();
+				}
+			}
+		};
+		DirectoryFileSystem fileSystem = new DirectoryFileSystem(dir, transport, false, hasher);
+		try {
+			fileSystem.put("/a", HELLO_SHA256);
+			Assert.assertEquals(HELLO_SHA256, fileSystem.getVersion("/a"));
+			try {
+				fileSystem.put("/b", "not-the-digest");
+				Assert.fail("Expecting StorageException");
+			} catch (StorageException e) {
+				// expected
+			}
+			Assert.assertFalse("check nothing put in place", fileSystem.exists("/b"));
+			Assert.assertEquals(1, fileSystem.getKeys("/").size());
+		} finally {
+			fileSystem.close();
+		}
+	}
+
+}
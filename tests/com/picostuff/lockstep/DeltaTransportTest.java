@@ -0,0 +1,128 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test to drive rsync style delta fetches
+ * 
+ * @author chenglim
+ *
+ */
+public class DeltaTransportTest {
+	static private final int BLOCK_SIZE = 4 * 1024;
+	
+	private File sourceDir;
+	private File targetDir;
+	private ContentHasher hasher;
+	private byte[] base;
+	private CountingTransport fallback;
+	private DeltaTransport transport;
+
+	@Before
+	public void setup() throws Exception {
+		sourceDir = File.createTempFile("lockstep", "source");
+		sourceDir.delete();
+		sourceDir.mkdirs();
+		targetDir = File.createTempFile("lockstep", "target");
+		targetDir.delete();
+		targetDir.mkdirs();
+		hasher = new ContentHasher();
+		base = new byte[1024 * 1024];
+		new Random(42).nextBytes(base);
+		write(new File(targetDir, "big"), base);
+		fallback = new CountingTransport(new ChunkedTransport(new DirectoryChunkSource(sourceDir, hasher)));
+		transport = new DeltaTransport(targetDir, new DirectoryDeltaSource(sourceDir, hasher), fallback, BLOCK_SIZE);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		DirectoryFileSystemTest.deleteDir(sourceDir);
+		DirectoryFileSystemTest.deleteDir(targetDir);
+	}
+	
+	static private void write(File file, byte[] content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+	
+	static private class CountingTransport implements Transport {
+		private final Transport transport;
+		private final AtomicInteger fetches = new AtomicInteger();
+		
+		CountingTransport(Transport transport) {
+			this.transport = transport;
+		}
+		
+		public void fetch(String key, String version, File target) throws IOException {
+			fetches.incrementAndGet();
+			transport.fetch(key, version, target);
+		}
+	}
+	
+	private byte[] fetch(byte[] content) throws IOException {
+		File file = new File(sourceDir, "big");
+		write(file, content);
+		File target = new File(targetDir, ".lockstep-big");
+		transport.fetch("/big", hasher.digest(file.toPath()), target);
+		return Files.readAllBytes(target.toPath());
+	}
+	
+	@Test
+	public void appendSendsOnlyNewBytes() throws Exception {
+		byte[] content = Arrays.copyOf(base, base.length + 10000);
+		for (int i = base.length; i < content.length; i++) {
+			content[i] = (byte)i;
+		}
+		Assert.assertTrue(Arrays.equals(content, fetch(content)));
+		Assert.assertEquals(base.length, transport.getCopiedBytes());
+		Assert.assertEquals(10000, transport.getLiteralBytes());
+		Assert.assertEquals(0, fallback.fetches.get());
+	}
+	
+	@Test
+	public void insertShiftsTheRest() throws Exception {
+		byte[] inserted = "a line put in part way along\n".getBytes("US-ASCII");
+		int at = 300001;
+		byte[] content = new byte[base.length + inserted.length];
+		System.arraycopy(base, 0, content, 0, at);
+		System.arraycopy(inserted, 0, content, at, inserted.length);
+		System.arraycopy(base, at, content, at + inserted.length, base.length - at);
+		Assert.assertTrue(Arrays.equals(content, fetch(content)));
+		// the block the insert lands in is sent, and nothing after it
+		Assert.assertTrue(transport.getLiteralBytes() <= BLOCK_SIZE + inserted.length);
+		Assert.assertEquals(content.length, transport.getCopiedBytes() + transport.getLiteralBytes());
+	}
+	
+	@Test
+	public void unrelatedContent() throws Exception {
+		byte[] content = new byte[base.length / 2 + 17];
+		new Random(99).nextBytes(content);
+		Assert.assertTrue(Arrays.equals(content, fetch(content)));
+		Assert.assertEquals(0, transport.getCopiedBytes());
+	}
+	
+	@Test
+	public void noBaseFallsBack() throws Exception {
+		new File(targetDir, "big").delete();
+		byte[] content = Arrays.copyOf(base, 1000);
+		Assert.assertTrue(Arrays.equals(content, fetch(content)));
+		Assert.assertEquals(1, fallback.fetches.get());
+		Assert.assertEquals(0, transport.getLiteralBytes());
+	}
+}
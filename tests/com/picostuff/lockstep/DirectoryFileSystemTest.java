@@ -0,0 +1,248 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test to drive a workspace kept in a real directory
+ * 
+ * @author chenglim
+ *
+ */
+public class DirectoryFileSystemTest {
+	private File dir;
+	private DirectoryFileSystem fileSystem;
+
+	/**
+	 * Writes the version as the content, which is how the map file system sees it
+	 */
+	static private class VersionTransport implements Transport {
+		public void fetch(String key, String version, File target) throws IOException {
+			write(target, version);
+		}
+	}
+
+	@Before
+	public void setup() throws Exception {
+		dir = File.createTempFile("lockstep", "dir");
+		dir.delete();
+		fileSystem = new DirectoryFileSystem(dir, new VersionTransport());
+	}
+
+	@After
+	public void teardown() throws Exception {
+		fileSystem.close();
+		deleteDir(dir);
+	}
+	
+	static void deleteDir(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child:children) {
+				deleteDir(child);
+			}
+		}
+		file.delete();
+	}
+	
+	static private void write(File file, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Poll until the path turns up, since a watch service reports in its own time
+	 */
+	private Set<String> pollFor(String path) throws Exception {
+		Set<String> seen = new HashSet<String>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			LocalChanges changes = fileSystem.pollChanges();
+			seen.addAll(changes.getPaths());
+			for (String subtree:changes.getSubtrees()) {
+				seen.addAll(fileSystem.getKeys(subtree));
+			}
+			if (seen.contains(path))
+				return seen;
+			Thread.sleep(20);
+		}
+		Assert.fail("never saw " + path + " in " + seen);
+		return null;
+	}
+	
+	@Test
+	public void putAndRead() throws Exception {
+		fileSystem.put("/a", null);
+		fileSystem.put("/a/b", "1");
+		fileSystem.put("/c/d", "2"); // parent made on the way
+		
+		Assert.assertTrue(new File(dir, "a").isDirectory());
+		Assert.assertNull(fileSystem.getVersion("/a"));
+		Assert.assertEquals("check written version reported", "1", fileSystem.getVersion("/a/b"));
+		Assert.assertEquals("2", fileSystem.getVersion("/c/d"));
+		Set<String> keys = fileSystem.getKeys("/");
+		Assert.assertEquals(4, keys.size());
+		Assert.assertTrue(keys.contains("/c"));
+		Assert.assertEquals(2, fileSystem.getKeys("/a").size());
+		
+		// changed behind our back, so it gets a version of its own
+		write(new File(dir, "a/b"), "changed");
+		Assert.assertFalse("1".equals(fileSystem.getVersion("/a/b")));
+		
+		fileSystem.remove("/a");
+		Assert.assertFalse(fileSystem.exists("/a"));
+		Assert.assertFalse(fileSystem.exists("/a/b"));
+	}
+
+	@Test
+	public void move() throws Exception {
+		fileSystem.put("/a/b", "1");
+		fileSystem.move("/a/b", "/a/c");
+		Assert.assertFalse(fileSystem.exists("/a/b"));
+		Assert.assertEquals("check written version kept", "1", fileSystem.getVersion("/a/c"));
+		Assert.assertEquals("1", new String(Files.readAllBytes(new File(dir, "a/c").toPath()), "UTF-8"));
+	}
+
+	@Test
+	public void watchFindsChanges() throws Exception {
+		Assert.assertTrue("check first poll asks for everything", fileSystem.pollChanges().isEverything());
+		
+		write(new File(dir, "a"), "1");
+		pollFor("/a");
+		
+		// a new dir gets watched, and what was made in it before then is still found
+		File subdir = new File(dir, "b/c");
+		subdir.mkdirs();
+		write(new File(subdir, "d"), "1");
+		pollFor("/b/c/d");
+		write(new File(subdir, "e"), "1");
+		pollFor("/b/c/e");
+		
+		new File(subdir, "d").delete();
+		pollFor("/b/c/d");
+	}
+
+	@Test
+	public void scanFindsChanges() throws Exception {
+		fileSystem.close();
+		fileSystem = new DirectoryFileSystem(dir, new VersionTransport(), false);
+		write(new File(dir, "a"), "1");
+		write(new File(dir, "b"), "1");
+		Assert.assertTrue(fileSystem.pollChanges().isEverything());
+		Assert.assertTrue(fileSystem.pollChanges().isEmpty());
+		
+		new File(dir, "a").delete();
+		write(new File(dir, "b"), "longer");
+		write(new File(dir, "c"), "1");
+		Set<String> paths = fileSystem.pollChanges().getPaths();
+		Assert.assertEquals(3, paths.size());
+		Assert.assertTrue(paths.contains("/a"));
+		Assert.assertTrue(paths.contains("/b"));
+		Assert.assertTrue(paths.contains("/c"));
+	}
+
+	private void syncUntilSettled(Worker worker) throws Exception {
+		for (int i = 0; i < 10; i++) {
+			if (worker.syncChanges())
+				return;
+		}
+		Assert.fail("sync didn't settle");
+	}
+
+	@Test
+	public void syncTwoDirectories() throws Exception {
+		final File otherDir = File.createTempFile("lockstep", "dir");
+		otherDir.delete();
+		// both sides are on this machine, so content comes straight from wherever it was pushed
+		final File[] dirs = new File[] {dir, otherDir};
+		Transport copyFromEither = new Transport() {
+			public void fetch(String key, String version, File target) throws IOException {
+				for (File root:dirs) {
+					File source = new File(root, key.substring(1));
+					if (source.isFile() && !source.getParentFile().equals(target.getParentFile())) {
+						Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						return;
+					}
+				}
+				throw new IOException("No copy of " + key);
+			}
+		};
+		fileSystem.close();
+		fileSystem = new DirectoryFileSystem(dir, copyFromEither);
+		DirectoryFileSystem otherFileSystem = new DirectoryFileSystem(otherDir, copyFromEither);
+		SharedMemory memory = new InMemorySharedMemory();
+		Worker worker = new Worker(new Workspace(fileSystem, new InMemoryLocalStateStorage()), memory, 2, 2, 16);
+		Worker otherWorker = new Worker(new Workspace(otherFileSystem, new InMemoryLocalStateStorage()), memory, 2, 2, 16);
+		worker.start();
+		otherWorker.start();
+		try {
+			new File(dir, "a").mkdirs();
+			write(new File(dir, "a/b"), "hello");
+			syncUntilSettled(worker);
+			syncUntilSettled(otherWorker);
+			
+			Assert.assertTrue(new File(otherDir, "a").isDirectory());
+			Assert.assertEquals(5, new File(otherDir, "a/b").length());
+			Assert.assertEquals(fileSystem.getVersion("/a/b"), otherFileSystem.getVersion("/a/b"));
+			
+			// and a change on the other side comes back
+			write(new File(otherDir, "a/b"), "hello again");
+			long deadline = System.currentTimeMillis() + 10000;
+			while (new File(dir, "a/b").length() != 11 && System.currentTimeMillis() < deadline) {
+				otherWorker.syncChanges();
+				worker.syncChanges();
+				Thread.sleep(20);
+			}
+			Assert.assertEquals(11, new File(dir, "a/b").length());
+			Assert.assertTrue(worker.getConflicts().isEmpty());
+		} finally {
+			worker.stop();
+			otherWorker.stop();
+			otherFileSystem.close();
+			deleteDir(otherDir);
+		}
+	}
+	
+	@Test
+	public void placeholders() throws Exception {
+		fileSystem.put("/a", null);
+		fileSystem.putPlaceholder("/a/b", "1", 1000);
+		Assert.assertEquals(new HashSet<String>(java.util.Arrays.asList("/a", "/a/b")), fileSystem.getKeys("/"));
+		Assert.assertTrue(fileSystem.isPlaceholder("/a/b"));
+		Assert.assertEquals("1", fileSystem.getVersion("/a/b"));
+		Assert.assertEquals(1000, fileSystem.getSize("/a/b"));
+		Assert.assertEquals("check no space taken", 0, new File(dir, "a/b").length());
+		
+		// kept across a restart
+		fileSystem.close();
+		fileSystem = new DirectoryFileSystem(dir, new VersionTransport());
+		Assert.assertTrue(fileSystem.isPlaceholder("/a/b"));
+		Assert.assertEquals("1", fileSystem.getVersion("/a/b"));
+		
+		// hydrate
+		fileSystem.put("/a/b", "1");
+		Assert.assertFalse(fileSystem.isPlaceholder("/a/b"));
+		Assert.assertEquals("1", new String(Files.readAllBytes(new File(dir, "a/b").toPath()), "UTF-8"));
+		
+		// written to by the user
+		fileSystem.putPlaceholder("/a/c", "2", 10);
+		write(new File(dir, "a/c"), "mine");
+		Assert.assertFalse(fileSystem.isPlaceholder("/a/c"));
+		Assert.assertFalse("2".equals(fileSystem.getVersion("/a/c")));
+	}
+}
@@ -0,0 +1,27 @@
+package com.picostuff.lockstep;
+
+/**
+ * Runs the shared memory tests against the database backend, using an
+ * embedded in-memory H2 database (the H2 jar needs to be on the test classpath).
+ * 
+ * @author chenglim
+ *
+ */
+public class JdbcSharedMemoryTest extends SharedMemoryTest {
+	static private int databaseCount;
+	
+	@Override
+	protected SharedMemory createMemory() {
+		return new JdbcSharedMemory(nextUrl());
+	}
+	
+	@Override
+	protected SharedMemory createMemory(int changeLogSize) {
+		return new JdbcSharedMemory(nextUrl(), changeLogSize);
+	}
+	
+	static private synchronized String nextUrl() {
+		// a fresh database for each test, kept until the JVM exits
+		return "jdbc:h2:mem:lockstep" + (++databaseCount) + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000";
+	}
+}
@@ -42,4 +42,12 @@ public class LocalItemStateTest {
 		Assert.assertSame(LocalItemState.LOCAL_NOTHING, state);
 	}
 
+	@Test
+	public void findLocalPlaceholder() {
+		LocalItemInfo localInfo = new LocalItemInfo("name","version1",true);
+		Assert.assertSame(LocalItemState.LOCAL_PLACEHOLDER, LocalItemState.findState(localInfo,new BaseItemInfo("name","version1")));
+		Assert.assertSame(LocalItemState.LOCAL_PLACEHOLDER, LocalItemState.findState(localInfo,new BaseItemInfo("name","version2")));
+		Assert.assertSame(LocalItemState.LOCAL_PLACEHOLDER, LocalItemState.findState(localInfo,null));
+	}
+
 }
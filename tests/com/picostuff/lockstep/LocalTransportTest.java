@@ -0,0 +1,92 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test to drive copies between workspaces on the same machine
+ * 
+ * @author chenglim
+ *
+ */
+public class LocalTransportTest {
+	private File sourceDir;
+	private File targetDir;
+	private byte[] content;
+
+	@Before
+	public void setup() throws Exception {
+		sourceDir = File.createTempFile("lockstep", "source");
+		sourceDir.delete();
+		sourceDir.mkdirs();
+		targetDir = File.createTempFile("lockstep", "target");
+		targetDir.delete();
+		targetDir.mkdirs();
+		content = new byte[2 * 1024 * 1024 + 5];
+		new Random(42).nextBytes(content);
+		new File(sourceDir, "a").mkdirs();
+		FileOutputStream out = new FileOutputStream(new File(sourceDir, "a/big"));
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	@After
+	public void teardown() throws Exception {
+		DirectoryFileSystemTest.deleteDir(sourceDir);
+		DirectoryFileSystemTest.deleteDir(targetDir);
+	}
+	
+	@Test
+	public void copy() throws Exception {
+		File target = new File(targetDir, "big");
+		new LocalTransport(sourceDir).fetch("/a/big", "1", target);
+		Assert.assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+		Assert.assertFalse(Files.isSameFile(target.toPath(), new File(sourceDir, "a/big").toPath()));
+	}
+	
+	@Test
+	public void copyOverOldContent() throws Exception {
+		File target = new File(targetDir, "big");
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			out.write(new byte[content.length * 2]);
+		} finally {
+			out.close();
+		}
+		new LocalTransport(sourceDir).fetch("/a/big", "1", target);
+		Assert.assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+	}
+	
+	@Test
+	public void link() throws Exception {
+		File target = new File(targetDir, "big");
+		target.createNewFile();
+		new LocalTransport(sourceDir, true).fetch("/a/big", "1", target);
+		Assert.assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+	}
+	
+	@Test
+	public void putThroughDirectory() throws Exception {
+		ContentHasher hasher = new ContentHasher();
+		String version = hasher.digest(new File(sourceDir, "a/big").toPath());
+		DirectoryFileSystem fileSystem = new DirectoryFileSystem(targetDir, new LocalTransport(sourceDir), false, hasher);
+		try {
+			fileSystem.put("/a/big", version);
+			Assert.assertEquals(version, fileSystem.getVersion("/a/big"));
+		} finally {
+			fileSystem.close();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test to drive the log backed local state storage
+ * 
+ * @author chenglim
+ *
+ */
+public class LogLocalStateStorageTest {
+	private File dir;
+	private LogLocalStateStorage storage;
+
+	@Before
+	public void setup() throws Exception {
+		dir = File.createTempFile("lockstep", "state");
+		dir.delete();
+		storage = new LogLocalStateStorage(dir);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		storage.close();
+		deleteDir(dir);
+	}
+	
+	private void deleteDir(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child:children) {
+				deleteDir(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private void reopen() {
+		storage.close();
+		storage = new LogLocalStateStorage(dir);
+	}
+	
+	@Test
+	public void reloadAfterRestart() throws Exception {
+		storage.put("/a", new BaseItemInfo("a", "dir"));
+		storage.put("/a/b", new BaseItemInfo("b", "1"));
+		storage.put("/a/b", new BaseItemInfo("b", "2"));
+		storage.put("/a/c", new BaseItemInfo("c", "1"));
+		storage.remove("/a/c");
+		reopen();
+		
+		Assert.assertEquals(2, storage.size());
+		Assert.assertEquals("2", storage.get("/a/b").getVersion());
+		Assert.assertEquals("b", storage.get("/a/b").getName());
+		Assert.assertNull(storage.get("/a/c"));
+	}
+
+	@Test
+	public void reloadAfterCompact() throws Exception {
+		for (int i = 0; i < 3000; i++) {
+			storage.put("/f" + (i % 100), new BaseItemInfo("f" + (i % 100), String.valueOf(i)));
+		}
+		storage.compact();
+		storage.put("/g", new BaseItemInfo("g", "1"));
+		reopen();
+		
+		Assert.assertEquals(101, storage.size());
+		Assert.assertEquals("2999", storage.get("/f99").getVersion());
+		Assert.assertEquals("1", storage.get("/g").getVersion());
+		Assert.assertEquals("check old generations are cleaned up", 2, dir.list().length);
+	}
+
+	@Test
+	public void tornRecordIgnored() throws Exception {
+		storage.put("/a", new BaseItemInfo("a", "1"));
+		storage.put("/b", new BaseItemInfo("b", "1"));
+		storage.close();
+		
+		// chop the last record in half, as a crash part way through a write would
+		File log = null;
+		for (File file:dir.listFiles()) {
+			if (file.getName().startsWith("log."))
+				log = file;
+		}
+		truncate(log, log.length() - 3);
+		storage = new LogLocalStateStorage(dir);
+		Assert.assertEquals(1, storage.size());
+		Assert.assertEquals("1", storage.get("/a").getVersion());
+		
+		// we carry on writing after the last good record
+		storage.put("/c", new BaseItemInfo("c", "1"));
+		reopen();
+		Assert.assertEquals(2, storage.size());
+		Assert.assertNotNull(storage.get("/c"));
+	}
+	
+	private void truncate(File file, long length) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(length);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	@Test
+	public void workspaceWritesThrough() throws Exception {
+		Map<String,String> fileSystem = new HashMap<String, String>();
+		fileSystem.put("/a", null);
+		Workspace workspace = new Workspace(fileSystem, storage);
+		workspace.processItem("/a", new RemoteItemInfo("a", SharedMemory.DIR_NODE_VERSION));
+		workspace.processItem("/a/b", new RemoteItemInfo("b", "1"));
+		reopen();
+		
+		// a restarted workspace picks up where it left off, so an unchanged remote item is left alone
+		workspace = new Workspace(fileSystem, storage);
+		Assert.assertEquals("1", storage.get("/a/b").getVersion());
+		fileSystem.put("/a/b", "2");
+		LocalItemInfo localInfo = workspace.processItem("/a/b", new RemoteItemInfo("b", "1"));
+		Assert.assertNotNull("check local change found after restart", localInfo);
+	}
+
+}
@@ -0,0 +1,179 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test to drive the memory-mapped local state storage
+ * 
+ * @author chenglim
+ *
+ */
+public class MappedLocalStateStorageTest {
+	private File dir;
+	private MappedLocalStateStorage storage;
+
+	@Before
+	public void setup() throws Exception {
+		dir = File.createTempFile("lockstep", "state");
+		dir.delete();
+		storage = new MappedLocalStateStorage(dir);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		storage.close();
+		deleteDir(dir);
+	}
+	
+	private void deleteDir(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child:children) {
+				deleteDir(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private void reopen() {
+		storage.close();
+		storage = new MappedLocalStateStorage(dir);
+	}
+	
+	@Test
+	public void reloadAfterRestart() throws Exception {
+		storage.put("/a", new BaseItemInfo("a", "dir"));
+		storage.put("/a/b", new BaseItemInfo("b", "1"));
+		storage.put("/a/b", new BaseItemInfo("b", "2"));
+		storage.put("/a/c", new BaseItemInfo("c", "1"));
+		storage.put("/a/\u00e9t\u00e9", new BaseItemInfo("\u00e9t\u00e9", "v\u00e9"));
+		storage.remove("/a/c");
+		reopen();
+		
+		Assert.assertEquals(3, storage.size());
+		Assert.assertEquals("2", storage.get("/a/b").getVersion());
+		Assert.assertEquals("b", storage.get("/a/b").getName());
+		Assert.assertEquals("v\u00e9", storage.get("/a/\u00e9t\u00e9").getVersion());
+		Assert.assertNull(storage.get("/a/c"));
+	}
+
+	@Test
+	public void hasVersion() throws Exception {
+		storage.put("/a", new BaseItemInfo("a", "12345"));
+		Assert.assertTrue(storage.hasVersion("/a", "12345"));
+		Assert.assertFalse(storage.hasVersion("/a", "12346"));
+		Assert.assertFalse(storage.hasVersion("/a", "1234"));
+		Assert.assertFalse(storage.hasVersion("/b", "12345"));
+		storage.put("/a", new BaseItemInfo("a", "v\u00e9"));
+		Assert.assertTrue(storage.hasVersion("/a", "v\u00e9"));
+		Assert.assertFalse(storage.hasVersion("/a", "12345"));
+	}
+
+	@Test
+	public void getHandsBackCopies() throws Exception {
+		storage.put("/a", new BaseItemInfo("a", "1"));
+		storage.put("/b", new BaseItemInfo("b", "2"));
+		BaseItemInfo a = storage.get("/a");
+		BaseItemInfo b = storage.get("/b");
+		Assert.assertEquals("1", a.getVersion());
+		Assert.assertEquals("a", a.getName());
+		Assert.assertEquals("2", b.getVersion());
+		
+		// changing one doesn't touch what is stored until it is put back
+		a.setVersion("3");
+		Assert.assertTrue(storage.hasVersion("/a", "1"));
+		storage.put("/a", a);
+		Assert.assertEquals("3", storage.get("/a").getVersion());
+	}
+
+	@Test
+	public void growAndReload() throws Exception {
+		int count = 5000; // well past the starting table
+		for (int i = 0; i < count; i++) {
+			storage.put("/d/f" + i, new BaseItemInfo("f" + i, String.valueOf(i)));
+		}
+		for (int i = 0; i < count; i += 2) {
+			storage.remove("/d/f" + i);
+		}
+		reopen();
+		
+		Assert.assertEquals(count / 2, storage.size());
+		for (int i = 0; i < count; i++) {
+			BaseItemInfo baseInfo = storage.get("/d/f" + i);
+			if (i % 2 == 0) {
+				Assert.assertNull(baseInfo);
+			} else {
+				Assert.assertTrue(storage.hasVersion("/d/f" + i, String.valueOf(i)));
+			}
+		}
+	}
+
+	@Test
+	public void deadStringsDroppedWhileRunning() throws Exception {
+		for (int i = 0; i < 200000; i++) {
+			storage.put("/f" + (i % 10), new BaseItemInfo("f" + (i % 10), "version-" + i));
+			if (i % 1000 == 0)
+				storage.remove("/f" + (i % 10));
+		}
+		File[] arenas = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("arena.");
+			}
+		});
+		Assert.assertEquals("check old arenas are cleaned up", 1, arenas.length);
+		Assert.assertFalse(arenas[0].getName().equals("arena.1"));
+		Assert.assertTrue("check dead strings dropped, not just piled up", arenas[0].length() <= 4 * 64 * 1024);
+		Assert.assertEquals(10, storage.size());
+		Assert.assertTrue(storage.hasVersion("/f9", "version-199999"));
+		Assert.assertTrue(storage.hasVersion("/f0", "version-199990"));
+		reopen();
+		
+		Assert.assertEquals(10, storage.size());
+		Assert.assertEquals("version-199999", storage.get("/f9").getVersion());
+		Assert.assertEquals("version-199990", storage.get("/f0").getVersion());
+	}
+
+	@Test
+	public void workspaceKeepsBoth() throws Exception {
+		Map<String,String> fileSystem = new HashMap<String, String>();
+		Workspace workspace = new Workspace(new MapFileSystem(fileSystem), storage);
+		workspace.setConflictPolicy(ConflictPolicy.KEEP_BOTH);
+		workspace.processItem("/a.txt", new RemoteItemInfo("a.txt", "1"));
+		workspace.processItem("/a (conflict 1).txt", new RemoteItemInfo("a (conflict 1).txt", "9")); // known remotely, so not free
+		fileSystem.remove("/a (conflict 1).txt");
+		fileSystem.put("/a.txt", "2");
+		workspace.processItem("/a.txt", new RemoteItemInfo("a.txt", "3"));
+		Assert.assertEquals("2", fileSystem.get("/a (conflict 2).txt"));
+		Assert.assertEquals("3", storage.get("/a.txt").getVersion());
+		Assert.assertEquals("a.txt", storage.get("/a.txt").getName());
+		Assert.assertEquals("9", storage.get("/a (conflict 1).txt").getVersion());
+	}
+
+	@Test
+	public void workspaceWritesThrough() throws Exception {
+		Map<String,String> fileSystem = new HashMap<String, String>();
+		fileSystem.put("/a", null);
+		Workspace workspace = new Workspace(fileSystem, storage);
+		workspace.processItem("/a", new RemoteItemInfo("a", SharedMemory.DIR_NODE_VERSION));
+		workspace.processItem("/a/b", new RemoteItemInfo("b", "1"));
+		reopen();
+		
+		// the restarted workspace compares against the stored base
+		workspace = new Workspace(fileSystem, storage);
+		workspace.processItem("/a/b", new RemoteItemInfo("b", "2"));
+		Assert.assertEquals("2", fileSystem.get("/a/b"));
+		Assert.assertEquals("2", storage.get("/a/b").getVersion());
+		fileSystem.put("/a/b", "3");
+		Assert.assertNotNull("check local change found", workspace.processItem("/a/b", new RemoteItemInfo("b", "2")));
+	}
+
+}
@@ -0,0 +1,172 @@
+package com.picostuff.lockstep;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.picostuff.lockstep.exception.SaveConflictException;
+import com.picostuff.lockstep.metrics.Counter;
+import com.picostuff.lockstep.metrics.Histogram;
+import com.picostuff.lockstep.metrics.Metrics;
+import com.picostuff.lockstep.metrics.MetricsReporter;
+
+/**
+ * Test to drive the metrics and what records into them
+ *
+ * @author chenglim
+ *
+ */
+public class MetricsTest {
+
+	@Test
+	public void histogramPercentilesWithinBucketWidth() throws Exception {
+		Histogram histogram = new Metrics().histogram("h");
+		long[] values = new long[10000];
+		Random random = new Random(1);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long)Math.exp(random.nextDouble() * 30); // up to about ten seconds in nanoseconds
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		Assert.assertEquals(values.length, histogram.getCount());
+		Assert.assertEquals(values[values.length - 1], histogram.getMax());
+		for (double percentile:new double[] { 1, 50, 90, 99, 99.9, 100 }) {
+			long expected = values[(int)Math.ceil(percentile / 100 * values.length) - 1];
+			long actual = histogram.getPercentile(percentile);
+			Assert.assertTrue(percentile + ": " + actual + " for " + expected, actual >= expected && actual <= expected + expected / 32 + 1);
+		}
+	}
+
+	@Test
+	public void disabledKeepsNothing() throws Exception {
+		Metrics metrics = Metrics.disabled();
+		Counter counter = metrics.counter("c");
+		counter.add(5);
+		Histogram histogram = metrics.histogram("h");
+		histogram.recordSince(histogram.start());
+		Assert.assertEquals(0, counter.getCount());
+		Assert.assertEquals(0, histogram.getCount());
+		Assert.assertTrue(metrics.getCounters().isEmpty());
+		Assert.assertTrue(metrics.getHistograms().isEmpty());
+	}
+
+	@Test
+	public void sameNameSameMetric() throws Exception {
+		Metrics metrics = new Metrics();
+		metrics.counter("c").increment();
+		metrics.counter("c").add(2);
+		Assert.assertEquals(3, metrics.counter("c").getCount());
+		Assert.assertSame(metrics.histogram("h"), metrics.histogram("h"));
+	}
+
+	@Test
+	public void workspaceCountsOutcomesAndConflicts() throws Exception {
+		Metrics metrics = new Metrics();
+		Map<String,String> fileSystem = new HashMap<String, String>();
+		Workspace workspace = new Workspace(fileSystem);
+		workspace.setMetrics(metrics);
+		workspace.processItem("/a", new RemoteItemInfo("a", "1"));
+		workspace.processItem("/a", new RemoteItemInfo("a", "1"));
+		fileSystem.put("/b", "2");
+		try {
+			workspace.processItem("/b", new RemoteItemInfo("b", "3"));
+			Assert.fail("expected a conflict");
+		} catch (SaveConflictException e) {
+			// expected
+		}
+		Assert.assertEquals(1, metrics.counter("workspace.REMOTE_NEW.LOCAL_NOTHING").getCount());
+		Assert.assertEquals(1, metrics.counter("workspace.REMOTE_UNCHANGED.LOCAL_UNCHANGED").getCount());
+		Assert.assertEquals(1, metrics.counter("workspace.REMOTE_NEW.LOCAL_NEW").getCount());
+		Assert.assertEquals(1, metrics.counter("workspace.conflicts").getCount());
+	}
+
+	@Test
+	public void meteredMemoryTimesCallsAndCountsConflicts() throws Exception {
+		Metrics metrics = new Metrics();
+		SharedMemory memory = new MeteredSharedMemory(new InMemorySharedMemory(), metrics);
+		memory.addRootNode("a", "1");
+		MemoryNode oldNode = memory.copyNode("/a");
+		MemoryNode newNode = oldNode.makeCopy();
+		newNode.setVersion("2");
+		memory.changeNode("/a", oldNode, newNode);
+		try {
+			memory.changeNode("/a", oldNode, newNode);
+			Assert.fail("expected a conflict");
+		} catch (SaveConflictException e) {
+			// expected
+		}
+		Snapshot snapshot = memory.snapshot();
+		Assert.assertEquals("2", snapshot.copyNode("/a").getVersion());
+		snapshot.release();
+		Assert.assertEquals(1, metrics.histogram("memory.addNode").getCount());
+		Assert.assertEquals(1, metrics.histogram("memory.copyNode").getCount());
+		Assert.assertEquals(2, metrics.histogram("memory.changeNode").getCount());
+		Assert.assertEquals(1, metrics.histogram("snapshot.copyNode").getCount());
+		Assert.assertEquals(1, metrics.counter("memory.conflicts").getCount());
+	}
+
+	@Test
+	public void workerRecordsPassesTransfersAndQueues() throws Exception {
+		Metrics metrics = new Metrics();
+		SharedMemory memory = new InMemorySharedMemory();
+		memory.addRootNode("a", "1");
+		Map<String,String> fileSystem = Collections.synchronizedMap(new HashMap<String, String>());
+		fileSystem.put("/b", "2");
+		Workspace workspace = new Workspace(fileSystem);
+		Worker worker = new Worker(workspace, memory, 2, 1, 16);
+		worker.setMetrics(metrics);
+		worker.start();
+		try {
+			Assert.assertTrue(worker.sync());
+		} finally {
+			worker.stop();
+		}
+		Assert.assertEquals(1, metrics.histogram("worker.pass").getCount());
+		Assert.assertTrue(metrics.histogram("worker.reconcile").getCount() >= 2);
+		Assert.assertEquals(2, metrics.histogram("worker.transfer").getCount()); // one each way
+		Assert.assertEquals(Long.valueOf(0), metrics.getGauges().get("worker.reconcileQueue"));
+		Assert.assertEquals(Long.valueOf(0), metrics.getGauges().get("worker.transferQueue"));
+	}
+
+	@Test
+	public void readableThroughJmx() throws Exception {
+		Metrics metrics = new Metrics();
+		metrics.counter("memory.conflicts").add(3);
+		metrics.histogram("worker.pass").record(1000);
+		ObjectName name = metrics.registerMBean("com.picostuff.lockstep:type=Metrics,name=MetricsTest");
+		try {
+			Assert.assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "memory.conflicts"));
+			Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "worker.pass.count"));
+			Assert.assertEquals(1000L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "worker.pass.max"));
+		} finally {
+			metrics.unregisterMBean(name);
+		}
+	}
+
+	@Test
+	public void reportsEveryPeriod() throws Exception {
+		Metrics metrics = new Metrics();
+		final CountDownLatch reports = new CountDownLatch(2);
+		metrics.startReporting(new MetricsReporter() {
+			public void report(Metrics metrics) {
+				reports.countDown();
+			}
+		}, 10, TimeUnit.MILLISECONDS);
+		try {
+			Assert.assertTrue(reports.await(5, TimeUnit.SECONDS));
+		} finally {
+			metrics.stopReporting();
+		}
+	}
+}
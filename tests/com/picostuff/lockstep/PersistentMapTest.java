@@ -0,0 +1,84 @@
+package com.picostuff.lockstep;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Test to drive the persistent map that holds node children
+ * 
+ * @author chenglim
+ *
+ */
+public class PersistentMapTest {
+	
+	@Test
+	public void matchesTreeMap() throws Exception {
+		Random random = new Random(42);
+		TreeMap<String,Integer> expected = new TreeMap<String, Integer>();
+		PersistentMap<Integer> map = PersistentMap.empty();
+		for (int i = 0; i < 5000; i++) {
+			String key = "k" + random.nextInt(1000);
+			if (random.nextInt(3) == 0) {
+				expected.remove(key);
+				map = map.without(key);
+			} else {
+				expected.put(key, i);
+				map = map.with(key, i);
+			}
+		}
+		Assert.assertEquals(expected.size(), map.size());
+		Assert.assertEquals(new ArrayList<Map.Entry<String,Integer>>(expected.entrySet()).toString(), entries(map.iterator()).toString());
+		Assert.assertEquals(new ArrayList<Map.Entry<String,Integer>>(expected.tailMap("k5").entrySet()).toString(), entries(map.iteratorFrom("k5")).toString());
+		for (String key:expected.keySet()) {
+			Assert.assertEquals(expected.get(key), map.get(key));
+		}
+		Assert.assertEquals(expected.keySet(), map.keySet());
+		Assert.assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(map.keySet()));
+		Assert.assertFalse(map.keySet().contains("x"));
+	}
+	
+	@Test
+	public void oldMapsUnchanged() throws Exception {
+		PersistentMap<String> empty = PersistentMap.empty();
+		PersistentMap<String> one = empty.with("a", "1");
+		PersistentMap<String> two = one.with("b", "2").with("a", "3");
+		PersistentMap<String> three = two.without("b");
+		Assert.assertEquals(0, empty.size());
+		Assert.assertEquals("1", one.get("a"));
+		Assert.assertNull(one.get("b"));
+		Assert.assertEquals("3", two.get("a"));
+		Assert.assertEquals("2", two.get("b"));
+		Assert.assertEquals(2, two.size());
+		Assert.assertNull(three.get("b"));
+		Assert.assertEquals(1, three.size());
+		Assert.assertSame("check taking out a missing key changes nothing", three, three.without("x"));
+	}
+	
+	@Test
+	public void withNewOnlyAdds() throws Exception {
+		PersistentMap<String> map = PersistentMap.<String>empty().with("b", "1").with("d", "2");
+		Assert.assertNull("check a key already there isn't replaced", map.withNew("d", "3"));
+		PersistentMap<String> added = map.withNew("c", "3");
+		Assert.assertEquals(3, added.size());
+		Assert.assertEquals("[b=1, c=3, d=2]", entries(added.iterator()).toString());
+		Assert.assertEquals(2, map.size());
+		Assert.assertNull(map.get("c"));
+	}
+	
+	static private <V> List<String> entries(Iterator<Map.Entry<String,V>> iterator) {
+		List<String> entries = new ArrayList<String>();
+		while (iterator.hasNext()) {
+			Map.Entry<String,V> entry = iterator.next();
+			entries.add(entry.getKey() + "=" + entry.getValue());
+		}
+		return entries;
+	}
+}
@@ -3,7 +3,14 @@ package com.picostuff.lockstep;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
@@ -14,6 +21,8 @@ import org.junit.Test;
 import com.picostuff.lockstep.exception.AddDuplicateException;
 import com.picostuff.lockstep.exception.BadPathException;
 import com.picostuff.lockstep.exception.MissingNodeException;
+import com.picostuff.lockstep.exception.ResyncRequiredException;
+import com.picostuff.lockstep.exception.SaveConflictException;
 
 /**
  * Test to drive a shared memory interface
@@ -26,7 +35,15 @@ public class SharedMemoryTest {
 	
 	@Before
 	public void setup() {
-		memory = new SharedMemory();
+		memory = createMemory();
+	}
+	
+	protected SharedMemory createMemory() {
+		return new InMemorySharedMemory();
+	}
+	
+	protected SharedMemory createMemory(int changeLogSize) {
+		return new InMemorySharedMemory(16, changeLogSize);
 	}
 	
 	@After
@@ -127,4 +144,683 @@ public class SharedMemoryTest {
 		Assert.assertEquals(0, childrenNames.size());
 	}
 
+	@Test
+	public void changeNodeStale() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a","b","1");
+		MemoryNode node = memory.copyNode("/a/b");
+		MemoryNode newNode = node.makeCopy();
+		newNode.setVersion("2");
+		memory.changeNode("/a/b", node, newNode);
+		try {
+			memory.changeNode("/a/b", node, newNode); // node is now stale
+		} catch (SaveConflictException e) {
+			// ok
+			return;
+		}
+		fail("Did not throw SaveConflictException");
+	}
+
+	@Test
+	public void concurrentChangeNode() throws Exception {
+		// many threads race to change the same node, and every lost race should be a save conflict
+		memory.addRootDirNode("a");
+		memory.addNode("/a","b","0");
+		final int threadCount = 8;
+		final int attempts = 500;
+		final AtomicInteger saves = new AtomicInteger();
+		final AtomicInteger conflicts = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < attempts; i++) {
+							MemoryNode node = memory.copyNode("/a/b");
+							MemoryNode newNode = node.makeCopy();
+							newNode.setVersion(id + "-" + i);
+							try {
+								memory.changeNode("/a/b", node, newNode);
+								saves.incrementAndGet();
+							} catch (SaveConflictException e) {
+								conflicts.incrementAndGet();
+							}
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread:threads) {
+			thread.join();
+		}
+		Assert.assertEquals("check no unexpected errors", 0, errors.get());
+		Assert.assertEquals(threadCount * attempts, saves.get() + conflicts.get());
+		Assert.assertTrue(saves.get() > 0);
+	}
+
+	@Test
+	public void concurrentAddNode() throws Exception {
+		memory.addRootDirNode("a");
+		final int threadCount = 8;
+		final int adds = 200;
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < adds; i++) {
+							memory.addNode("/a", id + "-" + i, "1");
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread:threads) {
+			thread.join();
+		}
+		Assert.assertEquals("check no unexpected errors", 0, errors.get());
+		Assert.assertEquals(threadCount * adds, memory.getChildrenNames("/a").size());
+	}
+
+	@Test
+	public void findNonCanonicalPath() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a/","b","1");
+		Assert.assertEquals("1", memory.copyNode("//a//b/").getVersion());
+		Assert.assertEquals(1, memory.getChildrenNames("/a/").size());
+	}
+
+	@Test
+	public void removeSubtree() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addDirNode("/a","b");
+		memory.addNode("/a/b","c","1");
+		memory.removeNode("/a", memory.copyNode("/a"));
+		
+		// nothing under the removed node should still be found
+		try {
+			memory.copyNode("/a/b/c");
+			fail("Did not throw MissingNodeException");
+		} catch (MissingNodeException e) {
+			// ok
+		}
+		
+		// adding the same names again starts from an empty subtree
+		memory.addRootDirNode("a");
+		Assert.assertEquals(0, memory.getChildrenNames("/a").size());
+		try {
+			memory.addNode("/a/b", "c", "1");
+			fail("Did not throw MissingNodeException");
+		} catch (MissingNodeException e) {
+			// ok
+		}
+	}
+
+	@Test
+	public void multi() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a","b","1");
+		MemoryNode node = memory.copyNode("/a/b");
+		MemoryNode newNode = node.makeCopy();
+		newNode.setVersion("2");
+		
+		List<Op> ops = new ArrayList<Op>();
+		ops.add(Op.change("/a/b", node, newNode));
+		ops.add(Op.addDir("/a", "c"));
+		ops.add(Op.add("/a/c", "d", "1")); // sees the dir added just before it
+		memory.multi(ops);
+		
+		Assert.assertEquals("2", memory.copyNode("/a/b").getVersion());
+		Assert.assertEquals("1", memory.copyNode("/a/c/d").getVersion());
+	}
+
+	@Test
+	public void multiConflict() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a","b","1");
+		memory.addNode("/a","c","1");
+		MemoryNode staleNode = new MemoryNode("c", "0");
+		
+		List<Op> ops = new ArrayList<Op>();
+		ops.add(Op.add("/a", "d", "1"));
+		ops.add(Op.remove("/a/b", memory.copyNode("/a/b")));
+		ops.add(Op.remove("/a/c", staleNode));
+		ops.add(Op.check("/a", new MemoryNode("a", "other")));
+		try {
+			memory.multi(ops);
+			fail("Did not throw SaveConflictException");
+		} catch (SaveConflictException e) {
+			Assert.assertEquals(Arrays.asList("/a/c", "/a"), e.getPaths());
+		}
+		
+		// nothing in the batch should have been applied
+		Assert.assertEquals(2, memory.getChildrenNames("/a").size());
+		Assert.assertTrue(memory.getChildrenNames("/a").contains("b"));
+	}
+
+	@Test
+	public void multiCheckSubtree() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a","b","1");
+		MemoryNode dir = memory.copyNode("/a");
+		memory.addNode("/a","c","1");
+		
+		// the dir's version is as read, but it got a child since
+		try {
+			memory.multi(Arrays.asList(Op.checkSubtree("/a", dir), Op.remove("/a", dir)));
+			fail("Did not throw SaveConflictException");
+		} catch (SaveConflictException e) {
+			Assert.assertEquals(Arrays.asList("/a"), e.getPaths());
+		}
+		Assert.assertEquals(2, memory.getChildrenNames("/a").size());
+		
+		memory.multi(Arrays.asList(Op.checkSubtree("/a", memory.copyNode("/a")), Op.remove("/a", dir)));
+		Assert.assertFalse(memory.getChildrenNames("/").contains("a"));
+	}
+
+	@Test
+	public void multiRemoveSubtree() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a","b","1");
+		
+		List<Op> ops = new ArrayList<Op>();
+		ops.add(Op.add("/a", "c", "1"));
+		ops.add(Op.remove("/a", memory.copyNode("/a")));
+		ops.add(Op.addDir("/", "a"));
+		memory.multi(ops);
+		
+		Assert.assertEquals(0, memory.getChildrenNames("/a").size());
+	}
+
+	@Test
+	public void multiAddUnderNewParentRacesAdd() throws Exception {
+		// another writer can't get under a dir the batch is adding until the whole batch is in
+		for (int i = 0; i < 1000; i++) {
+			final String dir = "d" + i;
+			final AtomicInteger errors = new AtomicInteger();
+			final CountDownLatch go = new CountDownLatch(1);
+			Thread racer = new Thread() {
+				public void run() {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					while (true) {
+						try {
+							memory.addNode("/" + dir, "c", "2");
+							return;
+						} catch (MissingNodeException e) {
+							// not there yet
+						} catch (AddDuplicateException e) {
+							return; // the batch got there first
+						} catch (Exception e) {
+							errors.incrementAndGet();
+							return;
+						}
+					}
+				}
+			};
+			racer.start();
+			List<Op> ops = new ArrayList<Op>();
+			ops.add(Op.addDir("/", dir));
+			ops.add(Op.add("/" + dir, "c", "1"));
+			go.countDown();
+			memory.multi(ops);
+			racer.join();
+			Assert.assertEquals(0, errors.get());
+			Assert.assertEquals("1", memory.copyNode("/" + dir + "/c").getVersion());
+		}
+	}
+
+	@Test
+	public void watchNodeOnce() throws Exception {
+		final List<NodeEvent> events = new ArrayList<NodeEvent>();
+		memory.watchNode("/a", false, new NodeWatcher() {
+			public void process(NodeEvent event) {
+				events.add(event);
+			}
+		});
+		memory.addRootNode("a", "1");
+		MemoryNode node = memory.copyNode("/a");
+		MemoryNode newNode = node.makeCopy();
+		newNode.setVersion("2");
+		memory.changeNode("/a", node, newNode);
+		
+		Assert.assertEquals("check one-shot watch fired once", 1, events.size());
+		Assert.assertSame(NodeEvent.Type.ADDED, events.get(0).getType());
+		Assert.assertEquals("/a", events.get(0).getPath());
+	}
+
+	@Test
+	public void watchSubtreeCoalesced() throws Exception {
+		WatchQueue queue = new WatchQueue();
+		memory.addRootDirNode("a");
+		Watch watch = memory.watchSubtree("/a", true, queue);
+		memory.addNode("/a", "b", "1");
+		for (int i = 2; i <= 5; i++) {
+			MemoryNode node = memory.copyNode("/a/b");
+			MemoryNode newNode = node.makeCopy();
+			newNode.setVersion(String.valueOf(i));
+			memory.changeNode("/a/b", node, newNode);
+		}
+		memory.addNode("/a", "c", "1");
+		memory.removeNode("/a/c", memory.copyNode("/a/c"));
+		memory.addRootNode("d", "1"); // outside the watched subtree
+		
+		// a burst of edits to one node is one event with the latest version
+		Assert.assertEquals(1, queue.size());
+		NodeEvent event = queue.poll();
+		Assert.assertSame(NodeEvent.Type.ADDED, event.getType());
+		Assert.assertEquals("/a/b", event.getPath());
+		Assert.assertEquals("5", event.getVersion());
+		
+		memory.removeNode("/a", memory.copyNode("/a"));
+		List<NodeEvent> events = new ArrayList<NodeEvent>();
+		queue.drainTo(events);
+		Assert.assertEquals("check removing a subtree reports each node", 2, events.size());
+		
+		watch.cancel();
+		memory.addRootDirNode("a");
+		Assert.assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void changesSince() throws Exception {
+		memory.addRootDirNode("a");
+		long cursor = memory.getLastSeq();
+		memory.addNode("/a", "b", "1");
+		MemoryNode node = memory.copyNode("/a/b");
+		MemoryNode newNode = node.makeCopy();
+		newNode.setVersion("2");
+		memory.changeNode("/a/b", node, newNode);
+		memory.addNode("/a", "c", "1");
+		
+		ChangeSet changes = memory.changesSince(cursor, 100);
+		Assert.assertEquals("check one change per path", 2, changes.getChanges().size());
+		Assert.assertEquals("/a/b", changes.getChanges().get(0).getPath());
+		Assert.assertEquals("2", changes.getChanges().get(0).getVersion());
+		Assert.assertEquals("/a/c", changes.getChanges().get(1).getPath());
+		Assert.assertFalse(changes.hasMore());
+		Assert.assertEquals(memory.getLastSeq(), changes.getNextSeq());
+		
+		// nothing new since the cursor we were handed back
+		changes = memory.changesSince(changes.getNextSeq(), 100);
+		Assert.assertEquals(0, changes.getChanges().size());
+		
+		// page through with a small max
+		changes = memory.changesSince(cursor, 1);
+		Assert.assertTrue(changes.hasMore());
+		Assert.assertEquals(cursor + 1, changes.getNextSeq());
+	}
+
+	@Test
+	public void changesSinceTooOld() throws Exception {
+		memory = createMemory(4);
+		for (int i = 0; i < 10; i++) {
+			memory.addRootNode("n" + i, "1");
+		}
+		try {
+			memory.changesSince(0, 100);
+			fail("Did not throw ResyncRequiredException");
+		} catch (ResyncRequiredException e) {
+			// ok
+		}
+		Assert.assertEquals(4, memory.changesSince(memory.getLastSeq() - 4, 100).getChanges().size());
+	}
+	
+	@Test
+	public void sizeAndModifiedKept() throws Exception {
+		MemoryNode node = new MemoryNode("a", "1");
+		node.setSize(100);
+		node.setModified(5000);
+		memory.multi(Arrays.asList(Op.add("/", node)));
+		MemoryNode oldNode = memory.copyNode("/a");
+		Assert.assertEquals(100, oldNode.getSize());
+		Assert.assertEquals(5000, oldNode.getModified());
+		
+		MemoryNode newNode = oldNode.makeCopy();
+		newNode.setVersion("2");
+		newNode.setSize(200);
+		memory.changeNode("/a", oldNode, newNode);
+		Assert.assertEquals(200, memory.copyNode("/a").getSize());
+		Assert.assertEquals(5000, memory.copyNode("/a").getModified());
+		
+		memory.addRootNode("b", "1");
+		Assert.assertEquals("check not known", -1, memory.copyNode("/b").getSize());
+	}
+	
+	@Test
+	public void subtreeHash() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a", "b", "1");
+		memory.addNode("/a", "c", "1");
+		memory.addRootNode("d", "1");
+		long rootHash = memory.copyNode("/").getSubtreeHash();
+		long dirHash = memory.copyNode("/a").getSubtreeHash();
+		Assert.assertTrue(rootHash != 0);
+		Assert.assertEquals("check a file has nothing below it", 0, memory.copyNode("/d").getSubtreeHash());
+		
+		MemoryNode oldNode = memory.copyNode("/a/b");
+		MemoryNode newNode = oldNode.makeCopy();
+		newNode.setVersion("2");
+		memory.changeNode("/a/b", oldNode, newNode);
+		Assert.assertTrue("check the change reached the dir", dirHash != memory.copyNode("/a").getSubtreeHash());
+		Assert.assertTrue("check the change reached the root", rootHash != memory.copyNode("/").getSubtreeHash());
+		
+		memory.changeNode("/a/b", newNode, oldNode);
+		Assert.assertEquals("check changing back gives the same hash", dirHash, memory.copyNode("/a").getSubtreeHash());
+		Assert.assertEquals(rootHash, memory.copyNode("/").getSubtreeHash());
+		
+		memory.removeNode("/a", memory.copyNode("/a"));
+		memory.multi(Arrays.asList(Op.add("/", new MemoryNode("a", SharedMemory.DIR_NODE_VERSION)), Op.add("/a", new MemoryNode("c", "1")),
+				Op.add("/a", new MemoryNode("b", "1"))));
+		Assert.assertEquals("check the same tree built another way has the same hash", rootHash, memory.copyNode("/").getSubtreeHash());
+		
+		memory.removeNode("/a/b", memory.copyNode("/a/b"));
+		memory.removeNode("/a/c", memory.copyNode("/a/c"));
+		Assert.assertEquals("check an empty dir has nothing below it", 0, memory.copyNode("/a").getSubtreeHash());
+	}
+	
+	@Test
+	public void copySubtree() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addDirNode("/a", "b");
+		memory.addNode("/a/b", "x", "1");
+		memory.addNode("/a", "b-c", "2");
+		memory.addNode("/a", "d", "3");
+		memory.addRootNode("e", "4");
+		
+		List<String> paths = new ArrayList<String>();
+		String pageToken = null;
+		do {
+			SubtreePage page = memory.copySubtree("/", -1, pageToken, 2);
+			Assert.assertTrue(page.getNodes().size() <= 2);
+			for (Map.Entry<String,MemoryNode> entry:page.getNodes().entrySet()) {
+				paths.add(entry.getKey());
+				Assert.assertEquals(memory.copyNode(entry.getKey()).getVersion(), entry.getValue().getVersion());
+				Assert.assertEquals(memory.copyNode(entry.getKey()).getSubtreeHash(), entry.getValue().getSubtreeHash());
+			}
+			pageToken = page.getNextToken();
+		} while (pageToken != null);
+		Assert.assertEquals("check every node once across the pages, in tree order", Arrays.asList("/", "/a", "/a/b", "/a/b/x", "/a/b-c", "/a/d", "/e"), paths);
+		
+		SubtreePage page = memory.copySubtree("/a", 1, null, 100);
+		Assert.assertFalse(page.hasMore());
+		Assert.assertEquals(Arrays.asList("/a", "/a/b", "/a/b-c", "/a/d"), new ArrayList<String>(page.getNodes().keySet()));
+		Assert.assertEquals(Arrays.asList("/a/b-c", "/a/d"), new ArrayList<String>(memory.copySubtree("/a", 1, "/a/b", 100).getNodes().keySet()));
+		
+		paths.clear();
+		pageToken = null;
+		do {
+			SubtreePage depthPage = memory.copySubtree("/", 2, pageToken, 2);
+			paths.addAll(depthPage.getNodes().keySet());
+			pageToken = depthPage.getNextToken();
+		} while (pageToken != null);
+		Assert.assertEquals("check nothing below the depth", Arrays.asList("/", "/a", "/a/b", "/a/b-c", "/a/d", "/e"), paths);
+		Assert.assertEquals("3", page.getNodes().get("/a/d").getVersion());
+		
+		Assert.assertEquals(Collections.singleton("/a/b"), memory.copySubtree("/a/b", 0, null, 100).getNodes().keySet());
+		try {
+			memory.copySubtree("/f", 1, null, 100);
+			fail();
+		} catch (MissingNodeException e) {
+			// ok
+		}
+	}
+	
+	@Test
+	public void snapshot() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a", "b", "1");
+		Snapshot snapshot = memory.snapshot();
+		long rootHash = memory.copyNode("/").getSubtreeHash();
+		Assert.assertEquals(rootHash, snapshot.copyNode("/").getSubtreeHash());
+		
+		MemoryNode oldNode = memory.copyNode("/a/b");
+		MemoryNode newNode = oldNode.makeCopy();
+		newNode.setVersion("2");
+		memory.changeNode("/a/b", oldNode, newNode);
+		memory.addNode("/a", "c", "1");
+		Assert.assertEquals("check later writes don't show", "1", snapshot.copyNode("/a/b").getVersion());
+		Assert.assertEquals(Collections.singleton("b"), snapshot.getChildrenNames("/a"));
+		Assert.assertEquals(rootHash, snapshot.copyNode("/").getSubtreeHash());
+		
+		memory.removeNode("/a", memory.copyNode("/a"));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("/", "/a", "/a/b")), snapshot.copySubtree("/", -1, null, 10).getNodes().keySet());
+		Snapshot later = memory.snapshot();
+		try {
+			later.copyNode("/a");
+			fail();
+		} catch (MissingNodeException e) {
+			// ok
+		}
+		Assert.assertEquals(memory.copyNode("/").getSubtreeHash(), later.copyNode("/").getSubtreeHash());
+		later.release();
+		
+		snapshot.retain();
+		snapshot.release();
+		Assert.assertEquals("check still held", "1", snapshot.copyNode("/a/b").getVersion());
+		snapshot.release();
+		try {
+			snapshot.copyNode("/a/b");
+			fail();
+		} catch (IllegalStateException e) {
+			// ok
+		}
+	}
+	
+	@Test
+	public void snapshotAfterManyWrites() throws Exception {
+		memory.addRootDirNode("a");
+		for (int i = 0; i < 2000; i++) {
+			String name = "f" + (i % 50);
+			if (i < 50) {
+				memory.addNode("/a", name, "0");
+			} else if (i % 7 == 0) {
+				memory.removeNode("/a/" + name, memory.copyNode("/a/" + name));
+				memory.addNode("/a", name, String.valueOf(i));
+			} else {
+				MemoryNode oldNode = memory.copyNode("/a/" + name);
+				MemoryNode newNode = oldNode.makeCopy();
+				newNode.setVersion(String.valueOf(i));
+				memory.changeNode("/a/" + name, oldNode, newNode);
+			}
+		}
+		Snapshot snapshot = memory.snapshot();
+		try {
+			Assert.assertEquals(memory.copyNode("/").getSubtreeHash(), snapshot.copyNode("/").getSubtreeHash());
+			Assert.assertEquals(memory.copyNode("/a/f3").getVersion(), snapshot.copyNode("/a/f3").getVersion());
+		} finally {
+			snapshot.release();
+		}
+	}
+	
+	@Test
+	public void snapshotHeldAcrossManyWrites() throws Exception {
+		memory.addRootDirNode("a");
+		for (int i = 0; i < 50; i++) {
+			memory.addNode("/a", "f" + i, "0");
+		}
+		Snapshot snapshot = memory.snapshot();
+		long rootHash = memory.copyNode("/").getSubtreeHash();
+		for (int i = 0; i < 2000; i++) {
+			String name = "f" + (i % 50);
+			MemoryNode oldNode = memory.copyNode("/a/" + name);
+			MemoryNode newNode = oldNode.makeCopy();
+			newNode.setVersion(String.valueOf(i));
+			memory.changeNode("/a/" + name, oldNode, newNode);
+			memory.addNode("/a", "g" + i, "1");
+			if (i % 3 == 0)
+				memory.removeNode("/a/g" + i, memory.copyNode("/a/g" + i));
+		}
+		try {
+			Assert.assertEquals(rootHash, snapshot.copyNode("/").getSubtreeHash());
+			Assert.assertEquals(50, snapshot.getChildrenNames("/a").size());
+			for (int i = 0; i < 50; i++) {
+				Assert.assertEquals("0", snapshot.copyNode("/a/f" + i).getVersion());
+			}
+			Assert.assertEquals(51, snapshot.copySubtree("/", -1, null, 100).getNodes().size() - 1);
+		} finally {
+			snapshot.release();
+		}
+	}
+	
+	@Test
+	public void snapshotHashesMatchWhatItSees() throws Exception {
+		// writers under different dirs race up to the root, and a snapshot must see none or all of each
+		final int writers = 4;
+		for (int w = 0; w < writers; w++) {
+			memory.addRootDirNode("d" + w);
+			memory.addNode("/d" + w, "f", "0");
+		}
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicInteger running = new AtomicInteger(writers);
+		for (int w = 0; w < writers; w++) {
+			final String dir = "/d" + w;
+			new Thread() {
+				public void run() {
+					try {
+						for (int i = 1; i <= 300; i++) {
+							MemoryNode oldNode = memory.copyNode(dir + "/f");
+							MemoryNode newNode = oldNode.makeCopy();
+							newNode.setVersion(String.valueOf(i));
+							memory.changeNode(dir + "/f", oldNode, newNode);
+							memory.addNode(dir, "g" + i, "1");
+							if (i % 2 == 0)
+								memory.removeNode(dir + "/g" + (i - 1), memory.copyNode(dir + "/g" + (i - 1)));
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					} finally {
+						running.decrementAndGet();
+					}
+				}
+			}.start();
+		}
+		int torn = 0;
+		while (running.get() > 0) {
+			Snapshot snapshot = memory.snapshot();
+			try {
+				if (hashOf(snapshot, "/") != snapshot.copyNode("/").getSubtreeHash())
+					torn++;
+			} finally {
+				snapshot.release();
+			}
+		}
+		Assert.assertEquals(0, errors.get());
+		Assert.assertEquals("check no snapshot caught a hash without its write", 0, torn);
+	}
+	
+	/**
+	 * @return the subtree hash worked out from what the snapshot holds
+	 * below the path, checking each node's own on the way
+	 */
+	private long hashOf(Snapshot snapshot, String path) throws Exception {
+		long hash = 0;
+		for (String name:snapshot.getChildrenNames(path)) {
+			String childPath = path.equals("/") ? "/" + name : path + "/" + name;
+			MemoryNode child = snapshot.copyNode(childPath);
+			long childHash = hashOf(snapshot, childPath);
+			if (childHash != child.getSubtreeHash())
+				return ~childHash; // can't match
+			hash ^= MemoryNode.entryHash(name, child.getVersion(), childHash);
+		}
+		return hash;
+	}
+	
+	@Test
+	public void snapshotSeesChildAddedUnderNewDir() throws Exception {
+		// the child's add can only start once the dir is found, so a snapshot after both has both
+		for (int i = 0; i < 1000; i++) {
+			final String dir = "d" + i;
+			final AtomicInteger errors = new AtomicInteger();
+			final CountDownLatch go = new CountDownLatch(1);
+			Thread adder = new Thread() {
+				public void run() {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					while (true) {
+						try {
+							memory.addNode("/" + dir, "c", "1");
+							return;
+						} catch (MissingNodeException e) {
+							// not there yet
+						} catch (Exception e) {
+							errors.incrementAndGet();
+							return;
+						}
+					}
+				}
+			};
+			adder.start();
+			go.countDown();
+			memory.addDirNode("/", dir);
+			adder.join();
+			Assert.assertEquals(0, errors.get());
+			Snapshot snapshot = memory.snapshot();
+			try {
+				Assert.assertEquals("1", snapshot.copyNode("/" + dir + "/c").getVersion());
+			} finally {
+				snapshot.release();
+			}
+		}
+	}
+	
+	@Test
+	public void snapshotSeesWholeBatches() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a", "b", "0");
+		memory.addNode("/a", "c", "0");
+		final int batches = 300;
+		final AtomicInteger errors = new AtomicInteger();
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 1; i <= batches; i++) {
+						List<Op> ops = new ArrayList<Op>();
+						for (String name:new String[] { "b", "c" }) {
+							MemoryNode oldNode = memory.copyNode("/a/" + name);
+							MemoryNode newNode = oldNode.makeCopy();
+							newNode.setVersion(String.valueOf(i));
+							ops.add(Op.change("/a/" + name, oldNode, newNode));
+						}
+						memory.multi(ops);
+					}
+				} catch (Exception e) {
+					errors.incrementAndGet();
+				}
+			}
+		};
+		writer.start();
+		int torn = 0;
+		while (writer.isAlive()) {
+			Snapshot snapshot = memory.snapshot();
+			try {
+				if (!snapshot.copyNode("/a/b").getVersion().equals(snapshot.copyNode("/a/c").getVersion()))
+					torn++;
+			} finally {
+				snapshot.release();
+			}
+		}
+		writer.join();
+		Assert.assertEquals(0, errors.get());
+		Assert.assertEquals("check no snapshot caught half a batch", 0, torn);
+	}
 }
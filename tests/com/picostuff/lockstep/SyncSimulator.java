@@ -0,0 +1,673 @@
+package com.picostuff.lockstep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.picostuff.lockstep.exception.AddDuplicateException;
+import com.picostuff.lockstep.exception.BadPathException;
+import com.picostuff.lockstep.exception.MissingNodeException;
+import com.picostuff.lockstep.exception.SaveConflictException;
+
+/**
+ * Runs several workspaces against one shared memory, each with its own
+ * worker, and drives them with a random workload of adds, edits, deletes
+ * and renames made from a thread per workspace while the workers sync.
+ *
+ * The workload comes from a seed, so the same seed makes the same ops on
+ * the same paths in the same workspaces, and without contention ends in
+ * the same tree.  Thread timing still varies from run to run, so the
+ * timings do, and with contention so does which edit wins.
+ *
+ * The workload is made in rounds.  Each path takes at most one op a
+ * round, except a contended edit, which two workspaces make at once with
+ * different content.  After each round every worker syncs until all the
+ * workspaces agree with the shared memory, with a conflict settled by
+ * taking the remote side.
+ *
+ * Run it on its own with a seed, clients, rounds and ops per round to
+ * replay a workload and print what it measured.
+ *
+ * @author chenglim
+ *
+ */
+public class SyncSimulator {
+	static private final int MAX_CONVERGE_PASSES = 50;
+	static private final int RECONCILE_THREADS = 2;
+	static private final int TRANSFER_THREADS = 2;
+	static private final int QUEUE_SIZE = 64;
+
+	private final long seed;
+	private final Random random;
+	private final int dirs;
+	private final TimedMemory memory;
+	private final List<Client> clients;
+	private final TreeMap<String, String> model; // the files the workload should end with
+	private final Map<String, Set<String>> contended; // paths edited twice this round, to either content
+	private final List<String> workload;
+	private final Latencies passes = new Latencies();
+	private final Latencies processItems = new Latencies();
+	private final Latencies remoteReads = new Latencies();
+	private final Latencies remoteWrites = new Latencies();
+	private final Latencies convergence = new Latencies();
+	private int nextName;
+	private int opCount;
+	private int conflictCount;
+	private int contendedCount;
+	private long runNanos;
+	private volatile boolean roundDone;
+
+	/**
+	 * @param dirs how many dirs the files are spread over
+	 */
+	public SyncSimulator(long seed, int clientCount, int dirs) {
+		this.seed = seed;
+		this.dirs = dirs;
+		random = new Random(seed);
+		memory = new TimedMemory();
+		clients = new ArrayList<Client>(clientCount);
+		for (int i = 0; i < clientCount; i++) {
+			clients.add(new Client(i));
+		}
+		model = new TreeMap<String, String>();
+		contended = new HashMap<String, Set<String>>();
+		workload = new ArrayList<String>();
+	}
+
+	/**
+	 * Make the dirs and some files in the shared memory, start the workers,
+	 * and wait for every workspace to pull the lot
+	 */
+	public void start(int initialFiles) throws Exception {
+		for (int i = 0; i < dirs; i++) {
+			memory.addRootDirNode("d" + i);
+		}
+		for (int i = 0; i < initialFiles; i++) {
+			String dir = dirPath(random.nextInt(dirs));
+			String name = newName();
+			String content = "init-" + i;
+			memory.addNode(dir, name, content);
+			model.put(MemoryPaths.childPath(dir, name), content);
+		}
+		for (Client client:clients) {
+			client.worker.start();
+		}
+		converge();
+		resetMeasures();
+	}
+
+	public void stop() throws InterruptedException {
+		for (Client client:clients) {
+			client.worker.stop();
+		}
+	}
+
+	/**
+	 * Run rounds of the seeded workload
+	 *
+	 * @param contention the chance an edit is made in two workspaces at once
+	 */
+	public Report run(int rounds, int opsPerRound, double contention) throws Exception {
+		long start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			runRound(makeRound(round, opsPerRound, contention));
+		}
+		runNanos += System.nanoTime() - start;
+		return report(rounds);
+	}
+
+	public void add(int client, String path, String content) throws Exception {
+		apply(new FileOp(FileOp.Kind.ADD, client, path, null, content));
+	}
+
+	public void edit(int client, String path, String content) throws Exception {
+		apply(new FileOp(FileOp.Kind.EDIT, client, path, null, content));
+	}
+
+	public void delete(int client, String path) throws Exception {
+		apply(new FileOp(FileOp.Kind.DELETE, client, path, null, null));
+	}
+
+	public void rename(int client, String path, String target) throws Exception {
+		apply(new FileOp(FileOp.Kind.RENAME, client, path, target, null));
+	}
+
+	/**
+	 * @return the content of the file in the client's workspace, or null if
+	 * it isn't there
+	 */
+	public String fileOn(int client, String path) {
+		return clients.get(client).files.get(path);
+	}
+
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * A single op, outside the seeded workload, made once everything is in
+	 * sync and followed through to convergence
+	 */
+	private void apply(FileOp op) throws Exception {
+		contended.clear();
+		op.applyTo(clients.get(op.client).files);
+		op.applyTo(model);
+		converge();
+		checkAgainstModel();
+	}
+
+	private List<FileOp> makeRound(int round, int opsPerRound, double contention) {
+		List<FileOp> ops = new ArrayList<FileOp>();
+		List<String> available = new ArrayList<String>(model.keySet()); // paths with no op yet this round
+		contended.clear();
+		for (int i = 0; i < opsPerRound; i++) {
+			int client = random.nextInt(clients.size());
+			String content = "c" + client + "-r" + round + "-o" + i;
+			int roll = random.nextInt(100);
+			FileOp op;
+			if (available.isEmpty() || roll < 30) {
+				op = new FileOp(FileOp.Kind.ADD, client, MemoryPaths.childPath(dirPath(random.nextInt(dirs)), newName()), null, content);
+			} else {
+				String path = available.remove(random.nextInt(available.size()));
+				if (roll < 70) {
+					op = new FileOp(FileOp.Kind.EDIT, client, path, null, content);
+					if (clients.size() > 1 && random.nextDouble() < contention) {
+						int other = (client + 1 + random.nextInt(clients.size() - 1)) % clients.size();
+						FileOp otherOp = new FileOp(FileOp.Kind.EDIT, other, path, null, "c" + other + "-r" + round + "-o" + i);
+						ops.add(otherOp);
+						workload.add(otherOp.toString());
+						contended.put(path, new HashSet<String>(Arrays.asList(content, otherOp.content)));
+						contendedCount++;
+					}
+				} else if (roll < 85) {
+					op = new FileOp(FileOp.Kind.DELETE, client, path, null, null);
+				} else {
+					op = new FileOp(FileOp.Kind.RENAME, client, path, MemoryPaths.childPath(dirPath(random.nextInt(dirs)), newName()), null);
+				}
+			}
+			ops.add(op);
+			workload.add(op.toString());
+			op.applyTo(model);
+		}
+		opCount += ops.size();
+		return ops;
+	}
+
+	/**
+	 * Each client makes its ops on its own thread while its worker syncs on
+	 * another, then everything is brought to agreement
+	 */
+	private void runRound(List<FileOp> ops) throws Exception {
+		roundDone = false;
+		List<Thread> syncers = new ArrayList<Thread>();
+		List<Thread> drivers = new ArrayList<Thread>();
+		for (final Client client:clients) {
+			final List<FileOp> clientOps = new ArrayList<FileOp>();
+			for (FileOp op:ops) {
+				if (op.client == client.id)
+					clientOps.add(op);
+			}
+			drivers.add(new Thread("simulator-driver-" + client.id) {
+				@Override
+				public void run() {
+					for (FileOp op:clientOps) {
+						op.applyTo(client.files);
+					}
+				}
+			});
+			syncers.add(new Thread("simulator-sync-" + client.id) {
+				@Override
+				public void run() {
+					try {
+						while (!roundDone)
+							client.sync();
+					} catch (InterruptedException e) {
+						// stopped
+					}
+				}
+			});
+		}
+		for (Thread thread:syncers) {
+			thread.start();
+		}
+		for (Thread thread:drivers) {
+			thread.start();
+		}
+		for (Thread thread:drivers) {
+			thread.join();
+		}
+		roundDone = true;
+		for (Thread thread:syncers) {
+			thread.join();
+		}
+		converge();
+		checkAgainstModel();
+	}
+
+	/**
+	 * Sync every worker until every workspace holds what the shared memory
+	 * does, taking the remote side of any conflict
+	 */
+	private void converge() throws Exception {
+		long start = System.nanoTime();
+		Set<String> conflicts = new HashSet<String>();
+		for (int pass = 0; pass < MAX_CONVERGE_PASSES; pass++) {
+			boolean settled = true;
+			for (Client client:clients) {
+				if (!client.sync())
+					settled = false;
+				for (String key:client.worker.getConflicts()) {
+					conflicts.add(client.id + ":" + key);
+					client.workspace.rejectLocalItem(key);
+					settled = false;
+				}
+			}
+			if (settled && agree()) {
+				convergence.record(start);
+				conflictCount += conflicts.size();
+				return;
+			}
+		}
+		throw new IllegalStateException("Seed " + seed + " didn't converge in " + MAX_CONVERGE_PASSES + " passes");
+	}
+
+	private boolean agree() throws Exception {
+		Map<String, String> remote = readRemote();
+		for (Client client:clients) {
+			synchronized (client.files) {
+				if (!client.files.equals(remote))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Make sure the files in the shared memory are the ones the workload
+	 * should have left, and take on which side of each contended edit won
+	 */
+	private void checkAgainstModel() throws Exception {
+		Map<String, String> files = remoteFiles();
+		if (!files.keySet().equals(model.keySet()))
+			throw new IllegalStateException("Seed " + seed + " left " + files.keySet() + " rather than " + model.keySet());
+		for (Map.Entry<String, String> entry:files.entrySet()) {
+			String path = entry.getKey();
+			Set<String> either = contended.get(path);
+			if (either != null ? !either.contains(entry.getValue()) : !entry.getValue().equals(model.get(path)))
+				throw new IllegalStateException("Seed " + seed + " left " + entry.getValue() + " in " + path + " rather than " + model.get(path));
+			model.put(path, entry.getValue());
+		}
+	}
+
+	/**
+	 * @return everything in the shared memory, with null for dirs as the
+	 * workspaces keep them
+	 */
+	private Map<String, String> readRemote() throws BadPathException, MissingNodeException {
+		Map<String, String> tree = new HashMap<String, String>();
+		Snapshot snapshot = memory.snapshot();
+		try {
+			String pageToken = null;
+			do {
+				SubtreePage page = snapshot.copySubtree("/", -1, pageToken, 1000);
+				for (Map.Entry<String, MemoryNode> entry:page.getNodes().entrySet()) {
+					if (entry.getKey().equals("/"))
+						continue;
+					String version = entry.getValue().getVersion();
+					tree.put(entry.getKey(), version.equals(SharedMemory.DIR_NODE_VERSION) ? null : version);
+				}
+				pageToken = page.getNextToken();
+			} while (pageToken != null);
+		} finally {
+			snapshot.release();
+		}
+		return tree;
+	}
+
+	private Map<String, String> remoteFiles() throws BadPathException, MissingNodeException {
+		Map<String, String> files = new TreeMap<String, String>();
+		for (Map.Entry<String, String> entry:readRemote().entrySet()) {
+			if (entry.getValue() != null)
+				files.put(entry.getKey(), entry.getValue());
+		}
+		return files;
+	}
+
+	private String dirPath(int dir) {
+		return "/d" + dir;
+	}
+
+	private String newName() {
+		return "f" + (nextName++);
+	}
+
+	private void resetMeasures() {
+		passes.clear();
+		processItems.clear();
+		remoteReads.clear();
+		remoteWrites.clear();
+		convergence.clear();
+	}
+
+	private Report report(int rounds) throws Exception {
+		Map<String, Latencies> stages = new TreeMap<String, Latencies>();
+		stages.put("pass", passes);
+		stages.put("processItem", processItems);
+		stages.put("remote read", remoteReads);
+		stages.put("remote write", remoteWrites);
+		return new Report(seed, clients.size(), rounds, opCount, runNanos, conflictCount, contendedCount, convergence,
+				stages, workload, remoteFiles());
+	}
+
+	/**
+	 * What a run did and how long it took
+	 */
+	public static class Report {
+		private final long seed;
+		private final int clients;
+		private final int rounds;
+		private final int ops;
+		private final long nanos;
+		private final int conflicts;
+		private final int contended;
+		private final Latencies convergence;
+		private final Map<String, Latencies> stages;
+		private final List<String> workload;
+		private final Map<String, String> files;
+
+		Report(long seed, int clients, int rounds, int ops, long nanos, int conflicts, int contended, Latencies convergence,
+				Map<String, Latencies> stages, List<String> workload, Map<String, String> files) {
+			this.seed = seed;
+			this.clients = clients;
+			this.rounds = rounds;
+			this.ops = ops;
+			this.nanos = nanos;
+			this.conflicts = conflicts;
+			this.contended = contended;
+			this.convergence = convergence;
+			this.stages = stages;
+			this.workload = new ArrayList<String>(workload);
+			this.files = files;
+		}
+
+		public int getOps() {
+			return ops;
+		}
+
+		/**
+		 * @return ops made and brought to agreement everywhere, per second of
+		 * the whole run
+		 */
+		public double getOpsPerSecond() {
+			return nanos == 0 ? 0 : ops * 1e9 / nanos;
+		}
+
+		/**
+		 * @return conflicts settled, per op
+		 */
+		public double getConflictRate() {
+			return ops == 0 ? 0 : (double)conflicts / ops;
+		}
+
+		public int getConflicts() {
+			return conflicts;
+		}
+
+		/**
+		 * @return how many edits were made in two workspaces at once
+		 */
+		public int getContended() {
+			return contended;
+		}
+
+		/**
+		 * @return how long each round took to come to agreement once its ops
+		 * were made
+		 */
+		public Latencies getConvergence() {
+			return convergence;
+		}
+
+		/**
+		 * @return the time spent in each stage, by the name of the stage
+		 */
+		public Map<String, Latencies> getStages() {
+			return stages;
+		}
+
+		/**
+		 * @return every op made, in the order made, with the workspace it was
+		 * made in
+		 */
+		public List<String> getWorkload() {
+			return workload;
+		}
+
+		/**
+		 * @return the files in the shared memory at the end, by path
+		 */
+		public Map<String, String> getFiles() {
+			return files;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("seed %d: %d clients, %d rounds, %d ops%n", seed, clients, rounds, ops));
+			builder.append(String.format("ops/sec      %.1f%n", getOpsPerSecond()));
+			builder.append(String.format("conflicts    %d (%.2f%% of ops, %d contended edits)%n", conflicts, getConflictRate() * 100, contended));
+			builder.append(String.format("convergence  %s%n", convergence));
+			for (Map.Entry<String, Latencies> stage:stages.entrySet()) {
+				builder.append(String.format("%-12s %s%n", stage.getKey(), stage.getValue()));
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Times recorded from many threads, read back as percentiles
+	 */
+	public static class Latencies {
+		private final List<Long> nanos = new ArrayList<Long>();
+
+		/**
+		 * Record the time since the start
+		 */
+		synchronized void record(long startNanos) {
+			nanos.add(System.nanoTime() - startNanos);
+		}
+
+		synchronized void clear() {
+			nanos.clear();
+		}
+
+		public synchronized int getCount() {
+			return nanos.size();
+		}
+
+		/**
+		 * @param percentile from 0 to 100
+		 * @return the time in nanoseconds at or below which that share of the
+		 * times fall, or 0 if there are none
+		 */
+		public synchronized long getPercentile(double percentile) {
+			if (nanos.isEmpty())
+				return 0;
+			List<Long> sorted = new ArrayList<Long>(nanos);
+			Collections.sort(sorted);
+			int index = (int)Math.ceil(percentile / 100 * sorted.size()) - 1;
+			return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d p50=%dus p90=%dus p99=%dus max=%dus", getCount(), getPercentile(50) / 1000,
+					getPercentile(90) / 1000, getPercentile(99) / 1000, getPercentile(100) / 1000);
+		}
+	}
+
+	/**
+	 * A change to one workspace's files
+	 */
+	static private class FileOp {
+		enum Kind {
+			ADD, EDIT, DELETE, RENAME;
+		}
+
+		private final Kind kind;
+		private final int client;
+		private final String path;
+		private final String target; // only for a rename
+		private final String content; // null for a delete or rename
+
+		FileOp(Kind kind, int client, String path, String target, String content) {
+			this.kind = kind;
+			this.client = client;
+			this.path = path;
+			this.target = target;
+			this.content = content;
+		}
+
+		void applyTo(Map<String, String> files) {
+			switch (kind) {
+			case ADD:
+			case EDIT:
+				files.put(path, content);
+				break;
+			case DELETE:
+				files.remove(path);
+				break;
+			case RENAME:
+				synchronized (files) { // so a scan never sees it in both places
+					files.put(target, files.remove(path));
+				}
+				break;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "c" + client + " " + kind + " " + path + (target != null ? " " + target : "") + (content != null ? " " + content : "");
+		}
+	}
+
+	/**
+	 * A workspace and its worker
+	 */
+	private class Client {
+		private final int id;
+		private final Map<String, String> files;
+		private final Workspace workspace;
+		private final Worker worker;
+
+		Client(int id) {
+			this.id = id;
+			files = Collections.synchronizedMap(new HashMap<String, String>());
+			workspace = new TimedWorkspace(files);
+			worker = new Worker(workspace, memory, RECONCILE_THREADS, TRANSFER_THREADS, QUEUE_SIZE);
+		}
+
+		boolean sync() throws InterruptedException {
+			long start = System.nanoTime();
+			try {
+				return worker.sync();
+			} finally {
+				passes.record(start);
+			}
+		}
+	}
+
+	private class TimedWorkspace extends Workspace {
+		TimedWorkspace(Map<String, String> files) {
+			super(files);
+		}
+
+		@Override
+		public LocalItemInfo processItem(String key, RemoteItemInfo remoteInfo) throws SaveConflictException, BadPathException {
+			long start = System.nanoTime();
+			try {
+				return super.processItem(key, remoteInfo);
+			} finally {
+				processItems.record(start);
+			}
+		}
+	}
+
+	private class TimedMemory extends InMemorySharedMemory {
+		@Override
+		public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
+			long start = System.nanoTime();
+			try {
+				return super.copyNode(path);
+			} finally {
+				remoteReads.record(start);
+			}
+		}
+
+		@Override
+		public void addNode(String path, String name, String version) throws BadPathException, MissingNodeException, AddDuplicateException {
+			long start = System.nanoTime();
+			try {
+				super.addNode(path, name, version);
+			} finally {
+				remoteWrites.record(start);
+			}
+		}
+
+		@Override
+		public void changeNode(String path, MemoryNode oldNode, MemoryNode newNode) throws BadPathException, MissingNodeException, SaveConflictException {
+			long start = System.nanoTime();
+			try {
+				super.changeNode(path, oldNode, newNode);
+			} finally {
+				remoteWrites.record(start);
+			}
+		}
+
+		@Override
+		public void removeNode(String path, MemoryNode oldNode) throws BadPathException, MissingNodeException, SaveConflictException {
+			long start = System.nanoTime();
+			try {
+				super.removeNode(path, oldNode);
+			} finally {
+				remoteWrites.record(start);
+			}
+		}
+
+		@Override
+		public void multi(List<Op> ops) throws BadPathException, MissingNodeException, AddDuplicateException, SaveConflictException {
+			long start = System.nanoTime();
+			try {
+				super.multi(ops);
+			} finally {
+				remoteWrites.record(start);
+			}
+		}
+	}
+
+	/**
+	 * Run a workload from the command line: seed, clients, rounds, ops per
+	 * round and contention, each with a default
+	 */
+	public static void main(String[] args) throws Exception {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int opsPerRound = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		double contention = args.length > 4 ? Double.parseDouble(args[4]) : 0.05;
+		SyncSimulator simulator = new SyncSimulator(seed, clients, 8);
+		try {
+			simulator.start(200);
+			System.out.print(simulator.run(rounds, opsPerRound, contention));
+		} finally {
+			simulator.stop();
+		}
+	}
+}
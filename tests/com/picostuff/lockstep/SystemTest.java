@@ -2,6 +2,7 @@ package com.picostuff.lockstep;
 
 import static org.junit.Assert.*;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -16,26 +17,93 @@ import org.junit.Test;
  *
  */
 public class SystemTest {
+	static private final long SEED = 20131105;
 	
+	private SyncSimulator simulator;
 
 	@Before
-	public void setup() {
-		
+	public void setup() throws Exception {
+		simulator = new SyncSimulator(SEED, 3, 4);
+		simulator.start(20);
 	}
 	
+	@After
+	public void teardown() throws Exception {
+		simulator.stop();
+	}
+	
+	@Test
+	public void addFileAndSync() throws Exception {
+		simulator.add(0, "/d0/added", "1");
+		for (int client = 0; client < simulator.getClientCount(); client++) {
+			assertEquals("1", simulator.fileOn(client, "/d0/added"));
+		}
+	}
+
+	@Test
+	public void modifyFileAndSync() throws Exception {
+		simulator.add(0, "/d1/modified", "1");
+		simulator.edit(1, "/d1/modified", "2");
+		for (int client = 0; client < simulator.getClientCount(); client++) {
+			assertEquals("2", simulator.fileOn(client, "/d1/modified"));
+		}
+	}
+
+	@Test
+	public void removeFileAndSync() throws Exception {
+		simulator.add(0, "/d2/removed", "1");
+		simulator.delete(2, "/d2/removed");
+		for (int client = 0; client < simulator.getClientCount(); client++) {
+			assertNull(simulator.fileOn(client, "/d2/removed"));
+		}
+	}
+
+	@Test
+	public void renameFileAndSync() throws Exception {
+		simulator.add(0, "/d0/before", "1");
+		simulator.rename(1, "/d0/before", "/d3/after");
+		for (int client = 0; client < simulator.getClientCount(); client++) {
+			assertNull(simulator.fileOn(client, "/d0/before"));
+			assertEquals("1", simulator.fileOn(client, "/d3/after"));
+		}
+	}
+
 	@Test
-	public void addFileAndSync() {
-		fail("Not yet implemented");
+	public void randomWorkloadConverges() throws Exception {
+		SyncSimulator.Report report = simulator.run(5, 40, 0);
+		assertEquals(200, report.getOps());
+		assertEquals(0, report.getConflicts());
+		assertEquals(5, report.getConvergence().getCount());
+		assertTrue(report.getStages().get("remote write").getCount() > 0);
 	}
 
 	@Test
-	public void modifyFileAndSync() {
-		fail("Not yet implemented");
+	public void contendedEditsConflictAtMostOnceEach() throws Exception {
+		SyncSimulator.Report report = simulator.run(5, 40, 0.25);
+		assertTrue(report.getConflicts() > 0);
+		// only the losing side of each, and none where one edit came after the other had synced
+		assertTrue(report.getConflicts() <= report.getContended());
 	}
 
 	@Test
-	public void removeFileAndSync() {
-		fail("Not yet implemented");
+	public void sameSeedSameWorkload() throws Exception {
+		SyncSimulator.Report report = simulator.run(3, 30, 0);
+		SyncSimulator again = new SyncSimulator(SEED, 3, 4);
+		try {
+			again.start(20);
+			SyncSimulator.Report replay = again.run(3, 30, 0);
+			assertEquals(report.getWorkload(), replay.getWorkload());
+			assertEquals(report.getFiles(), replay.getFiles());
+		} finally {
+			again.stop();
+		}
+		SyncSimulator other = new SyncSimulator(SEED + 1, 3, 4);
+		try {
+			other.start(20);
+			assertFalse(report.getWorkload().equals(other.run(3, 30, 0).getWorkload()));
+		} finally {
+			other.stop();
+		}
 	}
 
 }
@@ -0,0 +1,385 @@
+package com.picostuff.lockstep;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.picostuff.lockstep.exception.BadPathException;
+import com.picostuff.lockstep.exception.MissingNodeException;
+
+/**
+ * Test to drive the worker pipeline between a workspace and a shared memory
+ * 
+ * @author chenglim
+ *
+ */
+public class WorkerTest {
+	private SharedMemory memory;
+	private Map<String,String> fileSystem;
+	private Workspace workspace;
+	private Worker worker;
+
+	@Before
+	public void setup() throws Exception {
+		memory = new InMemorySharedMemory();
+		fileSystem = Collections.synchronizedMap(new HashMap<String, String>());
+		workspace = new Workspace(fileSystem);
+		worker = new Worker(workspace, memory, 4, 2, 16);
+		worker.start();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		worker.stop();
+	}
+	
+	private void syncUntilSettled() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			if (worker.sync())
+				return;
+		}
+		Assert.fail("sync didn't settle");
+	}
+	
+	@Test
+	public void pushLocalTree() throws Exception {
+		fileSystem.put("/a", null);
+		fileSystem.put("/a/b", null);
+		fileSystem.put("/a/b/c", "1");
+		fileSystem.put("/d", "2");
+		syncUntilSettled();
+		
+		Assert.assertEquals(SharedMemory.DIR_NODE_VERSION, memory.copyNode("/a/b").getVersion());
+		Assert.assertEquals("1", memory.copyNode("/a/b/c").getVersion());
+		Assert.assertEquals("2", memory.copyNode("/d").getVersion());
+		Assert.assertTrue(worker.getConflicts().isEmpty());
+	}
+
+	@Test
+	public void pullRemoteTree() throws Exception {
+		memory.addRootDirNode("a");
+		memory.addNode("/a", "b", "1");
+		for (int i = 0; i < 100; i++) {
+			memory.addNode("/a", "f" + i, String.valueOf(i)); // more than the queues hold at once
+		}
+		syncUntilSettled();
+		
+		Assert.assertTrue(fileSystem.containsKey("/a"));
+		Assert.assertNull("check dir stored as a dir", fileSystem.get("/a"));
+		Assert.assertEquals("1", fileSystem.get("/a/b"));
+		Assert.assertEquals("99", fileSystem.get("/a/f99"));
+	}
+
+	@Test
+	public void changesAndDeletesBothWays() throws Exception {
+		memory.addRootNode("remote", "1");
+		fileSystem.put("/local", "1");
+		syncUntilSettled();
+		
+		// a remote change and a local change
+		MemoryNode oldNode = memory.copyNode("/remote");
+		MemoryNode newNode = memory.copyNode("/remote");
+		newNode.setVersion("2");
+		memory.changeNode("/remote", oldNode, newNode);
+		fileSystem.put("/local", "2");
+		syncUntilSettled();
+		Assert.assertEquals("2", fileSystem.get("/remote"));
+		Assert.assertEquals("2", memory.copyNode("/local").getVersion());
+		
+		// a remote delete and a local delete
+		memory.removeNode("/remote", memory.copyNode("/remote"));
+		fileSystem.remove("/local");
+		syncUntilSettled();
+		Assert.assertFalse(fileSystem.containsKey("/remote"));
+		Assert.assertFalse(memory.getChildrenNames("/").contains("local"));
+		
+		// and nothing is left to do
+		Assert.assertTrue(worker.sync());
+		Assert.assertTrue(fileSystem.isEmpty());
+	}
+
+	@Test
+	public void dirDeleteKeepsChildAddedElsewhere() throws Exception {
+		fileSystem.put("/d", null);
+		fileSystem.put("/d/x", "1");
+		syncUntilSettled();
+		
+		// another client adds under the dir, and we delete the whole dir here
+		memory.addNode("/d", "fromOther", "2");
+		fileSystem.remove("/d/x");
+		fileSystem.remove("/d");
+		syncUntilSettled();
+		Assert.assertEquals("2", memory.copyNode("/d/fromOther").getVersion());
+		Assert.assertFalse(memory.getChildrenNames("/d").contains("x"));
+		Assert.assertEquals("2", fileSystem.get("/d/fromOther"));
+		Assert.assertFalse(fileSystem.containsKey("/d/x"));
+		Assert.assertTrue(worker.getConflicts().isEmpty());
+		
+		// once we have seen the child, deleting the dir takes it all
+		fileSystem.remove("/d/fromOther");
+		fileSystem.remove("/d");
+		syncUntilSettled();
+		Assert.assertFalse(memory.getChildrenNames("/").contains("d"));
+	}
+
+	@Test
+	public void conflictReported() throws Exception {
+		memory.addRootNode("a", "1");
+		syncUntilSettled();
+		
+		MemoryNode oldNode = memory.copyNode("/a");
+		MemoryNode newNode = memory.copyNode("/a");
+		newNode.setVersion("remote");
+		memory.changeNode("/a", oldNode, newNode);
+		fileSystem.put("/a", "local");
+		worker.sync();
+		Assert.assertTrue(worker.getConflicts().contains("/a"));
+		Assert.assertEquals("check local left alone", "local", fileSystem.get("/a"));
+	}
+
+	@Test
+	public void slowTransferDoesNotHoldUpOthers() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		// hold up the copy of one item part way through
+		final LocalStateStorage storage = new InMemoryLocalStateStorage() {
+			@Override
+			public void put(String key, BaseItemInfo baseInfo) {
+				if (key.equals("/big")) {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.put(key, baseInfo);
+			}
+		};
+		worker.stop();
+		worker = new Worker(new Workspace(fileSystem, storage), memory, 4, 2, 16);
+		worker.start();
+		memory.addRootNode("big", "1");
+		for (int i = 0; i < 10; i++) {
+			memory.addRootNode("small" + i, "1");
+		}
+		
+		Thread syncThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					worker.sync();
+				} catch (InterruptedException e) {
+					// test is over
+				}
+			}
+		};
+		syncThread.start();
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!fileSystem.containsKey("/small9") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue("check small files came through while big one copies", fileSystem.containsKey("/small9"));
+		Assert.assertNull(storage.get("/big"));
+		release.countDown();
+		syncThread.join();
+		Assert.assertEquals("1", storage.get("/big").getVersion());
+	}
+	
+	private void addRemote(String name, long size, long modified) throws Exception {
+		memory.addRootNode(name, name);
+		MemoryNode oldNode = memory.copyNode("/" + name);
+		MemoryNode newNode = memory.copyNode("/" + name);
+		newNode.setSize(size);
+		newNode.setModified(modified);
+		memory.changeNode("/" + name, oldNode, newNode);
+	}
+	
+	@Test
+	public void fastStartPushesBeforeFetching() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		// hold up every fetch
+		LocalStateStorage storage = new InMemoryLocalStateStorage() {
+			@Override
+			public void put(String key, BaseItemInfo baseInfo) {
+				if (key.startsWith("/remote")) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.put(key, baseInfo);
+			}
+		};
+		worker.stop();
+		worker = new Worker(new Workspace(fileSystem, storage), memory, 4, 2, 16);
+		worker.startFast(Worker.FetchOrder.SMALLEST_FIRST);
+		for (int i = 0; i < 10; i++) {
+			addRemote("remote" + i, i, i);
+		}
+		fileSystem.put("/local", "1");
+		
+		Assert.assertTrue(worker.sync());
+		Assert.assertEquals("1", memory.copyNode("/local").getVersion());
+		Assert.assertTrue(worker.isFastStart());
+		release.countDown();
+		worker.awaitFetches();
+		Assert.assertFalse(worker.isFastStart());
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals("remote" + i, fileSystem.get("/remote" + i));
+		}
+		Assert.assertTrue(worker.sync());
+	}
+	
+	private List<String> fetchOrder(Worker.FetchOrder order, String touch) throws Exception {
+		final List<String> fetched = Collections.synchronizedList(new ArrayList<String>());
+		LocalStateStorage storage = new InMemoryLocalStateStorage() {
+			@Override
+			public void put(String key, BaseItemInfo baseInfo) {
+				fetched.add(key);
+				super.put(key, baseInfo);
+			}
+		};
+		worker.stop();
+		worker = new Worker(new Workspace(fileSystem, storage), memory, 2, 1, 16); // one fetch at a time
+		addRemote("a", 300, 1000);
+		addRemote("b", 100, 3000);
+		addRemote("c", 200, 2000);
+		memory.addRootNode("d", "d"); // no size or time known
+		worker.startFast(order);
+		if (touch != null)
+			worker.touch(touch);
+		worker.sync();
+		worker.awaitFetches();
+		return fetched;
+	}
+	
+	@Test
+	public void fastStartSmallestFirst() throws Exception {
+		Assert.assertEquals(Arrays.asList("/b", "/c", "/a", "/d"), fetchOrder(Worker.FetchOrder.SMALLEST_FIRST, null));
+	}
+	
+	@Test
+	public void fastStartNewestFirst() throws Exception {
+		Assert.assertEquals(Arrays.asList("/b", "/c", "/a", "/d"), fetchOrder(Worker.FetchOrder.NEWEST_FIRST, null));
+	}
+	
+	@Test
+	public void fastStartTouchedFirst() throws Exception {
+		Assert.assertEquals(Arrays.asList("/a", "/b", "/c", "/d"), fetchOrder(Worker.FetchOrder.SMALLEST_FIRST, "/a"));
+	}
+	
+	@Test
+	public void sizeAndModifiedPushed() throws Exception {
+		File dir = File.createTempFile("lockstep", "worker");
+		dir.delete();
+		DirectoryFileSystem directory = new DirectoryFileSystem(dir, null, false);
+		try {
+			Files.write(new File(dir, "f").toPath(), new byte[123]);
+			worker.stop();
+			worker = new Worker(new Workspace(directory, new InMemoryLocalStateStorage()), memory, 2, 1, 16);
+			worker.start();
+			syncUntilSettled();
+			MemoryNode node = memory.copyNode("/f");
+			Assert.assertEquals(123, node.getSize());
+			Assert.assertEquals(new File(dir, "f").lastModified(), node.getModified());
+		} finally {
+			directory.close();
+			DirectoryFileSystemTest.deleteDir(dir);
+		}
+	}
+	
+	@Test
+	public void syncSkipsSettledSubtrees() throws Exception {
+		final List<String> reads = Collections.synchronizedList(new ArrayList<String>());
+		memory = new InMemorySharedMemory() {
+			@Override
+			public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
+				reads.add(path);
+				return super.copyNode(path);
+			}
+			
+			@Override
+			public Snapshot snapshot() {
+				final Snapshot snapshot = super.snapshot();
+				return new Snapshot() {
+					public Set<String> getChildrenNames(String path) throws BadPathException, MissingNodeException {
+						reads.add(path);
+						return snapshot.getChildrenNames(path);
+					}
+					
+					public MemoryNode copyNode(String path) throws BadPathException, MissingNodeException {
+						reads.add(path);
+						return snapshot.copyNode(path);
+					}
+					
+					public SubtreePage copySubtree(String path, int depth, String pageToken, int pageSize) throws BadPathException, MissingNodeException {
+						reads.add(path);
+						return snapshot.copySubtree(path, depth, pageToken, pageSize);
+					}
+					
+					void free() {
+						snapshot.release();
+					}
+				};
+			}
+		};
+		File dir = File.createTempFile("lockstep", "worker");
+		dir.delete();
+		DirectoryFileSystem directory = new DirectoryFileSystem(dir, null, false);
+		try {
+			new File(dir, "a").mkdir();
+			new File(dir, "b").mkdir();
+			for (int i = 0; i < 10; i++) {
+				Files.write(new File(dir, "a/f" + i).toPath(), new byte[] { (byte)i });
+				Files.write(new File(dir, "b/f" + i).toPath(), new byte[] { (byte)i });
+			}
+			worker.stop();
+			worker = new Worker(new Workspace(directory, new InMemoryLocalStateStorage()), memory, 2, 1, 16);
+			worker.start();
+			syncUntilSettled();
+			Assert.assertTrue(worker.sync()); // the first pass that finds nothing to push is the one that can settle
+			
+			reads.clear();
+			Assert.assertTrue(worker.sync());
+			Assert.assertEquals("check an idle tree is skipped from the root", Arrays.asList("/"), reads);
+			
+			String oldVersion = memory.copyNode("/b/f1").getVersion();
+			Files.write(new File(dir, "b/f1").toPath(), new byte[] { 100 });
+			reads.clear();
+			Assert.assertTrue(worker.sync());
+			Assert.assertFalse(oldVersion.equals(memory.copyNode("/b/f1").getVersion()));
+			for (String path:reads) {
+				Assert.assertFalse("check " + path + " was skipped", path.startsWith("/a/"));
+			}
+			
+			Assert.assertTrue(worker.sync()); // settles what we just pushed
+			memory.addDirNode("/a", "c");
+			reads.clear();
+			Assert.assertTrue(worker.sync());
+			Assert.assertTrue(new File(dir, "a/c").isDirectory());
+			for (String path:reads) {
+				Assert.assertFalse("check " + path + " was skipped", path.startsWith("/b/"));
+			}
+		} finally {
+			directory.close();
+			DirectoryFileSystemTest.deleteDir(dir);
+		}
+	}
+}
@@ -2,7 +2,10 @@ package com.picostuff.lockstep;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -274,4 +277,127 @@ public class WorkspaceTest {
 		Assert.assertFalse("check item deleted", fileSet.contains("/a/b"));
 	}
 
+	@Test
+	public void placeholdersForRemoteFiles() throws Exception {
+		MapFileSystem mapFileSystem = new MapFileSystem(fileSystem);
+		workspace = new Workspace(mapFileSystem, new InMemoryLocalStateStorage());
+		workspace.usePlaceholders(Long.MAX_VALUE);
+		syncNewWorkspace();
+		
+		String key = "/a/c";
+		RemoteItemInfo remoteInfo = new RemoteItemInfo("c", "1", 10, 0);
+		Assert.assertFalse("check nothing to fetch", workspace.needsTransfer(key, remoteInfo));
+		Assert.assertNull(workspace.processItem(key, remoteInfo));
+		Assert.assertTrue(mapFileSystem.isPlaceholder(key));
+		Assert.assertNull("check placeholder not pushed", workspace.processItem(key, remoteInfo));
+		
+		// changed remotely, and still just a placeholder
+		remoteInfo = new RemoteItemInfo("c", "2", 20, 0);
+		Assert.assertFalse(workspace.needsTransfer(key, remoteInfo));
+		workspace.processItem(key, remoteInfo);
+		Assert.assertTrue(mapFileSystem.isPlaceholder(key));
+		Assert.assertEquals("2", fileSystem.get(key));
+		
+		// opened
+		Assert.assertTrue(workspace.open(key));
+		Assert.assertFalse(mapFileSystem.isPlaceholder(key));
+		Assert.assertNull(workspace.processItem(key, remoteInfo));
+		Assert.assertFalse(workspace.open(key));
+		
+		// gone remotely
+		workspace.processItem(key, null);
+		Assert.assertFalse(fileSystem.containsKey(key));
+	}
+
+	@Test
+	public void coldFilesDehydrated() throws Exception {
+		MapFileSystem mapFileSystem = new MapFileSystem(fileSystem);
+		workspace = new Workspace(mapFileSystem, new InMemoryLocalStateStorage());
+		workspace.usePlaceholders(25);
+		syncNewWorkspace();
+		for (String name:new String[] { "c", "d", "e" }) {
+			workspace.processItem("/a/" + name, new RemoteItemInfo(name, "1", 10, 0));
+		}
+		workspace.open("/a/c");
+		workspace.open("/a/d");
+		workspace.open("/a/e");
+		Assert.assertTrue("check least recently opened dehydrated", mapFileSystem.isPlaceholder("/a/c"));
+		Assert.assertFalse(mapFileSystem.isPlaceholder("/a/d"));
+		Assert.assertFalse(mapFileSystem.isPlaceholder("/a/e"));
+		
+		// a file changed here is never dehydrated
+		fileSystem.put("/a/d", "mine");
+		workspace.open("/a/c");
+		Assert.assertFalse(mapFileSystem.isPlaceholder("/a/c"));
+		Assert.assertEquals("mine", fileSystem.get("/a/d"));
+		Assert.assertFalse(mapFileSystem.isPlaceholder("/a/d"));
+		Assert.assertFalse(mapFileSystem.isPlaceholder("/a/e"));
+	}
+
+	@Test
+	public void processItemsMatchesProcessItem() throws Exception {
+		// every pair of states, each on its own item, in two copies of one workspace
+		Map<String,String> oneFiles = new HashMap<String, String>();
+		Map<String,String> batchFiles = new HashMap<String, String>();
+		MapFileSystem one = new MapFileSystem(oneFiles);
+		MapFileSystem batch = new MapFileSystem(batchFiles);
+		LocalStateStorage oneBases = new InMemoryLocalStateStorage();
+		LocalStateStorage batchBases = new InMemoryLocalStateStorage();
+		List<String> keys = new ArrayList<String>();
+		List<RemoteItemInfo> remoteInfos = new ArrayList<RemoteItemInfo>();
+		String[] remoteVersions = { "3", null, "1" }; // changed or new, gone, unchanged
+		String[] localVersions = { "1", "2", "3", null, "placeholder" }; // unchanged, changed or new, same as remote, gone, placeholder
+		for (boolean hasBase:new boolean[] { true, false }) {
+			for (String remoteVersion:remoteVersions) {
+				for (String localVersion:localVersions) {
+					String name = "f" + keys.size();
+					String key = "/d/" + name;
+					keys.add(key);
+					remoteInfos.add(remoteVersion == null ? null : new RemoteItemInfo(name, remoteVersion));
+					for (MapFileSystem fileSystem:new MapFileSystem[] { one, batch }) {
+						if ("placeholder".equals(localVersion))
+							fileSystem.putPlaceholder(key, "1", 10);
+						else if (localVersion != null)
+							fileSystem.put(key, localVersion);
+					}
+					if (hasBase) {
+						oneBases.put(key, new BaseItemInfo(name, "1"));
+						batchBases.put(key, new BaseItemInfo(name, "1"));
+					}
+				}
+			}
+		}
+		keys.add("/d/f0/under"); // a file where its dir needs to be
+		remoteInfos.add(new RemoteItemInfo("under", "1"));
+		
+		Workspace oneWorkspace = new Workspace(one, oneBases);
+		Map<String,String> onePushes = new HashMap<String, String>();
+		Set<String> oneConflicts = new HashSet<String>();
+		for (int i = 0; i < keys.size(); i++) {
+			try {
+				LocalItemInfo localInfo = oneWorkspace.processItem(keys.get(i), remoteInfos.get(i));
+				if (localInfo != null)
+					onePushes.put(keys.get(i), localInfo.getVersion());
+			} catch (SaveConflictException e) {
+				oneConflicts.add(keys.get(i));
+			}
+		}
+		Map<String,LocalItemInfo> batchPushes = new HashMap<String, LocalItemInfo>();
+		Set<String> batchConflicts = new HashSet<String>();
+		new Workspace(batch, batchBases).processItems(keys, remoteInfos, batchPushes, batchConflicts);
+		
+		Assert.assertEquals(oneFiles, batchFiles);
+		Assert.assertEquals(oneConflicts, batchConflicts);
+		Assert.assertTrue(batchConflicts.contains("/d/f0/under"));
+		Assert.assertEquals(onePushes.keySet(), batchPushes.keySet());
+		for (Map.Entry<String,LocalItemInfo> push:batchPushes.entrySet()) {
+			Assert.assertEquals(onePushes.get(push.getKey()), push.getValue().getVersion());
+		}
+		for (String key:keys) {
+			BaseItemInfo oneBase = oneBases.get(key);
+			BaseItemInfo batchBase = batchBases.get(key);
+			Assert.assertEquals(key, oneBase == null ? null : oneBase.getVersion(), batchBase == null ? null : batchBase.getVersion());
+		}
+	}
+
 }